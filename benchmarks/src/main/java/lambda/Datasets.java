@@ -0,0 +1,126 @@
+package lambda;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Synthetic datasets for the benchmarks. Everything is generated from a fixed
+ * seed, so every run and every machine benchmarks the same data.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+final class Datasets {
+
+    /** The seed of every dataset. */
+    static final long SEED = 462L;
+
+    private static final String[] SYLLABLES = {"ta", "co", "ma", "se", "at", "tle", "port", "land", "spo", "kane",
+        "bel", "ling", "ham", "ev", "er", "ett", "ol", "ym", "pia", "ren", "ton", "ken", "new", "san", "fran"};
+    private static final String[] STATES = {"Washington", "Oregon", "California", "Idaho", "Nevada", "Texas"};
+    private static final String[] COUNTRIES = {"United States", "Canada", "Mexico"};
+
+    private Datasets() {
+    }
+
+    /**
+     * Generate distinct city names of one or two words.
+     * @param count The number of cities.
+     * @return The city names.
+     */
+    static List<String> cities(final int count) {
+        final Random random = new Random(SEED);
+        final List<String> cities = new ArrayList<>(count);
+        final StringBuilder name = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            name.setLength(0);
+            name.append(word(random));
+            if (random.nextInt(4) == 0) {
+                name.append(' ').append(word(random));
+            }
+            // The index keeps the names distinct however many are generated.
+            name.append(' ').append(i);
+            cities.add(name.toString());
+        }
+        return cities;
+    }
+
+    /**
+     * Generate a recurring cities cache as stored by Transform.
+     * @param count The number of cities.
+     * @return The cache.
+     */
+    static HashMap<String, Transform.CacheLocation> recurringCities(final int count) {
+        final Random random = new Random(SEED);
+        final HashMap<String, Transform.CacheLocation> cache = new HashMap<>();
+        for (final String city : cities(count)) {
+            cache.put(city, new Transform.CacheLocation(
+                    STATES[random.nextInt(STATES.length)], COUNTRIES[random.nextInt(COUNTRIES.length)]));
+        }
+        return cache;
+    }
+
+    /**
+     * Generate rows of the raw CSV read by Transform: age, gender, number of apps,
+     * social media, productivity and gaming usage, and city.
+     * @param rows The number of rows.
+     * @param cities The cities to draw from.
+     * @return The CSV.
+     */
+    static byte[] rawCsv(final int rows, final List<String> cities) {
+        final Random random = new Random(SEED);
+        final StringBuilder csv = new StringBuilder(rows * 48);
+        for (int i = 0; i < rows; i++) {
+            csv.append(18 + random.nextInt(60)).append(',')
+                    .append(random.nextBoolean() ? "Male" : "Female").append(',')
+                    .append(1 + random.nextInt(50)).append(',')
+                    .append(usage(random)).append(',')
+                    .append(usage(random)).append(',')
+                    .append(usage(random)).append(',')
+                    .append(cities.get(random.nextInt(cities.size()))).append('\n');
+        }
+        return csv.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Generate rows as returned by a grouped aggregation over the 'data' table.
+     * @param rows The number of rows.
+     * @return The rows, in column order userCity, resultState, AVG_userTotalAppUsage, COUNT_userID.
+     */
+    static List<Map<String, Object>> resultRows(final int rows) {
+        final Random random = new Random(SEED);
+        final List<String> cities = cities(rows);
+        final List<Map<String, Object>> result = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            final Map<String, Object> row = new LinkedHashMap<>();
+            row.put("userCity", cities.get(i));
+            row.put("resultState", STATES[random.nextInt(STATES.length)]);
+            row.put("AVG_userTotalAppUsage", random.nextDouble() * 20);
+            row.put("COUNT_userID", (long) random.nextInt(10000));
+            result.add(row);
+        }
+        return result;
+    }
+
+    private static String word(final Random random) {
+        final StringBuilder word = new StringBuilder();
+        final int syllables = 2 + random.nextInt(2);
+        for (int i = 0; i < syllables; i++) {
+            word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+        }
+        word.setCharAt(0, Character.toUpperCase(word.charAt(0)));
+        return word.toString();
+    }
+
+    private static String usage(final Random random) {
+        return String.valueOf(random.nextInt(1000) / 100.0);
+    }
+}
@@ -0,0 +1,118 @@
+package lambda;
+
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The work Query does around the database: building the SQL of a request and
+ * converting the result set to the rows returned as JSON. The result set is an
+ * in-memory stand-in, so the benchmark measures the conversion and not the driver.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class QueryBenchmark {
+
+    /** A grouped, filtered request like json.json. */
+    private static final String REQUEST = "{\"aggregations\": [{\"column\": \"userTotalAppUsage\", \"function\": \"AVG\"},"
+            + " {\"column\": \"userID\", \"function\": \"COUNT\"}],"
+            + " \"filters\": [{\"column\": \"resultCountry\", \"value\": \"United States\"}],"
+            + " \"group\": [\"userCity\", \"resultState\"]}";
+
+    @Param({"100", "10000"})
+    private int rows;
+
+    private List<Map<String, Object>> resultRows;
+    private QuerySpec spec;
+
+    @Setup
+    public void setUp() {
+        resultRows = Datasets.resultRows(rows);
+        spec = new QuerySpec(null, new JSONObject(REQUEST));
+    }
+
+    @Benchmark
+    public ArrayList<HashMap<String, Object>> resultSetToRows() throws SQLException {
+        return QuerySpec.toRows(resultSet(resultRows));
+    }
+
+    @Benchmark
+    public HashMap<String, Object> resultSetToColumnar() throws SQLException {
+        return ColumnarResult.encode(QuerySpec.toRows(resultSet(resultRows)));
+    }
+
+    @Benchmark
+    public QueryShape buildSql() {
+        return spec.toShape(new ArrayList<>());
+    }
+
+    /**
+     * A forward-only result set over rows that all have the same columns.
+     */
+    private static ResultSet resultSet(final List<Map<String, Object>> rows) {
+        final List<String> columns = new ArrayList<>(rows.get(0).keySet());
+        final ResultSetMetaData metaData = (ResultSetMetaData) Proxy.newProxyInstance(
+                QueryBenchmark.class.getClassLoader(),
+                new Class<?>[] {ResultSetMetaData.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getColumnCount":
+                            return columns.size();
+                        case "getColumnName":
+                        case "getColumnLabel":
+                            return columns.get((Integer) args[0] - 1);
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        final int[] cursor = {-1};
+        return (ResultSet) Proxy.newProxyInstance(
+                QueryBenchmark.class.getClassLoader(),
+                new Class<?>[] {ResultSet.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "next":
+                            return ++cursor[0] < rows.size();
+                        case "getMetaData":
+                            return metaData;
+                        case "getObject":
+                            if (args[0] instanceof Integer) {
+                                return rows.get(cursor[0]).get(columns.get((Integer) args[0] - 1));
+                            }
+                            return rows.get(cursor[0]).get((String) args[0]);
+                        case "close":
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
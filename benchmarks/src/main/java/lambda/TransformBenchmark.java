@@ -0,0 +1,130 @@
+package lambda;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import saaf.Inspector;
+import saaf.Span;
+
+/**
+ * The per-row work of Transform: parsing the raw CSV, transforming a row and
+ * formatting the transformed row. Every city is in the recurring cities cache,
+ * so no row reaches the geocoding API. transformRow runs the transformer
+ * generated for the schema, see RowSchema, transformRowHandWritten the fixed
+ * layout it replaced.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TransformBenchmark {
+
+    /** Rows in the parsed CSV. */
+    private static final int ROWS = 10000;
+
+    /** Distinct cities in the rows. */
+    private static final int CITIES = 500;
+
+    private byte[] rawCsv;
+    private CSVRecord[] records;
+    private Map<String, Transform.CacheLocation> recurringCities;
+    private Span geocode;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        final List<String> cities = Datasets.cities(CITIES);
+        rawCsv = Datasets.rawCsv(ROWS, cities);
+        recurringCities = Datasets.recurringCities(CITIES);
+        try (CSVParser parser = parse()) {
+            records = parser.getRecords().toArray(new CSVRecord[0]);
+        }
+        geocode = new Inspector().startSpan("transform").child("geocode");
+    }
+
+    /**
+     * Parse the raw CSV and read every field. Reported per row.
+     */
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void csvParse(final Blackhole blackhole) throws IOException {
+        try (CSVParser parser = parse()) {
+            for (final CSVRecord record : parser) {
+                for (int i = 0; i < record.size(); i++) {
+                    blackhole.consume(record.get(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Transform one parsed row, a cache hit.
+     */
+    @Benchmark
+    public String transformRow() {
+        final CSVRecord record = records[next];
+        next = next + 1 == records.length ? 0 : next + 1;
+        return Transform.transformRow(record, recurringCities, geocode);
+    }
+
+    /**
+     * Transform one parsed row as before the schema, a cache hit.
+     */
+    @Benchmark
+    public String transformRowHandWritten() {
+        final CSVRecord record = records[next];
+        next = next + 1 == records.length ? 0 : next + 1;
+        final int userAge = Integer.parseInt(record.get(0));
+        final String userGender = record.get(1);
+        final int userNumberOfApps = Integer.parseInt(record.get(2));
+        final float userSocialMediaUsage = Float.parseFloat(record.get(3));
+        final float userProductivityAppUsage = Float.parseFloat(record.get(4));
+        final float userGamingAppUsage = Float.parseFloat(record.get(5));
+        final String userCity = record.get(6);
+        final float userTotalAppUsage = userSocialMediaUsage + userProductivityAppUsage + userGamingAppUsage;
+        final Transform.CacheLocation location = Transform.locate(userCity, recurringCities, geocode);
+        return Transform.formatRow(userAge, userGender, userNumberOfApps, userSocialMediaUsage,
+                userSocialMediaUsage / userTotalAppUsage, userProductivityAppUsage, userProductivityAppUsage / userTotalAppUsage,
+                userGamingAppUsage, userGamingAppUsage / userTotalAppUsage, userTotalAppUsage, userCity,
+                location.getState(), location.getCountry());
+    }
+
+    /**
+     * Format the columns of one transformed row.
+     */
+    @Benchmark
+    public String formatRow() {
+        return Transform.formatRow(34, "Female", 12, 3.25f, 0.4f, 2.5f, 0.31f, 2.37f, 0.29f, 8.12f,
+                "Tacoma", "Washington", "United States");
+    }
+
+    private CSVParser parse() throws IOException {
+        return CSVParser.parse(new ByteArrayInputStream(rawCsv), StandardCharsets.UTF_8, CSVFormat.DEFAULT);
+    }
+}
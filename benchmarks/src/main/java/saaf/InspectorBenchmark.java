@@ -0,0 +1,72 @@
+package saaf;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The overhead the Inspector adds to every invocation, and the per-row cost of
+ * recording into a span.
+ *
+ * @author Wes Lloyd
+ * @author Robert Cordingly
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class InspectorBenchmark {
+
+    private Span row;
+
+    @Setup
+    public void setUp() {
+        row = new Inspector().startSpan("transform").child("transformRow");
+    }
+
+    /**
+     * The collection done by the handlers: CPU, memory and container at the
+     * start, deltas and finish at the end.
+     */
+    @Benchmark
+    public HashMap<String, Object> handlerCycle() {
+        final Inspector inspector = new Inspector();
+        inspector.inspectCPU();
+        inspector.inspectMemory();
+        inspector.inspectContainer();
+        inspector.inspectAllDeltas();
+        return inspector.finish();
+    }
+
+    /**
+     * Everything the Inspector can collect.
+     */
+    @Benchmark
+    public HashMap<String, Object> inspectAll() {
+        final Inspector inspector = new Inspector();
+        inspector.inspectAll();
+        inspector.inspectAllDeltas();
+        return inspector.finish();
+    }
+
+    /**
+     * Time one row into a span, as Transform does for every row.
+     */
+    @Benchmark
+    public Span spanRecord() {
+        final long start = System.nanoTime();
+        row.record(System.nanoTime() - start);
+        return row;
+    }
+}
@@ -0,0 +1,222 @@
+package lambda;
+
+import ch.vorburger.mariadb4j.DB;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Measures cold starts: every run starts a fresh JVM with ColdStartProbe, which
+ * constructs one handler and invokes it twice. Each handler is measured without
+ * priming, with priming (see Warmup), and with priming plus an AppCDS archive
+ * recorded by a training run of the same probe, and the medians are reported.
+ *
+ * The probes read from local S3 directories prepared here. The recurring cities
+ * cache holds every generated city, so Transform never calls the geocoder.
+ * LoadAurora and Query use the embedded MariaDB or -jdbcUrl, as in Harness.
+ *
+ * Options, as -name=value:
+ *
+ * runs:      Fresh JVMs per handler and mode (default 5).
+ * rows:      Rows per input file (default 1000).
+ * handlers:  Comma separated handlers to measure (default Transform,LoadAurora,Query).
+ * jdbcUrl, jdbcUser, jdbcPassword, dir: As in Harness.
+ *
+ * Run with java -cp target/harness.jar lambda.ColdStart.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+public final class ColdStart {
+
+    /** Invocations prepared for every probe. */
+    private static final int FILES = 2;
+
+    /** The measured configurations. */
+    private static final String[] MODES = {"unprimed", "primed", "primed+cds"};
+
+    private ColdStart() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final Map<String, String> options = Harness.options(args);
+        final int runs = Integer.parseInt(options.getOrDefault("runs", "5"));
+        final long rows = Long.parseLong(options.getOrDefault("rows", "1000"));
+        final List<String> handlers = Arrays.asList(options.getOrDefault("handlers", "Transform,LoadAurora,Query").split(","));
+        final Path dir = options.containsKey("dir")
+                ? Paths.get(options.get("dir"))
+                : Files.createTempDirectory("tlq-coldstart");
+
+        final DB db = handlers.contains("LoadAurora") || handlers.contains("Query")
+                ? Harness.startDatabase(options, dir)
+                : null;
+        try {
+            final Path template = dir.resolve("template");
+            prepare(template, rows);
+            for (final String handler : handlers) {
+                for (final String mode : MODES) {
+                    final Path archive = dir.resolve(handler + ".jsa");
+                    if (mode.endsWith("cds")) {
+                        // The training run records the classes a cold start loads.
+                        probe(handler, template, dir, true, "-XX:ArchiveClassesAtExit=" + archive);
+                    }
+                    final List<double[]> results = new ArrayList<>();
+                    for (int i = 0; i < runs; i++) {
+                        results.add(probe(handler, template, dir, !mode.equals("unprimed"),
+                                mode.endsWith("cds") ? "-XX:SharedArchiveFile=" + archive : null));
+                    }
+                    report(handler, mode, results);
+                }
+            }
+        } finally {
+            if (db != null) {
+                db.stop();
+            }
+        }
+    }
+
+    /**
+     * Write the objects every probe starts from: raw input files for Transform,
+     * a recurring cities cache of all their cities, and the transformed files
+     * for LoadAurora, produced by running Transform here.
+     */
+    private static void prepare(final Path template, final long rows) throws IOException {
+        final LocalObjectStore store = new LocalObjectStore(template);
+        final LoadGenerator generator = new LoadGenerator(462, 100);
+        final HashMap<String, Transform.CacheLocation> recurringCities = new HashMap<>();
+        for (final String city : generator.getCities()) {
+            recurringCities.put(city, new Transform.CacheLocation("Washington", "United States"));
+        }
+        final File cache = store.file("recurring-cities.tlq", "recurring-cities");
+        Files.createDirectories(cache.toPath().getParent());
+        try (ObjectOutputStream out = new ObjectOutputStream(Files.newOutputStream(cache.toPath()))) {
+            out.writeObject(recurringCities);
+        }
+
+        final Transform transform = new Transform(store);
+        for (int i = 0; i < FILES; i++) {
+            final String key = String.format("input-%d.csv", i);
+            final File input = store.file(Harness.INPUT_BUCKET, key);
+            Files.createDirectories(input.toPath().getParent());
+            generator.write(input, rows);
+            transform.handleRequest(Harness.event(Harness.INPUT_BUCKET, key), new LocalContext("Transform", 1024));
+            // Transform consumed the input, write it again for the Transform probes.
+            generator.write(input, rows);
+        }
+    }
+
+    /**
+     * Run a probe in a fresh JVM on a copy of the template.
+     * @return The JVM startup, init, first and second invocation, and process time in milliseconds.
+     */
+    private static double[] probe(
+            final String handler,
+            final Path template,
+            final Path dir,
+            final boolean prime,
+            final String cdsOption
+    ) throws IOException, InterruptedException {
+        final Path s3 = dir.resolve("s3");
+        delete(s3);
+        copy(template, s3);
+
+        final List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        if (cdsOption != null) {
+            command.add(cdsOption);
+            command.add("-Xlog:cds=off");
+        }
+        command.add("-Dtlq.prime=" + prime);
+        command.add("-Dsaaf.metrics.emf=false");
+        command.add("-Dsaaf.metrics.prometheusFile=");
+        for (final String name : new String[]{"db.url", "db.username", "db.password"}) {
+            if (System.getProperty(name) != null) {
+                command.add("-D" + name + "=" + System.getProperty(name));
+            }
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("lambda.ColdStartProbe");
+        command.add(handler);
+        command.add(s3.toString());
+
+        final long start = System.nanoTime();
+        final Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String result = null;
+        final StringBuilder output = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("coldstart ")) {
+                    result = line;
+                } else {
+                    output.append(line).append('\n');
+                }
+            }
+        }
+        final int exit = process.waitFor();
+        final double processMs = (System.nanoTime() - start) / 1e6;
+        if (exit != 0 || result == null) {
+            throw new IllegalStateException(handler + " probe failed with exit code " + exit + ":\n" + output);
+        }
+        final String[] fields = result.split(" ");
+        return new double[]{Double.parseDouble(fields[1]), Double.parseDouble(fields[2]),
+            Double.parseDouble(fields[3]), Double.parseDouble(fields[4]), processMs};
+    }
+
+    private static void report(final String handler, final String mode, final List<double[]> results) {
+        final double[] medians = new double[results.get(0).length];
+        for (int field = 0; field < medians.length; field++) {
+            final double[] values = new double[results.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = results.get(i)[field];
+            }
+            Arrays.sort(values);
+            medians[field] = values[values.length / 2];
+        }
+        System.out.printf("%-10s %-10s jvm %4.0f ms, init %6.1f ms, first invocation %7.1f ms, "
+                        + "init + first %7.1f ms, second invocation %6.1f ms, process %6.0f ms%n",
+                handler, mode, medians[0], medians[1], medians[2], medians[1] + medians[2], medians[3], medians[4]);
+    }
+
+    private static void copy(final Path from, final Path to) throws IOException {
+        try (Stream<Path> paths = Files.walk(from)) {
+            for (final Path path : (Iterable<Path>) paths::iterator) {
+                final Path target = to.resolve(from.relativize(path).toString());
+                if (Files.isDirectory(path)) {
+                    Files.createDirectories(target);
+                } else {
+                    Files.copy(path, target);
+                }
+            }
+        }
+    }
+
+    private static void delete(final Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            final List<Path> all = new ArrayList<>();
+            paths.forEach(all::add);
+            for (int i = all.size() - 1; i >= 0; i--) {
+                Files.delete(all.get(i));
+            }
+        }
+    }
+}
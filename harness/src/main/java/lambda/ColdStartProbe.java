@@ -0,0 +1,70 @@
+package lambda;
+
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import org.json.JSONObject;
+
+/**
+ * One cold start, run in a fresh JVM by ColdStart: constructs a handler the way
+ * Lambda does in its init phase, then invokes it twice on the objects prepared
+ * in the given S3 directory, input-0.csv and input-1.csv.
+ *
+ * Prints a single line 'coldstart [jvm] [init] [first] [second]' in
+ * milliseconds: the JVM startup before main, the handler construction, and the
+ * first and second invocation.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+final class ColdStartProbe {
+
+    private ColdStartProbe() {
+    }
+
+    public static void main(final String[] args) {
+        final long jvm = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+        final String handler = args[0];
+        final LocalObjectStore store = new LocalObjectStore(Paths.get(args[1]));
+
+        long start = System.nanoTime();
+        final RequestHandler<HashMap<String, Object>, HashMap<String, Object>> function;
+        switch (handler) {
+            case "Transform":
+                function = new Transform(store);
+                break;
+            case "LoadAurora":
+                function = new LoadAurora(store);
+                break;
+            case "Query":
+                function = new Query();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown handler " + handler);
+        }
+        final long init = System.nanoTime() - start;
+
+        final long[] invocations = new long[2];
+        for (int i = 0; i < invocations.length; i++) {
+            final HashMap<String, Object> request;
+            if (handler.equals("Query")) {
+                request = new HashMap<>(new JSONObject(Harness.QUERY).toMap());
+            } else {
+                final String bucket = handler.equals("Transform") ? Harness.INPUT_BUCKET : Harness.LOAD_BUCKET;
+                request = Harness.event(bucket, String.format("input-%d.csv", i));
+            }
+            start = System.nanoTime();
+            final HashMap<String, Object> response = function.handleRequest(request, new LocalContext(handler, 1024));
+            invocations[i] = System.nanoTime() - start;
+            if (response.containsKey("error")) {
+                System.err.println(handler + " failed: " + response.get("error"));
+            }
+        }
+
+        System.out.printf("coldstart %d %.1f %.1f %.1f%n", jvm, init / 1e6, invocations[0] / 1e6, invocations[1] / 1e6);
+    }
+}
@@ -0,0 +1,442 @@
+package lambda;
+
+import ch.vorburger.mariadb4j.DB;
+import ch.vorburger.mariadb4j.DBConfigurationBuilder;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.json.JSONObject;
+import saaf.Histogram;
+
+/**
+ * Runs the Transform, LoadAurora and Query handlers end to end on one machine.
+ * S3 is replaced by directories, the geocoding API by a local stub and Aurora by
+ * an embedded MariaDB or a database given with -jdbcUrl. For every generated
+ * file Transform and LoadAurora run once and Query runs the request in json.json.
+ *
+ * Options, as -name=value:
+ *
+ * rows:              Rows per generated file (default 10000).
+ * cities:            Distinct cities in the generated rows (default 1000).
+ * cityVariants:      Fraction of rows whose city differs in case or whitespace (default 0).
+ * prewarm:           true to run Prewarm on every generated file before Transform (default false).
+ * files:             Files generated and run through the pipeline (default 1).
+ * batch:             Files per invocation of Transform and LoadAurora, sent as an SQS
+ *                    batch when above 1, see ObjectBatch (default 1).
+ * seed:              Seed of the generated rows (default 462).
+ * geocodeLatencyMs:  Latency of every geocoding request (default 5).
+ * geocodeJitterMs:   Maximum random latency added on top (default 0).
+ * geocodeErrorRate:  Fraction of geocoding requests failed with 503 (default 0).
+ * geocodeSlowRate, geocodeSlowMs: Fraction of geocoding requests that are stragglers,
+ *                    and the latency they add (default 0).
+ * jdbcUrl, jdbcUser, jdbcPassword: An existing MySQL compatible database with a
+ *                    'mobiledata' schema, instead of the embedded MariaDB.
+ * dir:               Working directory for the buckets (default a new temp directory).
+ * store:             'local' to read and write the directories directly (default), or 's3'
+ *                    to go through S3ObjectStore and its ranged downloads over LocalS3.
+ * s3LatencyMs:       With -store=s3, the latency before the first byte of every GET (default 0).
+ * s3MBps:            With -store=s3, the bandwidth of every GET in MB/s (default 0, unlimited).
+ * s3SlowRate, s3SlowMs: With -store=s3, the fraction of GETs that are stragglers, and the
+ *                    latency they add (default 0). Hedging is enabled with -Dtlq.hedge=true.
+ * export:            Once loaded, export the whole table with Query in this format,
+ *                    csv or columnar, see QueryExport (default none).
+ * replicas:          Embedded MariaDB replicas of the embedded database, given to Query
+ *                    as its reader endpoints, see ReadRouter (default 0).
+ * replicaDelay:      Seconds the replicas apply the writes behind the primary (default 0).
+ * readYourWrites:    true to pass the load generation of every LoadAurora to the Query
+ *                    after it as its minGeneration (default false).
+ *
+ * Reported are rows per second and the latency of every invocation, the stage
+ * latencies from the Inspector spans of the last invocation, the sources the
+ * queries ran on, and the peak heap.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+public final class Harness {
+
+    /** The bucket the generated files are placed in. */
+    static final String INPUT_BUCKET = "transform.tlq";
+
+    /** The bucket Transform writes to and LoadAurora reads from. */
+    static final String LOAD_BUCKET = "load.tlq";
+
+    /** The request Query runs after every load. */
+    static final String QUERY = "{\"aggregations\": [{\"column\": \"userTotalAppUsage\", \"function\": \"AVG\"}],"
+            + " \"filters\": [{\"column\": \"resultCountry\", \"value\": \"United States\"}],"
+            + " \"group\": [\"userCity\", \"resultState\"]}";
+
+    private Harness() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final Map<String, String> options = options(args);
+        final long rows = Long.parseLong(options.getOrDefault("rows", "10000"));
+        final int cities = Integer.parseInt(options.getOrDefault("cities", "1000"));
+        final int files = Integer.parseInt(options.getOrDefault("files", "1"));
+        final int batch = Integer.parseInt(options.getOrDefault("batch", "1"));
+        final long seed = Long.parseLong(options.getOrDefault("seed", "462"));
+        final Path dir = options.containsKey("dir")
+                ? Paths.get(options.get("dir"))
+                : Files.createTempDirectory("tlq-harness");
+
+        // The geocoder must be configured before Transform is loaded.
+        final StubGeocoder geocoder = new StubGeocoder(
+                Long.parseLong(options.getOrDefault("geocodeLatencyMs", "5")),
+                Long.parseLong(options.getOrDefault("geocodeJitterMs", "0")),
+                Double.parseDouble(options.getOrDefault("geocodeErrorRate", "0")),
+                Double.parseDouble(options.getOrDefault("geocodeSlowRate", "0")),
+                Long.parseLong(options.getOrDefault("geocodeSlowMs", "0")));
+        System.setProperty("geocoder.url", geocoder.getUrl());
+
+        final DB db = startDatabase(options, dir);
+        final List<DB> replicas = new ArrayList<>();
+        try {
+            replicas.addAll(startReplicas(options, dir, db));
+            final LocalObjectStore local = new LocalObjectStore(dir.resolve("s3"));
+            final ObjectStore store = "s3".equals(options.getOrDefault("store", "local"))
+                    ? new S3ObjectStore(new LocalS3(dir.resolve("s3"),
+                            Long.parseLong(options.getOrDefault("s3LatencyMs", "0")),
+                            (long) (Double.parseDouble(options.getOrDefault("s3MBps", "0")) * 1048576),
+                            Double.parseDouble(options.getOrDefault("s3SlowRate", "0")),
+                            Long.parseLong(options.getOrDefault("s3SlowMs", "0"))))
+                    : local;
+            final LoadGenerator generator = new LoadGenerator(seed, cities,
+                    Double.parseDouble(options.getOrDefault("cityVariants", "0")));
+            run(local, store, generator, dir, rows, files, batch, options.get("export"),
+                    Boolean.parseBoolean(options.getOrDefault("prewarm", "false")),
+                    Boolean.parseBoolean(options.getOrDefault("readYourWrites", "false")));
+            System.out.printf("geocoder: %d requests, %d failed%n", geocoder.getRequests(), geocoder.getErrors());
+            if (Hedge.ENABLED) {
+                System.out.println("hedging: " + Hedge.report());
+            }
+        } finally {
+            geocoder.stop();
+            for (final DB replica : replicas) {
+                replica.stop();
+            }
+            if (db != null) {
+                db.stop();
+            }
+        }
+    }
+
+    /**
+     * Point the handlers at the database given with -jdbcUrl, or start an
+     * embedded MariaDB with an empty 'mobiledata' schema, by setting the db.*
+     * system properties read by DatabaseProperties.
+     * @param options The -name=value options.
+     * @param dir The working directory, holding the data of the embedded database.
+     * @return The embedded database to stop once done, null if -jdbcUrl was given.
+     * @throws Exception If the embedded database could not be started.
+     */
+    static DB startDatabase(final Map<String, String> options, final Path dir) throws Exception {
+        if (options.containsKey("jdbcUrl")) {
+            System.setProperty("db.url", options.get("jdbcUrl"));
+            System.setProperty("db.username", options.getOrDefault("jdbcUser", "root"));
+            System.setProperty("db.password", options.getOrDefault("jdbcPassword", ""));
+            return null;
+        }
+        final DBConfigurationBuilder config = DBConfigurationBuilder.newBuilder();
+        config.setPort(0);
+        config.setDataDir(dir.resolve("mariadb").toString());
+        if ("root".equals(System.getProperty("user.name"))) {
+            // mysqld refuses to run as root unless told to.
+            config.addArg("--user=root");
+        }
+        if (Integer.parseInt(options.getOrDefault("replicas", "0")) > 0) {
+            // The replicas read the binary log of the primary.
+            config.addArg("--server-id=1");
+            config.addArg("--log-bin=mysql-bin");
+            config.addArg("--binlog-format=ROW");
+        }
+        final DB db = DB.newEmbeddedDB(config.build());
+        db.start();
+        // Created over JDBC, DB.createDB needs the mysql client and its shared libraries.
+        final String server = "jdbc:mysql://localhost:" + db.getConfiguration().getPort() + "/";
+        try (Connection con = DriverManager.getConnection(server + "?useSSL=false", "root", "");
+             Statement statement = con.createStatement()) {
+            statement.execute("CREATE DATABASE IF NOT EXISTS mobiledata");
+        }
+        System.setProperty("db.url", server + "mobiledata?useSSL=false");
+        System.setProperty("db.username", "root");
+        System.setProperty("db.password", "");
+        return db;
+    }
+
+    /**
+     * Start the embedded replicas of the embedded database and give them to
+     * Query as its reader endpoints, with the db.readerUrls system property.
+     * @param options The -name=value options.
+     * @param dir The working directory, holding the data of the replicas.
+     * @param primary The embedded database, started with a binary log.
+     * @return The replicas to stop once done.
+     * @throws Exception If a replica could not be started.
+     */
+    static List<DB> startReplicas(final Map<String, String> options, final Path dir, final DB primary) throws Exception {
+        final int count = Integer.parseInt(options.getOrDefault("replicas", "0"));
+        final List<DB> replicas = new ArrayList<>();
+        if (count == 0) {
+            return replicas;
+        }
+        if (primary == null) {
+            throw new IllegalArgumentException("-replicas needs the embedded database, not -jdbcUrl");
+        }
+        final StringBuilder readerUrls = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            final DBConfigurationBuilder config = DBConfigurationBuilder.newBuilder();
+            config.setPort(0);
+            config.setDataDir(dir.resolve("mariadb-replica-" + i).toString());
+            if ("root".equals(System.getProperty("user.name"))) {
+                config.addArg("--user=root");
+            }
+            config.addArg("--server-id=" + (i + 2));
+            final DB replica = DB.newEmbeddedDB(config.build());
+            replica.start();
+            replicas.add(replica);
+
+            // Replicate from the start of the binary log, so the mobiledata schema is created as well.
+            final String server = "jdbc:mysql://localhost:" + replica.getConfiguration().getPort() + "/";
+            try (Connection con = DriverManager.getConnection(server + "?useSSL=false", "root", "");
+                 Statement statement = con.createStatement()) {
+                statement.execute("CHANGE MASTER TO MASTER_HOST='127.0.0.1', MASTER_PORT=" + primary.getConfiguration().getPort()
+                        + ", MASTER_USER='root', MASTER_PASSWORD='', MASTER_LOG_FILE='mysql-bin.000001', MASTER_LOG_POS=4"
+                        + ", MASTER_DELAY=" + Integer.parseInt(options.getOrDefault("replicaDelay", "0")));
+                statement.execute("START SLAVE");
+            }
+            readerUrls.append(i > 0 ? "," : "").append(server).append("mobiledata?useSSL=false");
+        }
+        System.setProperty("db.readerUrls", readerUrls.toString());
+        return replicas;
+    }
+
+    /**
+     * @param args Arguments of the form -name=value.
+     * @return The values by name.
+     */
+    static Map<String, String> options(final String[] args) {
+        final Map<String, String> options = new HashMap<>();
+        for (final String arg : args) {
+            final int split = arg.indexOf('=');
+            if (!arg.startsWith("-") || split < 0) {
+                throw new IllegalArgumentException("Expected -name=value, got " + arg);
+            }
+            options.put(arg.substring(1, split), arg.substring(split + 1));
+        }
+        return options;
+    }
+
+    /**
+     * @param local The buckets, where the generated files are written.
+     * @param store The store the handlers use, on the same buckets.
+     */
+    private static void run(
+            final LocalObjectStore local,
+            final ObjectStore store,
+            final LoadGenerator generator,
+            final Path dir,
+            final long rows,
+            final int files,
+            final int batch,
+            final String export,
+            final boolean prewarm,
+            final boolean readYourWrites
+    ) throws IOException {
+        final Transform transform = new Transform(store);
+        final LoadAurora load = new LoadAurora(store);
+        final Query query = new Query(store);
+        final Prewarm prewarmer = new Prewarm(store);
+        final Stage prewarmStage = new Stage("Prewarm");
+        final Stage transformStage = new Stage("Transform");
+        final Stage loadStage = new Stage("LoadAurora");
+        final Stage queryStage = new Stage("Query");
+        final Map<String, Integer> querySources = new TreeMap<>();
+
+        final List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+
+        for (int i = 0; i < files; i += batch) {
+            final List<String> keys = new ArrayList<>();
+            for (int j = i; j < Math.min(files, i + batch); j++) {
+                final String key = String.format("input-%04d.csv", j);
+                final File input = local.file(INPUT_BUCKET, key);
+                Files.createDirectories(input.toPath().getParent());
+                generator.write(input, rows);
+                keys.add(key);
+            }
+
+            final long batchRows = rows * keys.size();
+            if (prewarm) {
+                for (final String key : keys) {
+                    prewarmStage.invoke(rows, () -> prewarmer.handleRequest(event(INPUT_BUCKET, key), new LocalContext("Prewarm", 512)));
+                }
+            }
+            transformStage.invoke(batchRows, () -> transform.handleRequest(event(INPUT_BUCKET, keys), new LocalContext("Transform", 1024)));
+            loadStage.invoke(batchRows, () -> load.handleRequest(event(LOAD_BUCKET, keys), new LocalContext("LoadAurora", 1024)));
+            final HashMap<String, Object> request = new HashMap<>(new JSONObject(QUERY).toMap());
+            if (readYourWrites && loadStage.last.get("generation") != null) {
+                request.put("minGeneration", loadStage.last.get("generation"));
+            }
+            queryStage.invoke(0, () -> query.handleRequest(request, new LocalContext("Query", 1024)));
+            if (queryStage.last.get("plan") instanceof Map) {
+                querySources.merge(String.valueOf(((Map<?, ?>) queryStage.last.get("plan")).get("source")), 1, Integer::sum);
+            }
+        }
+
+        Stage exportStage = null;
+        if (export != null) {
+            exportStage = new Stage("Query export");
+            final HashMap<String, Object> request = new HashMap<>();
+            request.put("export", new JSONObject().put("format", export).toMap());
+            exportStage.invoke(rows * files, () -> query.handleRequest(request, new LocalContext("Query", 1024)));
+        }
+
+        long peakHeap = 0;
+        for (final MemoryPoolMXBean pool : heapPools) {
+            peakHeap += pool.getPeakUsage().getUsed();
+        }
+
+        if (prewarm) {
+            prewarmStage.report();
+        }
+        transformStage.report();
+        final long hits = Transform.GEOCODE_HITS.get();
+        final long lookups = hits + Transform.GEOCODE_MISSES.get();
+        System.out.printf("city cache: %d lookups, hit rate %.4f, %.4f by spelling only%n", lookups,
+                lookups > 0 ? (double) hits / lookups : 0, lookups > 0 ? (double) (hits - Transform.GEOCODE_KEY_HITS.get()) / lookups : 0);
+        loadStage.report();
+        queryStage.report();
+        System.out.println("  sources: " + querySources);
+        if (exportStage != null) {
+            exportStage.report();
+            System.out.println("  export: " + exportStage.last.get("export"));
+        }
+        System.out.printf("peak heap: %.1f MB (sum of heap pool peaks), working directory %s%n", peakHeap / 1048576.0, dir);
+    }
+
+    /**
+     * The S3 event the handlers are triggered by.
+     */
+    static HashMap<String, Object> event(final String bucket, final String key) {
+        final HashMap<String, Object> requestParameters = new HashMap<>();
+        requestParameters.put("bucketName", bucket);
+        requestParameters.put("key", key);
+        final HashMap<String, Object> detail = new HashMap<>();
+        detail.put("requestParameters", requestParameters);
+        final HashMap<String, Object> event = new HashMap<>();
+        event.put("detail", detail);
+        return event;
+    }
+
+    /**
+     * The event for a group of objects: the S3 event of a single object, or an
+     * SQS batch with an S3 event per message.
+     */
+    static HashMap<String, Object> event(final String bucket, final List<String> keys) {
+        if (keys.size() == 1) {
+            return event(bucket, keys.get(0));
+        }
+        final List<Object> records = new ArrayList<>();
+        for (final String key : keys) {
+            final HashMap<String, Object> record = new HashMap<>();
+            record.put("messageId", bucket + "-" + key);
+            record.put("body", new JSONObject(event(bucket, key)).toString());
+            records.add(record);
+        }
+        final HashMap<String, Object> event = new HashMap<>();
+        event.put("Records", records);
+        return event;
+    }
+
+    /** An invocation of a handler, returning the Inspector attributes. */
+    private interface Invocation {
+        HashMap<String, Object> invoke();
+    }
+
+    /**
+     * The invocations of one handler.
+     */
+    private static final class Stage {
+
+        private final String name;
+        private final Histogram latency = new Histogram();
+        private long rows;
+        private long nanos;
+        private HashMap<String, Object> last;
+
+        Stage(final String name) {
+            this.name = name;
+        }
+
+        void invoke(final long invocationRows, final Invocation invocation) {
+            final long start = System.nanoTime();
+            last = invocation.invoke();
+            final long elapsed = System.nanoTime() - start;
+            latency.record(elapsed);
+            nanos += elapsed;
+            rows += invocationRows;
+            if (last.containsKey("error")) {
+                System.err.println(name + " failed: " + last.get("error"));
+            }
+            final Object failures = last.get("batchItemFailures");
+            if (failures instanceof List && !((List<?>) failures).isEmpty()) {
+                System.err.println(name + " failed for " + failures + ": " + last.get("objects"));
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        void report() {
+            final Map<String, Object> summary = latency.toMap();
+            final String throughput = rows > 0 ? String.format(", %d rows, %.0f rows/s", rows, rows / (nanos / 1e9)) : "";
+            System.out.printf("%s: %d invocations%s, invocation p50 %s ms, p99 %s ms%n",
+                    name, latency.count(), throughput, summary.get("p50Ms"), summary.get("p99Ms"));
+            if (last != null && last.get("spans") instanceof List) {
+                printSpans((List<Map<String, Object>>) last.get("spans"), "  ");
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static void printSpans(final List<Map<String, Object>> spans, final String indent) {
+            for (final Map<String, Object> span : spans) {
+                final StringBuilder line = new StringBuilder();
+                line.append(indent).append(span.get("name"))
+                        .append(": ").append(span.get("totalMs")).append(" ms");
+                final Map<String, Object> latency = (Map<String, Object>) span.get("latency");
+                if (latency != null) {
+                    line.append(", ").append(latency.get("count")).append(" runs, p50 ")
+                            .append(latency.get("p50Ms")).append(" ms, p99 ").append(latency.get("p99Ms")).append(" ms");
+                }
+                final Object counters = span.get("counters");
+                if (counters != null) {
+                    line.append(", ").append(new LinkedHashMap<>((Map<String, Object>) counters));
+                }
+                System.out.println(line);
+                if (span.get("children") instanceof List) {
+                    printSpans((List<Map<String, Object>>) span.get("children"), indent + "  ");
+                }
+            }
+        }
+    }
+}
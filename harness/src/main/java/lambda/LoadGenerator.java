@@ -0,0 +1,119 @@
+package lambda;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generates input CSVs with the 7-column schema read by Transform: age, gender,
+ * number of apps, social media, productivity and gaming usage in hours, and
+ * city. The output is determined by the seed, the row count, the number of
+ * distinct cities and the fraction of cities misspelled. A misspelled city
+ * differs from its name in case or whitespace only, as typed by hand.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+final class LoadGenerator {
+
+    private static final String[] SYLLABLES = {"ta", "co", "ma", "se", "at", "tle", "port", "land", "spo", "kane",
+        "bel", "ling", "ham", "ev", "er", "ett", "ol", "ym", "pia", "ren", "ton", "ken", "new", "san", "fran"};
+
+    private final Random random;
+    private final List<String> cities;
+
+    /** The fraction of rows whose city is misspelled. */
+    private final double variants;
+
+    /**
+     * @param seed The seed of the generated data.
+     * @param cities The number of distinct cities.
+     */
+    LoadGenerator(final long seed, final int cities) {
+        this(seed, cities, 0);
+    }
+
+    /**
+     * @param seed The seed of the generated data.
+     * @param cities The number of distinct cities.
+     * @param variants The fraction of rows whose city is misspelled.
+     */
+    LoadGenerator(final long seed, final int cities, final double variants) {
+        this.random = new Random(seed);
+        this.variants = variants;
+        this.cities = new ArrayList<>(cities);
+        for (int i = 0; i < cities; i++) {
+            final String name = word() + (random.nextInt(4) == 0 ? " " + word() : "");
+            // The index keeps the names distinct however many are generated.
+            this.cities.add(name + " " + i);
+        }
+    }
+
+    /**
+     * @return The distinct cities rows are drawn from.
+     */
+    List<String> getCities() {
+        return cities;
+    }
+
+    /**
+     * Write a CSV. Successive calls continue the same random sequence.
+     * @param file The file to write.
+     * @param rows The number of rows.
+     * @return The number of bytes written.
+     * @throws IOException If the file could not be written.
+     */
+    long write(final File file, final long rows) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            final StringBuilder row = new StringBuilder(64);
+            for (long i = 0; i < rows; i++) {
+                row.setLength(0);
+                row.append(18 + random.nextInt(60)).append(',')
+                        .append(random.nextBoolean() ? "Male" : "Female").append(',')
+                        .append(1 + random.nextInt(50)).append(',')
+                        .append(random.nextInt(1000) / 100.0).append(',')
+                        .append(random.nextInt(1000) / 100.0).append(',')
+                        .append(random.nextInt(1000) / 100.0).append(',')
+                        .append(city()).append('\n');
+                writer.append(row);
+            }
+        }
+        return file.length();
+    }
+
+    private String city() {
+        final String city = cities.get(random.nextInt(cities.size()));
+        if (variants <= 0 || random.nextDouble() >= variants) {
+            return city;
+        }
+        switch (random.nextInt(4)) {
+            case 0:
+                return city.toLowerCase(Locale.ROOT);
+            case 1:
+                return city.toUpperCase(Locale.ROOT);
+            case 2:
+                return city + " ";
+            default:
+                return city.replace(" ", "  ");
+        }
+    }
+
+    private String word() {
+        final StringBuilder word = new StringBuilder();
+        final int syllables = 2 + random.nextInt(2);
+        for (int i = 0; i < syllables; i++) {
+            word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+        }
+        word.setCharAt(0, Character.toUpperCase(word.charAt(0)));
+        return word.toString();
+    }
+}
@@ -0,0 +1,394 @@
+package lambda;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.DeleteObjectRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * A filesystem-backed stand-in for the S3 client calls of S3ObjectStore. Every
+ * bucket is a directory under the root and every object a file in it. Byte
+ * ranges, ETag constraints and multipart uploads are handled as S3 does, the
+ * parts of an upload being kept under .uploads until it completes. Every GET
+ * can be given a latency before its first byte and a bandwidth, so the ranged
+ * downloads of S3ObjectStore can be measured against a connection limit, and
+ * a fraction of GETs can be made stragglers, answering after an extra latency,
+ * to measure the hedging of S3ObjectStore. As with S3, getObject returns once
+ * the first byte is due.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+final class LocalS3 extends AbstractAmazonS3 {
+
+    /** Bytes read per sleep of a throttled stream. */
+    private static final int THROTTLE_CHUNK = 64 << 10;
+
+    /** The bytes a throttled stream delivers at once after a pause, as a socket buffer would hold. */
+    private static final long THROTTLE_BURST = 256 << 10;
+
+    /** The directory holding the buckets. */
+    private final Path root;
+
+    /** The latency before the first byte of every GET, and the bandwidth of each GET, 0 for unlimited. */
+    private final long latencyMs;
+    private final long bytesPerSecond;
+
+    /** The fraction of GETs that are stragglers, and the latency they add. */
+    private final double slowRate;
+    private final long slowMs;
+
+    /** GET requests answered. */
+    private final AtomicLong gets = new AtomicLong();
+
+    LocalS3(final Path root) {
+        this(root, 0, 0);
+    }
+
+    /**
+     * @param root The directory holding the buckets.
+     * @param latencyMs The latency before the first byte of every GET.
+     * @param bytesPerSecond The bandwidth of each GET, 0 for unlimited.
+     */
+    LocalS3(final Path root, final long latencyMs, final long bytesPerSecond) {
+        this(root, latencyMs, bytesPerSecond, 0, 0);
+    }
+
+    /**
+     * @param root The directory holding the buckets.
+     * @param latencyMs The latency before the first byte of every GET.
+     * @param bytesPerSecond The bandwidth of each GET, 0 for unlimited.
+     * @param slowRate The fraction of GETs that are stragglers, between 0 and 1.
+     * @param slowMs The latency a straggler adds.
+     */
+    LocalS3(final Path root, final long latencyMs, final long bytesPerSecond, final double slowRate, final long slowMs) {
+        this.root = root;
+        this.latencyMs = latencyMs;
+        this.bytesPerSecond = bytesPerSecond;
+        this.slowRate = slowRate;
+        this.slowMs = slowMs;
+    }
+
+    /**
+     * @param bucket The bucket.
+     * @param key The key.
+     * @return The file of the object, which may not exist.
+     */
+    File file(final String bucket, final String key) {
+        return root.resolve(bucket).resolve(key).toFile();
+    }
+
+    /**
+     * @return The GET requests answered so far.
+     */
+    long getGets() {
+        return gets.get();
+    }
+
+    @Override
+    public S3Object getObject(final GetObjectRequest request) {
+        final File file = file(request.getBucketName(), request.getKey());
+        if (!file.isFile()) {
+            throw error(404, "NoSuchKey", "The specified key does not exist.");
+        }
+        final long length = file.length();
+        final String etag = Long.toHexString(file.lastModified()) + "-" + Long.toHexString(length);
+        final List<String> matching = request.getMatchingETagConstraints();
+        if (!matching.isEmpty() && !matching.contains(etag)) {
+            // As the client does on 412 Precondition Failed.
+            return null;
+        }
+        long start = 0;
+        long end = length - 1;
+        final ObjectMetadata metadata = new ObjectMetadata();
+        if (request.getRange() != null) {
+            start = request.getRange()[0];
+            end = Math.min(request.getRange()[1], length - 1);
+            if (start >= length) {
+                throw error(416, "InvalidRange", "The requested range is not satisfiable");
+            }
+            metadata.setHeader(Headers.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+        }
+        metadata.setContentLength(end - start + 1);
+        metadata.setHeader(Headers.ETAG, etag);
+
+        final long firstByteMs = latencyMs + (ThreadLocalRandom.current().nextDouble() < slowRate ? slowMs : 0);
+        if (firstByteMs > 0) {
+            try {
+                Thread.sleep(firstByteMs);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AbortedException();
+            }
+        }
+
+        final S3Object object = new S3Object();
+        object.setBucketName(request.getBucketName());
+        object.setKey(request.getKey());
+        object.setObjectMetadata(metadata);
+        try {
+            final SeekableByteChannel channel = Files.newByteChannel(file.toPath());
+            channel.position(start);
+            object.setObjectContent(new RangeStream(Channels.newInputStream(channel), end - start + 1));
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+        gets.incrementAndGet();
+        return object;
+    }
+
+    @Override
+    public S3Object getObject(final String bucket, final String key) {
+        return getObject(new GetObjectRequest(bucket, key));
+    }
+
+    @Override
+    public boolean doesObjectExist(final String bucket, final String key) {
+        return file(bucket, key).isFile();
+    }
+
+    @Override
+    public PutObjectResult putObject(final String bucket, final String key, final File file) {
+        final File target = file(bucket, key);
+        try {
+            Files.createDirectories(target.toPath().getParent());
+            Files.copy(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+        return new PutObjectResult();
+    }
+
+    @Override
+    public PutObjectResult putObject(final String bucket, final String key, final String content) {
+        final File target = file(bucket, key);
+        try {
+            Files.createDirectories(target.toPath().getParent());
+            Files.write(target.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+        return new PutObjectResult();
+    }
+
+    @Override
+    public PutObjectResult putObject(final PutObjectRequest request) {
+        if (request.getFile() != null) {
+            return putObject(request.getBucketName(), request.getKey(), request.getFile());
+        }
+        final File target = file(request.getBucketName(), request.getKey());
+        try (InputStream in = request.getInputStream()) {
+            Files.createDirectories(target.toPath().getParent());
+            Files.copy(in, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+        return new PutObjectResult();
+    }
+
+    @Override
+    public InitiateMultipartUploadResult initiateMultipartUpload(final InitiateMultipartUploadRequest request) {
+        final InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+        result.setBucketName(request.getBucketName());
+        result.setKey(request.getKey());
+        result.setUploadId(UUID.randomUUID().toString());
+        try {
+            Files.createDirectories(upload(result.getUploadId()));
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+        return result;
+    }
+
+    @Override
+    public UploadPartResult uploadPart(final UploadPartRequest request) {
+        final Path dir = upload(request.getUploadId());
+        if (!Files.isDirectory(dir)) {
+            throw error(404, "NoSuchUpload", "The specified upload does not exist.");
+        }
+        final Path part = dir.resolve(Integer.toString(request.getPartNumber()));
+        try (InputStream in = request.getInputStream()) {
+            Files.copy(in, part, StandardCopyOption.REPLACE_EXISTING);
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+        final UploadPartResult result = new UploadPartResult();
+        result.setPartNumber(request.getPartNumber());
+        result.setETag(Long.toHexString(part.toFile().length()));
+        return result;
+    }
+
+    @Override
+    public CompleteMultipartUploadResult completeMultipartUpload(final CompleteMultipartUploadRequest request) {
+        final Path dir = upload(request.getUploadId());
+        final File target = file(request.getBucketName(), request.getKey());
+        try {
+            Files.createDirectories(target.toPath().getParent());
+            final Path temporary = Files.createTempFile(target.toPath().getParent(), ".upload-", null);
+            try (OutputStream out = Files.newOutputStream(temporary)) {
+                for (final PartETag part : request.getPartETags()) {
+                    Files.copy(dir.resolve(Integer.toString(part.getPartNumber())), out);
+                }
+            }
+            Files.move(temporary, target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            deleteUpload(dir);
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+        final CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+        result.setBucketName(request.getBucketName());
+        result.setKey(request.getKey());
+        return result;
+    }
+
+    @Override
+    public void abortMultipartUpload(final AbortMultipartUploadRequest request) {
+        try {
+            deleteUpload(upload(request.getUploadId()));
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return The uploads in progress, none once every upload has completed or been aborted.
+     */
+    int getOpenUploads() {
+        final File[] uploads = root.resolve(".uploads").toFile().listFiles();
+        return uploads == null ? 0 : uploads.length;
+    }
+
+    private Path upload(final String uploadId) {
+        return root.resolve(".uploads").resolve(uploadId);
+    }
+
+    private static void deleteUpload(final Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        try (Stream<Path> parts = Files.list(dir)) {
+            for (final Path part : (Iterable<Path>) parts::iterator) {
+                Files.delete(part);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    @Override
+    public void deleteObject(final DeleteObjectRequest request) {
+        deleteObject(request.getBucketName(), request.getKey());
+    }
+
+    @Override
+    public void deleteObject(final String bucket, final String key) {
+        final File file = file(bucket, key);
+        if (file.exists() && !file.delete()) {
+            throw new RuntimeException("Failed to delete " + file);
+        }
+    }
+
+    private static AmazonS3Exception error(final int status, final String code, final String message) {
+        final AmazonS3Exception e = new AmazonS3Exception(message);
+        e.setStatusCode(status);
+        e.setErrorCode(code);
+        return e;
+    }
+
+    /**
+     * The bytes of a range of a file, delivered at the bandwidth of the store.
+     */
+    private final class RangeStream extends FilterInputStream {
+
+        private long remaining;
+
+        /** When the bytes delivered so far are due at the bandwidth of the store. */
+        private long dueNanos;
+
+        RangeStream(final InputStream in, final long length) {
+            super(in);
+            this.remaining = length;
+            this.dueNanos = System.nanoTime();
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int limit = (int) Math.min(len, remaining);
+            if (bytesPerSecond > 0) {
+                limit = Math.min(limit, THROTTLE_CHUNK);
+            }
+            final int read = in.read(b, off, limit);
+            if (read < 0) {
+                return -1;
+            }
+            remaining -= read;
+            if (bytesPerSecond > 0) {
+                // A reader that paused catches up by at most a burst.
+                final long now = System.nanoTime();
+                dueNanos = Math.max(dueNanos, now - THROTTLE_BURST * 1_000_000_000L / bytesPerSecond)
+                        + read * 1_000_000_000L / bytesPerSecond;
+                sleep(dueNanos - now);
+            }
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return 0;
+        }
+
+        private void sleep(final long nanos) throws IOException {
+            if (nanos <= 0) {
+                return;
+            }
+            try {
+                Thread.sleep(nanos / 1_000_000, (int) (nanos % 1_000_000));
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package lambda;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * Measures how the download time of a large object through S3ObjectStore
+ * scales with the ranges fetched at once. The object is served by LocalS3
+ * with a latency before the first byte and a bandwidth limit per GET, as for a
+ * single connection to S3, and is read to the end the way the handlers read
+ * their inputs. Every download is checked against the CRC32 of the file.
+ *
+ * Options, as -name=value:
+ *
+ * sizeMB:       The size of the object (default 256).
+ * latencyMs:    The latency before the first byte of every GET (default 20).
+ * MBps:         The bandwidth of every GET in MB/s (default 50).
+ * rangeSizeMB:  The size of a range (default 8).
+ * bufferPoolMB: The memory of the buffer pool (default 64).
+ * concurrency:  Comma separated ranges fetched at once to measure (default 1,2,4,8,16).
+ * runs:         Downloads per concurrency, the median is reported (default 3).
+ * dir:          Working directory for the object (default a new temp directory).
+ *
+ * Run with java -cp target/harness.jar lambda.RangedDownload.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+public final class RangedDownload {
+
+    private static final String BUCKET = "transform.tlq";
+    private static final String KEY = "large.csv";
+
+    private RangedDownload() {
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final Map<String, String> options = Harness.options(args);
+        final long size = Long.parseLong(options.getOrDefault("sizeMB", "256")) << 20;
+        final long latencyMs = Long.parseLong(options.getOrDefault("latencyMs", "20"));
+        final double mbps = Double.parseDouble(options.getOrDefault("MBps", "50"));
+        final int rangeSize = Integer.parseInt(options.getOrDefault("rangeSizeMB", "8")) << 20;
+        final int buffers = (Integer.parseInt(options.getOrDefault("bufferPoolMB", "64")) << 20) / rangeSize;
+        final int runs = Integer.parseInt(options.getOrDefault("runs", "3"));
+        final Path dir = options.containsKey("dir")
+                ? Paths.get(options.get("dir"))
+                : Files.createTempDirectory("tlq-ranged");
+
+        final LocalS3 s3 = new LocalS3(dir, latencyMs, (long) (mbps * 1048576));
+        final long expected = write(s3.file(BUCKET, KEY).toPath(), size);
+        System.out.printf("%d MB object, %d ms latency and %.0f MB/s per GET, %d MB ranges, %d buffers%n",
+                size >> 20, latencyMs, mbps, rangeSize >> 20, buffers);
+
+        double baseline = 0;
+        for (final String value : options.getOrDefault("concurrency", "1,2,4,8,16").split(",")) {
+            final int concurrency = Integer.parseInt(value.trim());
+            final S3ObjectStore store = new S3ObjectStore(s3, rangeSize, concurrency, buffers, S3ObjectStore.PART_SIZE);
+            final double[] seconds = new double[runs];
+            final long gets = s3.getGets();
+            for (int i = 0; i < runs; i++) {
+                final long start = System.nanoTime();
+                final long crc = read(store);
+                seconds[i] = (System.nanoTime() - start) / 1e9;
+                if (crc != expected) {
+                    throw new IllegalStateException("Download with concurrency " + concurrency + " does not match the object");
+                }
+            }
+            Arrays.sort(seconds);
+            final double median = seconds[runs / 2];
+            if (baseline == 0) {
+                baseline = median;
+            }
+            System.out.printf("concurrency %2d: %6.2f s, %7.1f MB/s, %4.1fx, %d GETs per download%n", concurrency,
+                    median, (size >> 20) / median, baseline / median, (s3.getGets() - gets) / runs);
+        }
+    }
+
+    /**
+     * Write random bytes to a file.
+     * @return The CRC32 of the file.
+     */
+    private static long write(final Path file, final long size) throws IOException {
+        Files.createDirectories(file.getParent());
+        final Random random = new Random(462);
+        final byte[] chunk = new byte[1 << 20];
+        final CRC32 crc = new CRC32();
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long written = 0; written < size; written += chunk.length) {
+                random.nextBytes(chunk);
+                final int length = (int) Math.min(chunk.length, size - written);
+                out.write(chunk, 0, length);
+                crc.update(chunk, 0, length);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Read the object to the end.
+     * @return The CRC32 of the bytes read.
+     */
+    private static long read(final ObjectStore store) throws IOException {
+        final byte[] buffer = new byte[64 << 10];
+        final CRC32 crc = new CRC32();
+        try (InputStream in = store.get(BUCKET, KEY)) {
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                crc.update(buffer, 0, n);
+            }
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,142 @@
+package lambda;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * A stand-in for the OpenCage geocoding API. It answers every query with a
+ * state and country derived from the city name, after a configurable latency,
+ * and fails a configurable fraction of requests with 503 Service Unavailable.
+ * A fraction of requests can be made stragglers, answering after an extra latency.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+final class StubGeocoder {
+
+    private static final String[] STATES = {"Washington", "Oregon", "California", "Idaho", "Nevada", "Texas"};
+    private static final String[] COUNTRIES = {"United States", "Canada", "Mexico"};
+
+    private final HttpServer server;
+    private final long latencyMs;
+    private final long jitterMs;
+    private final double errorRate;
+    private final double slowRate;
+    private final long slowMs;
+
+    /** Requests answered and requests failed. */
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * Start the geocoder on a free local port.
+     * @param latencyMs The latency added to every request.
+     * @param jitterMs The maximum random latency added on top.
+     * @param errorRate The fraction of requests failed, between 0 and 1.
+     * @throws IOException If the server could not be started.
+     */
+    StubGeocoder(final long latencyMs, final long jitterMs, final double errorRate) throws IOException {
+        this(latencyMs, jitterMs, errorRate, 0, 0);
+    }
+
+    /**
+     * Start the geocoder on a free local port.
+     * @param latencyMs The latency added to every request.
+     * @param jitterMs The maximum random latency added on top.
+     * @param errorRate The fraction of requests failed, between 0 and 1.
+     * @param slowRate The fraction of requests that are stragglers, between 0 and 1.
+     * @param slowMs The latency a straggler adds.
+     * @throws IOException If the server could not be started.
+     */
+    StubGeocoder(final long latencyMs, final long jitterMs, final double errorRate, final double slowRate, final long slowMs) throws IOException {
+        this.latencyMs = latencyMs;
+        this.jitterMs = jitterMs;
+        this.errorRate = errorRate;
+        this.slowRate = slowRate;
+        this.slowMs = slowMs;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/geocode/v1/json", this::handle);
+        server.setExecutor(Executors.newCachedThreadPool(runnable -> {
+            final Thread thread = new Thread(runnable, "stub-geocoder");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+    }
+
+    /**
+     * @return The endpoint to pass to Transform as geocoder.url.
+     */
+    String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/geocode/v1/json";
+    }
+
+    long getRequests() {
+        return requests.get();
+    }
+
+    long getErrors() {
+        return errors.get();
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        try {
+            Thread.sleep(latencyMs + (jitterMs > 0 ? random.nextLong(jitterMs + 1) : 0)
+                    + (random.nextDouble() < slowRate ? slowMs : 0));
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (random.nextDouble() < errorRate) {
+            errors.incrementAndGet();
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+            return;
+        }
+
+        final String city = URLDecoder.decode(parameter(exchange.getRequestURI().getRawQuery(), "q"), "UTF-8");
+        final int hash = city.hashCode() & Integer.MAX_VALUE;
+        final JSONObject components = new JSONObject()
+                .put("city", city)
+                .put("state", STATES[hash % STATES.length])
+                .put("country", COUNTRIES[hash % COUNTRIES.length]);
+        final JSONObject body = new JSONObject()
+                .put("results", new JSONArray().put(new JSONObject().put("components", components)));
+        final byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String parameter(final String query, final String name) {
+        if (query != null) {
+            for (final String pair : query.split("&")) {
+                if (pair.startsWith(name + "=")) {
+                    return pair.substring(name.length() + 1);
+                }
+            }
+        }
+        return "";
+    }
+}
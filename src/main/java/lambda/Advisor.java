@@ -0,0 +1,371 @@
+package lambda;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import saaf.Inspector;
+
+/**
+ * Advisor lambda function as part of the Transform-Load-Query pipeline for TCSS-462.
+ * This lambda function is invoked on a schedule or manually.
+ * This function analyzes the query shapes Query recorded in the 'query_workload'
+ * table and recommends an index and, for grouped shapes, a summary table for each
+ * of the most expensive shapes, with an estimated benefit in ms of query time.
+ * When applying is enabled the indexes are created and the summary tables are
+ * (re)built and registered so Query can reroute heavy statements to them.
+ *
+ * The benefit of an index is estimated from the rows examined per execution
+ * before (the EXPLAIN estimate) and after (table rows divided by the distinct
+ * values of the filter columns, taken from the load-time sketches). The benefit
+ * of a summary table is estimated the same way from its expected group count.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+public class Advisor implements RequestHandler<HashMap<String, Object>,
+                                               HashMap<String, Object>> {
+
+    /** Columns of the 'data' table that may appear in generated DDL, those of the active schema. */
+    private static final List<String> DATA_COLUMNS = new ArrayList<>();
+
+    /** TEXT columns, which can only be indexed by prefix. */
+    private static final List<String> TEXT_COLUMNS = new ArrayList<>();
+
+    static {
+        for (final RowSchema.Column column : RowSchema.ACTIVE.getColumns()) {
+            DATA_COLUMNS.add(column.getName());
+            if (column.getType() == RowSchema.Type.TEXT) {
+                TEXT_COLUMNS.add(column.getName());
+            }
+        }
+    }
+
+    /** The prefix length used when indexing TEXT columns. */
+    private static final int TEXT_PREFIX_LENGTH = 64;
+
+    /** Distinct values assumed for columns without a sketch. */
+    private static final long DEFAULT_DISTINCT_VALUES = 100;
+
+    /** The number of shapes analyzed when the request does not say. */
+    private static final int DEFAULT_LIMIT = 10;
+
+    /**
+     * Handler for the AWS lambda function.
+     * @param request The generated request from AWS. May include 'apply' to create the
+     *                recommended indexes and summary tables, and 'limit' for the number of shapes.
+     * @param context The generated context from AWS.
+     * @return The state of this lambda function container, with the recommendations.
+     */
+    public HashMap<String, Object> handleRequest(
+            final HashMap<String, Object> request,
+            final Context context
+    ) {
+
+        //Collect initial data.
+        final Inspector inspector = new Inspector();
+        inspector.inspectCPU();
+        inspector.inspectMemory();
+        inspector.inspectContainer();
+
+        //****************START FUNCTION IMPLEMENTATION*************************
+
+        final LambdaLogger logger = context.getLogger();
+
+        // Load db.properties and the required properties.
+        final Properties properties = new Properties();
+        try {
+            properties.load(getClass().getClassLoader().getResourceAsStream("db.properties"));
+        } catch (final IOException e) {
+            logger.log("Failed to load db.properties: " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+        DatabaseProperties.applySystemOverrides(properties);
+        final String url = properties.getProperty("url");
+        final String username = properties.getProperty("username");
+        final String password = properties.getProperty("password");
+        final boolean apply = request.containsKey("apply")
+                ? Boolean.parseBoolean(String.valueOf(request.get("apply")))
+                : Boolean.parseBoolean(properties.getProperty("advisor.apply", "false"));
+        final int limit = request.containsKey("limit")
+                ? Integer.parseInt(String.valueOf(request.get("limit")))
+                : DEFAULT_LIMIT;
+
+        // Connect to the database.
+        final Connection con;
+        try {
+            con = DriverManager.getConnection(url, username, password);
+        } catch (final SQLException e) {
+            logger.log("Database connection failed: " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+
+        final ArrayList<HashMap<String, Object>> recommendations = new ArrayList<>();
+        int applied = 0;
+        try {
+            Workload.createTables(con);
+            final long tableRows = tableRows(con);
+            final Map<String, Long> distinctValues = SketchStore.distinctCounts(con);
+            final List<List<String>> indexes = existingIndexes(con);
+
+            try (PreparedStatement select = con.prepareStatement(
+                    "SELECT shapeHash, shape, filterColumns, groupColumns, aggregates, executions, totalLatency, "
+                    + "estimatedRows FROM query_workload ORDER BY totalLatency DESC LIMIT ?")) {
+                select.setInt(1, limit);
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        final QueryShape shape = new QueryShape(rs.getString("shape"),
+                                split(rs.getString("filterColumns")), split(rs.getString("groupColumns")),
+                                parseAggregates(rs.getString("aggregates")));
+                        final long executions = rs.getLong("executions");
+                        final long meanLatency = rs.getLong("totalLatency") / Math.max(1, executions);
+                        final long rowsBefore = Math.max(1, rs.getLong("estimatedRows"));
+
+                        // Only shapes over known columns can be turned into DDL.
+                        if (!DATA_COLUMNS.containsAll(shape.getRollupDimensions())) {
+                            continue;
+                        }
+
+                        // Recommend an index on the filter columns followed by the group columns.
+                        final List<String> indexColumns = shape.getRollupDimensions();
+                        if (!shape.getFilterColumns().isEmpty() && !isCovered(indexColumns, indexes)) {
+                            final long rowsAfter = Math.max(1, tableRows / distinctProduct(shape.getFilterColumns(), distinctValues));
+                            final HashMap<String, Object> recommendation = recommendation("index", shape, executions, meanLatency);
+                            recommendation.put("ddl", indexDefinition("idx_" + shape.getHash().substring(0, 12), indexColumns));
+                            recommendation.put("estimatedBenefit", benefit(executions, meanLatency, rowsBefore, rowsAfter));
+                            recommendations.add(recommendation);
+                            indexes.add(indexColumns);
+                        }
+
+                        // Recommend a summary table for grouped shapes with decomposable aggregates.
+                        if (shape.isRollupCompatible() && hasKnownColumns(shape.getAggregates())) {
+                            final String table = "rollup_" + shape.getHash().substring(0, 12);
+                            final long groups = Math.min(tableRows, distinctProduct(shape.getRollupDimensions(), distinctValues));
+                            final HashMap<String, Object> recommendation = recommendation("summary", shape, executions, meanLatency);
+                            recommendation.put("table", table);
+                            recommendation.put("ddl", shape.rollupDefinition(table));
+                            recommendation.put("estimatedBenefit", benefit(executions, meanLatency, rowsBefore, Math.max(1, groups)));
+                            recommendations.add(recommendation);
+                        }
+                    }
+                }
+            }
+
+            // Create the indexes and rebuild the summary tables.
+            if (apply) {
+                for (final HashMap<String, Object> recommendation : recommendations) {
+                    if (recommendation.get("type").equals("index")) {
+                        try (PreparedStatement create = con.prepareStatement((String) recommendation.get("ddl"))) {
+                            create.execute();
+                        }
+                    } else {
+                        rebuildSummary(con, (String) recommendation.get("shapeHash"),
+                                (String) recommendation.get("table"), (String) recommendation.get("ddl"));
+                    }
+                    applied++;
+                }
+            }
+        } catch (final SQLException e) {
+            logger.log("Failed to analyze the workload: " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+
+        inspector.addAttribute("recommendations", recommendations);
+        inspector.addAttribute("applied", applied);
+
+        //****************END FUNCTION IMPLEMENTATION***************************
+
+        //Collect final information such as total runtime and cpu deltas.
+        inspector.inspectAllDeltas();
+        return inspector.finish();
+    }
+
+    /**
+     * Build a summary table under a temporary name and swap it in, so Query never
+     * sees a missing table, then mark it as refreshed at the load generation read
+     * before it was built. Query stops using it once a later load commits.
+     */
+    private static void rebuildSummary(
+            final Connection con,
+            final String shapeHash,
+            final String table,
+            final String ddl
+    ) throws SQLException {
+        final long generation = LoadGeneration.read(con);
+        final String building = table + "_new";
+        try (PreparedStatement drop = con.prepareStatement("DROP TABLE IF EXISTS " + building)) {
+            drop.execute();
+        }
+        try (PreparedStatement create = con.prepareStatement(ddl.replace("CREATE TABLE " + table + " ", "CREATE TABLE " + building + " "))) {
+            create.execute();
+        }
+        boolean exists;
+        try (PreparedStatement check = con.prepareStatement(
+                "SELECT COUNT(*) FROM information_schema.tables WHERE table_schema = DATABASE() AND table_name = ?")) {
+            check.setString(1, table);
+            try (ResultSet rs = check.executeQuery()) {
+                rs.next();
+                exists = rs.getLong(1) > 0;
+            }
+        }
+        if (exists) {
+            try (PreparedStatement swap = con.prepareStatement(
+                    "RENAME TABLE " + table + " TO " + table + "_old, " + building + " TO " + table);
+                 PreparedStatement drop = con.prepareStatement("DROP TABLE " + table + "_old")) {
+                swap.execute();
+                drop.execute();
+            }
+        } else {
+            try (PreparedStatement rename = con.prepareStatement("RENAME TABLE " + building + " TO " + table)) {
+                rename.execute();
+            }
+        }
+        try (PreparedStatement register = con.prepareStatement(
+                "INSERT INTO query_rollups (shapeHash, tableName, generation) VALUES (?,?,?) "
+                + "ON DUPLICATE KEY UPDATE tableName = VALUES(tableName), refreshedAt = CURRENT_TIMESTAMP, "
+                + "generation = VALUES(generation)")) {
+            register.setString(1, shapeHash);
+            register.setString(2, table);
+            register.setLong(3, generation);
+            register.executeUpdate();
+        }
+    }
+
+    private static HashMap<String, Object> recommendation(
+            final String type,
+            final QueryShape shape,
+            final long executions,
+            final long meanLatency
+    ) {
+        final HashMap<String, Object> recommendation = new HashMap<>();
+        recommendation.put("type", type);
+        recommendation.put("shape", shape.getSql());
+        recommendation.put("shapeHash", shape.getHash());
+        recommendation.put("executions", executions);
+        recommendation.put("meanLatency", meanLatency);
+        return recommendation;
+    }
+
+    /**
+     * The query time in ms saved over the recorded executions, assuming latency scales with rows examined.
+     */
+    private static long benefit(final long executions, final long meanLatency, final long rowsBefore, final long rowsAfter) {
+        return Math.round(executions * meanLatency * Math.max(0, 1 - (double) rowsAfter / rowsBefore));
+    }
+
+    private static boolean hasKnownColumns(final List<String[]> aggregates) {
+        for (final String[] aggregate : aggregates) {
+            if (!aggregate[1].equals("*") && !DATA_COLUMNS.contains(aggregate[1])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long distinctProduct(final List<String> columns, final Map<String, Long> distinctValues) {
+        long product = 1;
+        for (final String column : columns) {
+            final Long distinct = distinctValues.get(column);
+            product = product * Math.max(1, distinct == null ? DEFAULT_DISTINCT_VALUES : distinct);
+            if (product < 0) {
+                return Long.MAX_VALUE;
+            }
+        }
+        return product;
+    }
+
+    private static String indexDefinition(final String name, final List<String> columns) {
+        final List<String> parts = new ArrayList<>();
+        for (final String column : columns) {
+            parts.add(TEXT_COLUMNS.contains(column) ? column + "(" + TEXT_PREFIX_LENGTH + ")" : column);
+        }
+        return "CREATE INDEX " + name + " ON data (" + String.join(", ", parts) + ");";
+    }
+
+    /**
+     * @return True if an existing index starts with the given columns, in any order.
+     */
+    private static boolean isCovered(final List<String> columns, final List<List<String>> indexes) {
+        final Set<String> wanted = new LinkedHashSet<>(columns);
+        for (final List<String> index : indexes) {
+            if (index.size() >= wanted.size() && new LinkedHashSet<>(index.subList(0, wanted.size())).equals(wanted)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<List<String>> existingIndexes(final Connection con) throws SQLException {
+        final Map<String, List<String>> indexes = new LinkedHashMap<>();
+        try (PreparedStatement show = con.prepareStatement("SHOW INDEX FROM data");
+             ResultSet rs = show.executeQuery()) {
+            while (rs.next()) {
+                final String name = rs.getString("Key_name");
+                if (!indexes.containsKey(name)) {
+                    indexes.put(name, new ArrayList<>());
+                }
+                indexes.get(name).add(rs.getString("Column_name"));
+            }
+        }
+        return new ArrayList<>(indexes.values());
+    }
+
+    private static long tableRows(final Connection con) throws SQLException {
+        try (PreparedStatement select = con.prepareStatement(
+                "SELECT TABLE_ROWS FROM information_schema.tables WHERE table_schema = DATABASE() AND table_name = 'data'");
+             ResultSet rs = select.executeQuery()) {
+            return rs.next() ? Math.max(1, rs.getLong(1)) : 1;
+        }
+    }
+
+    private static List<String> split(final String columns) {
+        final List<String> split = new ArrayList<>();
+        for (final String column : columns.split(",")) {
+            if (!column.isEmpty()) {
+                split.add(column);
+            }
+        }
+        return split;
+    }
+
+    /**
+     * Parse aggregates recorded as a JSON array of {function, column} objects.
+     * @return The aggregates, or none if any of them does not parse, such as a
+     *         row recorded in an older format, so no summary table is built
+     *         without one of the shape's aggregates.
+     */
+    private static List<String[]> parseAggregates(final String aggregates) {
+        final List<String[]> parsed = new ArrayList<>();
+        try {
+            final JSONArray recorded = new JSONArray(aggregates);
+            for (int i = 0; i < recorded.length(); i++) {
+                final JSONObject aggregate = recorded.getJSONObject(i);
+                final String function = aggregate.getString("function");
+                final String column = aggregate.getString("column");
+                parsed.add(new String[] {function, column, function + "_" + column});
+            }
+        } catch (final JSONException e) {
+            return new ArrayList<>();
+        }
+        return parsed;
+    }
+}
@@ -0,0 +1,173 @@
+package lambda;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+import org.crac.Context;
+import org.crac.Core;
+import org.crac.Resource;
+import saaf.Inspector;
+
+/**
+ * The clients shared by all invocations in a container: the S3 client and
+ * the object store on it, the database properties and a database connection. Each is created on first use
+ * and kept, so only the first invocation in a container (or the priming in
+ * Warmup) pays for building the S3 client, parsing db.properties and the
+ * database handshake.
+ *
+ * When the JVM is checkpointed, as with Lambda SnapStart or a CRaC enabled JDK,
+ * the connection is closed and the S3 client shut down before the snapshot and
+ * both are recreated on first use after a restore. Sockets do not survive a
+ * restore, and the restored copies would otherwise share them. The container
+ * stamp of the Inspector is reset as well, so each restored copy reports
+ * itself as a new container.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+final class Clients {
+
+    /** Seconds to wait when checking that the cached connection is still alive. */
+    private static final int VALIDATION_TIMEOUT = 2;
+
+    /** The checkpoint callbacks. Registered resources are only weakly referenced, so this must stay reachable. */
+    private static final Resource CHECKPOINT = new Resource() {
+        @Override
+        public void beforeCheckpoint(final Context<? extends Resource> context) {
+            close();
+        }
+
+        @Override
+        public void afterRestore(final Context<? extends Resource> context) {
+            Inspector.resetContainer();
+        }
+    };
+
+    private static AmazonS3 s3;
+    private static ObjectStore objectStore;
+    private static Properties properties;
+    private static Connection connection;
+
+    static {
+        Core.getGlobalContext().register(CHECKPOINT);
+    }
+
+    private Clients() {
+    }
+
+    /**
+     * @return The default S3 client, built on first use.
+     */
+    static synchronized AmazonS3 s3() {
+        if (s3 == null) {
+            s3 = AmazonS3ClientBuilder.standard().build();
+        }
+        return s3;
+    }
+
+    /**
+     * @return The object store on the default S3 client, created on first use.
+     */
+    static synchronized ObjectStore objectStore() {
+        if (objectStore == null) {
+            objectStore = new S3ObjectStore(s3());
+        }
+        return objectStore;
+    }
+
+    /**
+     * Load db.properties on first use, with the overrides of DatabaseProperties.
+     * The returned properties are shared and must not be modified.
+     * @return The database properties.
+     * @throws IOException If db.properties could not be read.
+     */
+    static synchronized Properties databaseProperties() throws IOException {
+        if (properties == null) {
+            final Properties loaded = new Properties();
+            try (InputStream in = Clients.class.getClassLoader().getResourceAsStream("db.properties")) {
+                if (in == null) {
+                    throw new IOException("db.properties is not on the classpath");
+                }
+                loaded.load(in);
+            }
+            DatabaseProperties.applySystemOverrides(loaded);
+            properties = loaded;
+        }
+        return properties;
+    }
+
+    /**
+     * Get the cached database connection, reconnecting if it was closed or has
+     * gone stale since the previous invocation.
+     * @return The connection.
+     * @throws IOException If db.properties could not be read.
+     * @throws SQLException If the database could not be reached.
+     */
+    static synchronized Connection connection() throws IOException, SQLException {
+        if (connection != null && !connection.isValid(VALIDATION_TIMEOUT)) {
+            closeConnection();
+        }
+        if (connection == null) {
+            connection = newConnection();
+        }
+        return connection;
+    }
+
+    /**
+     * Open a database connection that is not shared, for work running beside
+     * the cached connection. The caller closes it.
+     * @return The connection.
+     * @throws IOException If db.properties could not be read.
+     * @throws SQLException If the database could not be reached.
+     */
+    static Connection newConnection() throws IOException, SQLException {
+        final Properties database = databaseProperties();
+        return DriverManager.getConnection(
+                database.getProperty("url"), database.getProperty("username"), database.getProperty("password"));
+    }
+
+    /**
+     * @param con A connection.
+     * @return Whether the connection is still alive.
+     */
+    static boolean isValid(final Connection con) {
+        try {
+            return con.isValid(VALIDATION_TIMEOUT);
+        } catch (final SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Close the connection and shut down the S3 client. Both are recreated on
+     * next use, with the object store.
+     */
+    static synchronized void close() {
+        closeConnection();
+        ReadRouter.closeShared();
+        objectStore = null;
+        if (s3 != null) {
+            s3.shutdown();
+            s3 = null;
+        }
+    }
+
+    private static void closeConnection() {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (final SQLException e) {
+                System.err.println("Could not close the database connection: " + e.getMessage());
+            }
+            connection = null;
+        }
+    }
+}
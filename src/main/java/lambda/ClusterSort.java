@@ -0,0 +1,517 @@
+package lambda;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import saaf.Inspector;
+import saaf.Span;
+
+/**
+ * Clusters the transformed rows of a file by country, state and city, so
+ * LoadAurora inserts the rows of a city together and the intermediate object
+ * compresses better than in arrival order. The rows are written to it as to a
+ * Writer, sorted in memory, and spilled to /tmp as sorted runs whenever they
+ * exceed the memory budget. Finishing merges the runs into the output file, in
+ * passes of at most MAX_FAN_IN runs. Rows of the same city keep their order.
+ *
+ * Along with the output, a sidecar index lists every cluster with its row
+ * count and the byte offset and length of its rows in the output, so a loader
+ * can read the range of a city with a ranged GET and skip the others. The index
+ * is placed in the bucket of the recurring cities under INDEX_PREFIX, keyed by
+ * the name of the output, since an object in the load bucket would trigger
+ * LoadAurora. LoadAurora deletes it along with the output.
+ *
+ * Enabled with the system property tlq.cluster or the environment variable
+ * TLQ_CLUSTER set to true, for both Transform and LoadAurora. The memory budget
+ * is tlq.clusterMemoryPercent (default 25) of the functionMemory read by the
+ * Inspector, or of the memory limit of the context elsewhere, shared by the
+ * objects of a batch. Clustering needs the resultCountry, resultState and
+ * userCity columns in the schema, and replaces the staged TransformPipeline,
+ * whose point of uploading while reading a sort can not keep.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+final class ClusterSort extends Writer {
+
+    /** Whether the output of Transform is clustered. */
+    static final boolean ENABLED = "true".equalsIgnoreCase(System.getProperty("tlq.cluster", System.getenv("TLQ_CLUSTER")));
+
+    /** The percentage of the function memory the rows held in memory may take. */
+    static final int MEMORY_PERCENT = Math.max(1, Math.min(90, Integer.getInteger("tlq.clusterMemoryPercent", 25)));
+
+    /** The columns clustered by, in order. */
+    static final String[] COLUMNS = {"resultCountry", "resultState", "userCity"};
+
+    /** The prefix of the keys of the sidecar indexes. */
+    static final String INDEX_PREFIX = "clusters/";
+
+    /** The most runs merged at once, each with a read buffer. */
+    private static final int MAX_FAN_IN = 64;
+
+    /** The estimated bytes a buffered row takes besides its characters: two strings, their arrays and the list entry. */
+    private static final long ROW_OVERHEAD = 112;
+
+    /** Separates the columns in a sort key, below every other character. */
+    private static final char KEY_SEPARATOR = '\u0000';
+
+    /** A buffered row and its sort key. */
+    private static final class Row {
+
+        private final String key;
+        private final String line;
+
+        Row(final String key, final String line) {
+            this.key = key;
+            this.line = line;
+        }
+    }
+
+    private static final Comparator<Row> BY_KEY = new Comparator<Row>() {
+        @Override
+        public int compare(final Row a, final Row b) {
+            return a.key.compareTo(b.key);
+        }
+    };
+
+    /** The positions of COLUMNS among the columns of a row. */
+    private final int[] positions;
+
+    /** The position of the last column of a row. */
+    private final int lastPosition;
+
+    private final long budget;
+    private final Span spill;
+    private final List<Row> rows = new ArrayList<>();
+    private final List<File> runs = new ArrayList<>();
+    private final StringBuilder pending = new StringBuilder();
+    private long buffered;
+    private long spilledBytes;
+    private long spills;
+
+    /**
+     * @param schema The schema of the rows.
+     * @param budget The bytes the rows held in memory may take.
+     * @param spill Records the time spent sorting and writing each run.
+     */
+    ClusterSort(final RowSchema schema, final long budget, final Span spill) {
+        this.positions = positions(schema);
+        this.lastPosition = schema.getColumns().size() - 1;
+        this.budget = budget;
+        this.spill = spill;
+    }
+
+    /**
+     * @param schema A schema of transformed rows.
+     * @return Whether its rows can be clustered, having all of COLUMNS.
+     */
+    static boolean supports(final RowSchema schema) {
+        return positions(schema) != null;
+    }
+
+    /**
+     * The memory budget of an invocation: MEMORY_PERCENT of the functionMemory
+     * of the platform, or else of the memory limit of the context.
+     * @param inspector The Inspector of the invocation, its platform inspected.
+     * @param context The context of the invocation.
+     * @return The budget in bytes.
+     */
+    static long budget(final Inspector inspector, final Context context) {
+        long memoryMB = context.getMemoryLimitInMB();
+        final Object functionMemory = inspector.getAttribute("functionMemory");
+        if (functionMemory != null) {
+            try {
+                memoryMB = Long.parseLong(functionMemory.toString());
+            } catch (final NumberFormatException e) {
+                System.err.println("Unexpected functionMemory " + functionMemory + ", using the context memory limit");
+            }
+        }
+        return memoryMB * 1048576 / 100 * MEMORY_PERCENT;
+    }
+
+    /**
+     * @param filename The name of the output.
+     * @return The key of its sidecar index.
+     */
+    static String indexKey(final String filename) {
+        return INDEX_PREFIX + filename + ".json";
+    }
+
+    @Override
+    public void write(final char[] buffer, final int offset, final int length) throws IOException {
+        int start = offset;
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            if (buffer[i] == '\n') {
+                pending.append(buffer, start, i + 1 - start);
+                add(pending.toString());
+                pending.setLength(0);
+                start = i + 1;
+            }
+        }
+        pending.append(buffer, start, end - start);
+    }
+
+    @Override
+    public void write(final String row) throws IOException {
+        // Transform writes whole rows, which skip the copy into pending.
+        if (pending.length() == 0 && row.indexOf('\n') == row.length() - 1) {
+            add(row);
+        } else {
+            super.write(row);
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Take a last row missing its newline.
+     */
+    @Override
+    public void close() throws IOException {
+        if (pending.length() > 0) {
+            pending.append('\n');
+            add(pending.toString());
+            pending.setLength(0);
+        }
+    }
+
+    /**
+     * @return The runs spilled to /tmp.
+     */
+    long getSpills() {
+        return spills;
+    }
+
+    /**
+     * @return The bytes spilled to /tmp, including intermediate merge passes.
+     */
+    long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * Merge the rows into the output file, once all were written and the
+     * sorter closed, and delete the runs.
+     * @param output Receives the clustered rows, in the default charset as read by LoadAurora.
+     * @return The sidecar index of the output.
+     * @throws IOException If a run could not be read or the output written.
+     */
+    JSONObject finish(final File output) throws IOException {
+        Collections.sort(rows, BY_KEY);
+        try {
+            while (runs.size() > MAX_FAN_IN) {
+                final List<File> pass = new ArrayList<>(runs.subList(0, MAX_FAN_IN));
+                runs.subList(0, MAX_FAN_IN).clear();
+                final File merged = File.createTempFile("tlq-cluster-", ".run");
+
+                // The merged run holds the earliest rows, so it goes first to keep the order of a city.
+                runs.add(0, merged);
+                try (Writer writer = runWriter(merged)) {
+                    merge(pass, Collections.<Row>emptyIterator(), writer, null);
+                }
+                spilledBytes += merged.length();
+                for (final File run : pass) {
+                    delete(run);
+                }
+            }
+            final JSONArray clusters = new JSONArray();
+            final CountingOutputStream bytes = new CountingOutputStream(new FileOutputStream(output));
+            final long total;
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(bytes, Charset.defaultCharset()), 65536)) {
+                total = merge(runs, rows.iterator(), writer, new Index(clusters, writer, bytes));
+            }
+            rows.clear();
+            buffered = 0;
+
+            final JSONObject index = new JSONObject();
+            index.put("columns", new JSONArray(COLUMNS));
+            index.put("rows", total);
+            index.put("bytes", output.length());
+            index.put("clusters", clusters);
+            return index;
+        } finally {
+            for (final File run : runs) {
+                delete(run);
+            }
+            runs.clear();
+        }
+    }
+
+    private void add(final String line) throws IOException {
+        final String key = key(line);
+        rows.add(new Row(key, line));
+        buffered += 2L * (key.length() + line.length()) + ROW_OVERHEAD;
+        if (buffered > budget) {
+            spill();
+        }
+    }
+
+    /**
+     * Sort the buffered rows and write them to a new run.
+     */
+    private void spill() throws IOException {
+        final long start = System.nanoTime();
+        Collections.sort(rows, BY_KEY);
+        final File run = File.createTempFile("tlq-cluster-", ".run");
+        runs.add(run);
+        try (Writer writer = runWriter(run)) {
+            for (final Row row : rows) {
+                writer.write(row.line);
+            }
+        }
+        rows.clear();
+        buffered = 0;
+        spills++;
+        spilledBytes += run.length();
+        spill.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Merge sorted runs and sorted rows into a writer.
+     * @param index Records the clusters written, null for an intermediate pass.
+     * @return The rows written.
+     */
+    private long merge(final List<File> files, final Iterator<Row> memory, final Writer writer, final Index index) throws IOException {
+        final PriorityQueue<Cursor> queue = new PriorityQueue<>();
+        final List<BufferedReader> readers = new ArrayList<>();
+        try {
+            // Runs are ordered by when they were spilled, the buffered rows came last.
+            for (final File file : files) {
+                final BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 65536);
+                readers.add(reader);
+                final Cursor cursor = new Cursor(readers.size(), reader, null);
+                if (cursor.advance()) {
+                    queue.add(cursor);
+                }
+            }
+            final Cursor buffer = new Cursor(files.size() + 1, null, memory);
+            if (buffer.advance()) {
+                queue.add(buffer);
+            }
+
+            long count = 0;
+            while (!queue.isEmpty()) {
+                final Cursor cursor = queue.poll();
+                if (index != null) {
+                    index.row(cursor.key);
+                }
+                writer.write(cursor.line);
+                count++;
+                if (cursor.advance()) {
+                    queue.add(cursor);
+                }
+            }
+            if (index != null) {
+                index.end();
+            }
+            return count;
+        } finally {
+            for (final BufferedReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * The next row of a run or of the buffered rows.
+     */
+    private final class Cursor implements Comparable<Cursor> {
+
+        private final int order;
+        private final BufferedReader reader;
+        private final Iterator<Row> buffer;
+        private String key;
+        private String line;
+
+        Cursor(final int order, final BufferedReader reader, final Iterator<Row> buffer) {
+            this.order = order;
+            this.reader = reader;
+            this.buffer = buffer;
+        }
+
+        boolean advance() throws IOException {
+            if (buffer != null) {
+                if (!buffer.hasNext()) {
+                    return false;
+                }
+                final Row row = buffer.next();
+                key = row.key;
+                line = row.line;
+                return true;
+            }
+            final String read = reader.readLine();
+            if (read == null) {
+                return false;
+            }
+            line = read + '\n';
+            key = key(line);
+            return true;
+        }
+
+        @Override
+        public int compareTo(final Cursor other) {
+            final int byKey = key.compareTo(other.key);
+            return byKey != 0 ? byKey : Integer.compare(order, other.order);
+        }
+    }
+
+    /**
+     * Collects the clusters of the output as it is written.
+     */
+    private static final class Index {
+
+        private final JSONArray clusters;
+        private final Writer writer;
+        private final CountingOutputStream bytes;
+        private String key;
+        private long rows;
+        private long offset;
+
+        Index(final JSONArray clusters, final Writer writer, final CountingOutputStream bytes) {
+            this.clusters = clusters;
+            this.writer = writer;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Count a row about to be written, ending the cluster before it if its key differs.
+         */
+        void row(final String rowKey) throws IOException {
+            if (!rowKey.equals(key)) {
+                end();
+                key = rowKey;
+            }
+            rows++;
+        }
+
+        /**
+         * End the current cluster, its bytes flushed to count them.
+         */
+        void end() throws IOException {
+            if (key == null) {
+                return;
+            }
+            writer.flush();
+            final String[] values = key.split(String.valueOf(KEY_SEPARATOR), -1);
+            final JSONObject cluster = new JSONObject();
+            for (int i = 0; i < COLUMNS.length; i++) {
+                cluster.put(COLUMNS[i], values[i]);
+            }
+            cluster.put("rows", rows);
+            cluster.put("offset", offset);
+            cluster.put("length", bytes.count - offset);
+            clusters.put(cluster);
+            offset = bytes.count;
+            rows = 0;
+            key = null;
+        }
+    }
+
+    /**
+     * Counts the bytes written to a stream.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * @return The sort key of a transformed row: its COLUMNS separated by KEY_SEPARATOR.
+     */
+    private String key(final String line) {
+        final String[] values = new String[COLUMNS.length];
+        int position = 0;
+        int start = 0;
+        for (int i = 0; i < line.length() && position <= lastPosition; i++) {
+            final char c = line.charAt(i);
+            if (c == ',' || c == '\n') {
+                for (int j = 0; j < positions.length; j++) {
+                    if (positions[j] == position) {
+                        values[j] = line.substring(start, i);
+                    }
+                }
+                position++;
+                start = i + 1;
+            }
+        }
+        final StringBuilder key = new StringBuilder();
+        for (int j = 0; j < values.length; j++) {
+            if (j > 0) {
+                key.append(KEY_SEPARATOR);
+            }
+            key.append(values[j] != null ? values[j] : "");
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return The positions of COLUMNS in the schema, null if one is missing.
+     */
+    private static int[] positions(final RowSchema schema) {
+        final int[] positions = new int[COLUMNS.length];
+        for (int j = 0; j < COLUMNS.length; j++) {
+            positions[j] = -1;
+            for (int i = 0; i < schema.getColumns().size(); i++) {
+                if (COLUMNS[j].equals(schema.getColumns().get(i).getName())) {
+                    positions[j] = i;
+                }
+            }
+            if (positions[j] < 0) {
+                return null;
+            }
+        }
+        return positions;
+    }
+
+    private static Writer runWriter(final File run) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(run), StandardCharsets.UTF_8), 65536);
+    }
+
+    private static void delete(final File run) {
+        if (!run.delete()) {
+            System.err.println("Failed to delete temporary file: " + run);
+        }
+    }
+}
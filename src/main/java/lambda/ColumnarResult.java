@@ -0,0 +1,106 @@
+package lambda;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import org.json.JSONObject;
+
+/**
+ * The opt-in compact response format of Query. Instead of a list of maps that
+ * repeats every column name in every row, rows are sent as the column names once
+ * plus one array of values per column. The Inspector attributes are returned in a
+ * separate 'meta' block and the rows in a 'data' block, which can additionally be
+ * gzip-compressed and base64-encoded.
+ *
+ * A columnar block looks like:
+ * {"columns": ["userCity", "AVG_userTotalAppUsage"], "values": [["Tacoma", ...], [3.5, ...]], "rowCount": 2}
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+final class ColumnarResult {
+
+    /** The request value selecting this format. */
+    static final String FORMAT = "columnar";
+
+    /** The request and response value for gzip-compressed, base64-encoded data. */
+    static final String GZIP = "gzip";
+
+    private ColumnarResult() {
+    }
+
+    /**
+     * Convert rows to parallel column arrays.
+     * @param rows The rows, all with the same columns, in the order of their maps,
+     *             which Query builds in SELECT order.
+     * @return The columnar block.
+     */
+    static HashMap<String, Object> encode(final List<HashMap<String, Object>> rows) {
+        final List<String> columns = rows.isEmpty() ? new ArrayList<>() : new ArrayList<>(rows.get(0).keySet());
+        final List<List<Object>> values = new ArrayList<>(columns.size());
+        for (int i = 0; i < columns.size(); i++) {
+            values.add(new ArrayList<>(rows.size()));
+        }
+        for (final HashMap<String, Object> row : rows) {
+            for (int i = 0; i < columns.size(); i++) {
+                values.get(i).add(row.get(columns.get(i)));
+            }
+        }
+        final HashMap<String, Object> block = new HashMap<>();
+        block.put("columns", columns);
+        block.put("values", values);
+        block.put("rowCount", rows.size());
+        return block;
+    }
+
+    /**
+     * Convert the results of a batch, keyed by query ID, to columnar blocks.
+     * @param results Result rows keyed by query ID.
+     * @return Columnar blocks keyed by query ID.
+     */
+    @SuppressWarnings("unchecked")
+    static HashMap<String, Object> encodeAll(final Map<String, Object> results) {
+        final HashMap<String, Object> blocks = new HashMap<>();
+        for (final Map.Entry<String, Object> result : results.entrySet()) {
+            blocks.put(result.getKey(), encode((List<HashMap<String, Object>>) result.getValue()));
+        }
+        return blocks;
+    }
+
+    /**
+     * Build the response with separate metadata and data blocks.
+     * @param meta The Inspector attributes.
+     * @param data The data block.
+     * @param encoding The requested encoding, 'gzip' or null for plain JSON.
+     * @return The response.
+     * @throws IllegalArgumentException If the encoding is not known.
+     */
+    static HashMap<String, Object> response(final HashMap<String, Object> meta, final Object data, final String encoding) {
+        final HashMap<String, Object> response = new HashMap<>();
+        response.put("meta", meta);
+        if (GZIP.equals(encoding)) {
+            final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                gzip.write(JSONObject.wrap(data).toString().getBytes(StandardCharsets.UTF_8));
+            } catch (final IOException e) {
+                throw new RuntimeException(e);
+            }
+            response.put("encoding", GZIP);
+            response.put("data", Base64.getEncoder().encodeToString(compressed.toByteArray()));
+        } else if (encoding == null) {
+            response.put("data", data);
+        } else {
+            throw new IllegalArgumentException("Unknown encoding " + encoding + ", expected " + GZIP);
+        }
+        return response;
+    }
+}
@@ -0,0 +1,35 @@
+package lambda;
+
+import java.util.Properties;
+
+/**
+ * Overrides for db.properties, so the handlers can be pointed at another
+ * database without rebuilding the jar. Any system property 'db.name' replaces
+ * the property 'name', for example -Ddb.url=jdbc:mysql://localhost:3306/mobiledata.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+final class DatabaseProperties {
+
+    /** The prefix of overriding system properties. */
+    static final String PREFIX = "db.";
+
+    private DatabaseProperties() {
+    }
+
+    /**
+     * Replace properties with the system properties overriding them.
+     * @param properties The properties loaded from db.properties.
+     */
+    static void applySystemOverrides(final Properties properties) {
+        for (final String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(PREFIX)) {
+                properties.setProperty(name.substring(PREFIX.length()), System.getProperty(name));
+            }
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package lambda;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import saaf.ConcurrentHistogram;
+import saaf.MetricsRegistry;
+
+/**
+ * Hedged requests for idempotent reads: S3 GETs, ranged GETs and HEADs, which
+ * fetch the inputs and the recurring cities cache, and geocoding lookups. A
+ * request that has not answered after the hedge delay is sent a second time,
+ * and whichever answer comes first is taken. The other is discarded when it
+ * arrives, an S3 response aborted without reading its body.
+ *
+ * The hedge delay of an operation is the tlq.hedge.percentile (default 95) of
+ * its latest WINDOW answers, so only the slowest few percent of requests are
+ * hedged, and no request is until MIN_SAMPLES answers were seen. The extra
+ * load is capped by a budget: every request adds tlq.hedge.budgetPercent
+ * (default 5) percent of a hedge to it, up to a burst of BURST hedges, and
+ * every hedge takes a whole one. A request whose hedge the budget does not
+ * cover waits for its first answer.
+ *
+ * A failed attempt is not retried: the request fails once all its attempts
+ * failed, with the failure of the first.
+ *
+ * The counters hedge.[operation].requests, .hedged, .won (the hedge answered
+ * first) and .denied (by the budget), and the histogram of the latency seen by
+ * the caller, hedge.[operation].latency, are kept in the MetricsRegistry.
+ *
+ * Enabled with the system property tlq.hedge or the environment variable
+ * TLQ_HEDGE set to true.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+final class Hedge {
+
+    /** Whether requests are hedged. */
+    static final boolean ENABLED = "true".equalsIgnoreCase(System.getProperty("tlq.hedge", System.getenv("TLQ_HEDGE")));
+
+    /** The percentile of the latest latencies a request is hedged after. */
+    static final int PERCENTILE = Math.max(50, Math.min(99, Integer.getInteger("tlq.hedge.percentile", 95)));
+
+    /** The hedges allowed per hundred requests. */
+    static final int BUDGET_PERCENT = Math.max(0, Math.min(100, Integer.getInteger("tlq.hedge.budgetPercent", 5)));
+
+    /** The latencies the hedge delay is taken from. */
+    private static final int WINDOW = 256;
+
+    /** The answers seen before a request is hedged. */
+    private static final int MIN_SAMPLES = 20;
+
+    /** The answers between two updates of the hedge delay. */
+    private static final int UPDATE_INTERVAL = 16;
+
+    /** The hedges the budget holds at most, in hundredths. */
+    private static final long BURST = 10 * 100;
+
+    /** The shortest hedge delay, so requests are not sent twice on a timer's granularity. */
+    private static final long MIN_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /** Sends the attempts, so the caller can take the first answer. Threads exit when idle. */
+    private static final ExecutorService ATTEMPTS = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger threads = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "hedge-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /** S3 GETs, whole objects and ranges, answered with the response headers. */
+    static final Hedge S3_GET = new Hedge("s3.get");
+
+    /** S3 HEADs, whether an object exists. */
+    static final Hedge S3_HEAD = new Hedge("s3.head");
+
+    /** Geocoding lookups. */
+    static final Hedge GEOCODE = new Hedge("geocode");
+
+    /**
+     * An idempotent request.
+     */
+    interface Request<T> {
+        T send() throws IOException;
+    }
+
+    /**
+     * Releases an answer that was not taken.
+     */
+    interface Discard<T> {
+        void discard(T answer);
+    }
+
+    private final String name;
+    private final MetricsRegistry.Counter requests;
+    private final MetricsRegistry.Counter hedged;
+    private final MetricsRegistry.Counter won;
+    private final MetricsRegistry.Counter denied;
+    private final ConcurrentHistogram latency;
+
+    /** The latest latencies, written round robin, and the answers seen. */
+    private final AtomicLongArray latencies = new AtomicLongArray(WINDOW);
+    private final AtomicLong answers = new AtomicLong();
+
+    /** The hedge delay, -1 until MIN_SAMPLES answers were seen. */
+    private volatile long delayNanos = -1;
+
+    /** The hedges the budget holds, in hundredths. */
+    private final AtomicLong budget = new AtomicLong();
+
+    private Hedge(final String name) {
+        this.name = name;
+        this.requests = MetricsRegistry.counter("hedge." + name + ".requests");
+        this.hedged = MetricsRegistry.counter("hedge." + name + ".hedged");
+        this.won = MetricsRegistry.counter("hedge." + name + ".won");
+        this.denied = MetricsRegistry.counter("hedge." + name + ".denied");
+        this.latency = MetricsRegistry.histogram("hedge." + name + ".latency");
+    }
+
+    /**
+     * Send a request, and again if it has not answered after the hedge delay.
+     * @param request The request, sent once or twice, possibly at the same time.
+     * @param discard Releases the answer not taken, null if there is nothing to release.
+     * @return The first answer.
+     * @throws IOException The failure of the first attempt, if all attempts failed.
+     */
+    <T> T call(final Request<T> request, final Discard<T> discard) throws IOException {
+        if (!ENABLED) {
+            return request.send();
+        }
+        final long start = System.nanoTime();
+        requests.increment();
+        deposit();
+        final Call<T> call = new Call<>(request, discard);
+        call.attempt(false);
+        try {
+            final long delay = delayNanos;
+            if (delay >= 0) {
+                try {
+                    return call.answer.get(delay, TimeUnit.NANOSECONDS);
+                } catch (final TimeoutException e) {
+                    if (withdraw()) {
+                        hedged.increment();
+                        call.attempt(true);
+                    } else {
+                        denied.increment();
+                    }
+                }
+            }
+            return call.answer.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + name);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            latency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return The requests, hedges, hedges that answered first and hedges denied
+     *         by the budget of every operation in this container, with the hedge
+     *         rate, win rate and current delay.
+     */
+    static HashMap<String, Object> report() {
+        final HashMap<String, Object> report = new HashMap<>();
+        for (final Hedge hedge : new Hedge[] {S3_GET, S3_HEAD, GEOCODE}) {
+            final long requestCount = hedge.requests.get();
+            final long hedgeCount = hedge.hedged.get();
+            final HashMap<String, Object> operation = new HashMap<>();
+            operation.put("requests", requestCount);
+            operation.put("hedged", hedgeCount);
+            operation.put("won", hedge.won.get());
+            operation.put("denied", hedge.denied.get());
+            operation.put("hedgeRate", requestCount > 0 ? Math.round(1000.0 * hedgeCount / requestCount) / 1000.0 : 0.0);
+            operation.put("winRate", hedgeCount > 0 ? Math.round(1000.0 * hedge.won.get() / hedgeCount) / 1000.0 : 0.0);
+            operation.put("delayMs", hedge.delayNanos < 0 ? null : hedge.delayNanos / 1e6);
+            report.put(hedge.name, operation);
+        }
+        return report;
+    }
+
+    /**
+     * The attempts of one request, the first answer completing it.
+     */
+    private final class Call<T> {
+
+        private final Request<T> request;
+        private final Discard<T> discard;
+        private final CompletableFuture<T> answer = new CompletableFuture<>();
+        private final AtomicInteger running = new AtomicInteger();
+        private volatile Throwable failure;
+
+        Call(final Request<T> request, final Discard<T> discard) {
+            this.request = request;
+            this.discard = discard;
+        }
+
+        void attempt(final boolean hedge) {
+            running.incrementAndGet();
+            ATTEMPTS.execute(() -> {
+                final long start = System.nanoTime();
+                final T result;
+                try {
+                    result = request.send();
+                } catch (final Throwable e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                    if (running.decrementAndGet() == 0) {
+                        answer.completeExceptionally(failure);
+                    }
+                    return;
+                }
+                record(System.nanoTime() - start);
+                if (answer.complete(result)) {
+                    if (hedge) {
+                        won.increment();
+                    }
+                } else if (discard != null) {
+                    discard.discard(result);
+                }
+            });
+        }
+    }
+
+    /**
+     * Add the latency of an answer, updating the hedge delay every UPDATE_INTERVAL answers.
+     */
+    private void record(final long nanos) {
+        final long seen = answers.incrementAndGet();
+        latencies.set((int) ((seen - 1) % WINDOW), nanos);
+        if (seen >= MIN_SAMPLES && seen % UPDATE_INTERVAL == 0) {
+            final int count = (int) Math.min(seen, WINDOW);
+            final long[] sorted = new long[count];
+            for (int i = 0; i < count; i++) {
+                sorted[i] = latencies.get(i);
+            }
+            Arrays.sort(sorted);
+            final int rank = (int) Math.ceil(PERCENTILE / 100.0 * count) - 1;
+            delayNanos = Math.max(MIN_DELAY_NANOS, sorted[Math.max(0, rank)]);
+        }
+    }
+
+    private void deposit() {
+        long current = budget.get();
+        while (current < BURST && !budget.compareAndSet(current, Math.min(BURST, current + BUDGET_PERCENT))) {
+            current = budget.get();
+        }
+    }
+
+    /**
+     * @return Whether the budget held a hedge, which is taken from it.
+     */
+    private boolean withdraw() {
+        long current = budget.get();
+        while (current >= 100) {
+            if (budget.compareAndSet(current, current - 100)) {
+                return true;
+            }
+            current = budget.get();
+        }
+        return false;
+    }
+}
@@ -3,25 +3,32 @@ package lambda;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
-import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
-import com.amazonaws.services.s3.model.DeleteObjectRequest;
-import com.amazonaws.services.s3.model.GetObjectRequest;
-import com.amazonaws.services.s3.model.S3Object;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Properties;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
 import saaf.Inspector;
+import saaf.Span;
 
 /**
  * Load lambda function as part of the Transform-Load-Query pipeline for TCSS-462.
@@ -29,6 +36,15 @@ import saaf.Inspector;
  * event when a file is placed in the correct S3 bucket.
  * This function loads the transformed file given by
  * the S3 bucket event into the proper Aurora RDS.
+ * A request may also carry a batch of objects, such as an SQS batch, which are
+ * loaded concurrently after a single table check, see ObjectBatch.
+ * Once the rows are committed the load generation is advanced and returned as
+ * the generation attribute, which Query takes as a minGeneration to read them
+ * from a reader endpoint, see LoadGeneration.
+ * With tlq.cluster set, the sidecar index of a clustered object is deleted
+ * along with it, see ClusterSort.
+ * With tlq.hedge set, the S3 reads are hedged, see Hedge, and the hedging
+ * attribute reports them for the container.
  *
  * @author Brandon Ragghianti
  * @author Michael
@@ -39,10 +55,49 @@ import saaf.Inspector;
 public class LoadAurora implements RequestHandler<HashMap<String, Object>,
                                                   HashMap<String, Object>> {
 
+    /**
+     * Whether to skip rows that were loaded before, set with the tlq.rowDedupe
+     * system property or TLQ_ROW_DEDUPE. Every row is stored with an MD5
+     * fingerprint of its object key, its values and how many rows of the object
+     * had those values before it under a unique index, and a row whose
+     * fingerprint exists is neither inserted nor added to the sketches. An object
+     * loaded again under its key is skipped even with lines added or removed,
+     * identical rows of one object are all kept, and rows of objects with
+     * different keys never count as duplicates. Transform keeps the key of the
+     * uploaded file.
+     */
+    static final boolean ROW_DEDUPE = "true".equalsIgnoreCase(System.getProperty("tlq.rowDedupe", System.getenv("TLQ_ROW_DEDUPE")));
+
+    /** The times the transaction of a batch of rows is run when it deadlocks. */
+    private static final int BATCH_ATTEMPTS = 3;
+
+    /** The object store, null to use the S3 store shared by the container. */
+    private final ObjectStore store;
+
+    /**
+     * Held while merging the sketches of an object and committing. The objects
+     * of a batch lock the same sketch rows, so their merges take turns rather
+     * than wait on each other's locks until they commit.
+     */
+    private final Object sketchFlushes = new Object();
+
+    public LoadAurora() {
+        this(null);
+    }
+
+    /**
+     * Runs in the init phase on Lambda, where the container is primed, see Warmup.
+     * @param store The object store to use instead of S3, such as a local directory.
+     */
+    LoadAurora(final ObjectStore store) {
+        this.store = store;
+        Warmup.prime(store == null, true);
+    }
+
     /**
      * Handler for the AWS lambda function. Automatically triggered by a Cloud-Watch event.
      * @param request The generated request from AWS. Must include a bucketname
-     *                and filename property for the csv to be loaded.
+     *                and filename property for the csv to be loaded, or be a batch of objects.
      * @param context The generated context from AWS.
      * @return The state of this lambda function container.
      */
@@ -58,119 +113,491 @@ public class LoadAurora implements RequestHandler<HashMap<String, Object>,
 
         //****************START FUNCTION IMPLEMENTATION*************************
 
-        final LambdaLogger logger = context.getLogger();
+        // The cold start reports how long the container was primed, see Warmup.
+        Warmup.report(inspector);
 
-        // Retrieve the bucketname and filename from the S3 event JSON.
-        final HashMap<?, ?> requestParameters = (HashMap<?, ?>) ((HashMap<?, ?>) request.get("detail")).get("requestParameters");
-        final String bucket_name = (String) requestParameters.get("bucketName");
-        final String filename = (String) requestParameters.get("key");
+        final LambdaLogger logger = context.getLogger();
 
-        // Retrieve the file from S3.
-        final AmazonS3 s3Client = AmazonS3ClientBuilder.standard().build();
-        final S3Object s3Object = s3Client.getObject(
-                                    new GetObjectRequest(bucket_name, filename));
-        final InputStream objectData = s3Object.getObjectContent();
+        final ObjectStore objectStore = store != null ? store : Clients.objectStore();
 
-        // Create a CSVParser on the S3 file.
-        final CSVParser dataParser;
-        try {
-            dataParser = CSVParser.parse(objectData, Charset.defaultCharset(), CSVFormat.DEFAULT);
-        } catch (final IOException e) {
-            throw new RuntimeException(e);
-        }
-
-        // Load db.properties and the required properties.
-        final Properties properties = new Properties();
+        // Connect to the database, reusing the connection of the previous invocation in this container.
+        final Span connect = inspector.startSpan("connect");
+        final Connection con;
         try {
-            properties.load(getClass().getClassLoader().getResourceAsStream("db.properties"));
+            con = Clients.connection();
         } catch (final IOException e) {
             logger.log("Failed to load db.properties: " + e.getMessage());
             throw new RuntimeException(e);
-        }
-        final String url = properties.getProperty("url");
-        final String username = properties.getProperty("username");
-        final String password = properties.getProperty("password");
-
-        // Connect to the database.
-        final Connection con;
-        try {
-            con = DriverManager.getConnection(url, username, password);
         } catch (final SQLException e) {
             logger.log("Database connection failed: " + e.getMessage());
             throw new RuntimeException(e);
         }
+        connect.close();
 
         // Detect if the table 'data' exists in the database
+        final Span createTables = inspector.startSpan("createTables");
         try {
             final PreparedStatement db_table_check = con.prepareStatement("SELECT EXISTS (SELECT * FROM information_schema.tables WHERE table_schema = 'mobiledata' AND table_name = 'data');");
             final ResultSet db_table_rs = db_table_check.executeQuery();
             db_table_rs.next();
             if (!db_table_rs.getBoolean(1)) {
-                final PreparedStatement db_table_create = con.prepareStatement(
-                        "CREATE TABLE data (userID INTEGER AUTO_INCREMENT, userAge REAL, userGender TEXT, userNumberOfApps INTEGER, "
-                        + "userSocialMediaUsage REAL, userPercentOfSocialMedia REAL, userProductivityAppUsage REAL, "
-                        + "userPercentOfProductivityAppUsage REAL, userGamingAppUsage REAL, userPercentOfGamingAppUsage REAL, "
-                        + "userTotalAppUsage REAL, userCity TEXT, resultState TEXT, resultCountry TEXT, PRIMARY KEY (userID));");
+                final PreparedStatement db_table_create = con.prepareStatement(RowSchema.ACTIVE.createTable("data", "userID"));
                 db_table_create.execute();
                 db_table_create.close();
             }
             db_table_check.close();
             db_table_rs.close();
+            if (ROW_DEDUPE) {
+                createFingerprintIndex(con);
+            }
+            SketchStore.createTables(con);
+            LoadGeneration.createTable(con);
         } catch (final SQLException e) {
             logger.log("Failed to check/create the database data table: " + e.getMessage());
             throw new RuntimeException(e);
         }
+        createTables.close();
+
+        if (ObjectBatch.isBatch(request)) {
+
+            // Load several objects at once, each worker on a connection of its own, see ObjectBatch.
+            final ObjectBatch batch = ObjectBatch.parse(request);
+            final Span batchSpan = inspector.startSpan("batch");
+            final Span insert = inspector.span("insert");
+            final Span sketchFlush = inspector.span("sketchFlush");
+            final Span delete = inspector.span("delete");
+            final BlockingQueue<Connection> idle = new LinkedBlockingQueue<>();
+            idle.add(con);
+            try {
+                batch.run((bucket_name, filename) -> {
+                    Connection worker = idle.poll();
+                    if (worker == null) {
+                        try {
+                            worker = Clients.newConnection();
+                        } catch (final IOException | SQLException e) {
+                            logger.log("Database connection failed: " + e.getMessage());
+                            throw new RuntimeException(e);
+                        }
+                    }
+                    final Span insertFork = insert.fork();
+                    final Span sketchFlushFork = sketchFlush.fork();
+                    final Span deleteFork = delete.fork();
+                    try {
+                        return loadObject(objectStore, bucket_name, filename, worker, insertFork, sketchFlushFork, deleteFork, logger);
+                    } finally {
+                        insert.join(insertFork);
+                        sketchFlush.join(sketchFlushFork);
+                        delete.join(deleteFork);
 
-        // Insert all data into the database.
+                        // A connection broken by a failed object is not handed to the next one.
+                        if (Clients.isValid(worker)) {
+                            idle.add(worker);
+                        } else if (worker != con) {
+                            close(worker);
+                        }
+                    }
+                }, inspector);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } finally {
+                for (final Connection worker : idle) {
+                    if (worker != con) {
+                        close(worker);
+                    }
+                }
+            }
+            batchSpan.add("objects", batch.size());
+            batchSpan.close();
+            inspector.addAttribute("objects", batch.getObjects());
+            inspector.addAttribute("batchItemFailures", batch.getFailures());
+        } else {
+            // Retrieve the bucketname and filename from the S3 event JSON.
+            final HashMap<?, ?> requestParameters = (HashMap<?, ?>) ((HashMap<?, ?>) request.get("detail")).get("requestParameters");
+            final String bucket_name = (String) requestParameters.get("bucketName");
+            final String filename = (String) requestParameters.get("key");
+            loadObject(objectStore, bucket_name, filename, con,
+                    inspector.span("insert"), inspector.span("sketchFlush"), inspector.span("delete"), logger);
+        }
+
+        // Advance the load generation, on the shared connection unless a failed object broke it.
         try {
-            final PreparedStatement db_table_insert = con.prepareStatement("INSERT INTO data (userAge, userGender, userNumberOfApps, userSocialMediaUsage, userPercentOfSocialMedia, userProductivityAppUsage, userPercentOfProductivityAppUsage, userGamingAppUsage, userPercentOfGamingAppUsage, userTotalAppUsage, userCity, resultState, resultCountry) VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?)");
+            inspector.addAttribute("generation", LoadGeneration.advance(Clients.connection()));
+        } catch (final IOException | SQLException e) {
+            logger.log("Failed to advance the load generation: " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+        if (Hedge.ENABLED) {
+            inspector.addAttribute("hedging", Hedge.report());
+        }
+
+        //****************END FUNCTION IMPLEMENTATION***************************
+        
+        //Collect final information such as total runtime and cpu deltas.
+        inspector.inspectAllDeltas();
+        return inspector.finish();
+    }
+
+    /**
+     * Insert the rows of an object into the data table, merge their sketches and delete it.
+     * @param objectStore The store of the object.
+     * @param bucket_name The bucket of the object.
+     * @param filename The key of the object.
+     * @param con The connection, used by this thread only.
+     * @param insert Started while the rows are inserted.
+     * @param sketchFlush Records the write of the sketches of every batch, the merge of the sketches of the object and their commits.
+     * @param delete Started while the object is deleted.
+     * @param logger Logs the cause of a failure.
+     * @return The rows inserted.
+     */
+    private HashMap<String, Object> loadObject(
+            final ObjectStore objectStore,
+            final String bucket_name,
+            final String filename,
+            final Connection con,
+            final Span insert,
+            final Span sketchFlush,
+            final Span delete,
+            final LambdaLogger logger
+    ) {
+
+        // Retrieve the file from S3 and create a CSVParser on it.
+        final CSVParser dataParser;
+        try {
+            final InputStream objectData = objectStore.get(bucket_name, filename);
+            dataParser = CSVParser.parse(objectData, Charset.defaultCharset(), CSVFormat.DEFAULT);
+        } catch (final IOException e) {
+            logger.log("Could not read " + bucket_name + "/" + filename + ": " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+
+        // Insert all data into the database. Reading covers the S3 download as well, the object is streamed while parsed.
+        // Every batch of rows is committed along with the sketches of its rows, so a failed load leaves both consistent.
+        final HashMap<String, Object> counters = new HashMap<>();
+        insert.start();
+        final Span read = insert.child("read");
+        final Span bind = insert.child("bind");
+        final Span executeBatch = insert.child("executeBatch");
+        try {
+            final PreparedStatement db_table_insert = con.prepareStatement(RowSchema.ACTIVE.insert("data",
+                    ROW_DEDUPE ? Collections.singletonList("rowFingerprint") : Collections.<String>emptyList(), ROW_DEDUPE));
+            final RowSchema.Frame frame = new RowSchema.Frame(RowSchema.ACTIVE);
 
             int batchSize = 1000; // Adjust the batch size based on your system's capability
             int count = 0;
 
-            for (CSVRecord csvRecord : dataParser) {
-                int paramIndex = 1;
-                paramIndex = substitute(db_table_insert, paramIndex, 0, csvRecord);
-                paramIndex = substitute(db_table_insert, paramIndex, 1, csvRecord);
-                paramIndex = substitute(db_table_insert, paramIndex, 2, csvRecord);
-                paramIndex = substitute(db_table_insert, paramIndex, 3, csvRecord);
-                paramIndex = substitute(db_table_insert, paramIndex, 4, csvRecord);
-                paramIndex = substitute(db_table_insert, paramIndex, 5, csvRecord);
-                paramIndex = substitute(db_table_insert, paramIndex, 6, csvRecord);
-                paramIndex = substitute(db_table_insert, paramIndex, 7, csvRecord);
-                paramIndex = substitute(db_table_insert, paramIndex, 8, csvRecord);
-                paramIndex = substitute(db_table_insert, paramIndex, 9, csvRecord);
-                paramIndex = substitute(db_table_insert, paramIndex, 10, csvRecord);
-                paramIndex = substitute(db_table_insert, paramIndex, 11, csvRecord);
-                paramIndex = substitute(db_table_insert, paramIndex, 12, csvRecord);
-
-                db_table_insert.addBatch();
-                count++;
-
-                if (count % batchSize == 0) {
-                    db_table_insert.executeBatch();
+            // Sketches of the rows of the current batch, for the approximate aggregations.
+            final SketchStore sketches = new SketchStore();
+
+            // The rows of the current batch and their fingerprints, bound again if its transaction is retried.
+            final MessageDigest md5 = ROW_DEDUPE ? md5() : null;
+            final byte[] source = filename.getBytes(StandardCharsets.UTF_8);
+            final Map<ByteBuffer, Integer> occurrences = new HashMap<>();
+            final List<CSVRecord> batchRows = new ArrayList<>();
+            final List<byte[]> batchFingerprints = new ArrayList<>();
+            int duplicates = 0;
+
+            final boolean autoCommit = con.getAutoCommit();
+            con.setAutoCommit(false);
+            try {
+                final Iterator<CSVRecord> records = dataParser.iterator();
+                while (true) {
+                    final long start = System.nanoTime();
+                    if (!records.hasNext()) {
+                        break;
+                    }
+                    final CSVRecord csvRecord = records.next();
+                    final long end = System.nanoTime();
+                    read.record(end - start);
+
+                    // The columns are bound by the binder generated for the schema of the rows, see RowSchema.
+                    final byte[] fingerprint = md5 != null ? fingerprint(md5, source, csvRecord, occurrences) : null;
+                    bindRow(frame, db_table_insert, fingerprint, csvRecord);
+                    batchRows.add(csvRecord);
+                    batchFingerprints.add(fingerprint);
+                    count++;
+                    bind.record(System.nanoTime() - end);
+
+                    if (count % batchSize == 0) {
+                        duplicates += commitBatch(con, db_table_insert, frame, batchRows, batchFingerprints, sketches, executeBatch, sketchFlush);
+                    }
                 }
+                // Execute any remaining batches
+                duplicates += commitBatch(con, db_table_insert, frame, batchRows, batchFingerprints, sketches, executeBatch, sketchFlush);
+                compactSketches(con, sketches, sketchFlush, logger);
+            } finally {
+                con.setAutoCommit(autoCommit);
             }
-            // Execute any remaining batches
-            db_table_insert.executeBatch();
+            // The connection outlives this invocation, its statements must not.
+            db_table_insert.close();
+            insert.add("rows", count);
+            counters.put("rows", count);
+            if (ROW_DEDUPE) {
+                insert.add("duplicates", duplicates);
+                counters.put("duplicates", duplicates);
+            }
+            insert.close();
         } catch (final SQLException e) {
             logger.log("Failed to insert data: " + e.getMessage());
             throw new RuntimeException(e);
         }
 
+        // Close the S3 stream, returning its download buffers.
+        try {
+            dataParser.close();
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+
         // Delete S3 file.
-        s3Client.deleteObject(new DeleteObjectRequest(bucket_name, filename));
+        delete.start();
+        try {
+            objectStore.delete(bucket_name, filename);
+            if (ClusterSort.ENABLED) {
+                objectStore.delete(Transform.RECURRING_CITIES_BUCKET, ClusterSort.indexKey(filename));
+            }
+        } catch (final IOException e) {
+            logger.log("Could not delete " + bucket_name + "/" + filename + ": " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+        delete.close();
+        return counters;
+    }
 
-        //****************END FUNCTION IMPLEMENTATION***************************
-        
-        //Collect final information such as total runtime and cpu deltas.
-        inspector.inspectAllDeltas();
-        return inspector.finish();
+    /**
+     * Close a connection opened for one invocation.
+     */
+    private static void close(final Connection con) {
+        try {
+            con.close();
+        } catch (final SQLException e) {
+            System.err.println("Could not close the database connection: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Add the fingerprint column of ROW_DEDUPE and its unique index to the data
+     * table, unless they exist. Rows loaded without a fingerprint keep NULL,
+     * which the index does not compare.
+     */
+    private static void createFingerprintIndex(final Connection con) throws SQLException {
+        try (PreparedStatement check = con.prepareStatement("SELECT EXISTS (SELECT * FROM information_schema.columns WHERE table_schema = 'mobiledata' AND table_name = 'data' AND column_name = 'rowFingerprint');");
+             ResultSet rs = check.executeQuery()) {
+            rs.next();
+            if (!rs.getBoolean(1)) {
+                try (PreparedStatement alter = con.prepareStatement(
+                        "ALTER TABLE data ADD COLUMN rowFingerprint BINARY(16) NULL, ADD UNIQUE INDEX data_row_fingerprint (rowFingerprint);")) {
+                    alter.execute();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return A new MD5 digest.
+     */
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every JVM provides MD5", e);
+        }
+    }
+
+    /**
+     * @param md5 The digest, reset by digesting.
+     * @param source The object key of the row.
+     * @param csvRecord A transformed row.
+     * @param occurrences The rows of the object read so far, counted by the digest of their key and values.
+     * @return The fingerprint of the key and values of the row and of how many rows before it had them.
+     */
+    private static byte[] fingerprint(
+            final MessageDigest md5,
+            final byte[] source,
+            final CSVRecord csvRecord,
+            final Map<ByteBuffer, Integer> occurrences
+    ) {
+        md5.update(source);
+        for (final String value : csvRecord) {
+            md5.update((byte) 0);
+            md5.update(value.getBytes(StandardCharsets.UTF_8));
+        }
+        final byte[] values = md5.digest();
+        final int occurrence = occurrences.merge(ByteBuffer.wrap(values), 1, Integer::sum);
+        md5.update(values);
+        md5.update(Integer.toString(occurrence).getBytes(StandardCharsets.UTF_8));
+        return md5.digest();
+    }
+
+    /**
+     * Bind a row and add it to the batch of the insert statement.
+     * @param fingerprint The ROW_DEDUPE fingerprint of the row, null without it.
+     */
+    private static void bindRow(
+            final RowSchema.Frame frame,
+            final PreparedStatement insert,
+            final byte[] fingerprint,
+            final CSVRecord csvRecord
+    ) throws SQLException {
+        RowSchema.bind(frame, insert, csvRecord);
+        if (fingerprint != null) {
+            insert.setBytes(RowSchema.ACTIVE.getColumns().size() + 1, fingerprint);
+        }
+        insert.addBatch();
+    }
+
+    /**
+     * Insert a batch of rows and write their sketches as deltas in one
+     * transaction. A transaction chosen as a deadlock victim is run again with
+     * the rows bound anew.
+     * @param con The connection, not in auto-commit mode.
+     * @param insert The insert statement, with the rows of the batch bound.
+     * @param batchRows The rows of the batch, cleared once committed.
+     * @param batchFingerprints The fingerprints of the rows, null entries without ROW_DEDUPE, cleared once committed.
+     * @param sketches The sketches, without pending rows before and after.
+     * @return The rows skipped as duplicates.
+     * @throws SQLException If the batch could not be committed, after it was rolled back.
+     */
+    private int commitBatch(
+            final Connection con,
+            final PreparedStatement insert,
+            final RowSchema.Frame frame,
+            final List<CSVRecord> batchRows,
+            final List<byte[]> batchFingerprints,
+            final SketchStore sketches,
+            final Span executeBatch,
+            final Span sketchFlush
+    ) throws SQLException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                final long start = System.nanoTime();
+                final Set<ByteBuffer> existing = ROW_DEDUPE ? lockFingerprints(con, batchFingerprints) : Collections.<ByteBuffer>emptySet();
+                insert.executeBatch();
+                final long end = System.nanoTime();
+                executeBatch.record(end - start);
+                final int duplicates = addInserted(existing, batchRows, batchFingerprints, sketches);
+                sketches.flush(con);
+                con.commit();
+                sketches.committed();
+                sketchFlush.record(System.nanoTime() - end);
+                batchRows.clear();
+                batchFingerprints.clear();
+                return duplicates;
+            } catch (final SQLException e) {
+                con.rollback();
+                insert.clearBatch();
+                sketches.discard();
+                if (attempt == BATCH_ATTEMPTS || !isDeadlock(e)) {
+                    throw e;
+                }
+                for (int i = 0; i < batchRows.size(); i++) {
+                    bindRow(frame, insert, batchFingerprints.get(i), batchRows.get(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Merge the sketches of an object into the stored sketches once its rows are
+     * committed, run again as a deadlock victim, as two loads creating the same
+     * sketch group can be. If it still fails the deltas of the object are kept,
+     * which queries merge just the same.
+     * @param con The connection, not in auto-commit mode.
+     * @param sketches The sketches of every batch of the object.
+     * @throws SQLException If a failed merge could not be rolled back.
+     */
+    private void compactSketches(
+            final Connection con,
+            final SketchStore sketches,
+            final Span sketchFlush,
+            final LambdaLogger logger
+    ) throws SQLException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                final long start = System.nanoTime();
+                synchronized (sketchFlushes) {
+                    sketches.compact(con);
+                    con.commit();
+                }
+                sketchFlush.record(System.nanoTime() - start);
+                return;
+            } catch (final SQLException e) {
+                con.rollback();
+                if (attempt == BATCH_ATTEMPTS || !isDeadlock(e)) {
+                    logger.log("Failed to merge the sketches, their deltas are kept: " + e.getMessage());
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Whether the transaction was rolled back as a deadlock victim.
+     */
+    private static boolean isDeadlock(final SQLException e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException && "40001".equals(((SQLException) cause).getSQLState())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find which fingerprints of a batch are stored already, locking them, and
+     * the gaps where the others go, until the transaction ends. The update
+     * counts of the batch can not tell a row ignored as a duplicate apart,
+     * as the driver may report Statement.SUCCESS_NO_INFO for every row.
+     * @param con The connection, not in auto-commit mode.
+     * @param batchFingerprints The fingerprints of the rows of the batch.
+     * @return The fingerprints stored before the batch is inserted.
+     */
+    private static Set<ByteBuffer> lockFingerprints(final Connection con, final List<byte[]> batchFingerprints) throws SQLException {
+        final Set<ByteBuffer> existing = new HashSet<>();
+        if (batchFingerprints.isEmpty()) {
+            return existing;
+        }
+        final StringBuilder sql = new StringBuilder("SELECT rowFingerprint FROM data WHERE rowFingerprint IN (");
+        for (int i = 0; i < batchFingerprints.size(); i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        sql.append(") FOR UPDATE");
+        try (PreparedStatement select = con.prepareStatement(sql.toString())) {
+            for (int i = 0; i < batchFingerprints.size(); i++) {
+                select.setBytes(i + 1, batchFingerprints.get(i));
+            }
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    existing.add(ByteBuffer.wrap(rs.getBytes(1)));
+                }
+            }
+        }
+        return existing;
     }
 
-    private int substitute(final PreparedStatement db_table_insert, int count, int pos, CSVRecord csvRecord) throws SQLException {
-        db_table_insert.setString(count, csvRecord.get(pos));
-        count++;
-        return count;
+    /**
+     * Add the rows an executed batch inserted to the sketches. With ROW_DEDUPE
+     * a row whose fingerprint was stored before the batch is a duplicate.
+     * @param existing The fingerprints stored before the batch, see lockFingerprints.
+     * @param batchRows The rows of the batch.
+     * @param batchFingerprints The fingerprints of the rows, null entries without ROW_DEDUPE.
+     * @param sketches The sketches of the batch.
+     * @return The rows skipped as duplicates.
+     */
+    private static int addInserted(
+            final Set<ByteBuffer> existing,
+            final List<CSVRecord> batchRows,
+            final List<byte[]> batchFingerprints,
+            final SketchStore sketches
+    ) {
+        int duplicates = 0;
+        for (int i = 0; i < batchRows.size(); i++) {
+            if (ROW_DEDUPE && existing.contains(ByteBuffer.wrap(batchFingerprints.get(i)))) {
+                duplicates++;
+            } else {
+                sketches.add(batchRows.get(i));
+            }
+        }
+        return duplicates;
     }
 }
@@ -0,0 +1,75 @@
+package lambda;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * The load generation: a counter in the single row of the load_generation
+ * table, advanced by LoadAurora once the rows of an invocation are committed.
+ * Replication applies the writes of the writer in commit order, so a reader
+ * that has replicated generation N holds every row loaded up to it. Query
+ * waits for a reader to reach the generation a client loaded before reading
+ * from it, see ReadRouter.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+final class LoadGeneration {
+
+    private LoadGeneration() {
+    }
+
+    /**
+     * Create the generation table if it does not exist yet.
+     * @param con A connection to the writer.
+     * @throws SQLException If the table could not be created.
+     */
+    static void createTable(final Connection con) throws SQLException {
+        try (PreparedStatement create = con.prepareStatement(
+                "CREATE TABLE IF NOT EXISTS load_generation (id TINYINT NOT NULL, generation BIGINT NOT NULL, PRIMARY KEY (id));")) {
+            create.execute();
+        }
+    }
+
+    /**
+     * Advance the generation, after the rows of a load are committed.
+     * @param con A connection to the writer, in auto-commit mode.
+     * @return The new generation.
+     * @throws SQLException If the generation could not be advanced.
+     */
+    static long advance(final Connection con) throws SQLException {
+        // LAST_INSERT_ID(expr) keeps the new value for this connection, whatever other loads do meanwhile.
+        try (PreparedStatement update = con.prepareStatement("INSERT INTO load_generation (id, generation) "
+                + "VALUES (1, LAST_INSERT_ID(1)) ON DUPLICATE KEY UPDATE generation = LAST_INSERT_ID(generation + 1)");
+             PreparedStatement select = con.prepareStatement("SELECT LAST_INSERT_ID()")) {
+            update.executeUpdate();
+            try (ResultSet rs = select.executeQuery()) {
+                rs.next();
+                return rs.getLong(1);
+            }
+        }
+    }
+
+    /**
+     * @param con A connection to the writer or a reader.
+     * @return The generation the database has applied, 0 before the first load.
+     * @throws SQLException If the generation could not be read.
+     */
+    static long read(final Connection con) throws SQLException {
+        try (PreparedStatement select = con.prepareStatement("SELECT generation FROM load_generation WHERE id = 1");
+             ResultSet rs = select.executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0;
+        } catch (final SQLException e) {
+            // A reader that has not replicated the table yet has no load either.
+            if ("42S02".equals(e.getSQLState())) {
+                return 0;
+            }
+            throw e;
+        }
+    }
+}
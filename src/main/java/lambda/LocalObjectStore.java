@@ -0,0 +1,138 @@
+package lambda;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * An object store on the local file system: every bucket is a directory under
+ * a root directory and every object a file in it, so an object can be a key
+ * with slashes.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+final class LocalObjectStore implements ObjectStore {
+
+    /** The directory holding a directory per bucket. */
+    private final Path root;
+
+    /**
+     * @param root The directory holding a directory per bucket, created on first write.
+     */
+    LocalObjectStore(final Path root) {
+        this.root = root;
+    }
+
+    /**
+     * @param bucket The bucket of the object.
+     * @param key The key of the object.
+     * @return The file of the object, which may not exist.
+     */
+    File file(final String bucket, final String key) {
+        return root.resolve(bucket).resolve(key).toFile();
+    }
+
+    @Override
+    public InputStream get(final String bucket, final String key) throws IOException {
+        final File file = file(bucket, key);
+        if (!file.isFile()) {
+            throw new FileNotFoundException("The specified key does not exist: " + bucket + "/" + key);
+        }
+        return new FileInputStream(file);
+    }
+
+    @Override
+    public boolean exists(final String bucket, final String key) {
+        return file(bucket, key).isFile();
+    }
+
+    @Override
+    public void put(final String bucket, final String key, final File file) throws IOException {
+        final Path target = file(bucket, key).toPath();
+        Files.createDirectories(target.getParent());
+        Files.copy(file.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Write to a temporary file next to the object, moved into place on close.
+     */
+    @Override
+    public Upload upload(final String bucket, final String key) throws IOException {
+        final Path target = file(bucket, key).toPath();
+        Files.createDirectories(target.getParent());
+        final Path temporary = Files.createTempFile(target.getParent(), ".upload-", null);
+        final OutputStream out = Files.newOutputStream(temporary);
+        return new Upload() {
+            private boolean done;
+
+            @Override
+            public void write(final int b) throws IOException {
+                out.write(b);
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (done) {
+                    return;
+                }
+                out.close();
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                done = true;
+            }
+
+            @Override
+            public void abort() {
+                if (done) {
+                    return;
+                }
+                done = true;
+                try {
+                    out.close();
+                    Files.deleteIfExists(temporary);
+                } catch (final IOException e) {
+                    System.err.println("Could not delete " + temporary + ": " + e.getMessage());
+                }
+            }
+        };
+    }
+
+    /**
+     * Write to a temporary file next to the object, linked into place unless the object exists.
+     */
+    @Override
+    public boolean create(final String bucket, final String key, final byte[] content) throws IOException {
+        final Path target = file(bucket, key).toPath();
+        Files.createDirectories(target.getParent());
+        final Path temporary = Files.createTempFile(target.getParent(), ".create-", null);
+        try {
+            Files.write(temporary, content);
+            Files.createLink(target, temporary);
+            return true;
+        } catch (final FileAlreadyExistsException e) {
+            return false;
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    @Override
+    public void delete(final String bucket, final String key) throws IOException {
+        Files.deleteIfExists(file(bucket, key).toPath());
+    }
+}
@@ -0,0 +1,292 @@
+package lambda;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import saaf.Inspector;
+
+/**
+ * The objects sent to Transform or LoadAurora in one request, so a burst of
+ * small files shares one invocation, its clients, the recurring cities cache
+ * and the database connection instead of paying for them per file.
+ *
+ * A request is a batch if it has one of:
+ *
+ * Records with a messageId: An SQS batch. The body of every message is an S3
+ *     event from EventBridge, with detail.requestParameters, or an S3 event
+ *     notification with its own Records.
+ * Records with s3: An S3 event notification, whose keys are URL encoded.
+ * objects: An array of {"bucketName", "key"} and an optional "id".
+ *
+ * The objects are processed concurrently, at most tlq.batchConcurrency at a time
+ * (default 4). An object that fails does not fail the request: its identifier,
+ * the SQS message ID or else bucket/key, is listed in the batchItemFailures
+ * attribute, the partial batch response of an SQS event source with
+ * ReportBatchItemFailures, so only the failed messages are retried. A message
+ * that is not understood fails the same way. An object referenced more than once
+ * is processed once.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+final class ObjectBatch {
+
+    /** The maximum number of objects processed at the same time. */
+    static final int MAX_CONCURRENCY = Math.max(1, Integer.getInteger("tlq.batchConcurrency", 4));
+
+    /**
+     * Processes one object of the batch.
+     */
+    interface Processor {
+
+        /**
+         * @param bucket The bucket of the object.
+         * @param key The key of the object.
+         * @return Counters of the object, such as rows, reported with it.
+         * @throws RuntimeException If the object could not be processed.
+         */
+        Map<String, Object> process(String bucket, String key);
+    }
+
+    /** An object of the batch and the identifiers of the items that referenced it. */
+    private static final class Item {
+
+        /** The bucket of the object, null if the item could not be read. */
+        private final String bucket;
+
+        /** The key of the object, null if the item could not be read. */
+        private final String key;
+
+        private final List<String> ids = new ArrayList<>();
+        private Map<String, Object> counters;
+        private String error;
+        private long nanos;
+
+        Item(final String bucket, final String key) {
+            this.bucket = bucket;
+            this.key = key;
+        }
+    }
+
+    /** The objects in request order, keyed by bucket/key. */
+    private final Map<String, Item> items = new LinkedHashMap<>();
+
+    /** The items that could not be read, keyed by identifier. */
+    private final Map<String, Item> unreadable = new LinkedHashMap<>();
+
+    private ObjectBatch() {
+    }
+
+    /**
+     * @param request The request of a handler.
+     * @return Whether the request is a batch rather than a single S3 event.
+     */
+    static boolean isBatch(final Map<String, Object> request) {
+        return request.containsKey("Records") || request.containsKey("objects");
+    }
+
+    /**
+     * Read the objects of a batch request. Items that cannot be read are
+     * reported as failed rather than failing the batch.
+     * @param request A request for which isBatch is true.
+     * @return The batch.
+     */
+    static ObjectBatch parse(final Map<String, Object> request) {
+        final ObjectBatch batch = new ObjectBatch();
+        final JSONObject json = new JSONObject(request);
+        final JSONArray objects = json.optJSONArray("objects");
+        if (objects != null) {
+            for (int i = 0; i < objects.length(); i++) {
+                final JSONObject object = objects.optJSONObject(i);
+                if (object == null || !object.has("bucketName") || !object.has("key")) {
+                    batch.fail(object != null ? object.optString("id", String.valueOf(i)) : String.valueOf(i),
+                            "Expected an object with bucketName and key");
+                    continue;
+                }
+                final String bucket = object.getString("bucketName");
+                final String key = object.getString("key");
+                batch.add(object.optString("id", bucket + "/" + key), bucket, key);
+            }
+        }
+        final JSONArray records = json.optJSONArray("Records");
+        if (records != null) {
+            for (int i = 0; i < records.length(); i++) {
+                final JSONObject record = records.optJSONObject(i);
+                if (record != null && record.has("messageId")) {
+                    final String id = record.getString("messageId");
+                    try {
+                        batch.addMessage(id, new JSONObject(record.optString("body")));
+                    } catch (final JSONException | IllegalArgumentException | UnsupportedEncodingException e) {
+                        batch.fail(id, "Could not read message: " + e.getMessage());
+                    }
+                } else {
+                    try {
+                        batch.addNotification(null, record);
+                    } catch (final JSONException | IllegalArgumentException | UnsupportedEncodingException e) {
+                        batch.fail(String.valueOf(i), "Could not read record: " + e.getMessage());
+                    }
+                }
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Process every object, at most MAX_CONCURRENCY at a time. Failures are
+     * recorded per object.
+     * @param processor Processes an object, on a worker thread.
+     * @param inspector Counts the allocations of the worker threads and samples their stacks.
+     * @throws InterruptedException If interrupted while waiting for the objects.
+     */
+    void run(final Processor processor, final Inspector inspector) throws InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(MAX_CONCURRENCY, items.size())));
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (final Item item : items.values()) {
+                futures.add(executor.submit(inspector.trackWorker(() -> process(item, processor))));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } catch (final ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return The number of distinct objects in the batch.
+     */
+    int size() {
+        return items.size();
+    }
+
+    /**
+     * @return The partial batch response: an itemIdentifier for every failed item.
+     */
+    ArrayList<HashMap<String, Object>> getFailures() {
+        final List<String> failed = new ArrayList<>();
+        for (final Item item : items.values()) {
+            if (item.error != null) {
+                addAll(failed, item.ids);
+            }
+        }
+        addAll(failed, new ArrayList<>(unreadable.keySet()));
+        final ArrayList<HashMap<String, Object>> failures = new ArrayList<>();
+        for (final String id : failed) {
+            final HashMap<String, Object> failure = new HashMap<>();
+            failure.put("itemIdentifier", id);
+            failures.add(failure);
+        }
+        return failures;
+    }
+
+    /**
+     * @return Every object in request order with its identifiers, time and
+     *         counters, or the error it failed with.
+     */
+    ArrayList<HashMap<String, Object>> getObjects() {
+        final ArrayList<HashMap<String, Object>> objects = new ArrayList<>();
+        for (final Item item : items.values()) {
+            final HashMap<String, Object> object = new HashMap<>();
+            object.put("ids", item.ids);
+            object.put("bucketName", item.bucket);
+            object.put("key", item.key);
+            object.put("ms", Math.round(item.nanos / 1e3) / 1e3);
+            if (item.counters != null) {
+                object.putAll(item.counters);
+            }
+            if (item.error != null) {
+                object.put("error", item.error);
+            }
+            objects.add(object);
+        }
+        for (final Map.Entry<String, Item> item : unreadable.entrySet()) {
+            final HashMap<String, Object> object = new HashMap<>();
+            object.put("ids", item.getValue().ids);
+            object.put("error", item.getValue().error);
+            objects.add(object);
+        }
+        return objects;
+    }
+
+    private void process(final Item item, final Processor processor) {
+        final long start = System.nanoTime();
+        try {
+            item.counters = processor.process(item.bucket, item.key);
+        } catch (final RuntimeException e) {
+            item.error = String.valueOf(e.getMessage());
+        }
+        item.nanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Add the objects of an SQS message body.
+     */
+    private void addMessage(final String id, final JSONObject body) throws UnsupportedEncodingException {
+        final JSONObject detail = body.optJSONObject("detail");
+        if (detail != null) {
+            final JSONObject requestParameters = detail.getJSONObject("requestParameters");
+            add(id, requestParameters.getString("bucketName"), requestParameters.getString("key"));
+        } else if (body.has("Records")) {
+            final JSONArray records = body.getJSONArray("Records");
+            for (int i = 0; i < records.length(); i++) {
+                addNotification(id, records.getJSONObject(i));
+            }
+        } else if (!"s3:TestEvent".equals(body.optString("Event"))) {
+            throw new IllegalArgumentException("Expected an S3 event");
+        }
+    }
+
+    /**
+     * Add the object of an S3 event notification record.
+     * @param id The identifier of the item, null for bucket/key.
+     */
+    private void addNotification(final String id, final JSONObject record) throws UnsupportedEncodingException {
+        final JSONObject s3 = record.getJSONObject("s3");
+        final String bucket = s3.getJSONObject("bucket").getString("name");
+        final String key = URLDecoder.decode(s3.getJSONObject("object").getString("key"), "UTF-8");
+        add(id != null ? id : bucket + "/" + key, bucket, key);
+    }
+
+    private void add(final String id, final String bucket, final String key) {
+        Item item = items.get(bucket + "/" + key);
+        if (item == null) {
+            item = new Item(bucket, key);
+            items.put(bucket + "/" + key, item);
+        }
+        if (!item.ids.contains(id)) {
+            item.ids.add(id);
+        }
+    }
+
+    private void fail(final String id, final String error) {
+        final Item item = new Item(null, null);
+        item.ids.add(id);
+        item.error = error;
+        unreadable.put(id, item);
+    }
+
+    private static void addAll(final List<String> ids, final List<String> more) {
+        for (final String id : more) {
+            if (!ids.contains(id)) {
+                ids.add(id);
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package lambda;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The object storage calls of the handlers: reading, checking, writing and
+ * deleting an object by bucket and key, writing an object as a stream, and
+ * creating an object only if its key is free.
+ * S3ObjectStore is the store on Lambda, LocalObjectStore keeps buckets as
+ * directories for local runs.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+interface ObjectStore {
+
+    /**
+     * Open an object for reading. The stream returns the bytes of the object in
+     * order and must be closed.
+     * @param bucket The bucket of the object.
+     * @param key The key of the object.
+     * @return The content of the object.
+     * @throws IOException If the object does not exist or could not be read.
+     */
+    InputStream get(String bucket, String key) throws IOException;
+
+    /**
+     * @param bucket The bucket of the object.
+     * @param key The key of the object.
+     * @return Whether the object exists.
+     * @throws IOException If the store could not be reached.
+     */
+    boolean exists(String bucket, String key) throws IOException;
+
+    /**
+     * Write a file as an object, replacing an existing object.
+     * @param bucket The bucket of the object.
+     * @param key The key of the object.
+     * @param file The content of the object.
+     * @throws IOException If the object could not be written.
+     */
+    void put(String bucket, String key, File file) throws IOException;
+
+    /**
+     * Start writing an object as a stream. The object is created, replacing an
+     * existing object, when the upload is closed, and never if it is aborted.
+     * @param bucket The bucket of the object.
+     * @param key The key of the object.
+     * @return The upload.
+     * @throws IOException If the upload could not be started.
+     */
+    Upload upload(String bucket, String key) throws IOException;
+
+    /**
+     * Write an object unless its key exists, as one atomic step, so of several
+     * callers creating the same key exactly one succeeds.
+     * @param bucket The bucket of the object.
+     * @param key The key of the object.
+     * @param content The content of the object.
+     * @return Whether the object was created, false if the key existed.
+     * @throws IOException If the object could not be written, in which case it may or may not exist.
+     */
+    boolean create(String bucket, String key, byte[] content) throws IOException;
+
+    /**
+     * Delete an object, if it exists.
+     * @param bucket The bucket of the object.
+     * @param key The key of the object.
+     * @throws IOException If the object could not be deleted.
+     */
+    void delete(String bucket, String key) throws IOException;
+
+    /**
+     * An object being written. Closing it creates the object, aborting it
+     * discards what was written. An upload that failed to close should be
+     * aborted, aborting after a successful close has no effect.
+     */
+    abstract class Upload extends OutputStream {
+
+        /**
+         * Discard the upload.
+         */
+        public abstract void abort();
+    }
+}
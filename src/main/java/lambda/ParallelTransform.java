@@ -0,0 +1,287 @@
+package lambda;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import saaf.Inspector;
+import saaf.Span;
+
+/**
+ * Transforms one input file on several cores. The handler thread reads the
+ * input in chunks of whole lines and submits each chunk to a fork-join pool,
+ * where it is parsed and transformed; the transformed chunks are written in
+ * the order of the input. At most two chunks per worker are in flight, so
+ * memory stays bounded however large the file.
+ *
+ * The recurring cities cache is shared by the workers as a concurrent map. A
+ * city missing from it is geocoded once by its key, see Transform.cityKey: the
+ * first worker to miss it looks it up, and workers missing it meanwhile, under
+ * any spelling, wait for that lookup instead of sending their own.
+ *
+ * The input is split at newlines, so a quoted value must not span lines, as
+ * in the files this pipeline receives.
+ *
+ * Enabled with the system property tlq.parallelism or the environment variable
+ * TLQ_PARALLELISM set to the number of workers, 0 for one per available
+ * processor. Lambda gives a function more vCPUs with more memory. The default
+ * of 1 keeps the transformation on the handler thread. The chunk size is set
+ * with tlq.chunkKB (default 256).
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+final class ParallelTransform {
+
+    /** The workers, 1 when the transformation runs on the handler thread. */
+    static final int PARALLELISM = parallelism(System.getProperty("tlq.parallelism", System.getenv("TLQ_PARALLELISM")));
+
+    /** The bytes read per chunk, extended to the end of the last line. */
+    private static final int CHUNK_SIZE = Integer.getInteger("tlq.chunkKB", 256) << 10;
+
+    /** The pool of the workers, shared by invocations. */
+    private static final ForkJoinPool POOL = PARALLELISM > 1 ? new ForkJoinPool(PARALLELISM) : null;
+
+    /** The cache shared by the workers, and the lookups in flight by city. */
+    private final Map<String, Transform.CacheLocation> recurringCities;
+    private final ConcurrentHashMap<String, CompletableFuture<Transform.CacheLocation>> lookups = new ConcurrentHashMap<>();
+
+    private final Inspector inspector;
+    private final Span read;
+    private final Span transformChunk;
+    private final Span geocode;
+    private final Span wait;
+    private final Span write;
+
+    private long rows;
+    private long bytes;
+    private long chunks;
+
+    /**
+     * @param recurringCities The recurring cities cache.
+     * @param transform The span the stages are recorded under.
+     * @param inspector The Inspector of the invocation, counting the allocations of the workers.
+     */
+    ParallelTransform(
+            final Map<String, Transform.CacheLocation> recurringCities,
+            final Span transform,
+            final Inspector inspector
+    ) {
+        this.recurringCities = new ConcurrentHashMap<>(recurringCities);
+        this.inspector = inspector;
+        this.read = transform.child("read");
+        this.transformChunk = transform.child("transformChunk");
+        this.geocode = transformChunk.child("geocode");
+        this.wait = transform.child("wait");
+        this.write = transform.child("write");
+    }
+
+    /**
+     * Transform an input file and write the transformed rows, in order. The
+     * cities looked up are added to the given cache once all rows are written.
+     * @param input The raw CSV, closed once read.
+     * @param writer Receives the transformed rows.
+     * @param cache The recurring cities cache of the invocation, updated with the lookups.
+     * @throws IOException If the input could not be read or the output written.
+     */
+    void run(final InputStream input, final Writer writer, final Map<String, Transform.CacheLocation> cache) throws IOException {
+        final ArrayDeque<Chunk> pending = new ArrayDeque<>();
+        byte[] buffer = new byte[CHUNK_SIZE];
+        int filled = 0;
+        try (InputStream in = input) {
+            long start = System.nanoTime();
+            while (true) {
+                final int n = in.read(buffer, filled, buffer.length - filled);
+                if (n < 0) {
+                    if (filled > 0) {
+                        submit(pending, Arrays.copyOf(buffer, filled), start, writer);
+                    }
+                    break;
+                }
+                filled += n;
+                if (filled < buffer.length) {
+                    continue;
+                }
+                int end = filled;
+                while (end > 0 && buffer[end - 1] != '\n') {
+                    end--;
+                }
+                if (end == 0) {
+                    // A line longer than the buffer, read on until its end.
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    continue;
+                }
+                final byte[] lines = Arrays.copyOf(buffer, end);
+                System.arraycopy(buffer, end, buffer, 0, filled - end);
+                filled -= end;
+                submit(pending, lines, start, writer);
+                start = System.nanoTime();
+            }
+            while (!pending.isEmpty()) {
+                write(pending.poll(), writer);
+            }
+        } finally {
+            // Let the workers of a failed invocation stop early.
+            for (final Chunk chunk : pending) {
+                chunk.task.cancel(false);
+            }
+        }
+        cache.putAll(recurringCities);
+    }
+
+    /**
+     * @return The rows transformed.
+     */
+    long getRows() {
+        return rows;
+    }
+
+    /**
+     * @return The characters of the transformed rows.
+     */
+    long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return The chunks the input was split into.
+     */
+    long getChunks() {
+        return chunks;
+    }
+
+    private void submit(final ArrayDeque<Chunk> pending, final byte[] lines, final long start, final Writer writer) throws IOException {
+        final Chunk chunk = new Chunk(lines);
+        chunk.task = POOL.submit(inspector.trackWorker(chunk::transform));
+        read.record(System.nanoTime() - start);
+        pending.add(chunk);
+        chunks++;
+        if (pending.size() >= PARALLELISM * 2) {
+            write(pending.poll(), writer);
+        }
+    }
+
+    /**
+     * Wait for a chunk and write it, recording its timings on the handler thread.
+     */
+    private void write(final Chunk chunk, final Writer writer) throws IOException {
+        long start = System.nanoTime();
+        chunk.task.join();
+        long end = System.nanoTime();
+        wait.record(end - start);
+        transformChunk.record(chunk.transformNanos);
+        for (int i = 0; i < chunk.geocodes; i++) {
+            geocode.record(chunk.geocodeNanos[i]);
+        }
+        start = end;
+        writer.write(chunk.output);
+        write.record(System.nanoTime() - start);
+        rows += chunk.rows;
+        bytes += chunk.output.length();
+    }
+
+    /**
+     * Look up a city in the shared cache, geocoding its key on a miss unless
+     * another worker is already doing so.
+     */
+    private Transform.CacheLocation locate(final String city, final Chunk chunk) {
+        Transform.CacheLocation location = Transform.cached(city, recurringCities);
+        if (location != null) {
+            return location;
+        }
+        final String key = Transform.cityKey(city);
+        final CompletableFuture<Transform.CacheLocation> lookup = new CompletableFuture<>();
+        final CompletableFuture<Transform.CacheLocation> inFlight = lookups.putIfAbsent(key, lookup);
+        if (inFlight != null) {
+            Transform.GEOCODE_HITS.increment();
+            location = inFlight.join();
+            recurringCities.put(city, location);
+            return location;
+        }
+        try {
+            // Another worker may have finished the lookup since the cache was checked.
+            location = recurringCities.get(key);
+            if (location == null) {
+                Transform.GEOCODE_MISSES.increment();
+                final long start = System.nanoTime();
+                location = Transform.geocode(key);
+                recurringCities.put(key, location);
+                chunk.recordGeocode(System.nanoTime() - start);
+            } else {
+                Transform.GEOCODE_HITS.increment();
+            }
+            recurringCities.put(city, location);
+            lookup.complete(location);
+            return location;
+        } catch (final RuntimeException e) {
+            lookup.completeExceptionally(e);
+            throw e;
+        } finally {
+            lookups.remove(key, lookup);
+        }
+    }
+
+    private static int parallelism(final String value) {
+        if (value == null || value.isEmpty()) {
+            return 1;
+        }
+        final int parallelism = Integer.parseInt(value.trim());
+        return parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * A chunk of whole lines of the input, and its transformed rows once its
+     * task is done. The timings are recorded by the worker and read by the
+     * handler thread after joining the task.
+     */
+    private final class Chunk {
+
+        private final byte[] lines;
+        private ForkJoinTask<?> task;
+        private String output;
+        private int rows;
+        private long transformNanos;
+        private long[] geocodeNanos = new long[0];
+        private int geocodes;
+
+        Chunk(final byte[] lines) {
+            this.lines = lines;
+        }
+
+        void transform() {
+            final long start = System.nanoTime();
+            final StringBuilder transformed = new StringBuilder(lines.length + lines.length / 2);
+            try (CSVParser parser = CSVParser.parse(new StringReader(new String(lines, Charset.defaultCharset())), CSVFormat.DEFAULT)) {
+                for (final CSVRecord record : parser) {
+                    transformed.append(Transform.transformRow(record, city -> locate(city, this)));
+                    rows++;
+                }
+            } catch (final IOException e) {
+                throw new RuntimeException(e);
+            }
+            output = transformed.toString();
+            transformNanos = System.nanoTime() - start;
+        }
+
+        void recordGeocode(final long nanos) {
+            if (geocodes == geocodeNanos.length) {
+                geocodeNanos = Arrays.copyOf(geocodeNanos, Math.max(8, geocodes * 2));
+            }
+            geocodeNanos[geocodes++] = nanos;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package lambda;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import saaf.Inspector;
+import saaf.Span;
+
+/**
+ * Prewarm lambda function as part of the Transform-Load-Query pipeline for TCSS-462.
+ * This lambda function fills the recurring cities cache of Transform ahead of time,
+ * so a new deployment, or a file with many new cities, does not wait on a geocoding
+ * request per city while it is transformed.
+ *
+ * The cities are read from one of:
+ *
+ * An input file: The request has a bucketName and key, or is the S3 event of an
+ *     upload as received by Transform, so Prewarm can run on the same trigger.
+ * The data table: Otherwise, the distinct userCity values already loaded.
+ *
+ * Every city whose key, see Transform.cityKey, is not cached is geocoded, at most
+ * tlq.prewarmConcurrency at a time (default 4). Failed lookups are not cached, so
+ * Transform retries them. The cities, keys, cached keys, and resolved and failed
+ * lookups are returned as the prewarm attribute.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+public class Prewarm implements RequestHandler<HashMap<String, Object>,
+                                               HashMap<String, Object>> {
+
+    /** The maximum number of geocoding requests sent at the same time. */
+    static final int MAX_CONCURRENCY = Math.max(1, Integer.getInteger("tlq.prewarmConcurrency", 4));
+
+    /** The location given to a city that could not be geocoded. */
+    private static final String UNKNOWN = "N/A";
+
+    /** The object store, null to use the S3 store shared by the container. */
+    private final ObjectStore store;
+
+    public Prewarm() {
+        this(null);
+    }
+
+    /**
+     * @param store The object store to use instead of S3, such as a local directory.
+     */
+    Prewarm(final ObjectStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Handler for the AWS lambda function.
+     * @param request The generated request from AWS. An input file as a bucketName and key or an
+     *                S3 event, or else the data table is read.
+     * @param context The generated context from AWS.
+     * @return The state of this lambda function container.
+     */
+    public HashMap<String, Object> handleRequest(
+            final HashMap<String, Object> request,
+            final Context context
+    ) {
+
+        //Collect initial data.
+        final Inspector inspector = new Inspector();
+        inspector.inspectCPU();
+        inspector.inspectMemory();
+        inspector.inspectContainer();
+
+        //****************START FUNCTION IMPLEMENTATION*************************
+
+        final LambdaLogger logger = context.getLogger();
+
+        final ObjectStore objectStore = store != null ? store : Clients.objectStore();
+        final HashMap<String, Transform.CacheLocation> recurringCities = Transform.loadCities(objectStore, inspector, logger);
+
+        // Read the distinct cities of the input file, or of the data table.
+        final Span read = inspector.startSpan("read");
+        final Map<?, ?> requestParameters = request.get("detail") instanceof Map
+                ? (Map<?, ?>) ((Map<?, ?>) request.get("detail")).get("requestParameters")
+                : request;
+        final Set<String> cities;
+        if (requestParameters != null && requestParameters.get("bucketName") != null && requestParameters.get("key") != null) {
+            final String bucketname = (String) requestParameters.get("bucketName");
+            final String filename = (String) requestParameters.get("key");
+            try {
+                cities = readFile(objectStore, bucketname, filename);
+            } catch (final IOException e) {
+                logger.log("Could not read " + bucketname + "/" + filename + ": " + e.getMessage());
+                throw new RuntimeException(e);
+            }
+        } else {
+            try {
+                cities = readTable(Clients.connection());
+            } catch (final IOException | SQLException e) {
+                logger.log("Could not read the cities of the data table: " + e.getMessage());
+                throw new RuntimeException(e);
+            }
+        }
+
+        // Only the keys missing from the cache are geocoded.
+        final Set<String> keys = new LinkedHashSet<>();
+        for (final String city : cities) {
+            keys.add(Transform.cityKey(city));
+        }
+        final List<String> missing = new ArrayList<>();
+        for (final String key : keys) {
+            if (!recurringCities.containsKey(key)) {
+                missing.add(key);
+            }
+        }
+        read.add("cities", cities.size());
+        read.add("keys", keys.size());
+        read.close();
+
+        final Span resolve = inspector.startSpan("resolve");
+        final Span geocode = inspector.span("geocode");
+        final Map<String, Transform.CacheLocation> resolved = new ConcurrentHashMap<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(MAX_CONCURRENCY, missing.size())));
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (final String key : missing) {
+                futures.add(executor.submit(inspector.trackWorker(() -> {
+                    final Span lookup = geocode.fork().start();
+                    try {
+                        final Transform.CacheLocation location = Transform.geocode(key);
+                        if (!UNKNOWN.equals(location.getState()) || !UNKNOWN.equals(location.getCountry())) {
+                            resolved.put(key, location);
+                        }
+                    } finally {
+                        lookup.close();
+                        geocode.join(lookup);
+                    }
+                })));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (final ExecutionException e) {
+            logger.log("Could not geocode: " + e.getCause().getMessage());
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        resolve.add("resolved", resolved.size());
+        resolve.add("failed", missing.size() - resolved.size());
+        resolve.close();
+
+        // Cities cached by a Transform in the meantime are lost, as when two Transforms overlap.
+        if (!resolved.isEmpty()) {
+            recurringCities.putAll(resolved);
+            Transform.saveCities(objectStore, recurringCities, inspector, logger);
+        }
+
+        final HashMap<String, Object> prewarm = new HashMap<>();
+        prewarm.put("cities", cities.size());
+        prewarm.put("keys", keys.size());
+        prewarm.put("cached", keys.size() - missing.size());
+        prewarm.put("resolved", resolved.size());
+        prewarm.put("failed", missing.size() - resolved.size());
+        inspector.addAttribute("prewarm", prewarm);
+
+        //****************END FUNCTION IMPLEMENTATION***************************
+
+        inspector.inspectAllDeltas();
+        return inspector.finish();
+    }
+
+    /**
+     * @return The distinct cities of a raw input file, in the order they first appear.
+     */
+    private static Set<String> readFile(
+            final ObjectStore objectStore,
+            final String bucketname,
+            final String filename
+    ) throws IOException {
+        final Set<String> cities = new LinkedHashSet<>();
+        try (InputStream objectData = objectStore.get(bucketname, filename);
+             CSVParser parser = CSVParser.parse(objectData, Charset.defaultCharset(), CSVFormat.DEFAULT)) {
+            for (final CSVRecord record : parser) {
+                if (record.size() > 6) {
+                    cities.add(record.get(6));
+                }
+            }
+        }
+        return cities;
+    }
+
+    /**
+     * @return The distinct cities of the data table.
+     */
+    private static Set<String> readTable(final Connection con) throws SQLException {
+        final Set<String> cities = new LinkedHashSet<>();
+        try (Statement statement = con.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT DISTINCT userCity FROM data")) {
+            while (rs.next()) {
+                if (rs.getString(1) != null) {
+                    cities.add(rs.getString(1));
+                }
+            }
+        }
+        return cities;
+    }
+}
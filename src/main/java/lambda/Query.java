@@ -4,24 +4,43 @@ import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import saaf.Inspector;
+import saaf.Span;
 
 /**
  * Query lambda function as part of the Transform-Load-Query pipeline for TCSS-462.
  * This lambda function is invoked via a RESTful API Gateway.
  * This function queries the 'data' table in the database specified by db.properties.
  * The result is returned to the user along with CPU and Memory Deltas.
+ * A request may also carry a 'queries' array of query specs, each with an 'id',
+ * in which case the results are returned keyed by ID and specs with the same
+ * filters share a single scan of the table. A spec without an 'id' is keyed by
+ * its index, or the next number no other spec has taken.
+ * With 'format' set to 'columnar' the rows are returned column by column in a
+ * 'data' block separate from the 'meta' block of Inspector attributes, and with
+ * 'encoding' set to 'gzip' that data block is gzip-compressed and base64-encoded,
+ * any other encoding is an error.
+ * With an 'export' object the rows are not returned but streamed to a compressed
+ * object, and only its location, row count and size are returned, see QueryExport.
+ * The export object may name the 'format' (csv or columnar). Exports are always
+ * written to a new key in the export bucket, a request naming any other
+ * 'bucket' or any 'key' is rejected. An export streams its rows instead of
+ * holding them, so it is held to query.exportRejectRows rather than
+ * query.rejectRows, see QueryPlanner.
+ * With reader endpoints configured the statements run on the readers, see
+ * ReadRouter, and a 'minGeneration' waits for a reader that has replicated that
+ * load generation, as returned by LoadAurora, to read the rows it loaded.
  *
  * @author Brandon Ragghianti
  * @author Michael
@@ -32,6 +51,22 @@ import saaf.Inspector;
 public class Query implements RequestHandler<HashMap<String, Object>,
                                              HashMap<String, Object>> {
 
+    /** The object store of exports, null to use the S3 store shared by the container. */
+    private final ObjectStore store;
+
+    public Query() {
+        this(null);
+    }
+
+    /**
+     * Runs in the init phase on Lambda, where the container is primed, see Warmup.
+     * @param store The object store to export to instead of S3, such as a local directory.
+     */
+    Query(final ObjectStore store) {
+        this.store = store;
+        Warmup.prime(false, true);
+    }
+
     /**
      * Handler for the AWS lambda function. Automatically triggered by a Cloud-Watch event.
      * @param request The generated request from AWS. Must include a bucketname and filename property for the csv to be loaded.
@@ -51,122 +86,197 @@ public class Query implements RequestHandler<HashMap<String, Object>,
 
         //****************START FUNCTION IMPLEMENTATION*************************
 
+        // The cold start reports how long the container was primed, see Warmup.
+        Warmup.report(inspector);
+
         final LambdaLogger logger = context.getLogger();
 
         // Turn AWS request object to proper json.
         final JSONObject jsonRequest = new JSONObject(request);
 
-        // Step 1: Parse the JSON to receive aggregations and filters.
-        final JSONArray aggregations = jsonRequest.optJSONArray("aggregations");
-        final JSONArray filters = jsonRequest.optJSONArray("filters");
-        final JSONArray group = jsonRequest.optJSONArray("group");
-
-        // Create the start of the SQL query.
-        final StringBuilder sqlQuery = new StringBuilder("SELECT ");
-
-        // Step 2: Parse the aggregations part of the json and add to select.
-        if (group != null && !group.isEmpty()) {
-            for (int i = 0; i < group.length(); i++) {
-                final String value = group.getString(i);
-                sqlQuery.append(value).append(", ");
-            }
-        }
-
-        if (aggregations != null && !aggregations.isEmpty())  {
-            for (int i = 0; i < aggregations.length(); i++) {
-                final JSONObject aggregation = aggregations.getJSONObject(i);
-                final String column = aggregation.getString("column");
-                final String function = aggregation.getString("function");
-                sqlQuery.append(function).append("(").append(column).append(") AS ").append(function).append("_").append(column);
-                if (i != aggregations.length() - 1) {
-                    sqlQuery.append(", ");
-                }
-            }
-        } else {
-            sqlQuery.append(" * ");
-        }
+        // Results are returned as a list of row maps unless the compact columnar format is requested.
+        final boolean columnar = ColumnarResult.FORMAT.equals(jsonRequest.optString("format"));
+        final String encoding = jsonRequest.optString("encoding", null);
 
-        sqlQuery.append(" FROM data ");
-
-        // Create ArrayList to store values instead of directly adding to query to prevent SQL injection.
-        final ArrayList<String> values = new ArrayList<>();
-
-        // Step 3: Build the WHERE clause (with Filters)
-        if (filters != null && !filters.isEmpty()) {
-            sqlQuery.append("WHERE ");
-            for (int i = 0; i < filters.length(); i++) {
-                final JSONObject filter = filters.getJSONObject(i);
-                final String column = filter.getString("column");
-                values.add(filter.getString("value"));
-                sqlQuery.append(column).append(" = ?");
-                if (i != filters.length() - 1) {
-                    sqlQuery.append(" AND ");
-                }
-            }
-        }
-
-        if (group != null && !group.isEmpty()) {
-            sqlQuery.append(" GROUP BY ");
-            for (int i = 0; i < group.length(); i++) {
-                final String value = group.getString(i);
-                sqlQuery.append(value);
-                if (i != group.length() - 1) {
-                    sqlQuery.append(", ");
-                }
-            }
+        // An encoding the client did not get would be read as plain JSON, so it is an error.
+        if (encoding != null && !(columnar && ColumnarResult.GZIP.equals(encoding))) {
+            inspector.addAttribute("error", columnar
+                    ? "Unknown encoding " + encoding + ", expected " + ColumnarResult.GZIP
+                    : "An encoding requires the " + ColumnarResult.FORMAT + " format");
+            inspector.inspectAllDeltas();
+            return inspector.finish();
         }
 
-        sqlQuery.append(";");
-
-        System.out.println(sqlQuery.toString());
-
-        // Load db.properties and the required properties.
-        final Properties properties = new Properties();
+        // Load db.properties and the required properties, once per container.
+        final Properties properties;
         try {
-            properties.load(getClass().getClassLoader().getResourceAsStream("db.properties"));
+            properties = Clients.databaseProperties();
         } catch (final IOException e) {
             logger.log("Failed to load db.properties: " + e.getMessage());
             throw new RuntimeException(e);
         }
         final String url = properties.getProperty("url");
-        final String username = properties.getProperty("username");
-        final String password = properties.getProperty("password");
 
-        // Connect to the database.
+        // Every exact statement is planned with EXPLAIN and run, rerouted or rejected by its cost.
+        final long minGeneration = jsonRequest.optLong("minGeneration", 0);
+        final QueryPlanner planner = new QueryPlanner(properties, ReadRouter.shared(properties), minGeneration);
+
+        // Connect to the database, reusing the connection of the previous invocation in this container.
+        final Span connect = inspector.startSpan("connect");
         final Connection con;
         try {
-            con = DriverManager.getConnection(url, username, password);
-        } catch (final SQLException e) {
-            System.out.println("Error connecting to " + url);
+            con = Clients.connection();
+        } catch (final IOException | SQLException e) {
+            logger.log("Error connecting to " + url + ": " + e.getMessage());
             throw new RuntimeException(e);
         }
+        connect.close();
 
-        final ArrayList<HashMap<String, Object>> jsonResult = new ArrayList<>();
-        try {
-            final PreparedStatement dbTableSelect = con.prepareStatement(sqlQuery.toString());
-            for (int i = 0; i < values.size(); i++) {
-                dbTableSelect.setString(i + 1, values.get(i));
+        // A batch of queries, each with an ID, is executed with shared scans where possible.
+        final JSONArray queries = jsonRequest.optJSONArray("queries");
+        final JSONObject export = jsonRequest.optJSONObject("export");
+        if (queries != null && export != null) {
+            inspector.addAttribute("error", "A batch of queries can not be exported");
+            inspector.inspectAllDeltas();
+            return inspector.finish();
+        }
+        if (queries != null) {
+            // A query without an ID is given its index, or the next number no other query has as its ID.
+            final Set<String> ids = new HashSet<>();
+            for (int i = 0; i < queries.length(); i++) {
+                if (queries.getJSONObject(i).has("id")) {
+                    ids.add(queries.getJSONObject(i).optString("id"));
+                }
+            }
+            final List<QuerySpec> specs = new ArrayList<>();
+            for (int i = 0; i < queries.length(); i++) {
+                final JSONObject query = queries.getJSONObject(i);
+                String id = query.optString("id", null);
+                if (id == null) {
+                    int next = i;
+                    while (!ids.add(String.valueOf(next))) {
+                        next++;
+                    }
+                    id = String.valueOf(next);
+                }
+                specs.add(new QuerySpec(id, query));
+            }
+            final QueryBatch batch;
+            final Span execute = inspector.startSpan("batch");
+            try {
+                batch = new QueryBatch(specs, planner);
+                batch.execute(con, Clients::newConnection, inspector);
+            } catch (final IllegalArgumentException e) {
+                inspector.addAttribute("error", e.getMessage());
+                inspector.inspectAllDeltas();
+                return inspector.finish();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            execute.add("queries", specs.size());
+            execute.add("scans", batch.getScans());
+            execute.close();
+            inspector.addAttribute("errors", batch.getErrors());
+            inspector.addAttribute("plans", batch.getPlans());
+            inspector.addAttribute("scans", batch.getScans());
+            if (columnar) {
+                final Span encode = inspector.startSpan("encode");
+                final HashMap<String, Object> data = ColumnarResult.encodeAll(batch.getResults());
+                encode.close();
+                inspector.inspectAllDeltas();
+                return ColumnarResult.response(inspector.finish(), data, encoding);
             }
-            final ResultSet rs = dbTableSelect.executeQuery();
-            final ResultSetMetaData rsmd = rs.getMetaData();
-            while (rs.next()) {
-                final int numColumns = rsmd.getColumnCount();
-                final HashMap<String, Object> row = new HashMap<>();
-                for (int i = 1; i <= numColumns; i++) {
-                    final String columnName = rsmd.getColumnName(i);
-                    row.put(columnName, rs.getObject(columnName));
+            inspector.addAttribute("results", batch.getResults());
+            inspector.inspectAllDeltas();
+            return inspector.finish();
+        }
+
+        // Step 1: Parse the JSON to receive aggregations, filters and group.
+        final QuerySpec spec = new QuerySpec(null, jsonRequest);
+
+        // Stream the rows to an object instead of returning them, see QueryExport.
+        if (export != null) {
+            final HashMap<String, Object> plan = new HashMap<>();
+            final HashMap<String, Object> exported = new HashMap<>();
+            final Span exportSpan = inspector.startSpan("export");
+            QueryExport writer = null;
+            try {
+                // The destination is not up to the request, it could replace the objects of the pipeline.
+                if (!QueryExport.BUCKET.equals(export.optString("bucket", QueryExport.BUCKET))) {
+                    throw new IllegalArgumentException("Exports are written to " + QueryExport.BUCKET + ", not " + export.getString("bucket"));
+                }
+                if (export.has("key")) {
+                    throw new IllegalArgumentException("Exports are written to a new key, 'key' can not be set");
+                }
+                final String format = export.optString("format", QueryExport.CSV);
+                final String key = QueryExport.newKey(format);
+                exported.put("format", format);
+                exported.put("bucket", QueryExport.BUCKET);
+                exported.put("key", key);
+                final ObjectStore objectStore = store != null ? store : Clients.objectStore();
+                writer = new QueryExport(format, objectStore.upload(QueryExport.BUCKET, key));
+                spec.export(con, planner, plan, writer);
+                writer.close();
+            } catch (final IllegalArgumentException e) {
+                if (writer != null) {
+                    writer.abort();
+                }
+                exportSpan.close();
+                inspector.addAttribute("plan", plan);
+                inspector.addAttribute("error", e.getMessage());
+                inspector.inspectAllDeltas();
+                return inspector.finish();
+            } catch (final SQLException | IOException | UncheckedIOException e) {
+                if (writer != null) {
+                    writer.abort();
                 }
-                jsonResult.add(row);
+                logger.log("Failed to export " + exported + ": " + e.getMessage());
+                throw new RuntimeException(e);
             }
+            exported.put("rows", writer.getRows());
+            exported.put("bytes", writer.getBytes());
+            exportSpan.add("rows", writer.getRows());
+            exportSpan.add("bytes", writer.getBytes());
+            exportSpan.close();
+            inspector.addAttribute("plan", plan);
+            inspector.addAttribute("export", exported);
+            inspector.inspectAllDeltas();
+            return inspector.finish();
+        }
+
+        // Approximate aggregations are answered from the sketches maintained by LoadAurora.
+        final ArrayList<HashMap<String, Object>> jsonResult;
+        final HashMap<String, Object> plan = new HashMap<>();
+        final Span execute = inspector.startSpan("execute");
+        try {
+            jsonResult = spec.execute(con, planner, plan);
+        } catch (final IllegalArgumentException e) {
+            inspector.addAttribute("plan", plan);
+            inspector.addAttribute("error", e.getMessage());
+            inspector.inspectAllDeltas();
+            return inspector.finish();
         } catch (final SQLException e) {
-            System.out.println("Failed to query database:");
+            logger.log("Failed to query database: " + e.getMessage());
             throw new RuntimeException(e);
         }
-        inspector.addAttribute("entries", jsonResult);
+        execute.add("rows", jsonResult.size());
+        execute.close();
+        inspector.addAttribute("plan", plan);
+        if (!columnar) {
+            inspector.addAttribute("entries", jsonResult);
+        }
 
         //****************END FUNCTION IMPLEMENTATION***************************
 
         //Collect final information such as total runtime and cpu deltas.
+        if (columnar) {
+            final Span encode = inspector.startSpan("encode");
+            final HashMap<String, Object> data = ColumnarResult.encode(jsonResult);
+            encode.close();
+            inspector.inspectAllDeltas();
+            return ColumnarResult.response(inspector.finish(), data, encoding);
+        }
         inspector.inspectAllDeltas();
         return inspector.finish();
     }
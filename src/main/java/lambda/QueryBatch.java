@@ -0,0 +1,463 @@
+package lambda;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.json.JSONException;
+import org.json.JSONObject;
+import saaf.Inspector;
+
+/**
+ * Executes several query specs sent to Query in one request.
+ *
+ * Specs with the same filter set whose aggregations are all decomposable
+ * (SUM, COUNT, MIN, MAX and AVG) share a single scan: the scan groups by the
+ * union of their group columns and selects partial aggregates, which are then
+ * rolled up in memory to each spec's own grouping. MySQL has no GROUPING SETS,
+ * so this is how the grouping sets are emulated. Every other spec, and every
+ * shared scan, runs concurrently on its own connection.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+final class QueryBatch {
+
+    /** The maximum number of statements run at the same time. */
+    static final int MAX_CONCURRENCY = 4;
+
+    /** The maximum number of group columns a shared scan may group by, to bound its result size. */
+    private static final int MAX_SHARED_GROUP_COLUMNS = 4;
+
+    /**
+     * Opens a database connection for a statement executed while every
+     * connection of the batch is in use.
+     */
+    interface ConnectionFactory {
+        Connection connect() throws IOException, SQLException;
+    }
+
+    /** The specs of the batch, in request order. */
+    private final List<QuerySpec> specs;
+
+    /** Result rows keyed by spec ID. */
+    private final Map<String, Object> results = new ConcurrentHashMap<>();
+
+    /** Error messages keyed by spec ID. */
+    private final Map<String, String> errors = new ConcurrentHashMap<>();
+
+    /** Plans of the exact queries keyed by spec ID, shared by specs in the same scan. */
+    private final Map<String, Object> plans = new ConcurrentHashMap<>();
+
+    /** Plans and routes every statement. */
+    private final QueryPlanner planner;
+
+    /** Number of statements executed against the database. */
+    private final AtomicInteger scans = new AtomicInteger();
+
+    QueryBatch(final List<QuerySpec> specs, final QueryPlanner planner) {
+        final Set<String> ids = new LinkedHashSet<>();
+        for (final QuerySpec spec : specs) {
+            if (!ids.add(spec.getId())) {
+                throw new IllegalArgumentException("Duplicate query id " + spec.getId());
+            }
+        }
+        this.specs = specs;
+        this.planner = planner;
+    }
+
+    /**
+     * Group the specs into units of work. Each unit is executed as one statement.
+     * @return The units, in request order of their first spec.
+     */
+    List<List<QuerySpec>> plan() {
+        final List<List<QuerySpec>> units = new ArrayList<>();
+        final Map<String, List<QuerySpec>> shareable = new LinkedHashMap<>();
+        for (final QuerySpec spec : specs) {
+            boolean shared = false;
+            try {
+                shared = !spec.isApproximate() && spec.isDecomposable();
+            } catch (final IllegalArgumentException | JSONException e) {
+                // Left as its own unit so the error is reported for this spec only.
+            }
+            if (shared) {
+                List<QuerySpec> sameFilters = shareable.get(spec.filterKey());
+                if (sameFilters == null) {
+                    sameFilters = new ArrayList<>();
+                    shareable.put(spec.filterKey(), sameFilters);
+                }
+                sameFilters.add(spec);
+            } else {
+                units.add(Collections.singletonList(spec));
+            }
+        }
+
+        // Split each filter set into scans whose combined grouping stays small.
+        for (final List<QuerySpec> sameFilters : shareable.values()) {
+            List<QuerySpec> unit = new ArrayList<>();
+            final Set<String> columns = new LinkedHashSet<>();
+            for (final QuerySpec spec : sameFilters) {
+                final Set<String> combined = new LinkedHashSet<>(columns);
+                combined.addAll(spec.getGroupColumns());
+                if (!unit.isEmpty() && combined.size() > MAX_SHARED_GROUP_COLUMNS) {
+                    units.add(unit);
+                    unit = new ArrayList<>();
+                    columns.clear();
+                }
+                unit.add(spec);
+                columns.addAll(spec.getGroupColumns());
+            }
+            units.add(unit);
+        }
+        return units;
+    }
+
+    /**
+     * Execute every spec of the batch. Failures are recorded per spec. A unit
+     * takes an idle connection of the batch, starting with the shared one, and
+     * only opens another while they are all in use, so at most MAX_CONCURRENCY
+     * are open. The connections opened are closed once the batch is done.
+     * @param shared The connection shared by the container, left open.
+     * @param connections Opens a connection while every other one is in use.
+     * @param inspector Counts the allocations of the worker threads and samples their stacks.
+     * @throws InterruptedException If interrupted while waiting for the units.
+     */
+    void execute(
+            final Connection shared,
+            final ConnectionFactory connections,
+            final Inspector inspector
+    ) throws InterruptedException {
+        final List<List<QuerySpec>> units = plan();
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(MAX_CONCURRENCY, units.size())));
+        final BlockingQueue<Connection> idle = new LinkedBlockingQueue<>();
+        idle.add(shared);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (final List<QuerySpec> unit : units) {
+                futures.add(executor.submit(inspector.trackWorker(() -> executeUnit(unit, shared, idle, connections))));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } catch (final ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+            for (final Connection con : idle) {
+                if (con != shared) {
+                    close(con);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Result rows keyed by the caller's query ID.
+     */
+    HashMap<String, Object> getResults() {
+        return new HashMap<>(results);
+    }
+
+    /**
+     * @return Error messages keyed by the caller's query ID.
+     */
+    HashMap<String, Object> getErrors() {
+        return new HashMap<>(errors);
+    }
+
+    /**
+     * @return Plans of the exact queries keyed by the caller's query ID.
+     */
+    HashMap<String, Object> getPlans() {
+        return new HashMap<>(plans);
+    }
+
+    /**
+     * @return The number of statements executed against the database.
+     */
+    int getScans() {
+        return scans.get();
+    }
+
+    private void executeUnit(
+            final List<QuerySpec> unit,
+            final Connection shared,
+            final BlockingQueue<Connection> idle,
+            final ConnectionFactory connections
+    ) {
+        Connection con = idle.poll();
+        try {
+            if (con == null) {
+                con = connections.connect();
+            }
+            scans.incrementAndGet();
+            if (unit.size() == 1) {
+                final HashMap<String, Object> plan = new HashMap<>();
+                results.put(unit.get(0).getId(), unit.get(0).execute(con, planner, plan));
+                if (!plan.isEmpty()) {
+                    plans.put(unit.get(0).getId(), plan);
+                }
+            } else {
+                executeShared(unit, con);
+            }
+        } catch (final IOException | SQLException | IllegalArgumentException | JSONException e) {
+            for (final QuerySpec spec : unit) {
+                errors.put(spec.getId(), String.valueOf(e.getMessage()));
+            }
+        } finally {
+            // A connection broken by a failed statement is not handed to the next unit.
+            if (con != null) {
+                if (Clients.isValid(con)) {
+                    idle.add(con);
+                } else if (con != shared) {
+                    close(con);
+                }
+            }
+        }
+    }
+
+    /**
+     * Close a connection opened for the batch.
+     */
+    private static void close(final Connection con) {
+        try {
+            con.close();
+        } catch (final SQLException e) {
+            System.err.println("Could not close the database connection: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Run one scan grouped by the union of the specs' group columns and roll the
+     * partial aggregates up to the grouping of each spec.
+     */
+    private void executeShared(final List<QuerySpec> unit, final Connection con) throws SQLException {
+
+        // Collect the combined grouping and the partial aggregates every spec needs.
+        final List<String> groupColumns = new ArrayList<>();
+        final Map<String, Integer> partials = new LinkedHashMap<>();
+        final List<String[]> aggregates = new ArrayList<>();
+        for (final QuerySpec spec : unit) {
+            for (final String column : spec.getGroupColumns()) {
+                if (position(groupColumns, column) < 0) {
+                    groupColumns.add(column);
+                }
+            }
+            for (int i = 0; i < spec.getAggregations().length(); i++) {
+                final JSONObject aggregation = spec.getAggregations().getJSONObject(i);
+                final String column = aggregation.getString("column");
+                final String function = aggregation.getString("function").toUpperCase();
+                if (function.equals("AVG")) {
+                    addPartial(partials, aggregates, "SUM", column);
+                    addPartial(partials, aggregates, "COUNT", column);
+                } else {
+                    addPartial(partials, aggregates, function, column);
+                }
+            }
+        }
+
+        // Build the shared scan.
+        final StringBuilder sqlQuery = new StringBuilder("SELECT ");
+        for (final String column : groupColumns) {
+            sqlQuery.append(column).append(", ");
+        }
+        int alias = 0;
+        for (final String partial : partials.keySet()) {
+            sqlQuery.append(partial).append(" AS p").append(alias++);
+            if (alias != partials.size()) {
+                sqlQuery.append(", ");
+            }
+        }
+        sqlQuery.append(" FROM data ");
+        final ArrayList<String> values = new ArrayList<>();
+        QuerySpec.appendWhere(sqlQuery, unit.get(0).getFilters(), values);
+        if (!groupColumns.isEmpty()) {
+            sqlQuery.append(" GROUP BY ").append(String.join(", ", groupColumns));
+        }
+        sqlQuery.append(";");
+
+        // Read the partial aggregates, routed like any other statement.
+        final HashMap<String, Object> plan = new HashMap<>();
+        final List<Object[]> rows;
+        try {
+            final QueryShape shape = new QueryShape(sqlQuery.toString(),
+                    QuerySpec.filterColumns(unit.get(0).getFilters()), groupColumns, aggregates);
+            rows = planner.execute(con, shape, values, plan, QueryBatch::toArrays, false);
+        } finally {
+            for (final QuerySpec spec : unit) {
+                plans.put(spec.getId(), plan);
+            }
+        }
+
+        for (final QuerySpec spec : unit) {
+            results.put(spec.getId(), rollUp(spec, groupColumns, partials, rows));
+        }
+    }
+
+    /**
+     * Re-aggregate the rows of a shared scan to the grouping of one spec.
+     * A row holds the group columns of the scan followed by the partial
+     * aggregates, in the order of the partials map. The values are read by
+     * position, as the result set names the group columns as the table spells
+     * them, which need not be how the spec does.
+     */
+    private static ArrayList<HashMap<String, Object>> rollUp(
+            final QuerySpec spec,
+            final List<String> groupColumns,
+            final Map<String, Integer> partials,
+            final List<Object[]> rows
+    ) {
+        final List<String> specColumns = spec.getGroupColumns();
+        final int numAggregations = spec.getAggregations().length();
+        final int[] groupPositions = new int[specColumns.size()];
+        for (int i = 0; i < groupPositions.length; i++) {
+            groupPositions[i] = position(groupColumns, specColumns.get(i));
+        }
+        final int firstPartial = groupColumns.size();
+
+        // Accumulate each aggregation per group, AVG as a sum and a count.
+        final Map<List<Object>, Object[]> groups = new LinkedHashMap<>();
+        for (final Object[] row : rows) {
+            final List<Object> key = new ArrayList<>(groupPositions.length);
+            for (final int position : groupPositions) {
+                key.add(row[position]);
+            }
+            Object[] accumulators = groups.get(key);
+            if (accumulators == null) {
+                accumulators = new Object[numAggregations * 2];
+                groups.put(key, accumulators);
+            }
+            for (int i = 0; i < numAggregations; i++) {
+                final JSONObject aggregation = spec.getAggregations().getJSONObject(i);
+                final String column = aggregation.getString("column");
+                final String function = aggregation.getString("function").toUpperCase();
+                if (function.equals("AVG")) {
+                    accumulators[i * 2] = add(accumulators[i * 2], row[firstPartial + partials.get("SUM(" + column + ")")]);
+                    accumulators[i * 2 + 1] = add(accumulators[i * 2 + 1], row[firstPartial + partials.get("COUNT(" + column + ")")]);
+                } else {
+                    final Object partial = row[firstPartial + partials.get(function + "(" + column + ")")];
+                    accumulators[i * 2] = combine(function, accumulators[i * 2], partial);
+                }
+            }
+        }
+
+        // Produce rows in the same shape as the unshared query would.
+        final ArrayList<HashMap<String, Object>> result = new ArrayList<>();
+        for (final Map.Entry<List<Object>, Object[]> group : groups.entrySet()) {
+            final HashMap<String, Object> row = new LinkedHashMap<>();
+            for (int i = 0; i < specColumns.size(); i++) {
+                row.put(specColumns.get(i), group.getKey().get(i));
+            }
+            final Object[] accumulators = group.getValue();
+            for (int i = 0; i < numAggregations; i++) {
+                final JSONObject aggregation = spec.getAggregations().getJSONObject(i);
+                final String function = aggregation.getString("function");
+                Object value = accumulators[i * 2];
+                if (function.equalsIgnoreCase("AVG")) {
+                    final Number count = (Number) accumulators[i * 2 + 1];
+                    value = value == null || count == null || count.longValue() == 0
+                            ? null : ((Number) value).doubleValue() / count.longValue();
+                }
+                row.put(function + "_" + aggregation.getString("column"), value);
+            }
+            result.add(row);
+        }
+        return result;
+    }
+
+    /**
+     * @return The position of a column in a list of columns, ignoring case as
+     *         MySQL does for column names, or -1.
+     */
+    private static int position(final List<String> columns, final String column) {
+        for (int i = 0; i < columns.size(); i++) {
+            if (columns.get(i).equalsIgnoreCase(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Read every remaining row of a result set as its values in SELECT order.
+     */
+    private static List<Object[]> toArrays(final ResultSet rs) throws SQLException {
+        final List<Object[]> rows = new ArrayList<>();
+        final int numColumns = rs.getMetaData().getColumnCount();
+        while (rs.next()) {
+            final Object[] row = new Object[numColumns];
+            for (int i = 0; i < numColumns; i++) {
+                row[i] = rs.getObject(i + 1);
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private static void addPartial(
+            final Map<String, Integer> partials,
+            final List<String[]> aggregates,
+            final String function,
+            final String column
+    ) {
+        final String partial = function + "(" + column + ")";
+        if (!partials.containsKey(partial)) {
+            aggregates.add(new String[] {function, column, "p" + partials.size()});
+            partials.put(partial, partials.size());
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object combine(final String function, final Object current, final Object partial) {
+        if (current == null) {
+            return partial;
+        }
+        if (partial == null) {
+            return current;
+        }
+        switch (function) {
+            case "MIN":
+                return ((Comparable) partial).compareTo(current) < 0 ? partial : current;
+            case "MAX":
+                return ((Comparable) partial).compareTo(current) > 0 ? partial : current;
+            default:
+                return add(current, partial);
+        }
+    }
+
+    private static Object add(final Object a, final Object b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        if (a instanceof BigDecimal || b instanceof BigDecimal) {
+            return new BigDecimal(a.toString()).add(new BigDecimal(b.toString()));
+        }
+        if (a instanceof Double || a instanceof Float || b instanceof Double || b instanceof Float) {
+            return ((Number) a).doubleValue() + ((Number) b).doubleValue();
+        }
+        return ((Number) a).longValue() + ((Number) b).longValue();
+    }
+}
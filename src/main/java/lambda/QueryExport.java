@@ -0,0 +1,263 @@
+package lambda;
+
+import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.json.JSONObject;
+
+/**
+ * Writes the result of a Query export to an object as it is read, for results
+ * too large for a response. The object is gzip-compressed, in one of the formats:
+ *
+ * csv:      A header line with the column names, then a line per row.
+ * columnar: A line per group of up to ROW_GROUP rows, each a columnar block as
+ *           in ColumnarResult, so a reader can decode one group at a time.
+ *
+ * Rows are streamed from the database and the object is written as a
+ * multipart upload of bounded parts, see ObjectStore.upload, so the memory
+ * used does not grow with the result.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+final class QueryExport {
+
+    /** The bucket exports are written to. */
+    static final String BUCKET = "export.tlq";
+
+    /** The prefix of the keys of exports, so they can not replace other objects of the bucket. */
+    static final String PREFIX = "exports/";
+
+    /** The request value selecting gzip-compressed CSV, the default format. */
+    static final String CSV = "csv";
+
+    /** Rows per block of the columnar format. */
+    static final int ROW_GROUP = 8192;
+
+    /** The size of the buffer in front of the compressor. */
+    private static final int BUFFER_SIZE = 64 << 10;
+
+    /** The format of the object. */
+    private final String format;
+
+    /** The upload of the object. */
+    private final ObjectStore.Upload upload;
+
+    /** The compressed bytes written to the upload. */
+    private final CountingOutputStream compressed;
+
+    /** The text of the object, before compression. */
+    private final Writer writer;
+
+    /** Prints the csv format. */
+    private CSVPrinter printer;
+
+    /** The columns, once the header was written. */
+    private List<String> columns;
+
+    /** The pending rows of the columnar format. */
+    private final List<HashMap<String, Object>> group = new ArrayList<>();
+
+    private long rows;
+
+    /**
+     * @param format The format of the object, csv or columnar.
+     * @param upload The upload of the object, aborted if the export fails.
+     * @throws IOException If the upload could not be written.
+     */
+    QueryExport(final String format, final ObjectStore.Upload upload) throws IOException {
+        extension(format);
+        this.format = format;
+        this.upload = upload;
+        this.compressed = new CountingOutputStream(upload);
+        this.writer = new BufferedWriter(new OutputStreamWriter(
+                new GZIPOutputStream(compressed, BUFFER_SIZE), StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    /**
+     * @param format The format of an export.
+     * @return The file extension of the format.
+     * @throws IllegalArgumentException If the format is not known.
+     */
+    static String extension(final String format) {
+        if (CSV.equals(format)) {
+            return ".csv.gz";
+        }
+        if (ColumnarResult.FORMAT.equals(format)) {
+            return ".json.gz";
+        }
+        throw new IllegalArgumentException("Unknown export format " + format + ", expected csv or columnar");
+    }
+
+    /**
+     * @param format The format of an export.
+     * @return A new key for an export, under PREFIX.
+     */
+    static String newKey(final String format) {
+        return PREFIX + "query-" + UUID.randomUUID() + extension(format);
+    }
+
+    /**
+     * Write every remaining row of a result set. The columns are taken from its metadata.
+     * @param rs The result set.
+     * @return The rows written in total.
+     * @throws SQLException If the result set could not be read.
+     * @throws UncheckedIOException If the object could not be written.
+     */
+    long write(final ResultSet rs) throws SQLException {
+        final ResultSetMetaData rsmd = rs.getMetaData();
+        final List<String> names = new ArrayList<>(rsmd.getColumnCount());
+        for (int i = 1; i <= rsmd.getColumnCount(); i++) {
+            names.add(rsmd.getColumnLabel(i));
+        }
+        final Object[] values = new Object[names.size()];
+        try {
+            header(names);
+            while (rs.next()) {
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = rs.getObject(i + 1);
+                }
+                row(values);
+            }
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return rows;
+    }
+
+    /**
+     * Write rows already in memory, such as the result of an approximate query.
+     * @param result The rows, all with the same columns.
+     * @return The rows written in total.
+     * @throws UncheckedIOException If the object could not be written.
+     */
+    long write(final List<HashMap<String, Object>> result) {
+        try {
+            for (final HashMap<String, Object> row : result) {
+                if (columns == null) {
+                    header(new ArrayList<>(row.keySet()));
+                }
+                final Object[] values = new Object[columns.size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = row.get(columns.get(i));
+                }
+                row(values);
+            }
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return rows;
+    }
+
+    /**
+     * Finish the object. On failure the upload should be aborted.
+     * @throws IOException If the object could not be written.
+     */
+    void close() throws IOException {
+        if (!group.isEmpty()) {
+            flushGroup();
+        }
+        if (printer != null) {
+            printer.flush();
+        }
+        writer.close();
+    }
+
+    /**
+     * Discard the object.
+     */
+    void abort() {
+        upload.abort();
+    }
+
+    /**
+     * @return The rows written.
+     */
+    long getRows() {
+        return rows;
+    }
+
+    /**
+     * @return The compressed bytes written, the size of the object once closed.
+     */
+    long getBytes() {
+        return compressed.count;
+    }
+
+    private void header(final List<String> names) throws IOException {
+        columns = names;
+        if (CSV.equals(format)) {
+            printer = CSVFormat.DEFAULT.print(writer);
+            printer.printRecord(names);
+        }
+    }
+
+    private void row(final Object[] values) throws IOException {
+        rows++;
+        if (printer != null) {
+            printer.printRecord(values);
+            return;
+        }
+
+        // Columnar blocks are written per group of rows, the columns in result order.
+        final HashMap<String, Object> row = new LinkedHashMap<>();
+        for (int i = 0; i < values.length; i++) {
+            row.put(columns.get(i), values[i]);
+        }
+        group.add(row);
+        if (group.size() == ROW_GROUP) {
+            flushGroup();
+        }
+    }
+
+    private void flushGroup() throws IOException {
+        final Map<String, Object> block = ColumnarResult.encode(group);
+        writer.write(new JSONObject(block).toString());
+        writer.write('\n');
+        group.clear();
+    }
+
+    /**
+     * Counts the bytes written through it.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,373 @@
+package lambda;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Admission control for the statements Query runs against the 'data' table.
+ *
+ * Before a statement runs its cost is estimated with EXPLAIN as the number of
+ * rows examined, on the connection the statement runs on. The estimate is cached per request shape (the SQL text with
+ * filter values left as placeholders) for five minutes in the container, for
+ * the MAX_SHAPES most recently used shapes. Based on the estimate the
+ * statement is either run directly on the writer, rerouted to a cheaper
+ * source, or rejected with an error. Rerouted statements prefer a
+ * fresh summary table built by the Advisor for their shape. With reader
+ * endpoints configured, see ReadRouter, every other statement runs on a
+ * reader, and a statement whose reader fails is run again on the writer
+ * unless its result was streamed. Every execution is recorded in the workload
+ * table for the Advisor, buffered in the container. A statement answered from
+ * a summary table reports its age in seconds as rollupAge and the loads it
+ * lacks as rollupGenerationsBehind in its plan. The settings are read from
+ * db.properties:
+ *
+ * query.rerouteRows:     Estimates above this are rerouted (default 100000).
+ * query.rejectRows:      Estimates above this are rejected (default 5000000).
+ * query.exportRejectRows: Estimates above this are rejected for exports, which
+ *                        stream their rows to the object store instead of
+ *                        holding them in memory (default 0, no limit).
+ * query.rollupMaxAge:    Seconds a summary table may be used after it was
+ *                        rebuilt (default 3600).
+ * query.rollupMaxGenerations: Loads that may commit after a summary table was
+ *                        rebuilt before it is no longer used, so that under
+ *                        continuous loads it answers without their rows
+ *                        (default 0, every loaded row).
+ * query.recordWorkload:  Whether executions are recorded (default true).
+ * query.workloadFlushSeconds: Seconds executions are buffered before they are
+ *                        written to the workload table (default 60), see Workload.
+ *
+ * Without a summary table or reader, statements that would be rerouted run directly.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+final class QueryPlanner {
+
+    /** The outcome of planning a statement. */
+    enum Decision { DIRECT, REROUTE, REJECT }
+
+    /**
+     * Reads the result of a statement.
+     */
+    interface ResultReader<T> {
+        T read(ResultSet rs) throws SQLException;
+    }
+
+    /** How long a cached estimate stays valid, the table grows with every load. */
+    private static final long ESTIMATE_TTL_MS = 5 * 60 * 1000;
+
+    /** The shapes a container keeps statistics for, the SQL text comes from the clients. */
+    private static final int MAX_SHAPES = 512;
+
+    /**
+     * The cached estimate and the executions of each shape in this container,
+     * least recently used first and dropped beyond MAX_SHAPES. Guarded by itself.
+     */
+    private static final Map<String, ShapeStats> SHAPES = new LinkedHashMap<String, ShapeStats>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, ShapeStats> eldest) {
+            return size() > MAX_SHAPES;
+        }
+    };
+
+    /** Estimated rows above which a statement is rerouted. */
+    private final long rerouteRows;
+
+    /** Estimated rows above which a statement is rejected. */
+    private final long rejectRows;
+
+    /** Estimated rows above which an export is rejected, 0 for no limit. */
+    private final long exportRejectRows;
+
+    /** Seconds a summary table may be used after it was rebuilt. */
+    private final long rollupMaxAge;
+
+    /** Loads that may commit after a summary table was rebuilt while it is used. */
+    private final long rollupMaxGenerations;
+
+    /** Whether executions are recorded in the workload table. */
+    private final boolean recordWorkload;
+
+    /** The ms executions are buffered before they are written to the workload table. */
+    private final long workloadFlushInterval;
+
+    /** Routes statements to the reader endpoints, null if there are none. */
+    private final ReadRouter router;
+
+    /** The load generation a reader must have replicated, 0 for any. */
+    private final long minGeneration;
+
+    QueryPlanner(final Properties properties) {
+        this(properties, null, 0);
+    }
+
+    /**
+     * @param properties The database properties.
+     * @param router Routes statements to the reader endpoints, null to run them on the writer.
+     * @param minGeneration The load generation a reader must have replicated, 0 for any.
+     */
+    QueryPlanner(final Properties properties, final ReadRouter router, final long minGeneration) {
+        this.rerouteRows = Long.parseLong(properties.getProperty("query.rerouteRows", "100000"));
+        this.rejectRows = Long.parseLong(properties.getProperty("query.rejectRows", "5000000"));
+        this.exportRejectRows = Long.parseLong(properties.getProperty("query.exportRejectRows", "0"));
+        this.rollupMaxAge = Long.parseLong(properties.getProperty("query.rollupMaxAge", "3600"));
+        this.rollupMaxGenerations = Long.parseLong(properties.getProperty("query.rollupMaxGenerations", "0"));
+        this.recordWorkload = Boolean.parseBoolean(properties.getProperty("query.recordWorkload", "true"));
+        this.workloadFlushInterval = 1000 * Long.parseLong(properties.getProperty("query.workloadFlushSeconds", "60"));
+        this.router = router;
+        this.minGeneration = minGeneration;
+    }
+
+    /**
+     * Plan a statement and run it on the source chosen for it.
+     * @param writer A connection to the writer, used for EXPLAIN and direct execution.
+     * @param shape The shape of the statement.
+     * @param values The filter values to bind.
+     * @param plan Receives the shape, estimate, decision and latency of the statement.
+     * @return The result rows.
+     * @throws SQLException If planning or execution failed.
+     * @throws IllegalArgumentException If the statement was rejected.
+     */
+    ArrayList<HashMap<String, Object>> execute(
+            final Connection writer,
+            final QueryShape shape,
+            final List<String> values,
+            final HashMap<String, Object> plan
+    ) throws SQLException {
+        return execute(writer, shape, values, plan, QuerySpec::toRows, false);
+    }
+
+    /**
+     * Plan a statement and run it on the source chosen for it.
+     * @param writer A connection to the writer, used for execution without a reader.
+     * @param shape The shape of the statement.
+     * @param values The filter values to bind.
+     * @param plan Receives the shape, estimate, decision and latency of the statement.
+     * @param reader Reads the result.
+     * @param stream Whether the driver hands over rows as they arrive instead of
+     *               buffering the whole result, for results too large for memory.
+     *               A streamed statement is an export and held to query.exportRejectRows.
+     * @return The result of the reader.
+     * @throws SQLException If planning or execution failed.
+     * @throws IllegalArgumentException If the statement was rejected.
+     */
+    <T> T execute(
+            final Connection writer,
+            final QueryShape shape,
+            final List<String> values,
+            final HashMap<String, Object> plan,
+            final ResultReader<T> reader,
+            final boolean stream
+    ) throws SQLException {
+        if (router == null) {
+            plan.put("source", ReadRouter.WRITER);
+            return execute(writer, writer, shape, values, plan, reader, stream);
+        }
+
+        // Plan and run the statement on the reader the router leases, or on the writer if it fails over.
+        try (ReadRouter.Lease lease = router.acquire(writer, minGeneration)) {
+            plan.put("source", lease.getSource());
+            if (minGeneration > 0) {
+                plan.put("generation", lease.getGeneration());
+                plan.put("waitedMs", lease.getWaitedMs());
+            }
+            if (lease.getFailover() != null) {
+                plan.put("failover", lease.getFailover());
+            }
+            try {
+                return execute(writer, lease.getConnection(), shape, values, plan, reader, stream);
+            } catch (final SQLException e) {
+                if (lease.isWriter() || !ReadRouter.isConnectionError(e)) {
+                    throw e;
+                }
+                lease.fail();
+
+                // A streamed result may have been written in part, so it is not repeated.
+                if (stream) {
+                    throw e;
+                }
+                plan.put("failover", "Reader " + lease.getSource() + " failed: " + e.getMessage());
+                plan.put("source", ReadRouter.WRITER);
+                return execute(writer, writer, shape, values, plan, reader, stream);
+            }
+        }
+    }
+
+    /**
+     * Plan a statement with EXPLAIN on the connection it runs on, and run it
+     * there, or on a summary table on the writer.
+     * @param writer A connection to the writer, where the summary tables are looked up.
+     * @param con The connection the statement runs on, the writer or a reader.
+     */
+    private <T> T execute(
+            final Connection writer,
+            final Connection con,
+            final QueryShape shape,
+            final List<String> values,
+            final HashMap<String, Object> plan,
+            final ResultReader<T> reader,
+            final boolean stream
+    ) throws SQLException {
+        final String sql = shape.getSql();
+        final long estimatedRows = estimate(con, sql, values, plan);
+        final long limit = stream ? exportRejectRows : rejectRows;
+        final Decision decision;
+        Workload.Rollup rollup = null;
+        if (limit > 0 && estimatedRows > limit) {
+            decision = Decision.REJECT;
+        } else if (estimatedRows > rerouteRows) {
+            if (shape.isRollupCompatible()) {
+                rollup = Workload.findRollup(writer, shape, rollupMaxAge, rollupMaxGenerations);
+            }
+            decision = rollup != null || router != null ? Decision.REROUTE : Decision.DIRECT;
+        } else {
+            decision = Decision.DIRECT;
+        }
+        plan.put("shape", sql);
+        plan.put("estimatedRows", estimatedRows);
+        plan.put("decision", decision.name());
+
+        if (decision == Decision.REJECT) {
+            throw new IllegalArgumentException(String.format(
+                    "Query rejected: an estimated %d rows would be examined, the limit is %d. "
+                    + "Add filters or use APPROX_ aggregations.", estimatedRows, limit));
+        }
+
+        System.out.println(sql);
+        final long start = System.currentTimeMillis();
+        final T rows;
+        if (rollup != null) {
+            plan.put("source", rollup.getTable());
+            plan.put("rollupAge", rollup.getAge());
+            plan.put("rollupGeneration", rollup.getGeneration());
+            plan.put("rollupGenerationsBehind", rollup.getGenerationsBehind());
+            rows = run(writer, shape.rollupSql(rollup.getTable()), values, reader, stream);
+        } else {
+            rows = run(con, sql, values, reader, stream);
+        }
+        final long latency = System.currentTimeMillis() - start;
+
+        // Record the latency of this shape across the container's invocations.
+        final long executions;
+        final long totalLatency;
+        synchronized (SHAPES) {
+            final ShapeStats stats = stats(sql);
+            executions = ++stats.executions;
+            totalLatency = stats.totalLatency += latency;
+        }
+        plan.put("latency", latency);
+        plan.put("shapeExecutions", executions);
+        plan.put("shapeMeanLatency", totalLatency / executions);
+
+        // Record the execution for the Advisor, without failing the query if that fails.
+        if (recordWorkload) {
+            try {
+                Workload.record(writer, shape, latency, estimatedRows, workloadFlushInterval);
+            } catch (final SQLException e) {
+                System.err.println("Failed to record workload: " + e.getMessage());
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Estimate the rows a statement examines, using the cached estimate for its shape if fresh.
+     */
+    private static long estimate(
+            final Connection con,
+            final String sql,
+            final List<String> values,
+            final HashMap<String, Object> plan
+    ) throws SQLException {
+        final long now = System.currentTimeMillis();
+        synchronized (SHAPES) {
+            final ShapeStats cached = SHAPES.get(sql);
+            if (cached != null && cached.estimatedAt >= 0 && now - cached.estimatedAt < ESTIMATE_TTL_MS) {
+                plan.put("estimateCached", true);
+                return cached.estimatedRows;
+            }
+        }
+
+        long rows = 0;
+        try (PreparedStatement explain = con.prepareStatement("EXPLAIN " + sql)) {
+            for (int i = 0; i < values.size(); i++) {
+                explain.setString(i + 1, values.get(i));
+            }
+            try (ResultSet rs = explain.executeQuery()) {
+                while (rs.next()) {
+                    rows += rs.getLong("rows");
+                }
+            }
+        }
+        synchronized (SHAPES) {
+            final ShapeStats stats = stats(sql);
+            stats.estimatedRows = rows;
+            stats.estimatedAt = now;
+        }
+        plan.put("estimateCached", false);
+        return rows;
+    }
+
+    private static <T> T run(
+            final Connection con,
+            final String sql,
+            final List<String> values,
+            final ResultReader<T> reader,
+            final boolean stream
+    ) throws SQLException {
+        try (PreparedStatement select = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+
+            // MySQL Connector/J streams a forward-only result row by row with this fetch size.
+            if (stream) {
+                select.setFetchSize(Integer.MIN_VALUE);
+            }
+            for (int i = 0; i < values.size(); i++) {
+                select.setString(i + 1, values.get(i));
+            }
+            try (ResultSet rs = select.executeQuery()) {
+                return reader.read(rs);
+            }
+        }
+    }
+
+    /**
+     * @return The statistics of a shape, added if it has none. Called holding SHAPES.
+     */
+    private static ShapeStats stats(final String shape) {
+        ShapeStats stats = SHAPES.get(shape);
+        if (stats == null) {
+            stats = new ShapeStats();
+            SHAPES.put(shape, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * The cached estimate and the executions of a shape.
+     */
+    private static final class ShapeStats {
+
+        /** The estimated rows, taken at estimatedAt. */
+        long estimatedRows;
+
+        /** The time of the estimate in ms, -1 before the first. */
+        long estimatedAt = -1;
+
+        /** The executions in this container. */
+        long executions;
+
+        /** The total latency of the executions in ms. */
+        long totalLatency;
+    }
+}
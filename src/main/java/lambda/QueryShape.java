@@ -0,0 +1,192 @@
+package lambda;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * The normalized shape of a statement Query runs against the 'data' table:
+ * its SQL text with filter values as placeholders, plus the filter columns,
+ * group columns and aggregates it was built from. Shapes are the unit of the
+ * EXPLAIN cache, the workload table and the summary tables built by the Advisor.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+final class QueryShape {
+
+    /** Aggregation functions a summary table can answer. */
+    private static final List<String> ROLLUP_FUNCTIONS = Arrays.asList("SUM", "COUNT", "MIN", "MAX", "AVG");
+
+    /** The SQL text with placeholders. */
+    private final String sql;
+
+    /** The equality filter columns, in placeholder order. */
+    private final List<String> filterColumns;
+
+    /** The group columns. */
+    private final List<String> groupColumns;
+
+    /** The aggregates as {function, column, alias}. */
+    private final List<String[]> aggregates;
+
+    QueryShape(
+            final String sql,
+            final List<String> filterColumns,
+            final List<String> groupColumns,
+            final List<String[]> aggregates
+    ) {
+        this.sql = sql;
+        this.filterColumns = Collections.unmodifiableList(new ArrayList<>(filterColumns));
+        this.groupColumns = Collections.unmodifiableList(new ArrayList<>(groupColumns));
+        this.aggregates = Collections.unmodifiableList(new ArrayList<>(aggregates));
+    }
+
+    String getSql() {
+        return sql;
+    }
+
+    List<String> getFilterColumns() {
+        return filterColumns;
+    }
+
+    List<String> getGroupColumns() {
+        return groupColumns;
+    }
+
+    List<String[]> getAggregates() {
+        return aggregates;
+    }
+
+    /**
+     * @return The SHA-1 of the SQL text in hex, used as the key of the shape.
+     */
+    String getHash() {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(sql.getBytes(StandardCharsets.UTF_8));
+            return String.format("%040x", new BigInteger(1, digest));
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return The aggregates as a JSON array of {function, column} objects.
+     */
+    String describeAggregates() {
+        final JSONArray described = new JSONArray();
+        for (final String[] aggregate : aggregates) {
+            described.put(new JSONObject().put("function", aggregate[0]).put("column", aggregate[1]));
+        }
+        return described.toString();
+    }
+
+    /**
+     * @return True if a summary table grouped by the filter and group columns can answer this shape.
+     */
+    boolean isRollupCompatible() {
+        if (groupColumns.isEmpty() || aggregates.isEmpty()) {
+            return false;
+        }
+        for (final String[] aggregate : aggregates) {
+            if (!ROLLUP_FUNCTIONS.contains(aggregate[0].toUpperCase())) {
+                return false;
+            }
+            if (aggregate[1].equals("*") && !aggregate[0].equalsIgnoreCase("COUNT")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The columns a summary table for this shape is grouped by.
+     */
+    List<String> getRollupDimensions() {
+        final Set<String> dimensions = new LinkedHashSet<>(filterColumns);
+        dimensions.addAll(groupColumns);
+        return new ArrayList<>(dimensions);
+    }
+
+    /**
+     * Build the statement that creates a summary table for this shape.
+     * @param table The name of the summary table.
+     * @return The CREATE TABLE ... AS SELECT statement.
+     */
+    String rollupDefinition(final String table) {
+        final List<String> dimensions = getRollupDimensions();
+        final Set<String> measures = new LinkedHashSet<>();
+        for (final String[] aggregate : aggregates) {
+            final String function = aggregate[0].toUpperCase();
+            final String column = aggregate[1];
+            if (function.equals("AVG")) {
+                measures.add("SUM(" + column + ") AS " + measure("SUM", column));
+                measures.add("COUNT(" + column + ") AS " + measure("COUNT", column));
+            } else {
+                measures.add(function + "(" + column + ") AS " + measure(function, column));
+            }
+        }
+        return "CREATE TABLE " + table + " AS SELECT " + String.join(", ", dimensions) + ", "
+                + String.join(", ", measures) + " FROM data GROUP BY " + String.join(", ", dimensions) + ";";
+    }
+
+    /**
+     * Rewrite this shape to read from its summary table. The result has the same
+     * column names and placeholders as the original statement.
+     * @param table The name of the summary table.
+     * @return The rewritten SQL.
+     */
+    String rollupSql(final String table) {
+        final StringBuilder rewritten = new StringBuilder("SELECT ");
+        for (final String column : groupColumns) {
+            rewritten.append(column).append(", ");
+        }
+        for (int i = 0; i < aggregates.size(); i++) {
+            final String function = aggregates.get(i)[0].toUpperCase();
+            final String column = aggregates.get(i)[1];
+            if (function.equals("AVG")) {
+                rewritten.append("SUM(").append(measure("SUM", column)).append(") / SUM(")
+                        .append(measure("COUNT", column)).append(")");
+            } else if (function.equals("SUM") || function.equals("COUNT")) {
+                rewritten.append("SUM(").append(measure(function, column)).append(")");
+            } else {
+                rewritten.append(function).append("(").append(measure(function, column)).append(")");
+            }
+            rewritten.append(" AS ").append(aggregates.get(i)[2]);
+            if (i != aggregates.size() - 1) {
+                rewritten.append(", ");
+            }
+        }
+        rewritten.append(" FROM ").append(table).append(" ");
+        if (!filterColumns.isEmpty()) {
+            rewritten.append("WHERE ");
+            for (int i = 0; i < filterColumns.size(); i++) {
+                rewritten.append(filterColumns.get(i)).append(" = ?");
+                if (i != filterColumns.size() - 1) {
+                    rewritten.append(" AND ");
+                }
+            }
+        }
+        rewritten.append(" GROUP BY ").append(String.join(", ", groupColumns)).append(";");
+        return rewritten.toString();
+    }
+
+    /**
+     * @return The summary table column holding the given partial aggregate.
+     */
+    private static String measure(final String function, final String column) {
+        return function.toLowerCase() + "_" + (column.equals("*") ? "all" : column);
+    }
+}
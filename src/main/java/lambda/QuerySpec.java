@@ -0,0 +1,280 @@
+package lambda;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * A single query against the 'data' table, as described by the JSON sent to Query:
+ * a list of aggregations, a list of equality filters and a list of group columns.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+final class QuerySpec {
+
+    /** Aggregation functions that can be recomputed from partial aggregates of a finer grouping. */
+    private static final List<String> DECOMPOSABLE_FUNCTIONS = Arrays.asList("SUM", "COUNT", "MIN", "MAX", "AVG");
+
+    /** A plain column name. An aggregation over anything else, such as DISTINCT a, is not recombined. */
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    /** The caller's ID for this query, null for a single query request. */
+    private final String id;
+
+    /** The aggregations to select, may be null. */
+    private final JSONArray aggregations;
+
+    /** The equality filters, may be null. */
+    private final JSONArray filters;
+
+    /** The columns to group by, may be null. */
+    private final JSONArray group;
+
+    QuerySpec(final String id, final JSONObject json) {
+        this.id = id;
+        this.aggregations = json.optJSONArray("aggregations");
+        this.filters = json.optJSONArray("filters");
+        this.group = json.optJSONArray("group");
+    }
+
+    String getId() {
+        return id;
+    }
+
+    JSONArray getAggregations() {
+        return aggregations;
+    }
+
+    JSONArray getFilters() {
+        return filters;
+    }
+
+    /**
+     * @return The group columns, empty if the query is not grouped.
+     */
+    List<String> getGroupColumns() {
+        final List<String> columns = new ArrayList<>();
+        if (group != null) {
+            for (int i = 0; i < group.length(); i++) {
+                columns.add(group.getString(i));
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * @return True if the query is answered from sketches.
+     * @throws IllegalArgumentException If approximate and exact aggregations are mixed.
+     */
+    boolean isApproximate() {
+        return SketchStore.isApproximate(aggregations);
+    }
+
+    /**
+     * @return True if every aggregation can be recombined from partial aggregates,
+     *         so the query can share a scan with queries using the same filters:
+     *         a decomposable function over a plain column, or COUNT(*).
+     */
+    boolean isDecomposable() {
+        if (aggregations == null || aggregations.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < aggregations.length(); i++) {
+            final JSONObject aggregation = aggregations.getJSONObject(i);
+            final String function = aggregation.getString("function").toUpperCase();
+            final String column = aggregation.getString("column");
+            if (!DECOMPOSABLE_FUNCTIONS.contains(function)
+                    || !(IDENTIFIER.matcher(column).matches() || function.equals("COUNT") && column.equals("*"))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return A canonical form of the filters, equal for queries with the same filter set,
+     *         including every filter on a column that is filtered more than once.
+     */
+    String filterKey() {
+        final List<List<String>> sorted = new ArrayList<>();
+        if (filters != null) {
+            for (int i = 0; i < filters.length(); i++) {
+                final JSONObject filter = filters.getJSONObject(i);
+                sorted.add(Arrays.asList(filter.getString("column"), filter.getString("value")));
+            }
+        }
+        sorted.sort(Comparator.comparing((List<String> filter) -> filter.get(0)).thenComparing(filter -> filter.get(1)));
+        // Written as JSON, so a column or value holding a separator can not make two filter sets equal.
+        return new JSONArray(sorted).toString();
+    }
+
+    /**
+     * Run the query. Exact queries are planned and routed by the planner.
+     * @param con The database connection.
+     * @param planner Plans and runs exact queries.
+     * @param plan Receives the plan of an exact query.
+     * @return One map per result row, keyed by column name.
+     * @throws SQLException If the query failed.
+     * @throws IllegalArgumentException If the query is invalid or was rejected.
+     */
+    ArrayList<HashMap<String, Object>> execute(
+            final Connection con,
+            final QueryPlanner planner,
+            final HashMap<String, Object> plan
+    ) throws SQLException {
+        if (isApproximate()) {
+            return SketchStore.query(con, aggregations, filters, group);
+        }
+
+        // Create ArrayList to store values instead of directly adding to query to prevent SQL injection.
+        final ArrayList<String> values = new ArrayList<>();
+        return planner.execute(con, toShape(values), values, plan);
+    }
+
+    /**
+     * Run the query like execute, writing the rows to an export as they are read.
+     * @param con The database connection.
+     * @param planner Plans and runs exact queries.
+     * @param plan Receives the plan of an exact query.
+     * @param export Receives the rows.
+     * @return The rows written.
+     * @throws SQLException If the query failed.
+     * @throws IllegalArgumentException If the query is invalid or was rejected.
+     * @throws java.io.UncheckedIOException If the export could not be written.
+     */
+    long export(
+            final Connection con,
+            final QueryPlanner planner,
+            final HashMap<String, Object> plan,
+            final QueryExport export
+    ) throws SQLException {
+        if (isApproximate()) {
+            return export.write(SketchStore.query(con, aggregations, filters, group));
+        }
+        final ArrayList<String> values = new ArrayList<>();
+        return planner.execute(con, toShape(values), values, plan, export::write, true);
+    }
+
+    /**
+     * Build the SQL query for this spec.
+     * @param values Receives the filter values to bind, in parameter order.
+     * @return The shape of the SQL query.
+     */
+    QueryShape toShape(final ArrayList<String> values) {
+        // Create the start of the SQL query.
+        final StringBuilder sqlQuery = new StringBuilder("SELECT ");
+
+        // Step 2: Parse the aggregations part of the json and add to select.
+        if (group != null && !group.isEmpty()) {
+            for (int i = 0; i < group.length(); i++) {
+                final String value = group.getString(i);
+                sqlQuery.append(value).append(", ");
+            }
+        }
+
+        final List<String[]> aggregates = new ArrayList<>();
+        if (aggregations != null && !aggregations.isEmpty())  {
+            for (int i = 0; i < aggregations.length(); i++) {
+                final JSONObject aggregation = aggregations.getJSONObject(i);
+                final String column = aggregation.getString("column");
+                final String function = aggregation.getString("function");
+                aggregates.add(new String[] {function, column, function + "_" + column});
+                sqlQuery.append(function).append("(").append(column).append(") AS ").append(function).append("_").append(column);
+                if (i != aggregations.length() - 1) {
+                    sqlQuery.append(", ");
+                }
+            }
+        } else {
+            sqlQuery.append(" * ");
+        }
+
+        sqlQuery.append(" FROM data ");
+
+        // Step 3: Build the WHERE clause (with Filters)
+        appendWhere(sqlQuery, filters, values);
+
+        if (group != null && !group.isEmpty()) {
+            sqlQuery.append(" GROUP BY ");
+            for (int i = 0; i < group.length(); i++) {
+                final String value = group.getString(i);
+                sqlQuery.append(value);
+                if (i != group.length() - 1) {
+                    sqlQuery.append(", ");
+                }
+            }
+        }
+
+        sqlQuery.append(";");
+        return new QueryShape(sqlQuery.toString(), filterColumns(filters), getGroupColumns(), aggregates);
+    }
+
+    /**
+     * Append a WHERE clause for the given equality filters.
+     * @param sqlQuery The query being built.
+     * @param filters The filters, may be null.
+     * @param values Receives the filter values to bind, in parameter order.
+     */
+    static void appendWhere(final StringBuilder sqlQuery, final JSONArray filters, final List<String> values) {
+        if (filters != null && !filters.isEmpty()) {
+            sqlQuery.append("WHERE ");
+            for (int i = 0; i < filters.length(); i++) {
+                final JSONObject filter = filters.getJSONObject(i);
+                final String column = filter.getString("column");
+                values.add(filter.getString("value"));
+                sqlQuery.append(column).append(" = ?");
+                if (i != filters.length() - 1) {
+                    sqlQuery.append(" AND ");
+                }
+            }
+        }
+    }
+
+    /**
+     * @param filters The filters, may be null.
+     * @return The filter columns, in parameter order.
+     */
+    static List<String> filterColumns(final JSONArray filters) {
+        final List<String> columns = new ArrayList<>();
+        if (filters != null) {
+            for (int i = 0; i < filters.length(); i++) {
+                columns.add(filters.getJSONObject(i).getString("column"));
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Convert every remaining row of a result set to a map keyed by column name,
+     * the columns in SELECT order.
+     * @param rs The result set.
+     * @return The rows.
+     * @throws SQLException If the result set could not be read.
+     */
+    static ArrayList<HashMap<String, Object>> toRows(final ResultSet rs) throws SQLException {
+        final ArrayList<HashMap<String, Object>> jsonResult = new ArrayList<>();
+        final ResultSetMetaData rsmd = rs.getMetaData();
+        while (rs.next()) {
+            final int numColumns = rsmd.getColumnCount();
+            final HashMap<String, Object> row = new LinkedHashMap<>();
+            for (int i = 1; i <= numColumns; i++) {
+                row.put(rsmd.getColumnName(i), rs.getObject(i));
+            }
+            jsonResult.add(row);
+        }
+        return jsonResult;
+    }
+}
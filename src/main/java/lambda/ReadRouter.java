@@ -0,0 +1,416 @@
+package lambda;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Routes the statements of Query to reader endpoints, so analytical reads do
+ * not compete with the writes of LoadAurora on the writer (the 'url' of
+ * db.properties). A statement goes to the healthy reader with the fewest
+ * statements outstanding in the container, the least used one on a tie.
+ *
+ * An endpoint is health checked when a connection to it is opened, or taken
+ * from its idle connections after the health interval. An endpoint that fails
+ * is skipped for the health interval, then tried again. Without a healthy
+ * reader, statements fail over to the writer.
+ *
+ * For read-your-writes a statement can require a load generation, see
+ * LoadGeneration: it waits until its reader has replicated that generation,
+ * trying the next reader once the wait is over, and runs on the writer if
+ * none caught up.
+ *
+ * The settings are read from db.properties, or the db.* system properties:
+ *
+ * readerUrls:               Comma-separated JDBC URLs of the readers, such as the
+ *                           Aurora replica instances. replicaUrl is read as a
+ *                           single reader if readerUrls is not set.
+ * router.healthInterval:    Seconds a health check stays valid (default 5).
+ * router.connectTimeoutMs:  The connect timeout of a reader (default 2000).
+ * router.waitMs:            The longest a statement waits for a reader to reach
+ *                           its load generation (default 5000).
+ *
+ * The router, its health state and idle connections are shared by the
+ * invocations in a container.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+final class ReadRouter {
+
+    /** The source of a statement run on the writer. */
+    static final String WRITER = "writer";
+
+    /** Idle connections kept per reader. */
+    private static final int MAX_IDLE = 4;
+
+    /** How often a statement waiting for a load generation checks its reader. */
+    private static final long POLL_MS = 25;
+
+    private static ReadRouter shared;
+
+    /** The settings shared was created with. */
+    private static List<String> sharedSettings;
+
+    /** A reader endpoint. */
+    private static final class Endpoint {
+
+        private final String url;
+
+        /** The host and port of the url, reported as the source of a statement. */
+        private final String name;
+
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicLong routed = new AtomicLong();
+        private final ConcurrentLinkedQueue<Connection> idle = new ConcurrentLinkedQueue<>();
+        private volatile boolean healthy = true;
+        private volatile long checkedNanos = System.nanoTime();
+
+        Endpoint(final String url) {
+            this.url = url;
+            final int start = url.indexOf("//");
+            final int end = url.indexOf('/', start + 2);
+            this.name = start >= 0 ? url.substring(start + 2, end > 0 ? end : url.length()) : url;
+        }
+    }
+
+    /**
+     * A connection for one statement, returned with close.
+     */
+    final class Lease implements AutoCloseable {
+
+        private final Endpoint endpoint;
+        private Connection connection;
+        private final long generation;
+        private final long waitedMs;
+        private final String failover;
+
+        private Lease(final Endpoint endpoint, final Connection connection, final long generation, final long waitedMs, final String failover) {
+            this.endpoint = endpoint;
+            this.connection = connection;
+            this.generation = generation;
+            this.waitedMs = waitedMs;
+            this.failover = failover;
+        }
+
+        /**
+         * @return The connection, to a reader or the writer.
+         */
+        Connection getConnection() {
+            return connection;
+        }
+
+        /**
+         * @return The host and port of the reader, or WRITER.
+         */
+        String getSource() {
+            return endpoint != null ? endpoint.name : WRITER;
+        }
+
+        /**
+         * @return Whether the connection is the writer's.
+         */
+        boolean isWriter() {
+            return endpoint == null;
+        }
+
+        /**
+         * @return The load generation the reader had replicated, if one was required.
+         */
+        long getGeneration() {
+            return generation;
+        }
+
+        /**
+         * @return The time spent waiting for a reader to reach the load generation.
+         */
+        long getWaitedMs() {
+            return waitedMs;
+        }
+
+        /**
+         * @return Why the statement runs on the writer although there are readers, null if it does not.
+         */
+        String getFailover() {
+            return failover;
+        }
+
+        /**
+         * Report that the reader failed the statement: it is skipped for the
+         * health interval and the connection is closed.
+         */
+        void fail() {
+            if (endpoint != null && connection != null) {
+                markUnhealthy(endpoint);
+                ReadRouter.close(connection);
+                connection = null;
+            }
+        }
+
+        /**
+         * Return the connection to the idle connections of its reader.
+         */
+        @Override
+        public void close() {
+            if (endpoint == null) {
+                return;
+            }
+            if (connection != null) {
+                if (endpoint.idle.size() < MAX_IDLE && Clients.isValid(connection)) {
+                    endpoint.idle.add(connection);
+                } else {
+                    ReadRouter.close(connection);
+                }
+                connection = null;
+            }
+            endpoint.outstanding.decrementAndGet();
+        }
+    }
+
+    private final List<Endpoint> readers;
+    private final Properties credentials;
+    private final long healthIntervalNanos;
+    private final long waitMs;
+
+    /**
+     * @param urls The JDBC URLs of the readers.
+     * @param properties The database properties, with the username, password and settings.
+     */
+    ReadRouter(final List<String> urls, final Properties properties) {
+        final List<Endpoint> endpoints = new ArrayList<>();
+        for (final String url : urls) {
+            endpoints.add(new Endpoint(url));
+        }
+        this.readers = Collections.unmodifiableList(endpoints);
+        this.healthIntervalNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(properties.getProperty("router.healthInterval", "5")));
+        this.waitMs = Long.parseLong(properties.getProperty("router.waitMs", "5000"));
+        this.credentials = new Properties();
+        credentials.setProperty("user", properties.getProperty("username"));
+        credentials.setProperty("password", properties.getProperty("password"));
+        credentials.setProperty("connectTimeout", properties.getProperty("router.connectTimeoutMs", "2000"));
+    }
+
+    /**
+     * @param properties The database properties.
+     * @return The router of the container for the readers configured, null if there are none.
+     */
+    static synchronized ReadRouter shared(final Properties properties) {
+        final List<String> urls = readerUrls(properties);
+        if (urls.isEmpty()) {
+            return null;
+        }
+        final List<String> settings = new ArrayList<>(urls);
+        settings.add(properties.getProperty("router.healthInterval"));
+        settings.add(properties.getProperty("router.connectTimeoutMs"));
+        settings.add(properties.getProperty("router.waitMs"));
+        if (shared == null || !settings.equals(sharedSettings)) {
+            closeShared();
+            shared = new ReadRouter(urls, properties);
+            sharedSettings = settings;
+        }
+        return shared;
+    }
+
+    /**
+     * Close the idle connections of the router of the container, before a checkpoint.
+     */
+    static synchronized void closeShared() {
+        if (shared != null) {
+            for (final Endpoint reader : shared.readers) {
+                for (Connection con = reader.idle.poll(); con != null; con = reader.idle.poll()) {
+                    close(con);
+                }
+            }
+            shared = null;
+            sharedSettings = null;
+        }
+    }
+
+    /**
+     * @param e The failure of a statement.
+     * @return Whether the failure is of the connection rather than the statement,
+     *         so the statement can be run elsewhere.
+     */
+    static boolean isConnectionError(final SQLException e) {
+        return e.getSQLState() != null && e.getSQLState().startsWith("08");
+    }
+
+    /**
+     * Lease a connection to the reader with the fewest outstanding statements,
+     * or to the writer if no reader is healthy or caught up.
+     * @param writer The connection to the writer, leased as is.
+     * @param generation The load generation the reader must have replicated, 0 for any.
+     * @return The lease, to close once the statement ran.
+     * @throws SQLException If the generation of a reader could not be read.
+     */
+    Lease acquire(final Connection writer, final long generation) throws SQLException {
+        final long start = System.nanoTime();
+        final long deadline = start + TimeUnit.MILLISECONDS.toNanos(waitMs);
+        final List<Endpoint> tried = new ArrayList<>();
+        String failover = "No reader is healthy";
+        while (true) {
+            final Endpoint reader = pick(tried);
+            if (reader == null) {
+                return new Lease(null, writer, generation, elapsedMs(start), failover);
+            }
+            tried.add(reader);
+            final Connection con = connect(reader);
+            if (con == null) {
+                reader.outstanding.decrementAndGet();
+                continue;
+            }
+            long applied = 0;
+            if (generation > 0) {
+                try {
+                    applied = await(con, generation, deadline);
+                } catch (final SQLException e) {
+                    if (!isConnectionError(e)) {
+                        new Lease(reader, con, 0, 0, null).close();
+                        throw e;
+                    }
+                    System.err.println("Reader " + reader.name + " failed: " + e.getMessage());
+                    final Lease failed = new Lease(reader, con, 0, 0, null);
+                    failed.fail();
+                    failed.close();
+                    continue;
+                }
+            }
+            final Lease lease = new Lease(reader, con, applied, elapsedMs(start), null);
+            if (applied >= generation) {
+                reader.routed.incrementAndGet();
+                return lease;
+            }
+            lease.close();
+            failover = "No reader reached load generation " + generation + " within " + waitMs + " ms";
+        }
+    }
+
+    /**
+     * Wait until the reader has replicated the generation, or the deadline passed.
+     * @return The generation the reader has replicated.
+     */
+    private static long await(final Connection con, final long generation, final long deadline) throws SQLException {
+        long applied = LoadGeneration.read(con);
+        while (applied < generation && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(POLL_MS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            applied = LoadGeneration.read(con);
+        }
+        return applied;
+    }
+
+    /**
+     * @return The outstanding statements, routed statements and health of every reader, by name.
+     */
+    HashMap<String, Object> getReaders() {
+        final HashMap<String, Object> states = new HashMap<>();
+        for (final Endpoint reader : readers) {
+            final HashMap<String, Object> state = new HashMap<>();
+            state.put("outstanding", reader.outstanding.get());
+            state.put("routed", reader.routed.get());
+            state.put("healthy", reader.healthy);
+            states.put(reader.name, state);
+        }
+        return states;
+    }
+
+    /**
+     * Pick the reader with the fewest outstanding statements and count the
+     * statement as outstanding on it.
+     */
+    private synchronized Endpoint pick(final List<Endpoint> tried) {
+        Endpoint best = null;
+        for (final Endpoint reader : readers) {
+            if (tried.contains(reader) || (!reader.healthy && System.nanoTime() - reader.checkedNanos < healthIntervalNanos)) {
+                continue;
+            }
+            if (best == null || reader.outstanding.get() < best.outstanding.get()
+                    || (reader.outstanding.get() == best.outstanding.get() && reader.routed.get() < best.routed.get())) {
+                best = reader;
+            }
+        }
+        if (best != null) {
+            best.outstanding.incrementAndGet();
+        }
+        return best;
+    }
+
+    /**
+     * @return A connection to the reader, checked if its last check is older
+     *         than the health interval, null if the reader is not healthy.
+     */
+    private Connection connect(final Endpoint reader) {
+        final boolean due = System.nanoTime() - reader.checkedNanos >= healthIntervalNanos;
+        for (Connection con = reader.idle.poll(); con != null; con = reader.idle.poll()) {
+            if (!due) {
+                return con;
+            }
+            if (Clients.isValid(con)) {
+                markHealthy(reader);
+                return con;
+            }
+            close(con);
+        }
+        try {
+            final Connection con = DriverManager.getConnection(reader.url, credentials);
+            markHealthy(reader);
+            return con;
+        } catch (final SQLException e) {
+            System.err.println("Reader " + reader.name + " failed its health check: " + e.getMessage());
+            markUnhealthy(reader);
+            return null;
+        }
+    }
+
+    private static void markHealthy(final Endpoint reader) {
+        reader.healthy = true;
+        reader.checkedNanos = System.nanoTime();
+    }
+
+    private static void markUnhealthy(final Endpoint reader) {
+        reader.healthy = false;
+        reader.checkedNanos = System.nanoTime();
+        for (Connection con = reader.idle.poll(); con != null; con = reader.idle.poll()) {
+            close(con);
+        }
+    }
+
+    private static List<String> readerUrls(final Properties properties) {
+        final List<String> urls = new ArrayList<>();
+        final String configured = properties.getProperty("readerUrls", properties.getProperty("replicaUrl", ""));
+        for (final String url : configured.split(",")) {
+            if (!url.trim().isEmpty()) {
+                urls.add(url.trim());
+            }
+        }
+        return urls;
+    }
+
+    private static long elapsedMs(final long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private static void close(final Connection con) {
+        try {
+            con.close();
+        } catch (final SQLException e) {
+            System.err.println("Could not close a reader connection: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,575 @@
+package lambda;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import org.apache.commons.csv.CSVRecord;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The layout of the rows of a dataset, from which the transformation of a raw
+ * row, the 'data' table and the binding of a transformed row to its INSERT are
+ * generated, so a new dataset needs a schema rather than a fork of Transform
+ * and LoadAurora.
+ *
+ * A schema is a JSON object with the transformed columns in table order, each
+ * with a name, a type (INTEGER, REAL or TEXT), an optional SQL type for the
+ * table (default the type), an optional precision, the digits a REAL is written
+ * with (default the shortest exact form), and one of:
+ *
+ * input:   The position of the column in the raw row.
+ * sum:     The names of REAL columns added up.
+ * ratio:   The names of two REAL columns, the first divided by the second.
+ * enrich:  state or country, of the column named by the schema's enrich, the
+ *          city geocoded by Transform.
+ *
+ * The schema is read from the file named by the tlq.schema system property or
+ * TLQ_SCHEMA, else the built-in mobiledata-schema.json, once per container.
+ *
+ * The transformer and binder of the schema are composed from method handles
+ * when it is loaded, one handle per step with the positions, slots and
+ * precisions bound as constants. The composed handles are held in static
+ * final fields, so the JIT inlines them into straight-line code: a row is
+ * read into typed slots and written out without reflection, lookups by name
+ * or a format string.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+final class RowSchema {
+
+    /** The schema used when none is configured. */
+    static final String DEFAULT = "mobiledata-schema.json";
+
+    /** The type of a column, as parsed and computed, and the suffix of its steps. */
+    enum Type {
+        INTEGER("Integer"), REAL("Real"), TEXT("Text");
+
+        private final String steps;
+
+        Type(final String steps) {
+            this.steps = steps;
+        }
+    }
+
+    /** A column of the transformed rows. */
+    static final class Column {
+
+        private final String name;
+        private final Type type;
+        private final String sql;
+        private final int precision;
+        private final int input;
+        private final List<String> sum;
+        private final List<String> ratio;
+        private final String enrich;
+
+        /** The index of the column's value in the array of its type in a Frame. */
+        private int slot;
+
+        private Column(final JSONObject json) {
+            this.name = json.getString("name");
+            this.type = Type.valueOf(json.getString("type").toUpperCase());
+            this.sql = json.optString("sql", type.name());
+            this.precision = json.optInt("precision", -1);
+            this.input = json.optInt("input", -1);
+            this.sum = strings(json.optJSONArray("sum"));
+            this.ratio = strings(json.optJSONArray("ratio"));
+            this.enrich = json.optString("enrich", null);
+        }
+
+        String getName() {
+            return name;
+        }
+
+        Type getType() {
+            return type;
+        }
+    }
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    /** The schema of this container. */
+    static final RowSchema ACTIVE = load(System.getProperty("tlq.schema", System.getenv("TLQ_SCHEMA")));
+
+    /** Transforms a raw row in the Frame of ACTIVE into its out, see transform. */
+    private static final MethodHandle TRANSFORMER = ACTIVE.transformer();
+
+    /** Binds a transformed row in the Frame of ACTIVE to its statement, see bind. */
+    private static final MethodHandle BINDER = ACTIVE.binder();
+
+    /** The columns in table order. */
+    private final List<Column> columns;
+
+    /** The column geocoded by the enrich columns, null if there are none. */
+    private final Column enrichKey;
+
+    /** Whether this is the built-in schema. */
+    private final boolean builtIn;
+
+    private int ints;
+    private int floats;
+    private int texts;
+
+    /**
+     * @param json The schema.
+     * @param builtIn Whether this is the built-in schema.
+     * @throws IllegalArgumentException If the schema is not valid.
+     */
+    RowSchema(final JSONObject json, final boolean builtIn) {
+        this.builtIn = builtIn;
+        final Map<String, Column> byName = new LinkedHashMap<>();
+        try {
+            final JSONArray array = json.getJSONArray("columns");
+            for (int i = 0; i < array.length(); i++) {
+                final Column column = new Column(array.getJSONObject(i));
+                if (byName.put(column.name, column) != null) {
+                    throw new IllegalArgumentException("Column " + column.name + " is defined twice");
+                }
+            }
+            this.enrichKey = json.has("enrich") ? byName.get(json.getString("enrich")) : null;
+        } catch (final JSONException e) {
+            throw new IllegalArgumentException("Invalid schema: " + e.getMessage(), e);
+        }
+        this.columns = Collections.unmodifiableList(new ArrayList<>(byName.values()));
+        for (final Column column : columns) {
+            validate(column, byName);
+            if (column.type == Type.INTEGER) {
+                column.slot = ints++;
+            } else if (column.type == Type.REAL) {
+                column.slot = floats++;
+            } else {
+                column.slot = texts++;
+            }
+        }
+        if (json.has("enrich") && (enrichKey == null || enrichKey.type != Type.TEXT)) {
+            throw new IllegalArgumentException("enrich must name a TEXT column");
+        }
+    }
+
+    /**
+     * @param location The file of the schema, null for the built-in schema.
+     * @return The schema.
+     * @throws UncheckedIOException If the schema could not be read.
+     * @throws IllegalArgumentException If the schema is not valid.
+     */
+    static RowSchema load(final String location) {
+        try {
+            if (location != null && !location.isEmpty()) {
+                return new RowSchema(new JSONObject(new String(Files.readAllBytes(Paths.get(location)), StandardCharsets.UTF_8)), false);
+            }
+            try (InputStream in = RowSchema.class.getClassLoader().getResourceAsStream(DEFAULT)) {
+                if (in == null) {
+                    throw new IOException("Missing " + DEFAULT);
+                }
+                final ByteArrayOutputStream json = new ByteArrayOutputStream();
+                final byte[] buffer = new byte[4096];
+                for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                    json.write(buffer, 0, n);
+                }
+                return new RowSchema(new JSONObject(new String(json.toByteArray(), StandardCharsets.UTF_8)), true);
+            }
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Could not read the schema " + location, e);
+        }
+    }
+
+    /**
+     * Transform a raw row with the generated transformer of the active schema.
+     * @param record The raw row.
+     * @param locations Gives the state and country of a city.
+     * @return The transformed row, terminated by a newline.
+     */
+    static String transform(final CSVRecord record, final Function<String, Transform.CacheLocation> locations) {
+        final Frame frame = new Frame(ACTIVE);
+        frame.record = record;
+        frame.locations = locations;
+        try {
+            TRANSFORMER.invokeExact(frame);
+        } catch (final RuntimeException | Error e) {
+            throw e;
+        } catch (final Throwable e) {
+            throw new IllegalStateException(e);
+        }
+        return frame.out.toString();
+    }
+
+    /**
+     * Bind the columns of a transformed row to the first parameters of an INSERT
+     * of the active schema, see insert.
+     * @param frame A frame of the active schema, reused for the rows of a statement.
+     * @param statement The INSERT.
+     * @param record The transformed row.
+     * @throws SQLException If a parameter could not be set.
+     */
+    static void bind(final Frame frame, final PreparedStatement statement, final CSVRecord record) throws SQLException {
+        frame.statement = statement;
+        frame.record = record;
+        try {
+            BINDER.invokeExact(frame);
+        } catch (final SQLException | RuntimeException | Error e) {
+            throw e;
+        } catch (final Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return The columns in table order.
+     */
+    List<Column> getColumns() {
+        return columns;
+    }
+
+    /**
+     * @return Whether this is the built-in schema, whose layout TransformPipeline is written for.
+     */
+    boolean isBuiltIn() {
+        return builtIn;
+    }
+
+    /**
+     * @param table The name of the table.
+     * @param id The auto-increment primary key added in front of the columns.
+     * @return The CREATE TABLE statement.
+     */
+    String createTable(final String table, final String id) {
+        final StringBuilder ddl = new StringBuilder("CREATE TABLE ").append(table)
+                .append(" (").append(id).append(" INTEGER AUTO_INCREMENT, ");
+        for (final Column column : columns) {
+            ddl.append(column.name).append(' ').append(column.sql).append(", ");
+        }
+        return ddl.append("PRIMARY KEY (").append(id).append("));").toString();
+    }
+
+    /**
+     * @param table The name of the table.
+     * @param extra Columns bound after the columns of the schema, such as a fingerprint.
+     * @param ignore Whether rows violating a unique index are skipped.
+     * @return The INSERT statement of a row.
+     */
+    String insert(final String table, final List<String> extra, final boolean ignore) {
+        final StringBuilder sql = new StringBuilder(ignore ? "INSERT IGNORE INTO " : "INSERT INTO ").append(table).append(" (");
+        final StringBuilder values = new StringBuilder();
+        for (final Column column : columns) {
+            sql.append(column.name).append(", ");
+            values.append("?,");
+        }
+        for (final String column : extra) {
+            sql.append(column).append(", ");
+            values.append("?,");
+        }
+        sql.setLength(sql.length() - 2);
+        values.setLength(values.length() - 1);
+        return sql.append(") VALUES (").append(values).append(')').toString();
+    }
+
+    /**
+     * The values of the row being transformed or bound, in typed slots
+     * assigned to the columns when the schema was loaded.
+     */
+    static final class Frame {
+
+        private CSVRecord record;
+        private Function<String, Transform.CacheLocation> locations;
+        private Transform.CacheLocation location;
+        private PreparedStatement statement;
+        private final int[] ints;
+        private final float[] floats;
+        private final String[] texts;
+        private final StringBuilder out = new StringBuilder(128);
+
+        /**
+         * @param schema The schema of the rows.
+         */
+        Frame(final RowSchema schema) {
+            this.ints = new int[schema.ints];
+            this.floats = new float[schema.floats];
+            this.texts = new String[schema.texts];
+        }
+    }
+
+    /**
+     * Compose the transformer: parse the input columns, geocode, compute the
+     * derived columns in dependency order, then write the columns in table order.
+     * @return A handle of type (Frame)void.
+     */
+    private MethodHandle transformer() {
+        final List<MethodHandle> steps = new ArrayList<>();
+        final List<Column> computed = new ArrayList<>();
+        for (final Column column : columns) {
+            if (column.input >= 0) {
+                steps.add(step("parse" + column.type.steps, column.slot, column.input));
+                computed.add(column);
+            }
+        }
+        if (enrichKey != null) {
+            steps.add(step("locate", enrichKey.slot));
+        }
+        for (final Column column : columns) {
+            if (column.enrich != null) {
+                steps.add(step("state".equals(column.enrich) ? "state" : "country", column.slot));
+                computed.add(column);
+            }
+        }
+        while (computed.size() < columns.size()) {
+            final int before = computed.size();
+            for (final Column column : columns) {
+                if (computed.contains(column) || !computedAll(column.sum, computed) || !computedAll(column.ratio, computed)) {
+                    continue;
+                }
+                if (!column.sum.isEmpty()) {
+                    steps.add(step("copy", column.slot, column(column.sum.get(0)).slot));
+                    for (final String operand : column.sum.subList(1, column.sum.size())) {
+                        steps.add(step("add", column.slot, column(operand).slot));
+                    }
+                } else {
+                    steps.add(step("divide", column.slot, column(column.ratio.get(0)).slot, column(column.ratio.get(1)).slot));
+                }
+                computed.add(column);
+            }
+            if (computed.size() == before) {
+                throw new IllegalArgumentException("The derived columns depend on each other");
+            }
+        }
+        for (int i = 0; i < columns.size(); i++) {
+            final Column column = columns.get(i);
+            final int separator = i == columns.size() - 1 ? '\n' : ',';
+            if (column.type == Type.REAL && column.precision >= 0) {
+                steps.add(step("appendFixed", column.slot, column.precision, separator));
+            } else {
+                steps.add(step("append" + column.type.steps, column.slot, separator));
+            }
+        }
+        return sequence(steps, 0, steps.size());
+    }
+
+    /**
+     * Compose the binder: every column of a transformed row bound as text, in
+     * table order, so the database converts it as it would the CSV.
+     * @return A handle of type (Frame)void.
+     */
+    private MethodHandle binder() {
+        final List<MethodHandle> steps = new ArrayList<>();
+        for (int i = 0; i < columns.size(); i++) {
+            steps.add(step("bind", i + 1, i));
+        }
+        return sequence(steps, 0, steps.size());
+    }
+
+    private Column column(final String name) {
+        for (final Column column : columns) {
+            if (column.name.equals(name)) {
+                return column;
+            }
+        }
+        throw new IllegalArgumentException("Unknown column " + name);
+    }
+
+    private static boolean computedAll(final List<String> names, final List<Column> computed) {
+        for (final String name : names) {
+            boolean found = false;
+            for (final Column column : computed) {
+                found |= column.name.equals(name);
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void validate(final Column column, final Map<String, Column> byName) {
+        int sources = 0;
+        sources += column.input >= 0 ? 1 : 0;
+        sources += column.sum.isEmpty() ? 0 : 1;
+        sources += column.ratio.isEmpty() ? 0 : 1;
+        sources += column.enrich != null ? 1 : 0;
+        if (sources != 1) {
+            throw new IllegalArgumentException("Column " + column.name + " needs exactly one of input, sum, ratio and enrich");
+        }
+        if (column.enrich != null && (column.type != Type.TEXT || !Arrays.asList("state", "country").contains(column.enrich))) {
+            throw new IllegalArgumentException("Column " + column.name + " must be TEXT enriched with state or country");
+        }
+        if (!column.sum.isEmpty() || !column.ratio.isEmpty()) {
+            if (column.type != Type.REAL || (!column.ratio.isEmpty() && column.ratio.size() != 2)) {
+                throw new IllegalArgumentException("Column " + column.name + " must be REAL, a ratio of two columns");
+            }
+            final List<String> operands = new ArrayList<>(column.sum);
+            operands.addAll(column.ratio);
+            for (final String operand : operands) {
+                if (!byName.containsKey(operand) || byName.get(operand).type != Type.REAL) {
+                    throw new IllegalArgumentException("Column " + column.name + " uses " + operand + ", not a REAL column");
+                }
+            }
+        }
+    }
+
+    private static List<String> strings(final JSONArray array) {
+        final List<String> strings = new ArrayList<>();
+        if (array != null) {
+            for (int i = 0; i < array.length(); i++) {
+                strings.add(array.getString(i));
+            }
+        }
+        return strings;
+    }
+
+    /**
+     * @param name A step below.
+     * @param constants Its arguments after the frame.
+     * @return The step with its arguments bound, of type (Frame)void.
+     */
+    private static MethodHandle step(final String name, final int... constants) {
+        final Class<?>[] parameters = new Class<?>[constants.length];
+        final Object[] values = new Object[constants.length];
+        for (int i = 0; i < constants.length; i++) {
+            parameters[i] = int.class;
+            values[i] = constants[i];
+        }
+        try {
+            final MethodHandle step = LOOKUP.findStatic(RowSchema.class, name, MethodType.methodType(void.class, Frame.class, parameters));
+            return MethodHandles.insertArguments(step, 1, values);
+        } catch (final ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Run steps in order, composed as a balanced tree to keep the handles shallow enough to inline.
+     */
+    private static MethodHandle sequence(final List<MethodHandle> steps, final int from, final int to) {
+        if (to - from == 1) {
+            return steps.get(from);
+        }
+        final int middle = (from + to) >>> 1;
+        return MethodHandles.foldArguments(sequence(steps, middle, to), sequence(steps, from, middle));
+    }
+
+    // The steps, each reading and writing the slots of a frame.
+
+    private static void parseInteger(final Frame frame, final int slot, final int input) {
+        frame.ints[slot] = Integer.parseInt(frame.record.get(input));
+    }
+
+    private static void parseReal(final Frame frame, final int slot, final int input) {
+        frame.floats[slot] = Float.parseFloat(frame.record.get(input));
+    }
+
+    private static void parseText(final Frame frame, final int slot, final int input) {
+        frame.texts[slot] = frame.record.get(input);
+    }
+
+    private static void locate(final Frame frame, final int slot) {
+        frame.location = frame.locations.apply(frame.texts[slot]);
+    }
+
+    private static void state(final Frame frame, final int slot) {
+        frame.texts[slot] = frame.location.getState();
+    }
+
+    private static void country(final Frame frame, final int slot) {
+        frame.texts[slot] = frame.location.getCountry();
+    }
+
+    private static void copy(final Frame frame, final int slot, final int operand) {
+        frame.floats[slot] = frame.floats[operand];
+    }
+
+    private static void add(final Frame frame, final int slot, final int operand) {
+        frame.floats[slot] += frame.floats[operand];
+    }
+
+    private static void divide(final Frame frame, final int slot, final int dividend, final int divisor) {
+        frame.floats[slot] = frame.floats[dividend] / frame.floats[divisor];
+    }
+
+    private static void appendInteger(final Frame frame, final int slot, final int separator) {
+        frame.out.append(frame.ints[slot]).append((char) separator);
+    }
+
+    private static void appendReal(final Frame frame, final int slot, final int separator) {
+        frame.out.append(frame.floats[slot]).append((char) separator);
+    }
+
+    private static void appendText(final Frame frame, final int slot, final int separator) {
+        frame.out.append(frame.texts[slot]).append((char) separator);
+    }
+
+    private static void appendFixed(final Frame frame, final int slot, final int precision, final int separator) {
+        appendFixed(frame.out, frame.floats[slot], precision);
+        frame.out.append((char) separator);
+    }
+
+    private static void bind(final Frame frame, final int parameter, final int column) throws SQLException {
+        frame.statement.setString(parameter, frame.record.get(column));
+    }
+
+    /**
+     * Append a value as String.format("%.Nf") does: the shortest decimal form of
+     * the value as a double, rounded half up to the precision, without parsing
+     * a format string per value. Values it does not cover are formatted with
+     * String.format.
+     * @param out Receives the value.
+     * @param value The value.
+     * @param precision The digits after the decimal point.
+     */
+    static void appendFixed(final StringBuilder out, final float value, final int precision) {
+        final String digits = Double.toString(value);
+        final int point = digits.indexOf('.');
+        if (!(value >= 0) || Float.isInfinite(value) || point < 0 || digits.indexOf('E') >= 0) {
+            out.append(String.format("%." + precision + "f", value));
+            return;
+        }
+        final int fraction = digits.length() - point - 1;
+        if (fraction <= precision) {
+            out.append(digits);
+            for (int i = fraction; i < precision; i++) {
+                out.append('0');
+            }
+            return;
+        }
+
+        // The digits kept, without the point, rounded up if the first dropped digit is 5 or more.
+        final char[] kept = new char[point + precision];
+        digits.getChars(0, point, kept, 0);
+        digits.getChars(point + 1, point + 1 + precision, kept, point);
+        boolean carry = digits.charAt(point + 1 + precision) >= '5';
+        for (int i = kept.length - 1; carry && i >= 0 && kept[i] != '-'; i--) {
+            if (kept[i] == '9') {
+                kept[i] = '0';
+            } else {
+                kept[i]++;
+                carry = false;
+            }
+        }
+        if (carry) {
+            out.append('1');
+        }
+        out.append(kept, 0, point);
+        if (precision > 0) {
+            out.append('.').append(kept, point, precision);
+        }
+    }
+}
@@ -0,0 +1,615 @@
+package lambda;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.DeleteObjectRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import saaf.MetricsRegistry;
+
+/**
+ * The object store on S3. Objects larger than one range are downloaded as
+ * byte ranges over several connections at once, so reading a large input is
+ * not limited to the bandwidth of a single connection.
+ *
+ * The first range is requested on get() and its response gives the size of
+ * the object. An object that fits in it is streamed from that one request, as
+ * a plain GET would be. For a larger object the following ranges are fetched
+ * in parallel into buffers of a pool shared by all streams of the store, while
+ * the stream returns the bytes in order. When no buffer is free the next range
+ * is streamed directly, so a stream never waits for buffers held by another.
+ * The ranges after the first are requested with the ETag of the first, so an
+ * object replaced during the download fails the read instead of mixing two
+ * versions.
+ *
+ * An object is created only if its key is free with a PUT conditional on
+ * If-None-Match: *, which S3 refuses with 412 if the key exists and with 409
+ * while a conflicting conditional write is in flight.
+ *
+ * An upload is buffered in parts. An object smaller than one part is written
+ * with a single PUT on close, a larger one as a multipart upload, with the
+ * parts uploaded in the background while the next part is written. At most
+ * three parts are held in memory per upload, whatever the size of the object.
+ *
+ * GETs, ranged GETs and HEADs are hedged when tlq.hedge is set, see Hedge: a
+ * GET that has not answered with its headers after the hedge delay is sent
+ * again, the response not taken is aborted.
+ *
+ * Settings, as system properties:
+ *
+ * s3.rangeSizeMB:       The size of a range (default 8).
+ * s3.rangeConcurrency:  The ranges fetched at once per stream (default 8, 1 for a single plain GET).
+ * s3.bufferPoolMB:      The memory of the buffer pool (default 64, at most a quarter of the heap).
+ * s3.partSizeMB:        The size of an upload part (default 8, at least 5 as S3 requires).
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+final class S3ObjectStore implements ObjectStore {
+
+    /** The size of a range in bytes. */
+    static final int RANGE_SIZE = Integer.getInteger("s3.rangeSizeMB", 8) << 20;
+
+    /** The ranges fetched at once per stream. */
+    static final int CONCURRENCY = Integer.getInteger("s3.rangeConcurrency", 8);
+
+    /** The memory of the buffer pool in bytes. */
+    static final long BUFFER_POOL_SIZE = Math.min(
+            (long) Integer.getInteger("s3.bufferPoolMB", 64) << 20, Runtime.getRuntime().maxMemory() / 4);
+
+    /** The size of an upload part in bytes. */
+    static final int PART_SIZE = Math.max(5, Integer.getInteger("s3.partSizeMB", 8)) << 20;
+
+    /** The parts held in memory per upload: one being written, the others being uploaded. */
+    private static final int UPLOAD_BUFFERS = 3;
+
+    /** Container-wide counts of ranges fetched into a buffer and streamed because no buffer was free. */
+    private static final MetricsRegistry.Counter BUFFERED_RANGES = MetricsRegistry.counter("s3.rangesBuffered");
+    private static final MetricsRegistry.Counter STREAMED_RANGES = MetricsRegistry.counter("s3.rangesStreamed");
+
+    /** The HTTP status of a range starting past the end of the object, as for an empty object. */
+    private static final int RANGE_NOT_SATISFIABLE = 416;
+
+    /** The HTTP statuses of a conditional PUT refused because the key exists or is being written. */
+    private static final int PRECONDITION_FAILED = 412;
+    private static final int CONFLICT = 409;
+
+    private final AmazonS3 s3;
+    private final int rangeSize;
+    private final int concurrency;
+    private final int partSize;
+
+    /** Fetches ranges and uploads parts, threads are created on demand and exit when idle. */
+    private final ThreadPoolExecutor executor;
+
+    /** The free buffers, and the buffers allocated up to the limit of the pool. */
+    private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger allocated = new AtomicInteger();
+    private final int maxBuffers;
+
+    /**
+     * A store with the settings of the system properties.
+     * @param s3 The S3 client.
+     */
+    S3ObjectStore(final AmazonS3 s3) {
+        this(s3, RANGE_SIZE, CONCURRENCY, (int) (BUFFER_POOL_SIZE / RANGE_SIZE), PART_SIZE);
+    }
+
+    /**
+     * @param s3 The S3 client.
+     * @param rangeSize The size of a range in bytes.
+     * @param concurrency The ranges fetched at once per stream, 1 to read every object with a single plain GET.
+     * @param maxBuffers The buffers of the pool, each of rangeSize bytes.
+     * @param partSize The size of an upload part in bytes.
+     */
+    S3ObjectStore(final AmazonS3 s3, final int rangeSize, final int concurrency, final int maxBuffers, final int partSize) {
+        this.s3 = s3;
+        this.rangeSize = rangeSize;
+        this.concurrency = Math.max(1, concurrency);
+        this.maxBuffers = maxBuffers;
+        this.partSize = partSize;
+        final AtomicInteger threads = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(this.concurrency, this.concurrency, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    final Thread thread = new Thread(runnable, "s3-transfer-" + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public InputStream get(final String bucket, final String key) throws IOException {
+        if (concurrency == 1) {
+            return getObject(new GetObjectRequest(bucket, key)).getObjectContent();
+        }
+        final S3Object first;
+        try {
+            first = getObject(new GetObjectRequest(bucket, key).withRange(0, rangeSize - 1));
+        } catch (final AmazonS3Exception e) {
+            if (e.getStatusCode() == RANGE_NOT_SATISFIABLE) {
+                // An empty object has no first byte to request.
+                return getObject(new GetObjectRequest(bucket, key)).getObjectContent();
+            }
+            throw e;
+        }
+        final long length = first.getObjectMetadata().getInstanceLength();
+        if (length <= rangeSize) {
+            return first.getObjectContent();
+        }
+        return new RangedInputStream(bucket, key, first, length);
+    }
+
+    @Override
+    public boolean exists(final String bucket, final String key) throws IOException {
+        return Hedge.S3_HEAD.call(() -> s3.doesObjectExist(bucket, key), null);
+    }
+
+    @Override
+    public void put(final String bucket, final String key, final File file) {
+        s3.putObject(bucket, key, file);
+    }
+
+    @Override
+    public Upload upload(final String bucket, final String key) {
+        return new MultipartUpload(bucket, key);
+    }
+
+    @Override
+    public boolean create(final String bucket, final String key, final byte[] content) {
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(content.length);
+        final PutObjectRequest request = new PutObjectRequest(bucket, key, new ByteArrayInputStream(content), metadata);
+        request.putCustomRequestHeader("If-None-Match", "*");
+        try {
+            s3.putObject(request);
+            return true;
+        } catch (final AmazonS3Exception e) {
+            if (e.getStatusCode() == PRECONDITION_FAILED || e.getStatusCode() == CONFLICT) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void delete(final String bucket, final String key) {
+        s3.deleteObject(new DeleteObjectRequest(bucket, key));
+    }
+
+    /**
+     * Send a GET, hedged.
+     * @return The response, null if an ETag constraint was not met.
+     */
+    private S3Object getObject(final GetObjectRequest request) throws IOException {
+        return Hedge.S3_GET.call(() -> s3.getObject(request), object -> {
+            if (object != null) {
+                // Closing would read the body to reuse the connection.
+                object.getObjectContent().abort();
+            }
+        });
+    }
+
+    /**
+     * @return A free buffer of the pool, null if all buffers are in use.
+     */
+    private byte[] acquire() {
+        final byte[] buffer = buffers.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        if (allocated.incrementAndGet() <= maxBuffers) {
+            return new byte[rangeSize];
+        }
+        allocated.decrementAndGet();
+        return null;
+    }
+
+    private void release(final byte[] buffer) {
+        buffers.offer(buffer);
+    }
+
+    /** A range fetched into a buffer of the pool. */
+    private static final class Range {
+
+        private final byte[] buffer;
+        private final Future<Integer> size;
+
+        Range(final byte[] buffer, final Future<Integer> size) {
+            this.buffer = buffer;
+            this.size = size;
+        }
+
+        /**
+         * @return The bytes fetched into the buffer, once the range has been fetched.
+         */
+        int await() throws IOException {
+            try {
+                return size.get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a range");
+            } catch (final ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * The bytes of an object in order, read from its ranges: the first from the
+     * response of get(), the following ones from the buffers they are
+     * prefetched into, or streamed directly when no buffer was free.
+     */
+    private final class RangedInputStream extends InputStream {
+
+        private final String bucket;
+        private final String key;
+        private final String etag;
+        private final long length;
+        private final int ranges;
+
+        /** The prefetched ranges, in order, the first being the range after the current one. */
+        private final ArrayDeque<Range> prefetched = new ArrayDeque<>();
+
+        /** The index of the range after the current one, and of the next range to prefetch. */
+        private int next = 1;
+        private int nextFetch = 1;
+
+        /** The range being read, its buffer if it was prefetched, and its bytes not yet read. */
+        private InputStream current;
+        private byte[] currentBuffer;
+        private long remaining;
+
+        RangedInputStream(final String bucket, final String key, final S3Object first, final long length) {
+            this.bucket = bucket;
+            this.key = key;
+            this.etag = first.getObjectMetadata().getETag();
+            this.length = length;
+            this.ranges = (int) ((length + rangeSize - 1) / rangeSize);
+            this.current = first.getObjectContent();
+            this.remaining = rangeLength(0);
+            prefetch();
+        }
+
+        @Override
+        public int read() throws IOException {
+            while (current != null) {
+                final int b = current.read();
+                if (b >= 0) {
+                    remaining--;
+                    return b;
+                }
+                advance();
+            }
+            return -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (current != null) {
+                final int read = current.read(b, off, len);
+                if (read >= 0) {
+                    remaining -= read;
+                    return read;
+                }
+                advance();
+            }
+            return -1;
+        }
+
+        /**
+         * Finish the current range and move to the next, if any.
+         */
+        private void advance() throws IOException {
+            if (remaining != 0) {
+                throw new IOException(String.format("%s/%s ended %d bytes early in range %d of %d",
+                        bucket, key, remaining, next - 1, ranges));
+            }
+            if (currentBuffer != null) {
+                release(currentBuffer);
+                currentBuffer = null;
+            } else {
+                current.close();
+            }
+            current = null;
+            if (next == ranges) {
+                return;
+            }
+            final Range range = prefetched.poll();
+            if (range != null) {
+                final int size;
+                try {
+                    size = range.await();
+                } catch (final IOException e) {
+                    release(range.buffer);
+                    throw e;
+                }
+                currentBuffer = range.buffer;
+                current = new ByteArrayInputStream(range.buffer, 0, size);
+            } else {
+                // Every buffer was in use when this range was due, stream it.
+                STREAMED_RANGES.increment();
+                current = fetch(next).getObjectContent();
+                nextFetch = next + 1;
+            }
+            remaining = rangeLength(next);
+            next++;
+            prefetch();
+        }
+
+        /**
+         * Start fetching the next ranges, up to the concurrency and while buffers are free.
+         */
+        private void prefetch() {
+            while (prefetched.size() < concurrency && nextFetch < ranges) {
+                final byte[] buffer = acquire();
+                if (buffer == null) {
+                    return;
+                }
+                final int index = nextFetch++;
+                BUFFERED_RANGES.increment();
+                prefetched.add(new Range(buffer, executor.submit(() -> download(index, buffer))));
+            }
+        }
+
+        /**
+         * Fetch a range into a buffer.
+         * @return The size of the range.
+         */
+        private int download(final int index, final byte[] buffer) throws IOException {
+            final int size = rangeLength(index);
+            int read = 0;
+            try (InputStream in = fetch(index).getObjectContent()) {
+                while (read < size) {
+                    final int n = in.read(buffer, read, size - read);
+                    if (n < 0) {
+                        break;
+                    }
+                    read += n;
+                }
+            }
+            if (read != size) {
+                throw new IOException(String.format("%s/%s ended %d bytes early in range %d of %d",
+                        bucket, key, size - read, index, ranges));
+            }
+            return size;
+        }
+
+        private S3Object fetch(final int index) throws IOException {
+            final long start = (long) index * rangeSize;
+            final GetObjectRequest request = new GetObjectRequest(bucket, key)
+                    .withRange(start, start + rangeLength(index) - 1);
+            if (etag != null) {
+                request.withMatchingETagConstraint(etag);
+            }
+            final S3Object object = getObject(request);
+            if (object == null) {
+                // The client returns null when the ETag constraint is not met.
+                throw new IOException(bucket + "/" + key + " was replaced while it was read");
+            }
+            return object;
+        }
+
+        private int rangeLength(final int index) {
+            return (int) Math.min(rangeSize, length - (long) index * rangeSize);
+        }
+
+        /**
+         * Close the current range and return the buffers of the prefetched
+         * ranges to the pool, once their fetches have stopped writing to them.
+         */
+        @Override
+        public void close() throws IOException {
+            if (current != null) {
+                if (currentBuffer != null) {
+                    release(currentBuffer);
+                    currentBuffer = null;
+                } else if (remaining > 0 && current instanceof S3ObjectInputStream) {
+                    // Closing would read the rest of the range to reuse the connection.
+                    ((S3ObjectInputStream) current).abort();
+                } else {
+                    current.close();
+                }
+                current = null;
+            }
+            Range range;
+            while ((range = prefetched.poll()) != null) {
+                if (!range.size.cancel(false)) {
+                    try {
+                        range.await();
+                    } catch (final IOException e) {
+                        // The range is not needed anymore.
+                    }
+                }
+                release(range.buffer);
+            }
+        }
+    }
+
+    /** A part of a multipart upload in flight, and the buffer it is uploaded from. */
+    private static final class Part {
+
+        private final byte[] buffer;
+        private final Future<PartETag> etag;
+
+        Part(final byte[] buffer, final Future<PartETag> etag) {
+            this.buffer = buffer;
+            this.etag = etag;
+        }
+
+        PartETag await() throws IOException {
+            try {
+                return etag.get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a part");
+            } catch (final ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * An object written as parts. The multipart upload is started when the
+     * first part is full, so a small object takes a single PUT.
+     */
+    private final class MultipartUpload extends Upload {
+
+        private final String bucket;
+        private final String key;
+        private final ArrayDeque<Part> inFlight = new ArrayDeque<>();
+        private final List<PartETag> etags = new ArrayList<>();
+        private final ArrayDeque<byte[]> spare = new ArrayDeque<>();
+        private int buffers = 1;
+        private byte[] part = new byte[partSize];
+        private int filled;
+        private String uploadId;
+        private boolean done;
+
+        MultipartUpload(final String bucket, final String key) {
+            this.bucket = bucket;
+            this.key = key;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (filled == part.length) {
+                flush(false);
+            }
+            part[filled++] = (byte) b;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            int written = 0;
+            while (written < len) {
+                if (filled == part.length) {
+                    flush(false);
+                }
+                final int n = Math.min(len - written, part.length - filled);
+                System.arraycopy(b, off + written, part, filled, n);
+                filled += n;
+                written += n;
+            }
+        }
+
+        /**
+         * Upload the current part in the background and continue in a free buffer.
+         */
+        private void flush(final boolean last) throws IOException {
+            if (done) {
+                throw new IOException("The upload of " + bucket + "/" + key + " is closed");
+            }
+            if (uploadId == null) {
+                uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key)).getUploadId();
+            }
+            final byte[] buffer = part;
+            final int size = filled;
+            final int number = etags.size() + inFlight.size() + 1;
+            inFlight.add(new Part(buffer, executor.submit(() -> s3.uploadPart(new UploadPartRequest()
+                    .withBucketName(bucket).withKey(key).withUploadId(uploadId)
+                    .withPartNumber(number).withPartSize(size).withLastPart(last)
+                    .withInputStream(new ByteArrayInputStream(buffer, 0, size))).getPartETag())));
+            filled = 0;
+            if (last) {
+                part = null;
+            } else if (!spare.isEmpty()) {
+                part = spare.poll();
+            } else if (buffers < UPLOAD_BUFFERS) {
+                part = new byte[partSize];
+                buffers++;
+            } else {
+                final Part oldest = inFlight.poll();
+                etags.add(oldest.await());
+                part = oldest.buffer;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (done) {
+                return;
+            }
+            try {
+                if (uploadId == null) {
+                    final ObjectMetadata metadata = new ObjectMetadata();
+                    metadata.setContentLength(filled);
+                    s3.putObject(new PutObjectRequest(bucket, key, new ByteArrayInputStream(part, 0, filled), metadata));
+                } else {
+                    if (filled > 0) {
+                        flush(true);
+                    }
+                    while (!inFlight.isEmpty()) {
+                        etags.add(inFlight.poll().await());
+                    }
+                    s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, etags));
+                }
+            } catch (final IOException | RuntimeException e) {
+                abort();
+                throw e;
+            }
+            done = true;
+        }
+
+        @Override
+        public void abort() {
+            if (done) {
+                return;
+            }
+            done = true;
+            for (final Part inFlightPart : inFlight) {
+                if (!inFlightPart.etag.cancel(false)) {
+                    try {
+                        inFlightPart.await();
+                    } catch (final IOException e) {
+                        // The part is discarded either way.
+                    }
+                }
+            }
+            inFlight.clear();
+            if (uploadId != null) {
+                try {
+                    s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+                } catch (final RuntimeException e) {
+                    System.err.println("Could not abort the upload of " + bucket + "/" + key + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,591 @@
+package lambda;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.IntFunction;
+import org.apache.commons.csv.CSVRecord;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Per-group sketches of the 'data' table used to answer the approximate
+ * aggregation functions APPROX_MEDIAN, APPROX_PERCENTILE and APPROX_COUNT_DISTINCT.
+ *
+ * LoadAurora accumulates a t-digest for every numeric column and a HyperLogLog for
+ * every text column per (resultCountry, resultState) group while inserting a batch
+ * of rows, then writes them as delta rows of its load to the 'data_sketch_deltas'
+ * table in the transaction that inserts the batch, so the sketches summarize
+ * exactly the committed rows. Writing a delta takes no locks concurrent loads
+ * wait on. Once the load is done its sketches are merged into the
+ * 'data_sketches' table and its deltas deleted, in one transaction per load.
+ * Query merges the stored sketches and the deltas of every group matching the
+ * filters, so the latency of an approximate query depends on the number of
+ * groups, not rows, and deltas a failed load left behind are still counted.
+ * The first load to create the delta table builds the stored sketches from
+ * every row already in the 'data' table, so rows loaded before sketching
+ * started are covered too.
+ * Approximate queries may only filter and group on resultCountry and resultState.
+ * The sketched columns and their positions in a transformed row are those of
+ * the active RowSchema, and rows of a schema without both group columns are not
+ * sketched at all.
+ *
+ * See {@link TDigest} and {@link HyperLogLog} for the accuracy of each sketch.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+final class SketchStore {
+
+    /** Prefix shared by all approximate aggregation functions. */
+    private static final String APPROX_PREFIX = "APPROX_";
+
+    /** The columns sketches are grouped by, in order. */
+    private static final List<String> DIMENSIONS = Arrays.asList("resultCountry", "resultState");
+
+    /** Numeric columns summarized with a t-digest, and their position in a transformed row. */
+    private static final Map<String, Integer> DIGEST_COLUMNS = new LinkedHashMap<>();
+
+    /** Text columns summarized with a HyperLogLog, and their position in a transformed row. */
+    private static final Map<String, Integer> DISTINCT_COLUMNS = new LinkedHashMap<>();
+
+    static {
+        final List<RowSchema.Column> columns = RowSchema.ACTIVE.getColumns();
+        for (int i = 0; i < columns.size(); i++) {
+            final RowSchema.Column column = columns.get(i);
+            (column.getType() == RowSchema.Type.TEXT ? DISTINCT_COLUMNS : DIGEST_COLUMNS).put(column.getName(), i);
+        }
+    }
+
+    /** Whether the rows of the active schema are sketched, which needs both DIMENSIONS as text columns. */
+    static final boolean ENABLED = DISTINCT_COLUMNS.keySet().containsAll(DIMENSIONS);
+
+    /** Seconds a load waits for another load to build the stored sketches. */
+    private static final int BUILD_TIMEOUT = 600;
+
+    /** The order groups are locked in, the same for every load. */
+    private static final Comparator<List<String>> GROUP_ORDER =
+            Comparator.comparing((List<String> groupKey) -> groupKey.get(0)).thenComparing(groupKey -> groupKey.get(1));
+
+    /** The load the deltas of this store are written under. */
+    private final String loadId = UUID.randomUUID().toString();
+
+    /** Sketches accumulated since the last flush, keyed by group and then by column. */
+    private final Map<List<String>, Map<String, Object>> pending = new HashMap<>();
+
+    /** Sketches of the batches flushed and committed so far, keyed like pending. */
+    private final Map<List<String>, Map<String, Object>> committed = new HashMap<>();
+
+    /**
+     * Create the sketch tables if they do not exist yet. The load that creates
+     * the delta table first builds the stored sketches from every row in the
+     * 'data' table, while the other loads wait for it, so no row loaded before
+     * is left out and none is counted twice.
+     * @param con The database connection, in auto-commit mode.
+     * @throws SQLException If the tables could not be created or the sketches built.
+     */
+    static void createTables(final Connection con) throws SQLException {
+        if (tableExists(con, "data_sketch_deltas")) {
+            return;
+        }
+        try (PreparedStatement lock = con.prepareStatement("SELECT GET_LOCK('data_sketches', ?)")) {
+            lock.setInt(1, BUILD_TIMEOUT);
+            try (ResultSet rs = lock.executeQuery()) {
+                if (!rs.next() || rs.getInt(1) != 1) {
+                    throw new SQLException("Timed out waiting for another load to build the sketches");
+                }
+            }
+        }
+        try {
+            if (!tableExists(con, "data_sketch_deltas")) {
+                execute(con, "CREATE TABLE IF NOT EXISTS data_sketches (resultCountry VARCHAR(255) NOT NULL, "
+                        + "resultState VARCHAR(255) NOT NULL, metric VARCHAR(64) NOT NULL, sketch MEDIUMBLOB NOT NULL, "
+                        + "PRIMARY KEY (resultCountry, resultState, metric));");
+                build(con);
+
+                // Created last, so a load that fails building leaves the build to the next one.
+                execute(con, "CREATE TABLE data_sketch_deltas (id BIGINT NOT NULL AUTO_INCREMENT, loadId CHAR(36) NOT NULL, "
+                        + "resultCountry VARCHAR(255) NOT NULL, resultState VARCHAR(255) NOT NULL, metric VARCHAR(64) NOT NULL, "
+                        + "sketch MEDIUMBLOB NOT NULL, PRIMARY KEY (id), INDEX data_sketch_deltas_load (loadId));");
+            }
+        } finally {
+            try (PreparedStatement unlock = con.prepareStatement("SELECT RELEASE_LOCK('data_sketches')")) {
+                unlock.executeQuery().close();
+            }
+        }
+    }
+
+    /**
+     * Replace the stored sketches with sketches of every row in the 'data' table.
+     */
+    private static void build(final Connection con) throws SQLException {
+        final SketchStore store = new SketchStore();
+        if (ENABLED) {
+            final List<String> names = new ArrayList<>();
+            for (final RowSchema.Column column : RowSchema.ACTIVE.getColumns()) {
+                names.add(column.getName());
+            }
+            try (PreparedStatement scan = con.prepareStatement("SELECT " + String.join(", ", names) + " FROM data",
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+
+                // MySQL Connector/J streams a forward-only result row by row with this fetch size.
+                scan.setFetchSize(Integer.MIN_VALUE);
+                try (ResultSet rs = scan.executeQuery()) {
+                    final String[] row = new String[names.size()];
+                    while (rs.next()) {
+                        for (int i = 0; i < row.length; i++) {
+                            row[i] = rs.getString(i + 1);
+                        }
+                        store.add(index -> row[index]);
+                    }
+                }
+            }
+        }
+        final boolean autoCommit = con.getAutoCommit();
+        con.setAutoCommit(false);
+        try {
+            execute(con, "DELETE FROM data_sketches");
+            upsert(con, store.pending);
+            con.commit();
+        } catch (final SQLException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            con.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Add a transformed row to the pending sketches of its group.
+     * @param record A row in the format written by Transform.
+     */
+    void add(final CSVRecord record) {
+        add(record::get);
+    }
+
+    /**
+     * Add a row to the pending sketches of its group.
+     * @param values The values of the row by their position in the active schema.
+     */
+    private void add(final IntFunction<String> values) {
+        if (!ENABLED) {
+            return;
+        }
+        final List<String> groupKey = Arrays.asList(
+                values.apply(DISTINCT_COLUMNS.get(DIMENSIONS.get(0))), values.apply(DISTINCT_COLUMNS.get(DIMENSIONS.get(1))));
+        Map<String, Object> sketches = pending.get(groupKey);
+        if (sketches == null) {
+            sketches = newSketches();
+            pending.put(groupKey, sketches);
+        }
+        for (final Map.Entry<String, Integer> column : DIGEST_COLUMNS.entrySet()) {
+            final String value = values.apply(column.getValue());
+            if (value != null) {
+                ((TDigest) sketches.get(column.getKey())).add(Double.parseDouble(value));
+            }
+        }
+        for (final Map.Entry<String, Integer> column : DISTINCT_COLUMNS.entrySet()) {
+            final String value = values.apply(column.getValue());
+            if (value != null) {
+                ((HyperLogLog) sketches.get(column.getKey())).offer(value);
+            }
+        }
+    }
+
+    /**
+     * Write the pending sketches as deltas of this load in the current
+     * transaction, which the caller commits along with the rows they summarize.
+     * @param con The database connection, not in auto-commit mode.
+     * @throws SQLException If the sketches could not be written.
+     */
+    void flush(final Connection con) throws SQLException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement insert = con.prepareStatement(
+                "INSERT INTO data_sketch_deltas (loadId, resultCountry, resultState, metric, sketch) VALUES (?,?,?,?,?)")) {
+            for (final Map.Entry<List<String>, Map<String, Object>> group : pending.entrySet()) {
+                for (final Map.Entry<String, Object> sketch : group.getValue().entrySet()) {
+                    insert.setString(1, loadId);
+                    insert.setString(2, group.getKey().get(0));
+                    insert.setString(3, group.getKey().get(1));
+                    insert.setString(4, sketch.getKey());
+                    insert.setBytes(5, serialize(sketch.getValue()));
+                    insert.addBatch();
+                }
+            }
+            insert.executeBatch();
+        }
+    }
+
+    /**
+     * Keep the flushed sketches for compact, once the transaction of their rows was committed.
+     */
+    void committed() {
+        for (final Map.Entry<List<String>, Map<String, Object>> group : pending.entrySet()) {
+            final Map<String, Object> sketches = committed.get(group.getKey());
+            if (sketches == null) {
+                committed.put(group.getKey(), group.getValue());
+            } else {
+                for (final Map.Entry<String, Object> sketch : group.getValue().entrySet()) {
+                    merge(sketches.get(sketch.getKey()), sketch.getValue());
+                }
+            }
+        }
+        pending.clear();
+    }
+
+    /**
+     * Drop the pending sketches, once the transaction of their rows was rolled back.
+     */
+    void discard() {
+        pending.clear();
+    }
+
+    /**
+     * Merge the sketches of every committed batch into the stored sketches and
+     * delete the deltas of this load, in the current transaction, which the
+     * caller commits once the load is done. The stored rows stay locked until
+     * then so concurrent loads do not lose updates, and are locked in the same
+     * group order by every load. A rolled back merge can be run again, and
+     * until one commits the deltas answer in its place.
+     * @param con The database connection, not in auto-commit mode.
+     * @throws SQLException If the sketches could not be read or written.
+     */
+    void compact(final Connection con) throws SQLException {
+        if (committed.isEmpty()) {
+            return;
+        }
+        final List<List<String>> groups = new ArrayList<>(committed.keySet());
+        groups.sort(GROUP_ORDER);
+        final Map<List<String>, Map<String, Object>> merged = new LinkedHashMap<>();
+        try (PreparedStatement select = con.prepareStatement(
+                "SELECT metric, sketch FROM data_sketches WHERE resultCountry = ? AND resultState = ? FOR UPDATE")) {
+            for (final List<String> groupKey : groups) {
+
+                // Merge the sketches of this load and what is already stored into new sketches.
+                final Map<String, Object> sketches = newSketches();
+                for (final Map.Entry<String, Object> sketch : committed.get(groupKey).entrySet()) {
+                    merge(sketches.get(sketch.getKey()), sketch.getValue());
+                }
+                select.setString(1, groupKey.get(0));
+                select.setString(2, groupKey.get(1));
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        final String metric = rs.getString(1);
+                        if (sketches.containsKey(metric)) {
+                            merge(sketches.get(metric), deserialize(metric, rs.getBytes(2)));
+                        }
+                    }
+                }
+                merged.put(groupKey, sketches);
+            }
+        }
+        upsert(con, merged);
+        try (PreparedStatement delete = con.prepareStatement("DELETE FROM data_sketch_deltas WHERE loadId = ?")) {
+            delete.setString(1, loadId);
+            delete.executeUpdate();
+        }
+    }
+
+    /**
+     * Replace the stored sketches of the given groups.
+     */
+    private static void upsert(final Connection con, final Map<List<String>, Map<String, Object>> groups) throws SQLException {
+        try (PreparedStatement upsert = con.prepareStatement(
+                "INSERT INTO data_sketches (resultCountry, resultState, metric, sketch) VALUES (?,?,?,?) "
+                + "ON DUPLICATE KEY UPDATE sketch = VALUES(sketch)")) {
+            for (final Map.Entry<List<String>, Map<String, Object>> group : groups.entrySet()) {
+                for (final Map.Entry<String, Object> sketch : group.getValue().entrySet()) {
+                    upsert.setString(1, group.getKey().get(0));
+                    upsert.setString(2, group.getKey().get(1));
+                    upsert.setString(3, sketch.getKey());
+                    upsert.setBytes(4, serialize(sketch.getValue()));
+                    upsert.addBatch();
+                }
+                upsert.executeBatch();
+            }
+        }
+    }
+
+    /**
+     * Check whether a query asks for approximate aggregations.
+     * @param aggregations The aggregations of the query, may be null.
+     * @return True if any aggregation is an APPROX_ function.
+     * @throws IllegalArgumentException If approximate and exact aggregations are mixed.
+     */
+    static boolean isApproximate(final JSONArray aggregations) {
+        if (aggregations == null || aggregations.isEmpty()) {
+            return false;
+        }
+        int approximate = 0;
+        for (int i = 0; i < aggregations.length(); i++) {
+            if (aggregations.getJSONObject(i).getString("function").toUpperCase().startsWith(APPROX_PREFIX)) {
+                approximate++;
+            }
+        }
+        if (approximate != 0 && approximate != aggregations.length()) {
+            throw new IllegalArgumentException("Approximate and exact aggregations cannot be mixed in one query");
+        }
+        return approximate != 0;
+    }
+
+    /**
+     * Answer an approximate query by merging the stored sketches of every matching group.
+     * @param con The database connection.
+     * @param aggregations The APPROX_ aggregations to compute.
+     * @param filters Equality filters, only on resultCountry and resultState. May be null.
+     * @param group Columns to group by, only resultCountry and resultState. May be null.
+     * @return One row per group, in the same shape Query returns for exact queries,
+     *         the group columns first and then the aggregations in request order.
+     * @throws SQLException If the sketches could not be read.
+     * @throws IllegalArgumentException If the query cannot be answered from sketches.
+     */
+    static ArrayList<HashMap<String, Object>> query(
+            final Connection con,
+            final JSONArray aggregations,
+            final JSONArray filters,
+            final JSONArray group
+    ) throws SQLException {
+        if (!ENABLED) {
+            throw new IllegalArgumentException("Approximate aggregations need the text columns " + DIMENSIONS
+                    + ", which the schema of the data table does not have");
+        }
+
+        // Validate the group and collect the metrics the aggregations need.
+        final List<String> groupColumns = new ArrayList<>();
+        if (group != null) {
+            for (int i = 0; i < group.length(); i++) {
+                groupColumns.add(dimension(group.getString(i)));
+            }
+        }
+        final List<String> metrics = new ArrayList<>();
+        for (int i = 0; i < aggregations.length(); i++) {
+            final JSONObject aggregation = aggregations.getJSONObject(i);
+            final String column = aggregation.getString("column");
+            final String function = aggregation.getString("function").toUpperCase();
+            if (function.equals("APPROX_COUNT_DISTINCT")) {
+                if (!DISTINCT_COLUMNS.containsKey(column)) {
+                    throw new IllegalArgumentException("APPROX_COUNT_DISTINCT is only available for " + DISTINCT_COLUMNS.keySet());
+                }
+            } else if (function.equals("APPROX_MEDIAN") || function.equals("APPROX_PERCENTILE")) {
+                if (!DIGEST_COLUMNS.containsKey(column)) {
+                    throw new IllegalArgumentException(function + " is only available for " + DIGEST_COLUMNS.keySet());
+                }
+            } else {
+                throw new IllegalArgumentException("Unknown approximate aggregation " + function);
+            }
+            if (!metrics.contains(column)) {
+                metrics.add(column);
+            }
+        }
+
+        // Select the stored sketches and the deltas of every matching group.
+        final StringBuilder where = new StringBuilder(" WHERE metric IN (");
+        for (int i = 0; i < metrics.size(); i++) {
+            where.append(i == 0 ? "?" : ",?");
+        }
+        where.append(")");
+        final List<String> values = new ArrayList<>(metrics);
+        if (filters != null) {
+            for (int i = 0; i < filters.length(); i++) {
+                final JSONObject filter = filters.getJSONObject(i);
+                where.append(" AND ").append(dimension(filter.getString("column"))).append(" = ?");
+                values.add(filter.getString("value"));
+            }
+        }
+        final String sql = "SELECT resultCountry, resultState, metric, sketch FROM data_sketches" + where
+                + " UNION ALL SELECT resultCountry, resultState, metric, sketch FROM data_sketch_deltas" + where
+                + " ORDER BY resultCountry, resultState";
+        values.addAll(new ArrayList<>(values));
+
+        // Merge the sketches of each output group.
+        final Map<List<String>, Map<String, Object>> merged = new LinkedHashMap<>();
+        try (PreparedStatement select = con.prepareStatement(sql)) {
+            for (int i = 0; i < values.size(); i++) {
+                select.setString(i + 1, values.get(i));
+            }
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    final List<String> groupKey = new ArrayList<>(groupColumns.size());
+                    for (final String column : groupColumns) {
+                        groupKey.add(rs.getString(column));
+                    }
+                    Map<String, Object> sketches = merged.get(groupKey);
+                    if (sketches == null) {
+                        sketches = new HashMap<>();
+                        merged.put(groupKey, sketches);
+                    }
+                    final String metric = rs.getString("metric");
+                    final Object sketch = deserialize(metric, rs.getBytes("sketch"));
+                    if (sketches.containsKey(metric)) {
+                        merge(sketches.get(metric), sketch);
+                    } else {
+                        sketches.put(metric, sketch);
+                    }
+                }
+            }
+        }
+
+        // Evaluate the aggregations against the merged sketches.
+        final ArrayList<HashMap<String, Object>> result = new ArrayList<>();
+        for (final Map.Entry<List<String>, Map<String, Object>> entry : merged.entrySet()) {
+            final HashMap<String, Object> row = new LinkedHashMap<>();
+            for (int i = 0; i < groupColumns.size(); i++) {
+                row.put(groupColumns.get(i), entry.getKey().get(i));
+            }
+            for (int i = 0; i < aggregations.length(); i++) {
+                final JSONObject aggregation = aggregations.getJSONObject(i);
+                final String column = aggregation.getString("column");
+                final String function = aggregation.getString("function").toUpperCase();
+                final Object sketch = entry.getValue().get(column);
+                if (function.equals("APPROX_COUNT_DISTINCT")) {
+                    row.put(function + "_" + column, sketch == null ? 0 : ((HyperLogLog) sketch).cardinality());
+                } else if (function.equals("APPROX_MEDIAN")) {
+                    row.put(function + "_" + column, sketch == null ? null : ((TDigest) sketch).quantile(0.5));
+                } else {
+                    final double percentile = percentile(aggregation);
+                    final String alias = String.format("%s_%s_%s", function, formatPercentile(percentile), column);
+                    row.put(alias, sketch == null ? null : ((TDigest) sketch).quantile(percentile));
+                }
+            }
+            result.add(row);
+        }
+        return result;
+    }
+
+    /**
+     * Estimate the number of distinct values of every sketched text column over the whole table.
+     * @param con The database connection.
+     * @return Estimated distinct values keyed by column, empty if nothing was loaded yet.
+     * @throws SQLException If the sketches could not be read.
+     */
+    static Map<String, Long> distinctCounts(final Connection con) throws SQLException {
+        final Map<String, HyperLogLog> merged = new HashMap<>();
+        if (!ENABLED) {
+            return new HashMap<>();
+        }
+        final StringBuilder where = new StringBuilder(" WHERE metric IN (");
+        for (int i = 0; i < DISTINCT_COLUMNS.size(); i++) {
+            where.append(i == 0 ? "?" : ",?");
+        }
+        where.append(")");
+        try (PreparedStatement select = con.prepareStatement("SELECT metric, sketch FROM data_sketches" + where
+                + " UNION ALL SELECT metric, sketch FROM data_sketch_deltas" + where)) {
+            int index = 1;
+            for (int i = 0; i < 2; i++) {
+                for (final String column : DISTINCT_COLUMNS.keySet()) {
+                    select.setString(index++, column);
+                }
+            }
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    final HyperLogLog sketch = HyperLogLog.fromBytes(rs.getBytes(2));
+                    final HyperLogLog existing = merged.get(rs.getString(1));
+                    if (existing == null) {
+                        merged.put(rs.getString(1), sketch);
+                    } else {
+                        existing.merge(sketch);
+                    }
+                }
+            }
+        }
+        final Map<String, Long> counts = new HashMap<>();
+        for (final Map.Entry<String, HyperLogLog> entry : merged.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().cardinality());
+        }
+        return counts;
+    }
+
+    /**
+     * Read the percentile of an APPROX_PERCENTILE aggregation, given in percent such as 95 or 99.9.
+     * @return The percentile as a fraction.
+     */
+    private static double percentile(final JSONObject aggregation) {
+        if (!aggregation.has("percentile")) {
+            throw new IllegalArgumentException("APPROX_PERCENTILE requires a 'percentile' property");
+        }
+        final double percentile = aggregation.getDouble("percentile");
+        if (!(percentile >= 0 && percentile <= 100)) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100, got " + percentile);
+        }
+        return percentile / 100;
+    }
+
+    private static String formatPercentile(final double percentile) {
+        final double percent = percentile * 100;
+        if (percent == Math.rint(percent)) {
+            return String.valueOf((long) percent);
+        }
+        return String.valueOf(percent).replace('.', '_');
+    }
+
+    private static String dimension(final String column) {
+        if (!DIMENSIONS.contains(column)) {
+            throw new IllegalArgumentException("Approximate queries can only filter and group on " + DIMENSIONS);
+        }
+        return column;
+    }
+
+    private static boolean tableExists(final Connection con, final String table) throws SQLException {
+        try (PreparedStatement check = con.prepareStatement(
+                "SELECT EXISTS (SELECT * FROM information_schema.tables WHERE table_schema = DATABASE() AND table_name = ?)")) {
+            check.setString(1, table);
+            try (ResultSet rs = check.executeQuery()) {
+                rs.next();
+                return rs.getBoolean(1);
+            }
+        }
+    }
+
+    private static void execute(final Connection con, final String sql) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(sql)) {
+            statement.execute();
+        }
+    }
+
+    private static Map<String, Object> newSketches() {
+        final Map<String, Object> sketches = new HashMap<>();
+        for (final String column : DIGEST_COLUMNS.keySet()) {
+            sketches.put(column, new TDigest(TDigest.DEFAULT_COMPRESSION));
+        }
+        for (final String column : DISTINCT_COLUMNS.keySet()) {
+            sketches.put(column, new HyperLogLog(HyperLogLog.DEFAULT_PRECISION));
+        }
+        return sketches;
+    }
+
+    private static void merge(final Object into, final Object from) {
+        if (into instanceof TDigest) {
+            ((TDigest) into).merge((TDigest) from);
+        } else {
+            ((HyperLogLog) into).merge((HyperLogLog) from);
+        }
+    }
+
+    private static Object deserialize(final String metric, final byte[] bytes) {
+        if (DIGEST_COLUMNS.containsKey(metric)) {
+            return TDigest.fromBytes(bytes);
+        }
+        return HyperLogLog.fromBytes(bytes);
+    }
+
+    private static byte[] serialize(final Object sketch) {
+        if (sketch instanceof TDigest) {
+            return ((TDigest) sketch).toBytes();
+        }
+        return ((HyperLogLog) sketch).toBytes();
+    }
+}
@@ -0,0 +1,251 @@
+package lambda;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Mergeable t-digest used to answer APPROX_MEDIAN and APPROX_PERCENTILE.
+ * Values are collected into a small buffer and periodically merged into a
+ * sorted list of centroids whose sizes are bounded by the arcsine scale
+ * function, so centroids near the tails stay small.
+ *
+ * Accuracy: with the default compression of 100 the digest keeps at most a
+ * few hundred centroids (a few kB serialized). Quantile estimates are
+ * typically within 0.5% in rank of the true quantile around the median and
+ * considerably better towards q = 0.01 and q = 0.99. Merging digests does
+ * not degrade accuracy beyond that of a single digest.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+final class TDigest {
+
+    /** The compression used for the sketches stored by LoadAurora. */
+    static final double DEFAULT_COMPRESSION = 100;
+
+    /** The serialization format version. */
+    private static final byte VERSION = 1;
+
+    /** Controls the number of centroids kept, higher is more accurate. */
+    private final double compression;
+
+    /** Means of the merged centroids, sorted ascending. */
+    private double[] means;
+
+    /** Weights of the merged centroids. */
+    private double[] weights;
+
+    /** Number of merged centroids. */
+    private int count;
+
+    /** Means of the values not yet merged. */
+    private final double[] bufferMeans;
+
+    /** Weights of the values not yet merged. */
+    private final double[] bufferWeights;
+
+    /** Number of values not yet merged. */
+    private int bufferCount;
+
+    /** Total weight of all centroids and buffered values. */
+    private double totalWeight;
+
+    /** Smallest value seen. */
+    private double min = Double.POSITIVE_INFINITY;
+
+    /** Largest value seen. */
+    private double max = Double.NEGATIVE_INFINITY;
+
+    TDigest(final double compression) {
+        this.compression = compression;
+        final int capacity = (int) Math.ceil(compression) * 2 + 10;
+        this.means = new double[capacity];
+        this.weights = new double[capacity];
+        this.bufferMeans = new double[capacity * 5];
+        this.bufferWeights = new double[capacity * 5];
+    }
+
+    /**
+     * Add a single value to the digest. NaN values are ignored.
+     * @param value The value to add.
+     */
+    void add(final double value) {
+        add(value, 1);
+    }
+
+    private void add(final double mean, final double weight) {
+        if (Double.isNaN(mean)) {
+            return;
+        }
+        if (bufferCount == bufferMeans.length) {
+            compress();
+        }
+        bufferMeans[bufferCount] = mean;
+        bufferWeights[bufferCount] = weight;
+        bufferCount++;
+        totalWeight += weight;
+        min = Math.min(min, mean);
+        max = Math.max(max, mean);
+    }
+
+    /**
+     * Merge another digest into this one.
+     * @param other The digest to merge, left unchanged.
+     */
+    void merge(final TDigest other) {
+        other.compress();
+        for (int i = 0; i < other.count; i++) {
+            add(other.means[i], other.weights[i]);
+        }
+    }
+
+    /**
+     * Estimate the value at the given quantile.
+     * @param q The quantile between 0 and 1.
+     * @return The estimated value, or NaN if the digest is empty.
+     */
+    double quantile(final double q) {
+        compress();
+        if (count == 0) {
+            return Double.NaN;
+        }
+        if (count == 1) {
+            return means[0];
+        }
+        final double index = q * totalWeight;
+
+        // Interpolate between the minimum and the center of the first centroid.
+        if (index < weights[0] / 2) {
+            return min + (means[0] - min) * index / (weights[0] / 2);
+        }
+
+        // Interpolate between the centers of adjacent centroids.
+        double cumulative = weights[0] / 2;
+        for (int i = 0; i < count - 1; i++) {
+            final double step = (weights[i] + weights[i + 1]) / 2;
+            if (cumulative + step > index) {
+                return means[i] + (means[i + 1] - means[i]) * (index - cumulative) / step;
+            }
+            cumulative += step;
+        }
+
+        // Interpolate between the center of the last centroid and the maximum.
+        final double lastHalf = weights[count - 1] / 2;
+        final double fraction = Math.min(1, (index - cumulative) / lastHalf);
+        return means[count - 1] + (max - means[count - 1]) * fraction;
+    }
+
+    /**
+     * @return The number of values summarized by this digest.
+     */
+    long size() {
+        return (long) totalWeight;
+    }
+
+    /**
+     * Serialize the digest for storage.
+     * @return The serialized digest.
+     */
+    byte[] toBytes() {
+        compress();
+        final ByteBuffer buffer = ByteBuffer.allocate(1 + 8 * 3 + 4 + count * 16);
+        buffer.put(VERSION);
+        buffer.putDouble(compression);
+        buffer.putDouble(min);
+        buffer.putDouble(max);
+        buffer.putInt(count);
+        for (int i = 0; i < count; i++) {
+            buffer.putDouble(means[i]);
+            buffer.putDouble(weights[i]);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Deserialize a digest written by {@link #toBytes()}.
+     * @param bytes The serialized digest.
+     * @return The digest.
+     */
+    static TDigest fromBytes(final byte[] bytes) {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.get() != VERSION) {
+            throw new IllegalArgumentException("Unsupported t-digest version");
+        }
+        final TDigest digest = new TDigest(buffer.getDouble());
+        final double min = buffer.getDouble();
+        final double max = buffer.getDouble();
+        final int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            digest.add(buffer.getDouble(), buffer.getDouble());
+        }
+        if (count > 0) {
+            digest.min = min;
+            digest.max = max;
+        }
+        return digest;
+    }
+
+    /**
+     * Merge the buffered values into the centroid list.
+     */
+    private void compress() {
+        if (bufferCount == 0) {
+            return;
+        }
+
+        // Combine the existing centroids with the buffer and sort by mean.
+        final int n = count + bufferCount;
+        final double[] allMeans = Arrays.copyOf(means, n);
+        final double[] allWeights = Arrays.copyOf(weights, n);
+        System.arraycopy(bufferMeans, 0, allMeans, count, bufferCount);
+        System.arraycopy(bufferWeights, 0, allWeights, count, bufferCount);
+        final Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(allMeans[a], allMeans[b]));
+
+        // Greedily merge neighbours while the merged centroid spans at most one unit of k.
+        final double[] mergedMeans = new double[Math.max(means.length, n)];
+        final double[] mergedWeights = new double[mergedMeans.length];
+        int merged = 0;
+        double weightSoFar = 0;
+        double currentMean = allMeans[order[0]];
+        double currentWeight = allWeights[order[0]];
+        for (int i = 1; i < n; i++) {
+            final double mean = allMeans[order[i]];
+            final double weight = allWeights[order[i]];
+            final double q0 = weightSoFar / totalWeight;
+            final double q2 = (weightSoFar + currentWeight + weight) / totalWeight;
+            if (scale(q2) - scale(q0) <= 1) {
+                currentWeight += weight;
+                currentMean += (mean - currentMean) * weight / currentWeight;
+            } else {
+                mergedMeans[merged] = currentMean;
+                mergedWeights[merged] = currentWeight;
+                merged++;
+                weightSoFar += currentWeight;
+                currentMean = mean;
+                currentWeight = weight;
+            }
+        }
+        mergedMeans[merged] = currentMean;
+        mergedWeights[merged] = currentWeight;
+        merged++;
+
+        means = mergedMeans;
+        weights = mergedWeights;
+        count = merged;
+        bufferCount = 0;
+    }
+
+    /**
+     * The k1 scale function, mapping a quantile to a centroid index.
+     */
+    private double scale(final double q) {
+        return compression / (2 * Math.PI) * Math.asin(2 * Math.min(1, q) - 1);
+    }
+}
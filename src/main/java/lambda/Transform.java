@@ -3,13 +3,9 @@ package lambda;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
-import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
-import com.amazonaws.services.s3.model.DeleteObjectRequest;
-import com.amazonaws.services.s3.model.GetObjectRequest;
-import com.amazonaws.services.s3.model.S3Object;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -17,23 +13,57 @@ import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.Normalizer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.regex.Pattern;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
 import org.apache.http.HttpStatus;
 import org.json.JSONObject;
 import saaf.Inspector;
+import saaf.Jfr;
+import saaf.MetricsRegistry;
+import saaf.Span;
 
 /**
  * Transform lambda function as part of the Transform-Load-Query pipeline for TCSS-462.
  * This lambda function is automatically invoked via a Cloud-Watch event when a file is placed in the correct S3 bucket.
  * This function transforms the file given by the S3 bucket event.
+ * A request may also carry a batch of objects, such as an SQS batch, which share
+ * the recurring cities cache and are transformed concurrently, see ObjectBatch.
+ *
+ * The cache holds every spelling of a city seen, and the key of each city: the
+ * spelling trimmed, case-folded, NFKC-normalized and with runs of whitespace
+ * collapsed, see cityKey. A spelling missing from the cache is looked up by its
+ * key, so "New York", "new york" and "NEW  YORK " are geocoded once. The
+ * cityCache attribute reports the hit rate with and without the keys. The cache
+ * can be filled ahead of a load with Prewarm.
+ *
+ * With tlq.cluster set, the transformed rows are clustered by country, state
+ * and city within the memory budget of the function, spilling to /tmp, and a
+ * sidecar index of the clusters is written along with them, see ClusterSort.
+ *
+ * With tlq.hedge set, the S3 reads and geocoding lookups are hedged, see Hedge,
+ * and the hedging attribute reports them for the container.
  *
  * @author Brandon Ragghianti
  * @author Michael
@@ -47,18 +77,73 @@ public class Transform implements RequestHandler<HashMap<String, Object>,
     /** API key for the OpenGate API */
     private static final String API_KEY = "";
 
+    /** The OpenCage geocoding endpoint, overridable with the geocoder.url system property or GEOCODER_URL. */
+    private static final String GEOCODER_URL = System.getProperty("geocoder.url",
+            System.getenv("GEOCODER_URL") != null ? System.getenv("GEOCODER_URL") : "https://api.opencagedata.com/geocode/v1/json");
+
+    /** The connect and read timeout of a geocoding request, set with tlq.geocodeTimeoutMs. */
+    private static final int GEOCODE_TIMEOUT_MS = Integer.getInteger("tlq.geocodeTimeoutMs", 10000);
+
     /** The S3 bucket for the transformed CSV file to be put. */
     private static final String PUT_BUCKET = "load.tlq";
 
-    /** The S3 bucket for the recurring cities serialized object. */
-    private static final String RECURRING_CITIES_BUCKET = "recurring-cities.tlq";
+    /** The S3 bucket for the recurring cities serialized object, the processed files and the cluster indexes. */
+    static final String RECURRING_CITIES_BUCKET = "recurring-cities.tlq";
 
     /** The file name of the recurring cities serialized object. */
     private static final String RECURRING_CITIES_FILENAME = "recurring-cities";
 
+    /**
+     * Whether to drop files whose content was transformed before, set with the
+     * tlq.dedupe system property or TLQ_DEDUPE. A file is spooled to /tmp while
+     * its SHA-256 is computed, before any row is transformed, and its hash is
+     * claimed with an object keyed by it in the recurring cities bucket, created
+     * only if the key is free. Of two deliveries of the same content exactly one
+     * claims it, see ObjectStore.create. A file whose hash was processed before
+     * is deleted without being transformed or geocoded, and one whose hash is
+     * claimed by a delivery in progress fails and is kept to be retried. The
+     * claim is released if the transform fails, and replaced by an empty object
+     * recording the processed file once the output is written. A claim older
+     * than CLAIM_TIMEOUT_MS was left by a delivery that died and is released.
+     */
+    static final boolean DEDUPE = "true".equalsIgnoreCase(System.getProperty("tlq.dedupe", System.getenv("TLQ_DEDUPE")));
+
+    /** The prefix of the keys recording processed files, followed by their hash. */
+    private static final String PROCESSED_PREFIX = "processed/sha256-";
+
+    /** The age of a claim after which its delivery is taken for dead, the longest a function runs. */
+    private static final long CLAIM_TIMEOUT_MS = 15 * 60 * 1000;
+
+    /** Container-wide counts of rows whose city was and was not in the recurring cities cache. */
+    static final MetricsRegistry.Counter GEOCODE_HITS = MetricsRegistry.counter("geocode.hits");
+    static final MetricsRegistry.Counter GEOCODE_MISSES = MetricsRegistry.counter("geocode.misses");
+
+    /** Container-wide count of the hits whose spelling was missing from the cache, but its key was not. */
+    static final MetricsRegistry.Counter GEOCODE_KEY_HITS = MetricsRegistry.counter("geocode.keyHits");
+
+    /** Runs of whitespace and other separators, collapsed in a city key. */
+    private static final Pattern WHITESPACE = Pattern.compile("[\\s\\p{Z}]+");
+
+    /** The object store, null to use the S3 store shared by the container. */
+    private final ObjectStore store;
+
+    public Transform() {
+        this(null);
+    }
+
+    /**
+     * Runs in the init phase on Lambda, where the container is primed, see Warmup.
+     * @param store The object store to use instead of S3, such as a local directory.
+     */
+    Transform(final ObjectStore store) {
+        this.store = store;
+        Warmup.prime(store == null, false);
+    }
+
     /**
      * Handler for the AWS lambda function. Automatically triggered by a Cloud-Watch event.
-     * @param request The generated request from AWS. Must include a bucketname and filename property for the csv to be transformed.
+     * @param request The generated request from AWS. Must include a bucketname and filename property for the csv to be transformed,
+     *                or be a batch of objects.
      * @param context The generated context from AWS.       
      * @return The state of this lambda function container.
      */
@@ -75,31 +160,111 @@ public class Transform implements RequestHandler<HashMap<String, Object>,
 
         //****************START FUNCTION IMPLEMENTATION*************************
 
+        // The cold start reports how long the container was primed, see Warmup.
+        Warmup.report(inspector);
+
         LambdaLogger logger = context.getLogger();
 
-        // Retrieve the bucketname and filename from the S3 event JSON.
-        final HashMap<?, ?> requestParameters = (HashMap<?, ?>) ((HashMap<?, ?>) request.get("detail")).get("requestParameters");
-        final String bucketname = (String) requestParameters.get("bucketName");
-        final String filename = (String) requestParameters.get("key");
+        final ObjectStore objectStore = store != null ? store : Clients.objectStore();
 
-        // Retrieve and the access the file from S3.
-        final AmazonS3 s3Client = AmazonS3ClientBuilder.standard().build();
-        final S3Object s3Object = s3Client.getObject(new GetObjectRequest(bucketname, filename));
-        final InputStream objectData = s3Object.getObjectContent();
+        // Caches already queried cities.
+        final Map<String, CacheLocation> recurringCities = loadCities(objectStore, inspector, logger);
+        final long hits = GEOCODE_HITS.get();
+        final long keyHits = GEOCODE_KEY_HITS.get();
+        final long misses = GEOCODE_MISSES.get();
+
+        // The memory budget of clustering, from the function memory, 0 if the output is not clustered.
+        long clusterBudget = 0;
+        if (ClusterSort.ENABLED && ClusterSort.supports(RowSchema.ACTIVE)) {
+            inspector.inspectPlatform();
+            clusterBudget = ClusterSort.budget(inspector, context);
+        }
 
-        // Create a CSVParser on the S3 file.
-        final CSVParser dataParser;
+        if (ObjectBatch.isBatch(request)) {
+
+            // Transform several objects at once, sharing the cache, see ObjectBatch.
+            final ObjectBatch batch = ObjectBatch.parse(request);
+            final long objectBudget = clusterBudget / Math.max(1, Math.min(ObjectBatch.MAX_CONCURRENCY, batch.size()));
+            final Span batchSpan = inspector.startSpan("batch");
+            final Span transform = inspector.span("transform");
+            final Span upload = inspector.span("upload");
+            final Map<String, CacheLocation> sharedCities = new ConcurrentHashMap<>(recurringCities);
+            try {
+                batch.run((bucketname, filename) -> {
+                    final Span transformFork = transform.fork();
+                    final Span uploadFork = upload.fork();
+                    try {
+                        return transformObject(objectStore, bucketname, filename, sharedCities, objectBudget,
+                                transformFork, uploadFork, inspector, logger);
+                    } finally {
+                        transform.join(transformFork);
+                        upload.join(uploadFork);
+                    }
+                }, inspector);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            recurringCities.putAll(sharedCities);
+            batchSpan.add("objects", batch.size());
+            batchSpan.close();
+            inspector.addAttribute("objects", batch.getObjects());
+            inspector.addAttribute("batchItemFailures", batch.getFailures());
+        } else {
+            // Retrieve the bucketname and filename from the S3 event JSON.
+            final HashMap<?, ?> requestParameters = (HashMap<?, ?>) ((HashMap<?, ?>) request.get("detail")).get("requestParameters");
+            final String bucketname = (String) requestParameters.get("bucketName");
+            final String filename = (String) requestParameters.get("key");
+            final HashMap<String, Object> counters = transformObject(objectStore, bucketname, filename, recurringCities, clusterBudget,
+                    inspector.span("transform"), inspector.span("upload"), inspector, logger);
+            if (counters.containsKey("pipeline")) {
+                inspector.addAttribute("pipeline", counters.get("pipeline"));
+            }
+            if (counters.containsKey("sha256")) {
+                inspector.addAttribute("sha256", counters.get("sha256"));
+                inspector.addAttribute("duplicate", counters.get("duplicate"));
+            }
+        }
+
+        inspector.addAttribute("cityCache", cityCacheReport(
+                GEOCODE_HITS.get() - hits, GEOCODE_KEY_HITS.get() - keyHits, GEOCODE_MISSES.get() - misses));
+        saveCities(objectStore, recurringCities, inspector, logger);
+        if (Hedge.ENABLED) {
+            inspector.addAttribute("hedging", Hedge.report());
+        }
+
+        //****************END FUNCTION IMPLEMENTATION***************************
+
+        inspector.inspectAllDeltas();
+        return inspector.finish();
+    }
+
+    /**
+     * Load the recurring cities cache, adding the key of every spelling missing
+     * it, as in caches saved before the keys were added.
+     * @param objectStore The store of the cache.
+     * @param inspector Records the cacheLoad span.
+     * @param logger Logs the cause of a failure.
+     * @return The cache, empty if none was saved.
+     */
+    static HashMap<String, CacheLocation> loadCities(
+            final ObjectStore objectStore,
+            final Inspector inspector,
+            final LambdaLogger logger
+    ) {
+        final Span cacheLoad = inspector.startSpan("cacheLoad");
+        final HashMap<String, CacheLocation> recurringCities;
+        final boolean cached;
         try {
-            dataParser = CSVParser.parse(objectData, Charset.defaultCharset(), CSVFormat.DEFAULT);
+            cached = objectStore.exists(RECURRING_CITIES_BUCKET, RECURRING_CITIES_FILENAME);
         } catch (final IOException e) {
+            logger.log("Could not look up recurring cities: " + e.getMessage());
             throw new RuntimeException(e);
         }
-
-        // Caches already queried cities.
-        final Map<String, CacheLocation> recurringCities;
-        if (s3Client.doesObjectExist(RECURRING_CITIES_BUCKET, RECURRING_CITIES_FILENAME)) {
-            final InputStream serializedRecurringCities = s3Client.getObject(new GetObjectRequest(RECURRING_CITIES_BUCKET, RECURRING_CITIES_FILENAME)).getObjectContent();
+        if (cached) {
+            final InputStream serializedRecurringCities;
             try {
+                serializedRecurringCities = objectStore.get(RECURRING_CITIES_BUCKET, RECURRING_CITIES_FILENAME);
                 final ObjectInputStream serializedRecurringCitiesObjectStream = new ObjectInputStream(serializedRecurringCities);
                 recurringCities = (HashMap<String, CacheLocation>) serializedRecurringCitiesObjectStream.readObject();
                 serializedRecurringCitiesObjectStream.close();
@@ -116,162 +281,640 @@ public class Transform implements RequestHandler<HashMap<String, Object>,
         } else {
             recurringCities = new HashMap<>();
         }
+        for (final Map.Entry<String, CacheLocation> city : new ArrayList<>(recurringCities.entrySet())) {
+            recurringCities.putIfAbsent(cityKey(city.getKey()), city.getValue());
+        }
+        cacheLoad.add("entries", recurringCities.size());
+        cacheLoad.close();
+        return recurringCities;
+    }
 
-        // Buffered writer for writing to /tmp on Lambda instance.
-        final String tmpFileName = String.format("/tmp/%s", filename);
-        final BufferedWriter writer;
+    /**
+     * Save the recurring cities cache for the next invocation.
+     * @param objectStore The store of the cache.
+     * @param recurringCities The cache.
+     * @param inspector Records the cacheSave span.
+     * @param logger Logs the cause of a failure.
+     */
+    static void saveCities(
+            final ObjectStore objectStore,
+            final Map<String, CacheLocation> recurringCities,
+            final Inspector inspector,
+            final LambdaLogger logger
+    ) {
+        final Span cacheSave = inspector.startSpan("cacheSave");
+        final Span serialize = inspector.startSpan("serialize");
+        final String recurringCitiesFileLocation = String.format("/tmp/%s", RECURRING_CITIES_FILENAME);
         try {
-            writer = new BufferedWriter(new FileWriter(tmpFileName));
+            final FileOutputStream recurringCitiesOutput = new FileOutputStream(recurringCitiesFileLocation);
+            final ObjectOutputStream recurringCitiesOutputStream = new ObjectOutputStream(recurringCitiesOutput);
+            recurringCitiesOutputStream.writeObject(recurringCities);
+            recurringCitiesOutputStream.close();
+            recurringCitiesOutput.close();
         } catch (final IOException e) {
+            logger.log("Could not properly write recurring cities: " + e.getMessage());
             throw new RuntimeException(e);
         }
 
-        // Iterate over all rows in the given CSV file.
-        for (final CSVRecord record : dataParser) {
+        final File recurringCitiesFile = new File(recurringCitiesFileLocation);
+        serialize.close();
+        cacheSave.add("entries", recurringCities.size());
+        cacheSave.add("bytes", recurringCitiesFile.length());
+
+        final Span cacheUpload = inspector.startSpan("upload");
+        try {
+            objectStore.put(RECURRING_CITIES_BUCKET, RECURRING_CITIES_FILENAME, recurringCitiesFile);
+        } catch (final IOException e) {
+            logger.log("Could not upload recurring cities: " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+        cacheUpload.close();
 
-            // Transform row.
-            final String transformedRow = transformRow(record, recurringCities);
+        // Delete tmpFile from /tmp.
+        if (!recurringCitiesFile.delete()) {
+            System.err.println("Failed to delete temporary file: " + recurringCitiesFileLocation);
+        }
+        cacheSave.close();
+    }
 
-            // Write completed String out to /tmp.
+    /**
+     * @param hits The lookups found in the cache.
+     * @param keyHits The hits found by the key of the city only.
+     * @param misses The lookups geocoded.
+     * @return The lookups and the hit rate with keys and, as before, by spelling only.
+     */
+    private static HashMap<String, Object> cityCacheReport(final long hits, final long keyHits, final long misses) {
+        final long lookups = hits + misses;
+        final HashMap<String, Object> report = new HashMap<>();
+        report.put("lookups", lookups);
+        report.put("hits", hits);
+        report.put("keyHits", keyHits);
+        report.put("misses", misses);
+        report.put("hitRate", lookups > 0 ? Math.round(1000.0 * hits / lookups) / 1000.0 : 0.0);
+        report.put("spellingHitRate", lookups > 0 ? Math.round(1000.0 * (hits - keyHits) / lookups) / 1000.0 : 0.0);
+        return report;
+    }
+
+    /**
+     * Transform an object into PUT_BUCKET and delete it, unless DEDUPE is set
+     * and its content was transformed before.
+     * @param objectStore The store of both buckets.
+     * @param bucketname The bucket of the object.
+     * @param filename The key of the object, and of the transformed object.
+     * @param recurringCities The cache of already queried cities, updated on a miss.
+     * @param clusterBudget The memory budget of clustering the rows, 0 to write them in arrival order.
+     * @param transform Started while the object is transformed.
+     * @param upload Started while the object is moved.
+     * @param inspector Counts the allocations of the worker threads.
+     * @param logger Logs the cause of a failure.
+     * @return The rows and bytes written, the pipeline summary if it ran in stages, the
+     *         clusters if clustered, and the hash of the file and whether it was a
+     *         duplicate if DEDUPE is set.
+     */
+    private static HashMap<String, Object> transformObject(
+            final ObjectStore objectStore,
+            final String bucketname,
+            final String filename,
+            final Map<String, CacheLocation> recurringCities,
+            final long clusterBudget,
+            final Span transform,
+            final Span upload,
+            final Inspector inspector,
+            final LambdaLogger logger
+    ) {
+        if (!DEDUPE) {
+            final InputStream objectData;
             try {
-                writer.write(transformedRow);
+                objectData = objectStore.get(bucketname, filename);
             } catch (final IOException e) {
+                logger.log("Could not read " + bucketname + "/" + filename + ": " + e.getMessage());
                 throw new RuntimeException(e);
             }
+            return transformObject(objectStore, bucketname, filename, objectData, null,
+                    recurringCities, clusterBudget, transform, upload, inspector, logger);
         }
 
+        // Spool the file to /tmp while hashing it, and claim the hash before any row is transformed or geocoded.
+        File spool = null;
         try {
-            dataParser.close();
-            writer.close();
+            final long start = System.nanoTime();
+            spool = File.createTempFile("input-", ".csv");
+            final MessageDigest digest = sha256();
+            try (InputStream content = new DigestInputStream(objectStore.get(bucketname, filename), digest)) {
+                Files.copy(content, spool.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            final String hash = toHex(digest.digest());
+            final String claim = "claimed " + System.currentTimeMillis() + " " + UUID.randomUUID();
+            final boolean claimed = claim(objectStore, hash, claim);
+            upload.child("dedupe").record(System.nanoTime() - start);
+
+            final HashMap<String, Object> counters;
+            if (claimed) {
+                try (InputStream objectData = new FileInputStream(spool)) {
+                    counters = transformObject(objectStore, bucketname, filename, objectData, hash,
+                            recurringCities, clusterBudget, transform, upload, inspector, logger);
+                } catch (final IOException | RuntimeException e) {
+                    release(objectStore, hash, claim, logger);
+                    throw e;
+                }
+            } else {
+                objectStore.delete(bucketname, filename);
+                upload.add("duplicates", 1);
+                counters = new HashMap<>();
+            }
+            counters.put("sha256", hash);
+            counters.put("duplicate", !claimed);
+            return counters;
         } catch (final IOException e) {
+            logger.log("Could not deduplicate " + bucketname + "/" + filename + ": " + e.getMessage());
             throw new RuntimeException(e);
+        } finally {
+            if (spool != null && !spool.delete()) {
+                System.err.println("Failed to delete temporary file: " + spool);
+            }
         }
+    }
 
-        // Delete S3 file.
-        s3Client.deleteObject(new DeleteObjectRequest(bucketname, filename));
+    /**
+     * Claim the hash of a file for this delivery.
+     * @param objectStore The store of the recurring cities bucket.
+     * @param hash The SHA-256 of the file.
+     * @param claim The content of the claim, unique to this delivery.
+     * @return True if the hash was claimed, false if a file with the hash was processed before.
+     * @throws IOException If another delivery holds the claim, or the claim could not be made.
+     */
+    private static boolean claim(final ObjectStore objectStore, final String hash, final String claim) throws IOException {
+        final String key = PROCESSED_PREFIX + hash;
+        if (objectStore.create(RECURRING_CITIES_BUCKET, key, claim.getBytes(StandardCharsets.UTF_8))) {
+            return true;
+        }
+        final String holder = readMarker(objectStore, key);
+        if (holder.isEmpty()) {
+            return false;
+        }
+        long claimedAt = 0;
+        final String[] parts = holder.split(" ");
+        if (parts.length == 3) {
+            try {
+                claimedAt = Long.parseLong(parts[1]);
+            } catch (final NumberFormatException e) {
+                // Not a claim this class wrote, taken for a stale one.
+            }
+        }
+        if (System.currentTimeMillis() - claimedAt < CLAIM_TIMEOUT_MS) {
+            throw new IOException("sha256-" + hash + " is being transformed by another delivery");
+        }
 
-        // Load tmpFile.
-        final File tmpFile = new File(tmpFileName);
+        // Released for the next delivery to claim, this one is retried as well.
+        if (holder.equals(readMarker(objectStore, key))) {
+            objectStore.delete(RECURRING_CITIES_BUCKET, key);
+        }
+        throw new IOException("Released the stale claim of sha256-" + hash + " made at " + claimedAt);
+    }
 
-        // Place tmpFile into next bucket.
-        s3Client.putObject(PUT_BUCKET, filename, tmpFile);
+    /**
+     * Release the claim of this delivery, so a retry of the file can claim it.
+     * A claim already replaced by the record of the processed file is kept.
+     */
+    private static void release(final ObjectStore objectStore, final String hash, final String claim, final LambdaLogger logger) {
+        final String key = PROCESSED_PREFIX + hash;
+        try {
+            if (claim.equals(readMarker(objectStore, key))) {
+                objectStore.delete(RECURRING_CITIES_BUCKET, key);
+            }
+        } catch (final IOException e) {
+            logger.log("Could not release the claim of sha256-" + hash + ": " + e.getMessage());
+        }
+    }
 
-        // Delete tmpFile from /tmp.
-        if (!tmpFile.delete()) {
-            System.err.println("Failed to delete temporary file: " + tmpFileName);
+    /**
+     * @return The claim held on a hash, empty if the file was processed.
+     */
+    private static String readMarker(final ObjectStore objectStore, final String key) throws IOException {
+        try (Scanner marker = new Scanner(objectStore.get(RECURRING_CITIES_BUCKET, key), "UTF-8")) {
+            return marker.hasNextLine() ? marker.nextLine() : "";
         }
+    }
 
-        final String recurringCitiesFileLocation = String.format("/tmp/%s", RECURRING_CITIES_FILENAME);
+    /**
+     * Transform an object into PUT_BUCKET and delete it.
+     * @param objectData The content of the object.
+     * @param hash The SHA-256 of the object, claimed for this delivery, null without DEDUPE.
+     * @return The rows and bytes written, the pipeline summary if it ran in stages and the
+     *         clusters if clustered.
+     */
+    private static HashMap<String, Object> transformObject(
+            final ObjectStore objectStore,
+            final String bucketname,
+            final String filename,
+            final InputStream objectData,
+            final String hash,
+            final Map<String, CacheLocation> recurringCities,
+            final long clusterBudget,
+            final Span transform,
+            final Span upload,
+            final Inspector inspector,
+            final LambdaLogger logger
+    ) {
+
+        transform.start();
+        final HashMap<String, Object> counters = new HashMap<>();
+        final String tmpFileName = String.format("/tmp/%s", filename);
+        final File tmpFile;
+        ObjectStore.Upload output = null;
+        JSONObject clusterIndex = null;
+        if (TransformPipeline.ENABLED && clusterBudget == 0 && RowSchema.ACTIVE.isBuiltIn()) {
+
+            // Transform in stages on their own threads, uploading while reading, see TransformPipeline.
+            tmpFile = null;
+            final TransformPipeline pipeline = new TransformPipeline(recurringCities, transform, inspector);
+            try {
+                output = objectStore.upload(PUT_BUCKET, filename);
+                pipeline.run(objectData, output);
+            } catch (final IOException | RuntimeException e) {
+                if (output != null) {
+                    output.abort();
+                }
+                logger.log("Could not transform " + bucketname + "/" + filename + ": " + e.getMessage());
+                throw new RuntimeException(e);
+            }
+            transform.add("rows", pipeline.getRows());
+            transform.add("bytes", pipeline.getBytes());
+            counters.put("rows", pipeline.getRows());
+            counters.put("bytes", pipeline.getBytes());
+            counters.put("pipeline", pipeline.summary());
+        } else {
+            // Buffered writer for writing to /tmp on Lambda instance, or the sorter clustering the rows before they are.
+            tmpFile = new File(tmpFileName);
+            final ClusterSort cluster = clusterBudget > 0 ? new ClusterSort(RowSchema.ACTIVE, clusterBudget, transform.child("spill")) : null;
+            final Writer writer;
+            try {
+                writer = cluster != null ? cluster : new BufferedWriter(new FileWriter(tmpFileName));
+            } catch (final IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            if (ParallelTransform.PARALLELISM > 1) {
+
+                // Transform chunks of the file on several cores, see ParallelTransform.
+                final ParallelTransform parallel = new ParallelTransform(recurringCities, transform, inspector);
+                try {
+                    parallel.run(objectData, writer, recurringCities);
+                    writer.close();
+                } catch (final IOException e) {
+                    logger.log("Could not transform " + bucketname + "/" + filename + ": " + e.getMessage());
+                    throw new RuntimeException(e);
+                }
+                transform.add("rows", parallel.getRows());
+                transform.add("bytes", parallel.getBytes());
+                transform.add("chunks", parallel.getChunks());
+                counters.put("rows", parallel.getRows());
+                counters.put("bytes", parallel.getBytes());
+            } else {
+                // Create a CSVParser on the S3 file.
+                final CSVParser dataParser;
+                try {
+                    dataParser = CSVParser.parse(objectData, Charset.defaultCharset(), CSVFormat.DEFAULT);
+                } catch (final IOException e) {
+                    throw new RuntimeException(e);
+                }
+
+                // Time each step per row. Reading covers the S3 download as well, the object is streamed while parsed.
+                final Span read = transform.child("read");
+                final Span transformRow = transform.child("transformRow");
+                final Span geocode = transformRow.child("geocode");
+                final Span write = transform.child("write");
+                long bytes = 0;
+
+                // Iterate over all rows in the given CSV file.
+                final Iterator<CSVRecord> records = dataParser.iterator();
+                long start = System.nanoTime();
+                while (records.hasNext()) {
+                    final CSVRecord record = records.next();
+                    final long parsed = System.nanoTime();
+                    read.record(parsed - start);
+
+                    // Transform row.
+                    final String transformedRow = transformRow(record, recurringCities, geocode);
+                    final long transformed = System.nanoTime();
+                    transformRow.record(transformed - parsed);
+
+                    // Write completed String out to /tmp.
+                    try {
+                        writer.write(transformedRow);
+                    } catch (final IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    bytes += transformedRow.length();
+                    start = System.nanoTime();
+                    write.record(start - transformed);
+                }
+
+                try {
+                    dataParser.close();
+                    writer.close();
+                } catch (final IOException e) {
+                    throw new RuntimeException(e);
+                }
+                transform.add("rows", transformRow.getCount());
+                transform.add("bytes", bytes);
+                counters.put("rows", transformRow.getCount());
+                counters.put("bytes", bytes);
+            }
+
+            if (cluster != null) {
+                final Span merge = transform.child("merge");
+                final long start = System.nanoTime();
+                try {
+                    clusterIndex = cluster.finish(tmpFile);
+                } catch (final IOException e) {
+                    logger.log("Could not cluster " + bucketname + "/" + filename + ": " + e.getMessage());
+                    throw new RuntimeException(e);
+                }
+                merge.record(System.nanoTime() - start);
+                transform.add("clusters", clusterIndex.getJSONArray("clusters").length());
+                transform.add("spills", cluster.getSpills());
+                transform.add("spilledBytes", cluster.getSpilledBytes());
+                counters.put("clusters", clusterIndex.getJSONArray("clusters").length());
+            }
+        }
+        transform.close();
+
+        // Place tmpFile into next bucket and delete S3 file.
+        upload.start();
         try {
-            final FileOutputStream recurringCitiesOutput = new FileOutputStream(recurringCitiesFileLocation);
-            final ObjectOutputStream recurringCitiesOutputStream = new ObjectOutputStream(recurringCitiesOutput);
-            recurringCitiesOutputStream.writeObject(recurringCities);
-            recurringCitiesOutputStream.close();
-            recurringCitiesOutput.close();
+            if (tmpFile != null) {
+                // The index is written first, LoadAurora may load and delete the object as soon as it is written.
+                if (clusterIndex != null) {
+                    final ObjectStore.Upload index = objectStore.upload(RECURRING_CITIES_BUCKET, ClusterSort.indexKey(filename));
+                    try {
+                        index.write(clusterIndex.toString().getBytes(StandardCharsets.UTF_8));
+                        index.close();
+                    } catch (final IOException e) {
+                        index.abort();
+                        throw e;
+                    }
+                }
+                objectStore.put(PUT_BUCKET, filename, tmpFile);
+                upload.add("bytes", tmpFile.length());
+            } else {
+                output.close();
+            }
+
+            // The claim is replaced once the output is written, so a failed file is not taken for a duplicate when retried.
+            if (hash != null) {
+                final long start = System.nanoTime();
+                objectStore.upload(RECURRING_CITIES_BUCKET, PROCESSED_PREFIX + hash).close();
+                upload.child("dedupe").record(System.nanoTime() - start);
+            }
+
+            // Deleted last, so a file whose output could not be written is still there to retry.
+            objectStore.delete(bucketname, filename);
         } catch (final IOException e) {
-            logger.log("Could not properly write recurring cities: " + e.getMessage());
+            if (output != null) {
+                output.abort();
+            }
+            logger.log("Could not move " + filename + " to " + PUT_BUCKET + ": " + e.getMessage());
             throw new RuntimeException(e);
         }
-
-        final File recurringCitiesFile = new File(recurringCitiesFileLocation);
-
-        s3Client.putObject(RECURRING_CITIES_BUCKET, RECURRING_CITIES_FILENAME, recurringCitiesFile);
+        upload.close();
 
         // Delete tmpFile from /tmp.
-        if (!recurringCitiesFile.delete()) {
+        if (tmpFile != null && !tmpFile.delete()) {
             System.err.println("Failed to delete temporary file: " + tmpFileName);
         }
+        return counters;
+    }
 
-        //****************END FUNCTION IMPLEMENTATION***************************
+    /**
+     * @return A new SHA-256 digest.
+     */
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every JVM provides SHA-256", e);
+        }
+    }
 
-        inspector.inspectAllDeltas();
-        return inspector.finish();
+    /**
+     * @param bytes A hash.
+     * @return The hash as lowercase hexadecimal.
+     */
+    private static String toHex(final byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Transform a row of the raw CSV, looking up the state and country of its city
+     * in the cache or, on a miss, with the OpenCage API.
+     * @param record The raw row.
+     * @param recurringCities The cache of already queried cities, updated on a miss.
+     * @param geocode Records the latency of each OpenCage lookup.
+     * @return The transformed row, terminated by a newline.
+     */
+    static String transformRow(
+            final CSVRecord record,
+            final Map<String, CacheLocation> recurringCities,
+            final Span geocode
+    ) {
+        return transformRow(record, city -> locate(city, recurringCities, geocode));
     }
 
-    private static String transformRow(
+    /**
+     * Transform a row of the raw CSV with the transformer generated for the
+     * schema of the rows, see RowSchema.
+     * @param record The raw row.
+     * @param locations Gives the state and country of a city.
+     * @return The transformed row, terminated by a newline.
+     */
+    static String transformRow(
             final CSVRecord record,
-            final Map<String, CacheLocation> recurringCities
+            final Function<String, CacheLocation> locations
     ) {
+        return RowSchema.transform(record, locations);
+    }
 
-        // Retrieve all data from the CSV row.
-        final int userAge = Integer.parseInt(record.get(0));
-        final String userGender = record.get(1);
-        final int userNumberOfApps = Integer.parseInt(record.get(2));
-        final float userSocialMediaUsage = Float.parseFloat(record.get(3));
-        final float userProductivityAppUsage = Float.parseFloat(record.get(4));
-        final float userGamingAppUsage = Float.parseFloat(record.get(5));
-        final String userCity  = record.get(6);
-
-        // Transform rows.
-        final float userTotalAppUsage = userSocialMediaUsage + userProductivityAppUsage + userGamingAppUsage;
-        final float userPercentOfSocialMedia = userSocialMediaUsage / userTotalAppUsage;
-        final float userPercentOfProductivityAppUsage = userProductivityAppUsage / userTotalAppUsage;
-        final float userPercentOfGamingAppUsage = userGamingAppUsage / userTotalAppUsage;
-
-        // Find the state and country of the given city using the OpenCage API.
-        String resultState = "N/A";
-        String resultCountry = "N/A";
+    /**
+     * Look up a city in the cache or, on a miss, with the OpenCage API.
+     * @param userCity The city.
+     * @param recurringCities The cache of already queried cities, updated on a miss.
+     * @param geocode Records the latency of each OpenCage lookup.
+     * @return The state and country of the city.
+     */
+    static CacheLocation locate(
+            final String userCity,
+            final Map<String, CacheLocation> recurringCities,
+            final Span geocode
+    ) {
 
         // Check cache for current row city.
-        if (recurringCities.containsKey(userCity)) {
-            resultState = recurringCities.get(userCity).getState();
-            resultCountry = recurringCities.get(userCity).getCountry();
-        } else {
-            try {
+        final CacheLocation cached = cached(userCity, recurringCities);
+        if (cached != null) {
+            return cached;
+        }
+        GEOCODE_MISSES.increment();
+        final long start = System.nanoTime();
+        final String key = cityKey(userCity);
+        final CacheLocation location = geocode(key);
+
+        // Input queried city and retrieved state and country into cache.
+        recurringCities.put(key, location);
+        recurringCities.put(userCity, location);
+        geocode.record(System.nanoTime() - start);
+        return location;
+    }
 
-                // Create URL and query OpenCage API for given row city.
-                final URL url = new URL(String.format("https://api.opencagedata.com/geocode/v1/json?q=%s&key=%s&limit=1", userCity.replace(" ", "%20"), API_KEY));
-                final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                conn.setRequestMethod("GET");
-                conn.connect();
-                if (conn.getResponseCode() == HttpStatus.SC_OK) {
-                    final StringBuilder inline = new StringBuilder();
-                    final Scanner jsonScanner = new Scanner(url.openStream());
-
-                    // Put retrieved JSON into string and create JSONObject from string.
-                    while (jsonScanner.hasNext()) {
-                        inline.append(jsonScanner.nextLine());
-                    }
-                    final JSONObject jsonObject = new JSONObject(inline.toString());
+    /**
+     * Look up a city in the cache by its spelling, then by its key. A spelling
+     * found by its key is added to the cache, so it is found directly next time.
+     * Hits are counted, misses are left to the caller.
+     * @param userCity The city.
+     * @param recurringCities The cache of already queried cities.
+     * @return The state and country of the city, null if not cached.
+     */
+    static CacheLocation cached(final String userCity, final Map<String, CacheLocation> recurringCities) {
+        CacheLocation location = recurringCities.get(userCity);
+        if (location != null) {
+            GEOCODE_HITS.increment();
+            return location;
+        }
+        final String key = cityKey(userCity);
+        if (!key.equals(userCity)) {
+            location = recurringCities.get(key);
+            if (location != null) {
+                GEOCODE_HITS.increment();
+                GEOCODE_KEY_HITS.increment();
+                recurringCities.put(userCity, location);
+            }
+        }
+        return location;
+    }
 
-                    // Retrieve the required section from the JSON to get the state and country.
-                    final JSONObject data = jsonObject.getJSONArray("results").getJSONObject(0).getJSONObject("components");
+    /**
+     * The key of a city in the cache, the same for spellings that differ only in
+     * case, Unicode compatibility forms or whitespace.
+     * @param userCity The city as spelled in the input.
+     * @return The city NFKC-normalized, case-folded, trimmed and with runs of
+     *         whitespace replaced by a single space.
+     */
+    static String cityKey(final String userCity) {
+        final String normalized = Normalizer.normalize(userCity, Normalizer.Form.NFKC);
 
-                    // Retrieve state and country.
-                    final String state = "state";
-                    final String country = "country";
-                    if (data.has(state)) {
-                        resultState = data.getString(state);
-                    }
-                    if (data.has(country)) {
-                        resultCountry = data.getString(country);
-                    }
+        // Upper then lower case folds characters such as the German sharp s as well.
+        final String folded = normalized.toUpperCase(Locale.ROOT).toLowerCase(Locale.ROOT);
+        return WHITESPACE.matcher(folded).replaceAll(" ").trim();
+    }
+
+    /**
+     * Look up the state and country of a city with the OpenCage API, hedged, see
+     * Hedge. Failed lookups are reported on stderr and give N/A.
+     * @param userCity The city.
+     * @return The state and country of the city.
+     */
+    static CacheLocation geocode(final String userCity) {
+        String resultState = "N/A";
+        String resultCountry = "N/A";
+        final Object lookup = Jfr.beginGeocode(userCity);
+        try {
+            final CacheLocation location = Hedge.GEOCODE.call(() -> requestLocation(userCity), null);
+            resultState = location.getState();
+            resultCountry = location.getCountry();
+        } catch (final IOException e) {
+            System.err.println(e.getMessage());
+        } finally {
+            Jfr.endGeocode(lookup, resultState, resultCountry);
+        }
+        return new CacheLocation(resultState, resultCountry);
+    }
 
-                    // Input queried city and retrieved state and country into cache.
-
-                } else if (conn.getResponseCode() == HttpStatus.SC_UNAUTHORIZED) {
-                    System.err.println("Invalid API Key");
-                } else if (conn.getResponseCode() == HttpStatus.SC_BAD_REQUEST) {
-                    System.err.println("Invalid API Request");
-                } else if (conn.getResponseCode() == HttpStatus.SC_SERVICE_UNAVAILABLE) {
-                    System.err.println("API Internal Server Error");
-                } else if (conn.getResponseCode() == HttpStatus.SC_FORBIDDEN) {
-                    System.err.println("API Quota Exceeded");
-                } else {
-                    System.err.println("Other API Error");
+    /**
+     * Send a lookup to the OpenCage API.
+     * @param userCity The city.
+     * @return The state and country of the city, N/A for those not found.
+     * @throws IOException If the lookup failed, with the reason as its message.
+     */
+    private static CacheLocation requestLocation(final String userCity) throws IOException {
+        String resultState = "N/A";
+        String resultCountry = "N/A";
+
+        // Create URL and query OpenCage API for given row city.
+        final URL url = new URL(String.format("%s?q=%s&key=%s&limit=1", GEOCODER_URL, userCity.replace(" ", "%20"), API_KEY));
+        final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestMethod("GET");
+        conn.setConnectTimeout(GEOCODE_TIMEOUT_MS);
+        conn.setReadTimeout(GEOCODE_TIMEOUT_MS);
+        conn.connect();
+        final int status = conn.getResponseCode();
+        if (status == HttpStatus.SC_OK) {
+            final StringBuilder inline = new StringBuilder();
+
+            // Read the response of this request, rather than send it again.
+            try (Scanner jsonScanner = new Scanner(conn.getInputStream(), "UTF-8")) {
+
+                // Put retrieved JSON into string and create JSONObject from string.
+                while (jsonScanner.hasNext()) {
+                    inline.append(jsonScanner.nextLine());
                 }
-            } catch (final IOException e) {
-                System.err.println(e.getMessage());
-            } finally {
-                recurringCities.put(userCity, new CacheLocation(resultState, resultCountry));
             }
+            final JSONObject jsonObject = new JSONObject(inline.toString());
+
+            // Retrieve the required section from the JSON to get the state and country.
+            final JSONObject data = jsonObject.getJSONArray("results").getJSONObject(0).getJSONObject("components");
+
+            // Retrieve state and country.
+            final String state = "state";
+            final String country = "country";
+            if (data.has(state)) {
+                resultState = data.getString(state);
+            }
+            if (data.has(country)) {
+                resultCountry = data.getString(country);
+            }
+            return new CacheLocation(resultState, resultCountry);
         }
 
-        // All necessary data has been retrieved, build completed String.
+        // A failure is not an answer, so a hedged lookup waits for the other attempt.
+        conn.disconnect();
+        if (status == HttpStatus.SC_UNAUTHORIZED) {
+            throw new IOException("Invalid API Key");
+        } else if (status == HttpStatus.SC_BAD_REQUEST) {
+            throw new IOException("Invalid API Request");
+        } else if (status == HttpStatus.SC_SERVICE_UNAVAILABLE) {
+            throw new IOException("API Internal Server Error");
+        } else if (status == HttpStatus.SC_FORBIDDEN) {
+            throw new IOException("API Quota Exceeded");
+        }
+        throw new IOException("Other API Error");
+    }
+
+    /**
+     * Format the columns of a transformed row as a line of CSV.
+     */
+    static String formatRow(
+            final int userAge,
+            final String userGender,
+            final int userNumberOfApps,
+            final float userSocialMediaUsage,
+            final float userPercentOfSocialMedia,
+            final float userProductivityAppUsage,
+            final float userPercentOfProductivityAppUsage,
+            final float userGamingAppUsage,
+            final float userPercentOfGamingAppUsage,
+            final float userTotalAppUsage,
+            final String userCity,
+            final String resultState,
+            final String resultCountry
+    ) {
         return String.format("%s,%s,%s,%s,%.2f,%s,%.2f,%s,%.2f,%.2f,%s,%s,%s\n", userAge, userGender, userNumberOfApps, userSocialMediaUsage, userPercentOfSocialMedia, userProductivityAppUsage, userPercentOfProductivityAppUsage, userGamingAppUsage, userPercentOfGamingAppUsage, userTotalAppUsage, userCity, resultState, resultCountry);
     }
 
-    private static class CacheLocation implements Serializable {
+    /** The state and country of a city, cached across invocations in S3. */
+    static class CacheLocation implements Serializable {
 
         private static final long serialVersionUID = 3624983666763181265L;
 
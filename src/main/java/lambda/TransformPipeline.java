@@ -0,0 +1,446 @@
+package lambda;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import saaf.Inspector;
+import saaf.Span;
+
+/**
+ * Transform as five stages on their own threads, so the S3 download, the CPU
+ * bound parsing, transformation and formatting, and the upload all run at the
+ * same time instead of taking turns on the handler thread:
+ *
+ * reader:       Reads the input into a batch of whole lines.
+ * parser:       Parses the lines of a batch into its columns.
+ * transformer:  Computes the totals and percentages and looks up the cities.
+ * encoder:      Formats the transformed rows as CSV bytes.
+ * uploader:     Writes the bytes to the upload of the output object.
+ *
+ * The stages pass row batches to each other through bounded queues. The
+ * batches are allocated once per invocation and reused: the uploader returns
+ * every batch to the queue of free batches the reader takes from. A stage
+ * that is faster than the next one blocks once the queue between them is full,
+ * so no stage buffers more than the queue capacity.
+ *
+ * Each stage records the time it works on a batch in its span under
+ * 'transform'. The stage spans are created before the stages start, only
+ * touched by their own stage, and read once the stages are done. The
+ * 'pipeline' attribute adds, per stage, the time spent waiting for a batch
+ * (inputStallMs) and for room in the next queue (outputStallMs), and the depth
+ * of the queue feeding the stage each time it took a batch.
+ *
+ * The input is split at newlines, so a quoted value must not span lines, as
+ * in the files this pipeline receives.
+ *
+ * Enabled with the system property tlq.pipeline=true or the environment
+ * variable TLQ_PIPELINE=true. Its batches hold the columns of the built-in
+ * schema, so with another schema, see RowSchema, Transform does not use it. Other settings, as system properties:
+ *
+ * tlq.pipeline.batchKB:  The bytes of input per batch (default 64).
+ * tlq.pipeline.queue:    The batches a queue between two stages holds (default 4).
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+final class TransformPipeline {
+
+    /** Whether Transform runs as a pipeline. */
+    static final boolean ENABLED = "true".equalsIgnoreCase(
+            System.getProperty("tlq.pipeline", System.getenv("TLQ_PIPELINE")));
+
+    private static final int BATCH_SIZE = Integer.getInteger("tlq.pipeline.batchKB", 64) << 10;
+    private static final int QUEUE_CAPACITY = Math.max(1, Integer.getInteger("tlq.pipeline.queue", 4));
+
+    /** The names of the stages, in order. */
+    private static final String[] STAGES = {"reader", "parser", "transformer", "encoder", "uploader"};
+
+    /** The batches of an invocation: one per stage and a queue full besides. */
+    private static final int BATCHES = STAGES.length + QUEUE_CAPACITY;
+
+    /** The threads of the stages, shared by invocations. */
+    private static final ExecutorService THREADS = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "tlq-pipeline-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Map<String, Transform.CacheLocation> recurringCities;
+    private final Inspector inspector;
+    private final Stage[] stages = new Stage[STAGES.length];
+    private final Span geocode;
+
+    /** The queue feeding each stage, the reader taking from the free batches. */
+    private final List<ArrayBlockingQueue<RowBatch>> queues = new ArrayList<>();
+
+    /** The first failure of a stage, which stops all stages. */
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final Future<?>[] running = new Future<?>[STAGES.length];
+
+    /** Only touched by the reader. */
+    private byte[] carry = new byte[0];
+    private int carryLength;
+
+    /** Only touched by the encoder. */
+    private final CharsetEncoder charsetEncoder = Charset.defaultCharset().newEncoder();
+
+    private long rows;
+    private long bytes;
+    private long wallNanos;
+
+    /**
+     * @param recurringCities The recurring cities cache, only used by the transformer.
+     * @param transform The span the stages are recorded under.
+     * @param inspector The Inspector of the invocation, counting the allocations of the stages.
+     */
+    TransformPipeline(
+            final Map<String, Transform.CacheLocation> recurringCities,
+            final Span transform,
+            final Inspector inspector
+    ) {
+        this.recurringCities = recurringCities;
+        this.inspector = inspector;
+        for (int i = 0; i < STAGES.length; i++) {
+            stages[i] = new Stage(transform.child(STAGES[i]));
+            queues.add(new ArrayBlockingQueue<>(i == 0 ? BATCHES : QUEUE_CAPACITY));
+        }
+        this.geocode = stages[2].span.child("geocode");
+        for (int i = 0; i < BATCHES; i++) {
+            queues.get(0).add(new RowBatch());
+        }
+    }
+
+    /**
+     * Transform an input file into an upload. The upload is not closed.
+     * @param input The raw CSV, closed once read.
+     * @param upload Receives the transformed rows.
+     * @throws IOException If the input could not be read or the output written.
+     */
+    void run(final InputStream input, final ObjectStore.Upload upload) throws IOException {
+        final long start = System.nanoTime();
+        final CountDownLatch done = new CountDownLatch(STAGES.length);
+        try (InputStream in = input) {
+            synchronized (running) {
+                for (int i = 0; i < STAGES.length; i++) {
+                    final int index = i;
+                    running[i] = THREADS.submit(inspector.trackWorker(() -> {
+                        try {
+                            runStage(index, in, upload);
+                        } catch (final InterruptedException e) {
+                            // Stopped because another stage failed.
+                        } catch (final IOException | RuntimeException e) {
+                            fail(e);
+                        } finally {
+                            done.countDown();
+                        }
+                    }));
+                }
+            }
+            try {
+                done.await();
+            } catch (final InterruptedException e) {
+                fail(e);
+                Thread.currentThread().interrupt();
+            }
+        }
+        wallNanos = System.nanoTime() - start;
+        final Throwable failed = failure.get();
+        if (failed instanceof IOException) {
+            throw (IOException) failed;
+        } else if (failed instanceof RuntimeException) {
+            throw (RuntimeException) failed;
+        } else if (failed != null) {
+            throw new IOException(failed);
+        }
+    }
+
+    /**
+     * @return The rows transformed.
+     */
+    long getRows() {
+        return rows;
+    }
+
+    /**
+     * @return The characters of the transformed rows.
+     */
+    long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return The time stages worked and waited and the depth of their input queues, for the 'pipeline' attribute.
+     */
+    Map<String, Object> summary() {
+        final List<Map<String, Object>> list = new ArrayList<>();
+        for (int i = 0; i < STAGES.length; i++) {
+            final Stage stage = stages[i];
+            final Map<String, Object> values = new LinkedHashMap<>();
+            values.put("name", STAGES[i]);
+            values.put("batches", stage.batches);
+            values.put("busyMs", millis(stage.busyNanos));
+            values.put("busyPercent", wallNanos > 0 ? Math.round(stage.busyNanos * 1000.0 / wallNanos) / 10.0 : 0.0);
+            values.put("inputStallMs", millis(stage.inputStallNanos));
+            values.put("outputStallMs", millis(stage.outputStallNanos));
+            values.put("meanQueueDepth", stage.batches > 0 ? Math.round(stage.depthSum * 100.0 / stage.batches) / 100.0 : 0.0);
+            values.put("maxQueueDepth", stage.depthMax);
+            list.add(values);
+        }
+        final Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("batchKB", BATCH_SIZE >> 10);
+        summary.put("queueCapacity", QUEUE_CAPACITY);
+        summary.put("wallMs", millis(wallNanos));
+        summary.put("stages", list);
+        return summary;
+    }
+
+    private void fail(final Throwable e) {
+        if (failure.compareAndSet(null, e)) {
+            synchronized (running) {
+                for (final Future<?> stage : running) {
+                    if (stage != null) {
+                        stage.cancel(true);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Take batches from the queue of a stage, work on them and pass them on,
+     * until the batch marked as the last one has passed.
+     */
+    private void runStage(final int index, final InputStream in, final ObjectStore.Upload upload) throws IOException, InterruptedException {
+        final Stage stage = stages[index];
+        final ArrayBlockingQueue<RowBatch> input = queues.get(index);
+        final ArrayBlockingQueue<RowBatch> output = queues.get((index + 1) % STAGES.length);
+        boolean last = false;
+        while (!last) {
+            long start = System.nanoTime();
+            final int depth = input.size();
+            final RowBatch batch = input.take();
+            long end = System.nanoTime();
+            stage.inputStallNanos += end - start;
+            stage.depthSum += depth;
+            stage.depthMax = Math.max(stage.depthMax, depth);
+            start = end;
+            switch (index) {
+                case 0:
+                    read(batch, in);
+                    break;
+                case 1:
+                    parse(batch);
+                    break;
+                case 2:
+                    transform(batch);
+                    break;
+                case 3:
+                    encode(batch);
+                    break;
+                default:
+                    upload.write(batch.encoded.array(), 0, batch.encoded.position());
+                    rows += batch.rows;
+                    bytes += batch.text.length();
+                    break;
+            }
+            last = batch.last;
+            end = System.nanoTime();
+            stage.busyNanos += end - start;
+            stage.span.record(end - start);
+            stage.batches++;
+            output.put(batch);
+            stage.outputStallNanos += System.nanoTime() - end;
+        }
+    }
+
+    /**
+     * Fill a batch with whole lines of the input, keeping the rest of the last
+     * line for the next batch.
+     */
+    private void read(final RowBatch batch, final InputStream in) throws IOException {
+        batch.rows = 0;
+        batch.last = false;
+        if (batch.raw.length < Math.max(BATCH_SIZE, carryLength)) {
+            batch.raw = new byte[Math.max(BATCH_SIZE, carryLength * 2)];
+        }
+        System.arraycopy(carry, 0, batch.raw, 0, carryLength);
+        batch.length = carryLength;
+        carryLength = 0;
+        while (true) {
+            while (batch.length < batch.raw.length) {
+                final int n = in.read(batch.raw, batch.length, batch.raw.length - batch.length);
+                if (n < 0) {
+                    batch.last = true;
+                    return;
+                }
+                batch.length += n;
+            }
+            int end = batch.length;
+            while (end > 0 && batch.raw[end - 1] != '\n') {
+                end--;
+            }
+            if (end > 0) {
+                carryLength = batch.length - end;
+                if (carry.length < carryLength) {
+                    carry = new byte[Math.max(carryLength, BATCH_SIZE)];
+                }
+                System.arraycopy(batch.raw, end, carry, 0, carryLength);
+                batch.length = end;
+                return;
+            }
+            // A line longer than the batch, read on until its end.
+            batch.raw = Arrays.copyOf(batch.raw, batch.raw.length * 2);
+        }
+    }
+
+    private void parse(final RowBatch batch) throws IOException {
+        try (CSVParser parser = CSVParser.parse(
+                new StringReader(new String(batch.raw, 0, batch.length, Charset.defaultCharset())), CSVFormat.DEFAULT)) {
+            for (final CSVRecord record : parser) {
+                final int row = batch.add();
+                batch.age[row] = Integer.parseInt(record.get(0));
+                batch.gender[row] = record.get(1);
+                batch.apps[row] = Integer.parseInt(record.get(2));
+                batch.social[row] = Float.parseFloat(record.get(3));
+                batch.productivity[row] = Float.parseFloat(record.get(4));
+                batch.gaming[row] = Float.parseFloat(record.get(5));
+                batch.city[row] = record.get(6);
+            }
+        }
+    }
+
+    private void transform(final RowBatch batch) {
+        for (int row = 0; row < batch.rows; row++) {
+            batch.total[row] = batch.social[row] + batch.productivity[row] + batch.gaming[row];
+            batch.location[row] = Transform.locate(batch.city[row], recurringCities, geocode);
+        }
+    }
+
+    private void encode(final RowBatch batch) {
+        final StringBuilder text = batch.text;
+        text.setLength(0);
+        for (int row = 0; row < batch.rows; row++) {
+            final float total = batch.total[row];
+            text.append(Transform.formatRow(batch.age[row], batch.gender[row], batch.apps[row],
+                    batch.social[row], batch.social[row] / total, batch.productivity[row], batch.productivity[row] / total,
+                    batch.gaming[row], batch.gaming[row] / total, total, batch.city[row],
+                    batch.location[row].getState(), batch.location[row].getCountry()));
+        }
+        ByteBuffer encoded = batch.encoded;
+        encoded.clear();
+        final CharBuffer chars = CharBuffer.wrap(text);
+        charsetEncoder.reset();
+        while (true) {
+            CoderResult result = chars.hasRemaining() ? charsetEncoder.encode(chars, encoded, true) : CoderResult.UNDERFLOW;
+            if (result.isUnderflow()) {
+                result = charsetEncoder.flush(encoded);
+            }
+            if (result.isUnderflow()) {
+                break;
+            }
+            if (result.isOverflow()) {
+                final ByteBuffer larger = ByteBuffer.allocate(encoded.capacity() * 2);
+                encoded.flip();
+                larger.put(encoded);
+                encoded = larger;
+            } else {
+                throw new IllegalStateException("Could not encode a transformed row: " + result);
+            }
+        }
+        batch.encoded = encoded;
+    }
+
+    private static double millis(final long nanos) {
+        return Math.round(nanos / 1e4) / 100.0;
+    }
+
+    /** The time a stage worked and waited, written by the stage and read once it is done. */
+    private static final class Stage {
+
+        private final Span span;
+        private long batches;
+        private long busyNanos;
+        private long inputStallNanos;
+        private long outputStallNanos;
+        private long depthSum;
+        private int depthMax;
+
+        Stage(final Span span) {
+            this.span = span;
+        }
+    }
+
+    /**
+     * The rows of a batch at every stage: the raw lines, the parsed and
+     * transformed columns, and the encoded output. Reused for the next batch
+     * once uploaded.
+     */
+    private static final class RowBatch {
+
+        private byte[] raw = new byte[BATCH_SIZE];
+        private int length;
+        private boolean last;
+
+        private int rows;
+        private int[] age = new int[0];
+        private String[] gender = new String[0];
+        private int[] apps = new int[0];
+        private float[] social = new float[0];
+        private float[] productivity = new float[0];
+        private float[] gaming = new float[0];
+        private String[] city = new String[0];
+        private float[] total = new float[0];
+        private Transform.CacheLocation[] location = new Transform.CacheLocation[0];
+
+        private final StringBuilder text = new StringBuilder(BATCH_SIZE * 2);
+        private ByteBuffer encoded = ByteBuffer.allocate(BATCH_SIZE * 2);
+
+        /**
+         * @return The index of a new row, growing the columns as needed.
+         */
+        int add() {
+            if (rows == age.length) {
+                final int capacity = Math.max(256, rows * 2);
+                age = Arrays.copyOf(age, capacity);
+                gender = Arrays.copyOf(gender, capacity);
+                apps = Arrays.copyOf(apps, capacity);
+                social = Arrays.copyOf(social, capacity);
+                productivity = Arrays.copyOf(productivity, capacity);
+                gaming = Arrays.copyOf(gaming, capacity);
+                city = Arrays.copyOf(city, capacity);
+                total = Arrays.copyOf(total, capacity);
+                location = Arrays.copyOf(location, capacity);
+            }
+            return rows++;
+        }
+    }
+}
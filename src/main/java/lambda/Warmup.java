@@ -0,0 +1,231 @@
+package lambda;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.json.JSONObject;
+import saaf.Inspector;
+
+/**
+ * Primes a container while Lambda initializes it, so the first invocation does
+ * not pay for class loading and interpreted code. The handlers call prime() from
+ * their constructors, which run in the init phase, before the first request.
+ *
+ * Priming runs the request path on synthetic data once per JVM: CSV parsing and
+ * row formatting as in Transform, the sketches of LoadAurora, the recurring
+ * cities serialization, and query parsing, SQL generation and the columnar
+ * encoding of Query. It loops often enough for the hottest methods to be JIT
+ * compiled. The S3 model classes of a GET are loaded, not used. It does not
+ * touch S3, the geocoder, the metrics registry or the Inspector container
+ * stamp, so it leaves no trace in the first invocation other than the primeMs
+ * attribute, added by report(). The S3 client and the database connection are
+ * created in Clients as well, when the handler uses them.
+ *
+ * Disabled with the system property tlq.prime=false or the environment variable
+ * TLQ_PRIME=false.
+ *
+ * The main method primes and exits. It is the training run of the appcds build
+ * profile, which records the classes it loads into a class data sharing archive.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+final class Warmup {
+
+    /** Synthetic rows processed, enough for the per-row methods to reach the C1 compiler. */
+    private static final int ROWS = 2000;
+
+    /** Queries parsed and planned. */
+    private static final int QUERIES = 200;
+
+    /** The cities of the synthetic rows. */
+    private static final String[] CITIES = {"Tacoma", "Seattle", "Spokane", "Portland", "Olympia"};
+
+    /** The S3 model classes a GET goes through, loaded but not used. */
+    private static final String[] S3_CLASSES = {
+        "com.amazonaws.services.s3.model.GetObjectRequest",
+        "com.amazonaws.services.s3.model.S3Object",
+        "com.amazonaws.services.s3.model.S3ObjectInputStream",
+        "com.amazonaws.services.s3.model.ObjectMetadata",
+    };
+
+    /** A Query request with every clause, so all of QuerySpec.toShape runs. */
+    private static final String QUERY = "{\"aggregations\": [{\"column\": \"userTotalAppUsage\", \"function\": \"AVG\"}],"
+            + " \"filters\": [{\"column\": \"resultCountry\", \"value\": \"United States\"}],"
+            + " \"group\": [\"userCity\", \"resultState\"]}";
+
+    /** Whether priming is enabled. */
+    static final boolean ENABLED = !"false".equalsIgnoreCase(
+            System.getProperty("tlq.prime", System.getenv("TLQ_PRIME")));
+
+    private static boolean primed;
+
+    /** The time spent priming and not reported yet in ns, guarded by Warmup.class. */
+    private static long unreportedNanos;
+
+    private Warmup() {
+    }
+
+    /**
+     * Prime the JVM and open the clients a handler uses. Only the first call in
+     * a JVM primes, a failure to open a client is logged and left to the first
+     * invocation.
+     * @param s3 Whether to build the shared S3 client and object store.
+     * @param database Whether to open the shared database connection.
+     */
+    static void prime(final boolean s3, final boolean database) {
+        if (!ENABLED) {
+            return;
+        }
+        final long start = System.nanoTime();
+        synchronized (Warmup.class) {
+            if (!primed) {
+                primed = true;
+                try {
+                    // The synthetic rows are rows of the built-in schema.
+                    if (RowSchema.ACTIVE.isBuiltIn()) {
+                        primeTransform();
+                    }
+                    primeQuery();
+                } catch (final IOException | RuntimeException e) {
+                    System.err.println("Priming failed: " + e);
+                }
+            }
+        }
+        if (s3) {
+            try {
+                Clients.objectStore();
+            } catch (final RuntimeException e) {
+                System.err.println("Could not build the S3 client: " + e.getMessage());
+            }
+        }
+        if (database) {
+            try {
+                Clients.connection();
+            } catch (final IOException | SQLException e) {
+                System.err.println("Could not connect to the database: " + e.getMessage());
+            }
+        }
+        synchronized (Warmup.class) {
+            unreportedNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Add the time the handlers spent priming since the last report as the
+     * primeMs attribute. Called by every invocation, it is reported by the
+     * first after a handler was constructed, the cold start.
+     * @param inspector The Inspector of the invocation.
+     */
+    static void report(final Inspector inspector) {
+        final long nanos;
+        synchronized (Warmup.class) {
+            nanos = unreportedNanos;
+            unreportedNanos = 0;
+        }
+        if (nanos > 0) {
+            inspector.addAttribute("primeMs", Math.round(nanos / 1e4) / 100.0);
+        }
+    }
+
+    /**
+     * Parse, transform and sketch synthetic rows, and serialize a recurring
+     * cities cache of them.
+     */
+    private static void primeTransform() throws IOException {
+        final StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < ROWS; i++) {
+            csv.append(18 + i % 60).append(',').append(i % 2 == 0 ? "Male" : "Female").append(',')
+                    .append(1 + i % 50).append(',').append(i % 10 + 0.5).append(',')
+                    .append(i % 7 + 0.25).append(',').append(i % 3 + 0.75).append(',')
+                    .append(CITIES[i % CITIES.length]).append('\n');
+        }
+
+        final HashMap<String, Transform.CacheLocation> recurringCities = new HashMap<>();
+        final StringBuilder transformed = new StringBuilder();
+        try (CSVParser parser = CSVParser.parse(new StringReader(csv.toString()), CSVFormat.DEFAULT)) {
+            for (final CSVRecord record : parser) {
+                // Links the method handles of the transformer generated for the schema, see RowSchema.
+                transformed.append(Transform.transformRow(record, city -> recurringCities.computeIfAbsent(city,
+                        key -> new Transform.CacheLocation("Washington", "United States"))));
+            }
+        }
+
+        // The transformed rows are read back as LoadAurora reads an object.
+        for (final String name : S3_CLASSES) {
+            try {
+                Class.forName(name);
+            } catch (final ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+        }
+        final SketchStore sketches = new SketchStore();
+        try (CSVParser parser = CSVParser.parse(new ByteArrayInputStream(transformed.toString().getBytes(Charset.defaultCharset())),
+                Charset.defaultCharset(), CSVFormat.DEFAULT)) {
+            for (final CSVRecord record : parser) {
+                sketches.add(record);
+            }
+        }
+
+        final ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(serialized)) {
+            out.writeObject(recurringCities);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized.toByteArray()))) {
+            in.readObject();
+        } catch (final ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Parse and plan a query and encode a synthetic result, as rows and columns.
+     */
+    private static void primeQuery() {
+        final List<HashMap<String, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < QUERIES; i++) {
+            final QuerySpec spec = new QuerySpec(null, new JSONObject(QUERY));
+            spec.toShape(new ArrayList<>());
+            final HashMap<String, Object> row = new HashMap<>();
+            row.put("userCity", CITIES[i % CITIES.length]);
+            row.put("resultState", "Washington");
+            row.put("AVG_userTotalAppUsage", i * 0.5);
+            rows.add(row);
+        }
+        final HashMap<String, Object> meta = new HashMap<>();
+        new JSONObject(ColumnarResult.response(meta, ColumnarResult.encode(rows), ColumnarResult.GZIP)).toString();
+        new JSONObject(rows.get(0)).toString();
+    }
+
+    /**
+     * Prime and exit, the training run for a class data sharing archive. The
+     * S3 client is built with a placeholder region if none is configured, only
+     * its classes are wanted. No database connection is opened.
+     */
+    public static void main(final String[] args) {
+        if (System.getenv("AWS_REGION") == null && System.getProperty("aws.region") == null) {
+            System.setProperty("aws.region", "us-west-2");
+        }
+        prime(true, false);
+        try {
+            Class.forName("com.mysql.cj.jdbc.Driver");
+        } catch (final ClassNotFoundException e) {
+            System.err.println("The MySQL driver is not on the classpath.");
+        }
+        Clients.close();
+    }
+}
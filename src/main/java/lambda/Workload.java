@@ -0,0 +1,245 @@
+package lambda;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The workload table, recording how often each query shape runs and how long it
+ * takes, and the registry of summary tables the Advisor built for those shapes.
+ *
+ * query_workload: One row per shape with its filter columns, group columns,
+ *                 aggregates as a JSON array, execution count, total latency in ms and the last
+ *                 EXPLAIN estimate of rows examined.
+ * query_rollups:  One row per shape with a summary table, when it was last
+ *                 rebuilt and the load generation it was rebuilt at.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+final class Workload {
+
+    /** Whether this container has already made sure the tables exist. */
+    private static final AtomicBoolean TABLES_CREATED = new AtomicBoolean();
+
+    /** The buffered executions written at once, however recent. */
+    private static final int FLUSH_EXECUTIONS = 100;
+
+    /** The executions recorded in this container and not written yet, keyed by shape hash. Guarded by itself. */
+    private static final Map<String, Executions> PENDING = new HashMap<>();
+
+    /** The number of buffered executions, guarded by PENDING. */
+    private static int pendingExecutions;
+
+    /** The time the oldest buffered execution was recorded in ms, guarded by PENDING. */
+    private static long pendingSince;
+
+    private Workload() {
+    }
+
+    /**
+     * Create the workload and summary table registry if they do not exist yet.
+     * @param con The database connection.
+     * @throws SQLException If the tables could not be created.
+     */
+    static void createTables(final Connection con) throws SQLException {
+        if (TABLES_CREATED.get()) {
+            return;
+        }
+        try (PreparedStatement workload = con.prepareStatement(
+                     "CREATE TABLE IF NOT EXISTS query_workload (shapeHash CHAR(40) NOT NULL, shape TEXT NOT NULL, "
+                     + "filterColumns VARCHAR(1024) NOT NULL, groupColumns VARCHAR(1024) NOT NULL, "
+                     + "aggregates VARCHAR(2048) NOT NULL, executions BIGINT NOT NULL, totalLatency BIGINT NOT NULL, "
+                     + "estimatedRows BIGINT NOT NULL, lastSeen TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP, "
+                     + "PRIMARY KEY (shapeHash));");
+             PreparedStatement rollups = con.prepareStatement(
+                     "CREATE TABLE IF NOT EXISTS query_rollups (shapeHash CHAR(40) NOT NULL, tableName VARCHAR(64) NOT NULL, "
+                     + "refreshedAt TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP, generation BIGINT NOT NULL DEFAULT 0, "
+                     + "PRIMARY KEY (shapeHash));");
+             PreparedStatement check = con.prepareStatement(
+                     "SELECT EXISTS (SELECT * FROM information_schema.columns WHERE table_schema = DATABASE() "
+                     + "AND table_name = 'query_rollups' AND column_name = 'generation');")) {
+            workload.execute();
+            rollups.execute();
+
+            // A registry created before generations were tracked counts its tables as generation 0, stale once anything is loaded.
+            try (ResultSet rs = check.executeQuery()) {
+                rs.next();
+                if (!rs.getBoolean(1)) {
+                    try (PreparedStatement alter = con.prepareStatement(
+                            "ALTER TABLE query_rollups ADD COLUMN generation BIGINT NOT NULL DEFAULT 0;")) {
+                        alter.execute();
+                    }
+                }
+            }
+        }
+        TABLES_CREATED.set(true);
+    }
+
+    /**
+     * Record one execution of a shape. Executions are buffered in the container
+     * and written at once, when the oldest was buffered flushInterval ms ago or
+     * FLUSH_EXECUTIONS are buffered, so the writer is not written for every query.
+     * Executions buffered when a container is shut down are not recorded.
+     * @param con The database connection, written to if the buffer is due.
+     * @param shape The shape that ran.
+     * @param latency The execution time in ms.
+     * @param estimatedRows The EXPLAIN estimate of rows examined.
+     * @param flushInterval The ms executions are buffered at most, 0 to write every execution.
+     * @throws SQLException If the workload could not be updated, the buffered executions are dropped.
+     */
+    static void record(
+            final Connection con,
+            final QueryShape shape,
+            final long latency,
+            final long estimatedRows,
+            final long flushInterval
+    ) throws SQLException {
+        final long now = System.currentTimeMillis();
+        final List<Executions> due;
+        synchronized (PENDING) {
+            Executions executions = PENDING.get(shape.getHash());
+            if (executions == null) {
+                executions = new Executions(shape);
+                PENDING.put(shape.getHash(), executions);
+            }
+            if (pendingExecutions == 0) {
+                pendingSince = now;
+            }
+            executions.count++;
+            executions.totalLatency += latency;
+            executions.estimatedRows = estimatedRows;
+            pendingExecutions++;
+            if (pendingExecutions < FLUSH_EXECUTIONS && now - pendingSince < flushInterval) {
+                return;
+            }
+            due = new ArrayList<>(PENDING.values());
+            PENDING.clear();
+            pendingExecutions = 0;
+        }
+
+        // Written in shape order, so concurrent containers lock the rows in the same order.
+        due.sort(Comparator.comparing(executions -> executions.shape.getHash()));
+        createTables(con);
+        try (PreparedStatement upsert = con.prepareStatement(
+                "INSERT INTO query_workload (shapeHash, shape, filterColumns, groupColumns, aggregates, executions, "
+                + "totalLatency, estimatedRows) VALUES (?,?,?,?,?,?,?,?) ON DUPLICATE KEY UPDATE "
+                + "executions = executions + VALUES(executions), totalLatency = totalLatency + VALUES(totalLatency), "
+                + "estimatedRows = VALUES(estimatedRows), aggregates = VALUES(aggregates), lastSeen = CURRENT_TIMESTAMP")) {
+            for (final Executions executions : due) {
+                upsert.setString(1, executions.shape.getHash());
+                upsert.setString(2, executions.shape.getSql());
+                upsert.setString(3, String.join(",", executions.shape.getFilterColumns()));
+                upsert.setString(4, String.join(",", executions.shape.getGroupColumns()));
+                upsert.setString(5, executions.shape.describeAggregates());
+                upsert.setLong(6, executions.count);
+                upsert.setLong(7, executions.totalLatency);
+                upsert.setLong(8, executions.estimatedRows);
+                upsert.addBatch();
+            }
+            upsert.executeBatch();
+        }
+    }
+
+    /**
+     * Find the summary table built for a shape, if it is fresh: rebuilt less than
+     * maxAge seconds ago, at most maxGenerations load generations before the one
+     * the writer is at. With maxGenerations 0 it holds every loaded row.
+     * @param con A connection to the writer.
+     * @param shape The shape.
+     * @param maxAge The maximum age of the summary table in seconds.
+     * @param maxGenerations The maximum loads committed since the summary table was rebuilt.
+     * @return The summary table, or null if there is no fresh one.
+     * @throws SQLException If the registry could not be read.
+     */
+    static Rollup findRollup(
+            final Connection con,
+            final QueryShape shape,
+            final long maxAge,
+            final long maxGenerations
+    ) throws SQLException {
+        createTables(con);
+        final Rollup rollup;
+        try (PreparedStatement select = con.prepareStatement(
+                "SELECT tableName, TIMESTAMPDIFF(SECOND, refreshedAt, CURRENT_TIMESTAMP), generation FROM query_rollups "
+                + "WHERE shapeHash = ? AND refreshedAt > CURRENT_TIMESTAMP - INTERVAL ? SECOND")) {
+            select.setString(1, shape.getHash());
+            select.setLong(2, maxAge);
+            try (ResultSet rs = select.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                rollup = new Rollup(rs.getString(1), rs.getLong(2), rs.getLong(3), LoadGeneration.read(con));
+            }
+        }
+        return rollup.getGenerationsBehind() <= maxGenerations ? rollup : null;
+    }
+
+    /**
+     * A summary table registered for a shape.
+     */
+    static final class Rollup {
+
+        private final String table;
+        private final long age;
+        private final long generation;
+        private final long current;
+
+        Rollup(final String table, final long age, final long generation, final long current) {
+            this.table = table;
+            this.age = age;
+            this.generation = generation;
+            this.current = current;
+        }
+
+        String getTable() {
+            return table;
+        }
+
+        /**
+         * @return The seconds since the summary table was rebuilt.
+         */
+        long getAge() {
+            return age;
+        }
+
+        /**
+         * @return The load generation the summary table was built at.
+         */
+        long getGeneration() {
+            return generation;
+        }
+
+        /**
+         * @return The loads committed since the summary table was rebuilt, whose rows it lacks.
+         */
+        long getGenerationsBehind() {
+            return Math.max(0, current - generation);
+        }
+    }
+
+    /**
+     * The buffered executions of a shape.
+     */
+    private static final class Executions {
+
+        final QueryShape shape;
+        long count;
+        long totalLatency;
+        long estimatedRows;
+
+        Executions(final QueryShape shape) {
+            this.shape = shape;
+        }
+    }
+}
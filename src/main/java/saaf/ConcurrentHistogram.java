@@ -0,0 +1,83 @@
+package saaf;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A log-linear latency histogram with the buckets of Histogram that any number
+ * of threads can record into without locking. The buckets are striped by thread
+ * so concurrent workers rarely update the same counter.
+ *
+ * @author Wes Lloyd
+ * @author Robert Cordingly
+ */
+public final class ConcurrentHistogram {
+
+    /** Stripes of buckets, a power of two. */
+    private static final int STRIPES = 4;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(STRIPES * Histogram.BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /** The buckets at the last window, see window(). */
+    private long[] previous = new long[Histogram.BUCKETS];
+
+    /**
+     * Record a latency.
+     *
+     * @param nanos The latency in nanoseconds, negative values are recorded as 0.
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        buckets.incrementAndGet(stripe * Histogram.BUCKETS + Histogram.index(value));
+        total.add(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * @return The bucket counts since the histogram was created.
+     */
+    long[] snapshot() {
+        long[] counts = new long[Histogram.BUCKETS];
+        for (int i = 0; i < buckets.length(); i++) {
+            counts[i % Histogram.BUCKETS] += buckets.get(i);
+        }
+        return counts;
+    }
+
+    /**
+     * Get the bucket counts recorded since the last call, for metrics reported
+     * per flush interval. Only called by the thread flushing the registry.
+     *
+     * @return The bucket counts of the window.
+     */
+    synchronized long[] window() {
+        long[] counts = snapshot();
+        long[] window = new long[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            window[i] = counts[i] - previous[i];
+        }
+        previous = counts;
+        return window;
+    }
+
+    /**
+     * @return The sum of all recorded latencies in nanoseconds.
+     */
+    long total() {
+        return total.sum();
+    }
+
+    /**
+     * @return The largest recorded latency in nanoseconds.
+     */
+    long max() {
+        return max.get();
+    }
+}
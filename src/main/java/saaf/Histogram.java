@@ -0,0 +1,158 @@
+package saaf;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A fixed-size log-linear histogram of latencies in nanoseconds. Every power of
+ * two is split into 8 linear buckets, so a reported percentile is within 12.5%
+ * of the true value. Recording is a few arithmetic operations and an array
+ * increment, with no allocation.
+ *
+ * Not thread safe, a histogram belongs to the thread that owns its Span.
+ *
+ * @author Wes Lloyd
+ * @author Robert Cordingly
+ */
+public final class Histogram {
+
+    /** Linear buckets per power of two, as a power of two. */
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** The number of buckets, enough for any non-negative long. */
+    static final int BUCKETS = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final long[] buckets = new long[BUCKETS];
+    private long count;
+    private long total;
+    private long max;
+
+    /**
+     * Record a latency.
+     *
+     * @param nanos The latency in nanoseconds, negative values are recorded as 0.
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        buckets[index(value)]++;
+        count++;
+        total += value;
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    /**
+     * Add the latencies recorded by another histogram.
+     *
+     * @param other The other histogram, which is not changed.
+     */
+    public void add(Histogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] += other.buckets[i];
+        }
+        count += other.count;
+        total += other.total;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * @return The number of recorded latencies.
+     */
+    public long count() {
+        return count;
+    }
+
+    /**
+     * @return The sum of the recorded latencies in nanoseconds.
+     */
+    public long total() {
+        return total;
+    }
+
+    /**
+     * Estimate a percentile as the midpoint of the bucket holding it.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @return The latency in nanoseconds, 0 if nothing was recorded.
+     */
+    public long percentile(double percentile) {
+        return percentile(buckets, count, max, percentile);
+    }
+
+    /**
+     * Estimate a percentile of bucket counts as the midpoint of the bucket holding it.
+     *
+     * @param buckets The bucket counts.
+     * @param count The total of the bucket counts.
+     * @param max The largest recorded value, which caps the estimate.
+     * @param percentile The percentile, between 0 and 100.
+     * @return The latency in nanoseconds, 0 if the buckets are empty.
+     */
+    static long percentile(long[] buckets, long count, long max, double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100.0 * count);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank && buckets[i] > 0) {
+                long lower = lowerBound(i);
+                long upper = i + 1 < buckets.length ? lowerBound(i + 1) : Long.MAX_VALUE;
+                return Math.min(lower + (upper - lower) / 2, max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Summarize the histogram in milliseconds.
+     *
+     * @return The count, mean, 50th, 90th and 99th percentile and maximum.
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("count", count);
+        summary.put("meanMs", count == 0 ? 0.0 : millis(total / count));
+        summary.put("p50Ms", millis(percentile(50)));
+        summary.put("p90Ms", millis(percentile(90)));
+        summary.put("p99Ms", millis(percentile(99)));
+        summary.put("maxMs", millis(max));
+        return summary;
+    }
+
+    /**
+     * Convert nanoseconds to milliseconds rounded to microseconds.
+     */
+    static double millis(long nanos) {
+        return Math.round(nanos / 1000.0) / 1000.0;
+    }
+
+    /**
+     * @param value A non-negative value.
+     * @return The index of the bucket holding the value.
+     */
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @param index The index of a bucket.
+     * @return The smallest value held by the bucket.
+     */
+    static long lowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+}
@@ -6,7 +6,10 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
@@ -15,9 +18,12 @@ import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 /**
@@ -28,8 +34,58 @@ import java.util.stream.Collectors;
  */
 public class Inspector {
 
+    /** The CPU time counters of /proc/stat, in the order they appear. */
+    private static final String[] CPU_METRICS = {"cpuUsr", "cpuNice", "cpuKrn", "cpuIdle",
+        "cpuIowait", "cpuIrq", "cpuSoftIrq", "vmcpusteal"};
+    private static final String[] CPU_DELTAS = {"cpuUsrDelta", "cpuNiceDelta", "cpuKrnDelta", "cpuIdleDelta",
+        "cpuIowaitDelta", "cpuIrqDelta", "cpuSoftIrqDelta", "vmcpustealDelta"};
+
+    /** Counter files, kept open and shared by every Inspector in the JVM. */
+    private static final ProcReader STAT = new ProcReader("/proc/stat", 4096);
+    private static final ProcReader VMSTAT = new ProcReader("/proc/vmstat", 8192);
+    private static final ProcReader MEMINFO = new ProcReader("/proc/meminfo", 4096);
+
+    private static final byte[] CPU = ProcReader.key("cpu ");
+    private static final byte[] CTXT = ProcReader.key("ctxt ");
+    private static final byte[] BTIME = ProcReader.key("btime ");
+    private static final byte[] PGFAULT = ProcReader.key("pgfault ");
+    private static final byte[] PGMAJFAULT = ProcReader.key("pgmajfault ");
+    private static final byte[] MEM_TOTAL = ProcReader.key("MemTotal:");
+    private static final byte[] MEM_FREE = ProcReader.key("MemFree:");
+
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+    private static final List<GarbageCollectorMXBean> COLLECTORS = ManagementFactory.getGarbageCollectorMXBeans();
+
+    /** Reports the bytes allocated by a thread, null if the JVM does not support it. */
+    private static final com.sun.management.ThreadMXBean THREADS = threadAllocation();
+
+    /** Values that do not change for the life of the container, read once. */
+    private static String[] cpuInfo;
+    private static String containerUuid;
+    private static volatile Long vmUptime;
+    private static String vmID;
+    private static String linuxVersion;
+
     private final HashMap<String, Object> attributes;
     private final long startTime;
+    private final long[] cpuValues = new long[CPU_METRICS.length];
+
+    /** The root of the span tree and the innermost open span. */
+    private final Span rootSpan = new Span("root", this, null);
+    private Span currentSpan = rootSpan;
+
+    /** The thread that called inspectMemory and the bytes it had allocated, -1 if unknown. */
+    private long memoryThread;
+    private long memoryThreadAllocated = -1;
+
+    /** The bytes allocated by worker threads, see trackWorker. */
+    private final LongAdder workerAllocated = new LongAdder();
+
+    /** Samples the stacks of this invocation, null unless profiling is enabled. */
+    private final Sampler sampler;
+
+    /** The JFR recording of this invocation, null unless JFR is enabled. */
+    private final Object jfrRecording;
 
     private boolean inspectedCPU = false;
     private boolean inspectedMemory = false;
@@ -43,6 +99,9 @@ public class Inspector {
      * attributes: Used to store information collected by each function.
      * version: Inspector version.
      * lang: Function language (java).
+     *
+     * With JFR enabled a recording is started, see Jfr. With profiling enabled
+     * the calling thread is sampled, see Sampler.
      */
     public Inspector() {
         startTime = System.currentTimeMillis();
@@ -51,6 +110,29 @@ public class Inspector {
         attributes.put("version", 0.5);
         attributes.put("lang", "java");
         attributes.put("startTime", startTime);
+
+        jfrRecording = Jfr.startRecording();
+        sampler = Sampler.start(Thread.currentThread());
+    }
+
+    /**
+     * Forget the container and VM identity cached by this JVM, so the next
+     * inspectContainer() stamps a new container. Call after the JVM is restored
+     * from a snapshot, every restored copy would otherwise report the uuid of
+     * the container the snapshot was taken in.
+     */
+    public static void resetContainer() {
+        synchronized (Inspector.class) {
+            containerUuid = null;
+            vmID = null;
+            linuxVersion = null;
+            vmUptime = null;
+            try {
+                Files.deleteIfExists(Paths.get("/tmp/container-id"));
+            } catch (IOException ioe) {
+                System.err.println("Failed to delete file=/tmp/container-id");
+            }
+        }
     }
 
     /**
@@ -67,55 +149,49 @@ public class Inspector {
         }
         inspectedContainer = true;
 
-        //Stamp Container
-        int newContainer;
-        String uuid = "";
-
-        File f = new File("/tmp/container-id");
-        Path p = Paths.get("/tmp/container-id");
-        if (f.exists()) {
-            newContainer = 0;
-            try (BufferedReader br = Files.newBufferedReader(p)) {
-                uuid = br.readLine();
-                br.close();
-            } catch (IOException ioe) {
-                //sError = STAMP_ERR_READING_EXISTING_UUID;
-            }
-        } else {
-            newContainer = 1;
-            try (BufferedWriter bw = Files.newBufferedWriter(p,
-                    StandardCharsets.US_ASCII, StandardOpenOption.CREATE_NEW)) {
-                uuid = UUID.randomUUID().toString();
-                bw.write(uuid);
-                bw.close();
-            } catch (IOException ioe) {
-                //sError = STAMP_ERR_WRITING_NEW_UUID;
+        //Stamp Container, only the first Inspector in this JVM touches the file.
+        int newContainer = 0;
+        synchronized (Inspector.class) {
+            if (containerUuid == null) {
+                containerUuid = "";
+                File f = new File("/tmp/container-id");
+                Path p = Paths.get("/tmp/container-id");
+                if (f.exists()) {
+                    try (BufferedReader br = Files.newBufferedReader(p)) {
+                        containerUuid = br.readLine();
+                    } catch (IOException ioe) {
+                        //sError = STAMP_ERR_READING_EXISTING_UUID;
+                    }
+                } else {
+                    newContainer = 1;
+                    try (BufferedWriter bw = Files.newBufferedWriter(p,
+                            StandardCharsets.US_ASCII, StandardOpenOption.CREATE_NEW)) {
+                        containerUuid = UUID.randomUUID().toString();
+                        bw.write(containerUuid);
+                    } catch (IOException ioe) {
+                        //sError = STAMP_ERR_WRITING_NEW_UUID;
+                    }
+                }
             }
         }
 
-        attributes.put("uuid", uuid);
+        attributes.put("uuid", containerUuid);
         attributes.put("newcontainer", newContainer);
 
-        //Get VM Uptime
-        String filename = "/proc/stat";
-        f = new File(filename);
-        p = Paths.get(filename);
-        String text;
-        if (f.exists()) {
-            try (BufferedReader br = Files.newBufferedReader(p)) {
-                while ((text = br.readLine()) != null && text.length() != 0) {
-                    // get boot time in ms since epoch 
-                    if (text.contains("btime")) {
-                        String prms[] = text.split(" ");
-                        attributes.put("vmuptime", Long.parseLong(prms[1]));
+        //Get VM Uptime, the boot time does not change.
+        if (vmUptime == null) {
+            synchronized (STAT) {
+                if (STAT.refresh()) {
+                    int at = STAT.find(BTIME);
+                    if (at >= 0) {
+                        vmUptime = STAT.parseLong(at);
                     }
                 }
-                br.close();
-
-            } catch (IOException ioe) {
-                //sb.append("Error reading file=" + filename);
             }
         }
+        if (vmUptime != null) {
+            attributes.put("vmuptime", vmUptime);
+        }
     }
 
     /**
@@ -137,78 +213,25 @@ public class Inspector {
     public void inspectCPU() {
         inspectedCPU = true;
 
-        String text;
-        int start;
-        int end;
-
-        String cpuType = "unknown";
-        String cpuModel = "unknown";
-        String cpuCores = "unknown";
-
-        try
-        {
-            //Get CPU Type
-            text = getFileAsString("/proc/cpuinfo");
-            start = text.indexOf("name") + 7;
-            if (start > -1)
-            {
-                end = start + text.substring(start).indexOf(":");
-                cpuType = text.substring(start, end - 9).trim();
-            }
-
-            //Get CPU Model
-            start = text.indexOf("model") + 9;
-            if (start > -1)
-            {
-                end = start + text.substring(start).indexOf(":");
-                cpuModel = text.substring(start, end - 11).trim();
-            }
-
-            //Get CPU Core Count
-            start = text.indexOf("cpu cores") + 12;
-            if (start > -1)
-            {
-                end = start + text.substring(start).indexOf(":");
-                cpuCores = text.substring(start, end - 9).trim();
-            }
-        }
-        catch (Exception e)
-        {
-            System.err.println("Difficulty processing /proc/cpuinfo.  Is this an Intel platform?  Some attributes may be unavailable.");
-        }
-        finally
-        {
-            attributes.put("cpuType", cpuType);
-            attributes.put("cpuModel", cpuModel);
-            attributes.put("cpuCores", cpuCores);
-        }
+        String[] cpuInfo = cpuInfo();
+        attributes.put("cpuType", cpuInfo[0]);
+        attributes.put("cpuModel", cpuInfo[1]);
+        attributes.put("cpuCores", cpuInfo[2]);
 
         //Get CPU Metrics
-        String filename = "/proc/stat";
-        File f = new File(filename);
-        Path p = Paths.get(filename);
-        if (f.exists()) {
-            try (BufferedReader br = Files.newBufferedReader(p)) {
-                text = br.readLine();
-                String params[] = text.split(" ");
-
-                String[] metricNames = {"cpuUsr", "cpuNice", "cpuKrn", "cpuIdle",
-                    "cpuIowait", "cpuIrq", "cpuSoftIrq", "vmcpusteal"};
-
-                for (int i = 0; i < metricNames.length; i++) {
-                    attributes.put(metricNames[i], Long.parseLong(params[i + 2]));
-                }
-
-                while ((text = br.readLine()) != null && text.length() != 0) {
-                    if (text.contains("ctxt")) {
-                        String prms[] = text.split(" ");
-                        attributes.put("contextSwitches", Long.parseLong(prms[1]));
+        synchronized (STAT) {
+            if (STAT.refresh()) {
+                int at = STAT.find(CPU);
+                if (at >= 0) {
+                    STAT.parseLongs(at, cpuValues);
+                    for (int i = 0; i < CPU_METRICS.length; i++) {
+                        attributes.put(CPU_METRICS[i], cpuValues[i]);
                     }
                 }
-
-                br.close();
-            } catch (IOException ioe) {
-                //sb.append("Error reading file=" + filename);
+                at = STAT.find(CTXT);
+                if (at >= 0) {
+                    attributes.put("contextSwitches", STAT.parseLong(at));
+                }
             }
         }
     }
@@ -228,34 +251,20 @@ public class Inspector {
      */
     public void inspectCPUDelta() {
         if (inspectedCPU) {
-            String text;
-
             //Get CPU Metrics
-            String filename = "/proc/stat";
-            File f = new File(filename);
-            Path p = Paths.get(filename);
-            if (f.exists()) {
-                try (BufferedReader br = Files.newBufferedReader(p)) {
-                    text = br.readLine();
-                    String params[] = text.split(" ");
-
-                    String[] metricNames = {"cpuUsr", "cpuNice", "cpuKrn", "cpuIdle",
-                        "cpuIowait", "cpuIrq", "cpuSoftIrq", "vmcpusteal"};
-
-                    for (int i = 0; i < metricNames.length; i++) {
-                        attributes.put(metricNames[i] + "Delta", Long.parseLong(params[i + 2]) - (Long)attributes.get(metricNames[i]));
-                    }
-
-                    while ((text = br.readLine()) != null && text.length() != 0) {
-                        if (text.contains("ctxt")) {
-                            String prms[] = text.split(" ");
-                            attributes.put("contextSwitchesDelta", Long.parseLong(prms[1]) - (Long)attributes.get("contextSwitches"));
+            synchronized (STAT) {
+                if (STAT.refresh()) {
+                    int at = STAT.find(CPU);
+                    if (at >= 0) {
+                        STAT.parseLongs(at, cpuValues);
+                        for (int i = 0; i < CPU_METRICS.length; i++) {
+                            putDelta(CPU_DELTAS[i], cpuValues[i], CPU_METRICS[i]);
                         }
                     }
-
-                    br.close();
-                } catch (IOException ioe) {
-                    //sb.append("Error reading file=" + filename);
+                    at = STAT.find(CTXT);
+                    if (at >= 0) {
+                        putDelta("contextSwitchesDelta", STAT.parseLong(at), "contextSwitches");
+                    }
                 }
             }
         } else {
@@ -264,77 +273,129 @@ public class Inspector {
     }
 
     /**
-     * Inspects /proc/meminfo and /proc/vmstat. Add memory specific attributes:
+     * Inspects /proc/meminfo and /proc/vmstat, and the memory of the JVM. Add
+     * memory specific attributes:
      * 
      * totalMemory:     Total memory allocated to the VM in kB.
      * freeMemory:      Current free memory in kB when inspectMemory is called.
      * pageFaults:      Total number of page faults experienced by the vm since boot.
      * majorPageFaults: Total number of major page faults experienced since boot.
+     * heapUsed:        Bytes of the Java heap in use.
+     * heapCommitted:   Bytes of the Java heap reserved from the OS.
+     * heapMax:         The maximum size of the Java heap in bytes, -1 if undefined.
+     * nonHeapUsed:     Bytes in use outside the heap: metaspace, code cache and so on.
+     * nonHeapCommitted: Bytes reserved from the OS outside the heap.
+     * gcCount:         Total number of garbage collections since the JVM started.
+     * gcTime:          Total time spent in garbage collection in ms.
+     * gcCollectors:    The count and timeMs of every collector, by collector name.
+     * threadAllocatedBytes: Bytes allocated by the calling thread since it started.
      * 
      */
     public void inspectMemory() {
 
         inspectedMemory = true;
-        String memInfo = getFileAsString("/proc/meminfo");
-        String[] lines = memInfo.split("\n");
-        attributes.put("totalMemory", lines[0].replace("MemTotal:", "").replace("\t", "").replace(" kB", "").replace(" ", ""));
-        attributes.put("freeMemory", lines[1].replace("MemFree:", "").replace("\t", "").replace(" kB", "").replace(" ", ""));
-
-        String text;
+        synchronized (MEMINFO) {
+            if (MEMINFO.refresh()) {
+                int at = MEMINFO.find(MEM_TOTAL);
+                if (at >= 0) {
+                    attributes.put("totalMemory", Long.toString(MEMINFO.parseLong(at)));
+                }
+                at = MEMINFO.find(MEM_FREE);
+                if (at >= 0) {
+                    attributes.put("freeMemory", Long.toString(MEMINFO.parseLong(at)));
+                }
+            }
+        }
 
         //Get Memory Metrics
-        String filename = "/proc/vmstat";
-        File f = new File(filename);
-        Path p = Paths.get(filename);
-        if (f.exists()) {
-            try (BufferedReader br = Files.newBufferedReader(p)) {
-                while ((text = br.readLine()) != null && text.length() != 0) {
-                    if (text.contains("pgfault")) {
-                        String prms[] = text.split(" ");
-                        attributes.put("pageFaults", Long.parseLong(prms[1]));
-                    } else if (text.contains("pgmajfault")) {
-                        String prms[] = text.split(" ");
-                        attributes.put("majorPageFaults", Long.parseLong(prms[1]));
-                    }
+        synchronized (VMSTAT) {
+            if (VMSTAT.refresh()) {
+                int at = VMSTAT.find(PGFAULT);
+                if (at >= 0) {
+                    attributes.put("pageFaults", VMSTAT.parseLong(at));
+                }
+                at = VMSTAT.find(PGMAJFAULT);
+                if (at >= 0) {
+                    attributes.put("majorPageFaults", VMSTAT.parseLong(at));
                 }
-
-                br.close();
-            } catch (IOException ioe) {
-                //sb.append("Error reading file=" + filename);
             }
         }
+
+        //Get JVM Metrics
+        MemoryUsage heap = MEMORY.getHeapMemoryUsage();
+        MemoryUsage nonHeap = MEMORY.getNonHeapMemoryUsage();
+        attributes.put("heapUsed", heap.getUsed());
+        attributes.put("heapCommitted", heap.getCommitted());
+        attributes.put("heapMax", heap.getMax());
+        attributes.put("nonHeapUsed", nonHeap.getUsed());
+        attributes.put("nonHeapCommitted", nonHeap.getCommitted());
+
+        Map<String, Map<String, Long>> collectors = collectors();
+        attributes.put("gcCollectors", collectors);
+        attributes.put("gcCount", total(collectors, "count"));
+        attributes.put("gcTime", total(collectors, "timeMs"));
+
+        memoryThread = Thread.currentThread().getId();
+        memoryThreadAllocated = allocatedBytes(memoryThread);
+        if (memoryThreadAllocated >= 0) {
+            attributes.put("threadAllocatedBytes", memoryThreadAllocated);
+        }
     }
 
     /**
-     * Inspects /proc/vmstat to see how specific memory stats have changed.
+     * Inspects /proc/vmstat and the JVM to see how specific memory stats have changed.
      * 
      * pageFaultsDelta:     The number of page faults experienced since inspectMemory was called.
      * majorPageFaultsDelta: The number of major pafe faults since inspectMemory was called.
+     * heapUsedDelta:       The change in heap usage, negative if garbage was collected.
+     * gcCountDelta:        The number of garbage collections since inspectMemory was called.
+     * gcTimeDelta:         The time spent in garbage collection since inspectMemory was called, in ms.
+     * gcCollectorsDelta:   The count and timeMs of every collector since inspectMemory was called.
+     * allocatedBytes:      Bytes allocated by the thread that called inspectMemory plus
+     *                      the worker tasks wrapped with trackWorker.
+     * workerAllocatedBytes: Bytes allocated by the wrapped worker threads.
      */
     public void inspectMemoryDelta() {
         if (inspectedMemory) {
-            String text;
+            synchronized (VMSTAT) {
+                if (VMSTAT.refresh()) {
+                    int at = VMSTAT.find(PGFAULT);
+                    if (at >= 0) {
+                        putDelta("pageFaultsDelta", VMSTAT.parseLong(at), "pageFaults");
+                    }
+                    at = VMSTAT.find(PGMAJFAULT);
+                    if (at >= 0) {
+                        putDelta("majorPageFaultsDelta", VMSTAT.parseLong(at), "majorPageFaults");
+                    }
+                }
+            }
 
-            //Get CPU Metrics
-            String filename = "/proc/vmstat";
-            File f = new File(filename);
-            Path p = Paths.get(filename);
-            if (f.exists()) {
-                try (BufferedReader br = Files.newBufferedReader(p)) {
-                    while ((text = br.readLine()) != null && text.length() != 0) {
-                        if (text.contains("pgfault")) {
-                            String prms[] = text.split(" ");
-                            attributes.put("pageFaultsDelta", Long.parseLong(prms[1]) - (Long)attributes.get("pageFaults"));
-                        } else if (text.contains("pgmajfault")) {
-                            String prms[] = text.split(" ");
-                            attributes.put("majorPageFaultsDelta", Long.parseLong(prms[1]) - (Long)attributes.get("majorPageFaults"));
+            putDelta("heapUsedDelta", MEMORY.getHeapMemoryUsage().getUsed(), "heapUsed");
+
+            Map<String, Map<String, Long>> collectors = collectors();
+            Object base = attributes.get("gcCollectors");
+            if (base instanceof Map) {
+                Map<String, Map<String, Long>> deltas = new LinkedHashMap<>();
+                for (Map.Entry<String, Map<String, Long>> collector : collectors.entrySet()) {
+                    Map<?, ?> before = (Map<?, ?>) ((Map<?, ?>) base).get(collector.getKey());
+                    if (before != null) {
+                        Map<String, Long> delta = new LinkedHashMap<>();
+                        for (Map.Entry<String, Long> value : collector.getValue().entrySet()) {
+                            delta.put(value.getKey(), value.getValue() - (Long) before.get(value.getKey()));
                         }
+                        deltas.put(collector.getKey(), delta);
                     }
-
-                    br.close();
-                } catch (IOException ioe) {
-                    //sb.append("Error reading file=" + filename);
                 }
+                attributes.put("gcCollectorsDelta", deltas);
+            }
+            putDelta("gcCountDelta", total(collectors, "count"), "gcCount");
+            putDelta("gcTimeDelta", total(collectors, "timeMs"), "gcTime");
+
+            long allocated = allocatedBytes(memoryThread);
+            if (allocated >= 0 && memoryThreadAllocated >= 0) {
+                long workers = workerAllocated.sum();
+                attributes.put("allocatedBytes", allocated - memoryThreadAllocated + workers);
+                attributes.put("workerAllocatedBytes", workers);
             }
         } else {
             attributes.put("SAAFMemoryDeltaError", "Memory not inspected before collecting deltas!");
@@ -365,10 +426,7 @@ public class Inspector {
             attributes.put("functionName", System.getenv("AWS_LAMBDA_FUNCTION_NAME"));
             attributes.put("functionMemory", System.getenv("AWS_LAMBDA_FUNCTION_MEMORY_SIZE"));
             attributes.put("functionRegion", System.getenv("AWS_REGION"));
-
-            String vmID = runCommand(new String[]{"cat", "/proc/self/cgroup"});
-            int index = vmID.indexOf("sandbox-root");
-            attributes.put("vmID", vmID.substring(index + 13, index + 19));
+            attributes.put("vmID", vmID());
         } else {
             key = System.getenv("X_GOOGLE_FUNCTION_NAME");
             if (key != null) {
@@ -382,7 +440,7 @@ public class Inspector {
                     attributes.put("platform", "IBM Cloud Functions");
                     attributes.put("functionName", key);
                     attributes.put("functionRegion", System.getenv("__OW_API_HOST"));
-                    attributes.put("vmID", runCommand(new String[]{"cat", "/sys/hypervisor/uuid"}).trim());
+                    attributes.put("vmID", vmID());
                 } else {
                     key = System.getenv("CONTAINER_NAME");
                     if (key != null) {
@@ -409,8 +467,7 @@ public class Inspector {
             return;
         }
         inspectedLinux = true;
-        String linuxVersion = runCommand(new String[]{"uname", "-a"}).trim();
-        attributes.put("linuxVersion", linuxVersion);
+        attributes.put("linuxVersion", linuxVersion());
     }
 
     /**
@@ -485,18 +542,174 @@ public class Inspector {
         attributes.put(key, currentTime - timeSince);
     }
 
+    /**
+     * Wrap a task run on a worker thread so the bytes it allocates are counted
+     * in allocatedBytes and, when profiling, its stacks are sampled. Otherwise
+     * the Inspector only sees the thread that called inspectMemory.
+     *
+     * @param task The task.
+     * @return The wrapped task.
+     */
+    public Runnable trackWorker(Runnable task) {
+        if (THREADS == null && sampler == null) {
+            return task;
+        }
+        return () -> {
+            Thread thread = Thread.currentThread();
+            long before = allocatedBytes(thread.getId());
+            if (sampler != null) {
+                sampler.register(thread);
+            }
+            try {
+                task.run();
+            } finally {
+                if (sampler != null) {
+                    sampler.unregister(thread);
+                }
+                long after = allocatedBytes(thread.getId());
+                if (before >= 0 && after >= 0) {
+                    workerAllocated.add(after - before);
+                }
+            }
+        };
+    }
+
+    /**
+     * Start a timed span nested under the innermost open span. Use it in a
+     * try-with-resources block, or close it explicitly. The spans are reported
+     * as a tree in the 'spans' attribute by finish.
+     *
+     * @param name The name of the span.
+     * @return The started span.
+     */
+    public Span startSpan(String name) {
+        return span(name).start();
+    }
+
+    /**
+     * Get a span nested under the innermost open span without starting it, to
+     * start later with Span.start or to fork to worker threads.
+     *
+     * @param name The name of the span.
+     * @return The span.
+     */
+    public Span span(String name) {
+        return currentSpan.child(name);
+    }
+
+    /**
+     * Called by a span when it is started, it becomes the innermost open span.
+     *
+     * @param span The span being started.
+     */
+    void enterSpan(Span span) {
+        currentSpan = span;
+    }
+
+    /**
+     * Called by a span when it is closed. Spans still open inside it are closed
+     * first, and its parent becomes the innermost open span.
+     *
+     * @param span The span being closed.
+     */
+    void endSpan(Span span) {
+        for (Span open = currentSpan; open != null; open = open.getParent()) {
+            if (open == span) {
+                while (currentSpan != span) {
+                    if (currentSpan.isOpen()) {
+                        currentSpan.close();
+                    } else {
+                        currentSpan = currentSpan.getParent();
+                    }
+                }
+                currentSpan = span.getParent();
+                return;
+            }
+        }
+    }
+
     /**
      * Finalize the Inspector. Calculator the total runtime and return the HashMap
-     * object containing all attributes collected.
+     * object containing all attributes collected. Spans still open are closed.
+     * If allocations were measured and spans counted rows, allocatedBytesPerRow
+     * is the allocated bytes divided by the sum of all 'rows' span counters.
      *
      * @return Attributes collected by the Inspector.
      */
     public HashMap<String, Object> finish() {
+        while (currentSpan != rootSpan) {
+            if (currentSpan.isOpen()) {
+                currentSpan.close();
+            } else {
+                currentSpan = currentSpan.getParent();
+            }
+        }
+        if (rootSpan.hasChildren()) {
+            attributes.put("spans", rootSpan.childMaps());
+        }
+        Object allocated = attributes.get("allocatedBytes");
+        if (allocated instanceof Long) {
+            long rows = rootSpan.counterTotal("rows");
+            if (rows > 0) {
+                attributes.put("allocatedBytesPerRow", (Long) allocated / rows);
+            }
+            MetricsRegistry.counter("allocatedBytes").add((Long) allocated);
+        }
+        if (sampler != null) {
+            attributes.put("profile", sampler.finish(startTime));
+        }
+        if (jfrRecording != null) {
+            attributes.put("jfr", Jfr.finishRecording(jfrRecording, startTime));
+        }
         this.addTimeStamp("runtime");
+        MetricsRegistry.counter("invocations").increment();
+        MetricsRegistry.histogram("runtime").record((Long) attributes.get("runtime") * 1000000);
+        MetricsRegistry.flushIfDue();
         attributes.put("endTime", System.currentTimeMillis());
         return attributes;
     }
 
+    /**
+     * @return The collection count and time of every garbage collector, by name.
+     */
+    private static Map<String, Map<String, Long>> collectors() {
+        Map<String, Map<String, Long>> collectors = new LinkedHashMap<>();
+        for (GarbageCollectorMXBean collector : COLLECTORS) {
+            Map<String, Long> values = new LinkedHashMap<>();
+            values.put("count", Math.max(collector.getCollectionCount(), 0));
+            values.put("timeMs", Math.max(collector.getCollectionTime(), 0));
+            collectors.put(collector.getName(), values);
+        }
+        return collectors;
+    }
+
+    private static long total(Map<String, Map<String, Long>> collectors, String key) {
+        long total = 0;
+        for (Map<String, Long> values : collectors.values()) {
+            total += values.get(key);
+        }
+        return total;
+    }
+
+    /**
+     * @param thread The id of a live thread.
+     * @return The bytes the thread has allocated, -1 if unavailable.
+     */
+    private static long allocatedBytes(long thread) {
+        return THREADS != null ? THREADS.getThreadAllocatedBytes(thread) : -1;
+    }
+
+    private static com.sun.management.ThreadMXBean threadAllocation() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+            if (allocation.isThreadAllocatedMemorySupported() && allocation.isThreadAllocatedMemoryEnabled()) {
+                return allocation;
+            }
+        }
+        return null;
+    }
+
     /**
      * Read a file and return it as a String.
      *
@@ -523,34 +736,82 @@ public class Inspector {
     }
 
     /**
-     * Execute a bash command and get the output.
+     * Put the difference between a current value and the attribute collected
+     * before it, if that attribute exists.
      *
-     * @param command An array of strings with each part of the command.
-     * @return Standard out of the command.
+     * @param key The delta attribute to add.
+     * @param current The current value.
+     * @param baseKey The attribute holding the earlier value.
      */
-    private static String runCommand(String[] command) {
-        ProcessBuilder processBuilder = new ProcessBuilder();
-        processBuilder.command(command);
-        try {
-            Process process = processBuilder.start();
-            StringBuilder output = new StringBuilder();
-            BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(process.getInputStream()));
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                output.append(line);
-                output.append("\n");
+    private void putDelta(String key, long current, String baseKey) {
+        Object base = attributes.get(baseKey);
+        if (base instanceof Long) {
+            attributes.put(key, current - (Long) base);
+        }
+    }
+
+    /**
+     * Read the CPU type, model and core count from /proc/cpuinfo once per JVM.
+     *
+     * @return The CPU type, model and core count, "unknown" if unavailable.
+     */
+    private static synchronized String[] cpuInfo() {
+        if (cpuInfo == null) {
+            String[] info = {"unknown", "unknown", "unknown"};
+            ProcReader reader = new ProcReader("/proc/cpuinfo", 8192);
+            if (reader.refresh()) {
+                byte[][] keys = {ProcReader.key("model name"), ProcReader.key("model\t"), ProcReader.key("cpu cores")};
+                for (int i = 0; i < keys.length; i++) {
+                    int at = reader.find(keys[i]);
+                    if (at >= 0) {
+                        info[i] = reader.lineFrom(at).replaceFirst("^:", "").trim();
+                    }
+                }
+            } else {
+                System.err.println("Difficulty processing /proc/cpuinfo.  Is this an Intel platform?  Some attributes may be unavailable.");
+            }
+            reader.close();
+            cpuInfo = info;
+        }
+        return cpuInfo;
+    }
+
+    /**
+     * Identify the VM hosting this container once per JVM. On AWS Lambda this is
+     * read from the sandbox-root cgroup, on IBM from the hypervisor uuid.
+     *
+     * @return The VM identifier, "unknown" if unavailable.
+     */
+    private static synchronized String vmID() {
+        if (vmID == null) {
+            String cgroup = getFileAsString("/proc/self/cgroup");
+            int index = cgroup.indexOf("sandbox-root");
+            if (index >= 0 && index + 19 <= cgroup.length()) {
+                vmID = cgroup.substring(index + 13, index + 19);
+            } else {
+                String uuid = getFileAsString("/sys/hypervisor/uuid").trim();
+                vmID = uuid.isEmpty() ? "unknown" : uuid;
             }
+        }
+        return vmID;
+    }
 
-            int exitVal = process.waitFor();
-            if (exitVal == 0) {
-                return output.toString();
+    /**
+     * Build the equivalent of 'uname -a' from /proc/sys/kernel once per JVM.
+     *
+     * @return The kernel name, host name, release, version and architecture.
+     */
+    private static synchronized String linuxVersion() {
+        if (linuxVersion == null) {
+            StringBuilder sb = new StringBuilder();
+            for (String name : new String[]{"ostype", "hostname", "osrelease", "version"}) {
+                sb.append(getFileAsString("/proc/sys/kernel/" + name).trim());
+                sb.append(" ");
             }
-        } catch (IOException | InterruptedException e) {
-            return "IO Exception " + e.toString();
+            sb.append(System.getProperty("os.arch"));
+            linuxVersion = sb.toString().trim();
         }
-        return "ERROR";
+        return linuxVersion;
     }
 
     /**
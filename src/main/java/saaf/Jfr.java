@@ -0,0 +1,118 @@
+package saaf;
+
+import java.util.Map;
+
+/**
+ * Optional Java Flight Recorder integration. When enabled, every Inspector runs
+ * a bounded recording from construction to finish() and adds a summary of it as
+ * the 'jfr' attribute: GC pauses, allocation rate, top allocation sites, hot
+ * methods, monitor contention and JIT compilation. Spans and geocode lookups are
+ * also emitted as custom events, for offline analysis of the raw recording.
+ *
+ * Enabled with the system property saaf.jfr=true or the environment variable
+ * SAAF_JFR=true. With saaf.jfr.dump=true or SAAF_JFR_DUMP=true the recording is
+ * kept as /tmp/saaf-[startTime].jfr and its path reported as 'jfr.file'.
+ *
+ * On runtimes without JFR this class does nothing. It only refers to jdk.jfr
+ * through JfrRecorder, which is loaded once JFR is known to be available.
+ *
+ * @author Wes Lloyd
+ * @author Robert Cordingly
+ */
+public final class Jfr {
+
+    /** Whether JFR was requested and is available. */
+    static final boolean ENABLED = enabled();
+
+    /** Whether recordings are kept in /tmp. */
+    static final boolean DUMP = setting("saaf.jfr.dump", "SAAF_JFR_DUMP");
+
+    private Jfr() {
+    }
+
+    /**
+     * @return Whether JFR recording is enabled.
+     */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Start timing a geocode lookup.
+     *
+     * @param city The city looked up.
+     * @return The event to pass to endGeocode, null if JFR is disabled.
+     */
+    public static Object beginGeocode(String city) {
+        return ENABLED ? JfrRecorder.beginGeocode(city) : null;
+    }
+
+    /**
+     * Commit a geocode lookup.
+     *
+     * @param event The event from beginGeocode, may be null.
+     * @param state The state found.
+     * @param country The country found.
+     */
+    public static void endGeocode(Object event, String state, String country) {
+        if (event != null) {
+            JfrRecorder.endGeocode(event, state, country);
+        }
+    }
+
+    static Object beginStage(String name) {
+        return ENABLED ? JfrRecorder.beginStage(name) : null;
+    }
+
+    static void endStage(Object event) {
+        if (event != null) {
+            JfrRecorder.endStage(event);
+        }
+    }
+
+    /**
+     * Start a recording for an invocation.
+     *
+     * @return The recording, null if JFR is disabled or could not be started.
+     */
+    static Object startRecording() {
+        if (!ENABLED) {
+            return null;
+        }
+        try {
+            return new JfrRecorder();
+        } catch (RuntimeException e) {
+            System.err.println("Could not start a JFR recording: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Stop a recording and summarize it.
+     *
+     * @param recording The recording from startRecording.
+     * @param startTime The start time of the Inspector, used to name a kept recording.
+     * @return The summary.
+     */
+    static Map<String, Object> finishRecording(Object recording, long startTime) {
+        return ((JfrRecorder) recording).finish(DUMP ? "/tmp/saaf-" + startTime + ".jfr" : null);
+    }
+
+    private static boolean enabled() {
+        if (!setting("saaf.jfr", "SAAF_JFR")) {
+            return false;
+        }
+        try {
+            Class.forName("jdk.jfr.FlightRecorder");
+            return JfrRecorder.isAvailable();
+        } catch (ClassNotFoundException | LinkageError e) {
+            System.err.println("JFR was requested but is not supported by this runtime.");
+            return false;
+        }
+    }
+
+    private static boolean setting(String property, String variable) {
+        String value = System.getProperty(property, System.getenv(variable));
+        return "true".equalsIgnoreCase(value);
+    }
+}
@@ -0,0 +1,276 @@
+package saaf;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * A JFR recording of one invocation and the custom SAAF events. Only used
+ * through Jfr, once JFR is known to be available.
+ *
+ * @author Wes Lloyd
+ * @author Robert Cordingly
+ */
+final class JfrRecorder {
+
+    /** The largest the recording may grow before old events are dropped. */
+    private static final long MAX_SIZE = 16L * 1024 * 1024;
+
+    /** Entries in the top allocation site and hot method lists. */
+    private static final int TOP = 5;
+
+    private final Recording recording;
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * A span started with Inspector.startSpan.
+     */
+    @Name("saaf.Stage")
+    @Label("Stage")
+    @Category("SAAF")
+    @Description("A stage of a function, timed by an Inspector span")
+    @StackTrace(false)
+    static final class StageEvent extends Event {
+        @Label("Name")
+        String name;
+    }
+
+    /**
+     * A geocode lookup that missed the recurring cities cache.
+     */
+    @Name("saaf.Geocode")
+    @Label("Geocode")
+    @Category("SAAF")
+    @Description("A lookup of a city with the geocoding API")
+    @StackTrace(false)
+    static final class GeocodeEvent extends Event {
+        @Label("City")
+        String city;
+
+        @Label("State")
+        String state;
+
+        @Label("Country")
+        String country;
+    }
+
+    static boolean isAvailable() {
+        return FlightRecorder.isAvailable();
+    }
+
+    JfrRecorder() {
+        recording = new Recording();
+        recording.setName("saaf");
+        recording.setToDisk(true);
+        recording.setMaxSize(MAX_SIZE);
+        recording.enable("jdk.GarbageCollection");
+        if (hasEventType("jdk.ObjectAllocationSample")) {
+            recording.enable("jdk.ObjectAllocationSample").with("throttle", "300/s").withStackTrace();
+        } else {
+            recording.enable("jdk.ObjectAllocationInNewTLAB").withStackTrace();
+            recording.enable("jdk.ObjectAllocationOutsideTLAB").withStackTrace();
+        }
+        recording.enable("jdk.ExecutionSample").withPeriod(Duration.ofMillis(10));
+        recording.enable("jdk.JavaMonitorEnter").withThreshold(Duration.ofMillis(1)).withStackTrace();
+        recording.enable("jdk.Compilation").withThreshold(Duration.ZERO);
+        recording.enable(StageEvent.class);
+        recording.enable(GeocodeEvent.class);
+        recording.start();
+    }
+
+    static Object beginStage(String name) {
+        StageEvent event = new StageEvent();
+        event.name = name;
+        event.begin();
+        return event;
+    }
+
+    static void endStage(Object event) {
+        ((StageEvent) event).commit();
+    }
+
+    static Object beginGeocode(String city) {
+        GeocodeEvent event = new GeocodeEvent();
+        event.city = city;
+        event.begin();
+        return event;
+    }
+
+    static void endGeocode(Object event, String state, String country) {
+        GeocodeEvent geocode = (GeocodeEvent) event;
+        geocode.state = state;
+        geocode.country = country;
+        geocode.commit();
+    }
+
+    /**
+     * Stop the recording and summarize it.
+     *
+     * @param keepAs The path to keep the recording at, null to delete it.
+     * @return The summary.
+     */
+    Map<String, Object> finish(String keepAs) {
+        recording.stop();
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        Map<String, Object> summary = new LinkedHashMap<>();
+        Path file = null;
+        try {
+            file = keepAs != null ? Paths.get(keepAs) : Files.createTempFile("saaf", ".jfr");
+            recording.dump(file);
+            summarize(RecordingFile.readAllEvents(file), seconds, summary);
+            if (keepAs != null) {
+                summary.put("file", keepAs);
+            }
+        } catch (IOException e) {
+            summary.put("error", "Could not read the JFR recording: " + e.getMessage());
+        } finally {
+            recording.close();
+            if (keepAs == null && file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    System.err.println("Failed to delete temporary file: " + file);
+                }
+            }
+        }
+        return summary;
+    }
+
+    private static void summarize(List<RecordedEvent> events, double seconds, Map<String, Object> summary) {
+        long gcCount = 0;
+        long gcPauseNanos = 0;
+        long gcLongestPauseNanos = 0;
+        long allocatedBytes = 0;
+        long monitorCount = 0;
+        long monitorNanos = 0;
+        long compilations = 0;
+        long compilationNanos = 0;
+        long stages = 0;
+        long geocodes = 0;
+        Map<String, Long> allocationSites = new HashMap<>();
+        Map<String, Long> hotMethods = new HashMap<>();
+
+        for (RecordedEvent event : events) {
+            switch (event.getEventType().getName()) {
+                case "jdk.GarbageCollection":
+                    gcCount++;
+                    gcPauseNanos += event.getDuration("sumOfPauses").toNanos();
+                    gcLongestPauseNanos = Math.max(gcLongestPauseNanos, event.getDuration("longestPause").toNanos());
+                    break;
+                case "jdk.ObjectAllocationSample":
+                    allocatedBytes += event.getLong("weight");
+                    allocationSites.merge(site(event.getStackTrace()), event.getLong("weight"), Long::sum);
+                    break;
+                case "jdk.ObjectAllocationInNewTLAB":
+                    allocatedBytes += event.getLong("tlabSize");
+                    allocationSites.merge(site(event.getStackTrace()), event.getLong("tlabSize"), Long::sum);
+                    break;
+                case "jdk.ObjectAllocationOutsideTLAB":
+                    allocatedBytes += event.getLong("allocationSize");
+                    allocationSites.merge(site(event.getStackTrace()), event.getLong("allocationSize"), Long::sum);
+                    break;
+                case "jdk.ExecutionSample":
+                    hotMethods.merge(frame(event.getStackTrace(), false), 1L, Long::sum);
+                    break;
+                case "jdk.JavaMonitorEnter":
+                    monitorCount++;
+                    monitorNanos += event.getDuration().toNanos();
+                    break;
+                case "jdk.Compilation":
+                    compilations++;
+                    compilationNanos += event.getDuration().toNanos();
+                    break;
+                case "saaf.Stage":
+                    stages++;
+                    break;
+                case "saaf.Geocode":
+                    geocodes++;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        summary.put("durationMs", Histogram.millis((long) (seconds * 1e9)));
+        summary.put("gcCount", gcCount);
+        summary.put("gcPauseMs", Histogram.millis(gcPauseNanos));
+        summary.put("gcLongestPauseMs", Histogram.millis(gcLongestPauseNanos));
+        summary.put("allocatedMB", Math.round(allocatedBytes / 1048576.0 * 10) / 10.0);
+        summary.put("allocationRateMBs", seconds > 0 ? Math.round(allocatedBytes / 1048576.0 / seconds * 10) / 10.0 : 0.0);
+        summary.put("topAllocationSites", top(allocationSites, "bytes"));
+        summary.put("hotMethods", top(hotMethods, "samples"));
+        summary.put("monitorContentions", monitorCount);
+        summary.put("monitorContentionMs", Histogram.millis(monitorNanos));
+        summary.put("compilations", compilations);
+        summary.put("compilationMs", Histogram.millis(compilationNanos));
+        summary.put("stageEvents", stages);
+        summary.put("geocodeEvents", geocodes);
+    }
+
+    /**
+     * The allocation site of a stack trace: the first frame outside the JDK, so
+     * that allocations inside collections and strings are charged to their caller.
+     */
+    private static String site(RecordedStackTrace stackTrace) {
+        return frame(stackTrace, true);
+    }
+
+    private static String frame(RecordedStackTrace stackTrace, boolean skipJdk) {
+        if (stackTrace == null || stackTrace.getFrames().isEmpty()) {
+            return "unknown";
+        }
+        RecordedFrame chosen = stackTrace.getFrames().get(0);
+        if (skipJdk) {
+            for (RecordedFrame frame : stackTrace.getFrames()) {
+                String type = frame.getMethod().getType().getName();
+                if (!type.startsWith("java.") && !type.startsWith("jdk.") && !type.startsWith("sun.")) {
+                    chosen = frame;
+                    break;
+                }
+            }
+        }
+        return chosen.getMethod().getType().getName() + "." + chosen.getMethod().getName() + ":" + chosen.getLineNumber();
+    }
+
+    private static List<Map<String, Object>> top(Map<String, Long> counts, String unit) {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(counts.entrySet());
+        entries.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        List<Map<String, Object>> top = new ArrayList<>();
+        for (int i = 0; i < Math.min(TOP, entries.size()); i++) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("method", entries.get(i).getKey());
+            entry.put(unit, entries.get(i).getValue());
+            top.add(entry);
+        }
+        return top;
+    }
+
+    private static boolean hasEventType(String name) {
+        for (EventType type : FlightRecorder.getFlightRecorder().getEventTypes()) {
+            if (type.getName().equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
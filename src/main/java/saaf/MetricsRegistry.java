@@ -0,0 +1,264 @@
+package saaf;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms that live as long as the container, so they
+ * accumulate across warm invocations. Every Inspector span records its latency
+ * into the histogram 'stage.[path]' and its counters into '[path].[counter]';
+ * functions can add their own with counter(name) and histogram(name).
+ *
+ * Recording never locks: counters are LongAdders and histograms are striped.
+ *
+ * Inspector.finish() flushes the registry once the flush interval has passed,
+ * and so does a shutdown hook. A flush writes:
+ *
+ * - CloudWatch embedded metric format lines to standard out, with the counter
+ *   increments and the count, p50, p90, p99 and max of every histogram since
+ *   the previous flush, dimensioned by function name.
+ * - The Prometheus text format of the cumulative values to a file, by default
+ *   /tmp/saaf-metrics.prom, replaced atomically.
+ *
+ * Settings, as system properties:
+ *
+ * saaf.metrics.flushSeconds:    The flush interval (default 60, 0 flushes every invocation).
+ * saaf.metrics.namespace:       The CloudWatch namespace (default SAAF).
+ * saaf.metrics.prometheusFile:  The Prometheus file, empty to disable it.
+ * saaf.metrics.emf:             Whether to log embedded metric format lines (default true).
+ *
+ * @author Wes Lloyd
+ * @author Robert Cordingly
+ */
+public final class MetricsRegistry {
+
+    /** CloudWatch accepts at most 100 metrics per embedded metric format directive. */
+    private static final int EMF_MAX_METRICS = 100;
+
+    private static final long FLUSH_INTERVAL_MS =
+            Long.getLong("saaf.metrics.flushSeconds", 60) * 1000;
+    private static final String NAMESPACE = System.getProperty("saaf.metrics.namespace", "SAAF");
+    private static final String PROMETHEUS_FILE =
+            System.getProperty("saaf.metrics.prometheusFile", "/tmp/saaf-metrics.prom");
+    private static final boolean EMF = Boolean.parseBoolean(System.getProperty("saaf.metrics.emf", "true"));
+
+    private static final ConcurrentHashMap<String, Counter> COUNTERS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, ConcurrentHistogram> HISTOGRAMS = new ConcurrentHashMap<>();
+    private static final AtomicLong LAST_FLUSH = new AtomicLong(System.currentTimeMillis());
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(MetricsRegistry::flush, "saaf-metrics-flush"));
+    }
+
+    /**
+     * A monotonically increasing count.
+     */
+    public static final class Counter {
+
+        private final LongAdder value = new LongAdder();
+
+        /** The value at the previous flush. */
+        private long previous;
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long delta) {
+            value.add(delta);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        /**
+         * @return The increase since the previous call.
+         */
+        synchronized long window() {
+            long current = value.sum();
+            long delta = current - previous;
+            previous = current;
+            return delta;
+        }
+    }
+
+    private MetricsRegistry() {
+    }
+
+    /**
+     * Get a counter, creating it on first use. Keep the returned counter rather
+     * than looking it up on every increment.
+     *
+     * @param name The name of the counter.
+     * @return The counter.
+     */
+    public static Counter counter(String name) {
+        Counter counter = COUNTERS.get(name);
+        return counter != null ? counter : COUNTERS.computeIfAbsent(name, key -> new Counter());
+    }
+
+    /**
+     * Get a latency histogram, creating it on first use. Keep the returned
+     * histogram rather than looking it up on every record.
+     *
+     * @param name The name of the histogram.
+     * @return The histogram.
+     */
+    public static ConcurrentHistogram histogram(String name) {
+        ConcurrentHistogram histogram = HISTOGRAMS.get(name);
+        return histogram != null ? histogram : HISTOGRAMS.computeIfAbsent(name, key -> new ConcurrentHistogram());
+    }
+
+    /**
+     * Flush if the flush interval has passed since the last flush.
+     */
+    public static void flushIfDue() {
+        long last = LAST_FLUSH.get();
+        long now = System.currentTimeMillis();
+        if (now - last >= FLUSH_INTERVAL_MS && LAST_FLUSH.compareAndSet(last, now)) {
+            flush();
+        }
+    }
+
+    /**
+     * Write the metrics now.
+     */
+    public static synchronized void flush() {
+        LAST_FLUSH.set(System.currentTimeMillis());
+        if (EMF) {
+            for (String line : emf()) {
+                System.out.println(line);
+            }
+        }
+        if (!PROMETHEUS_FILE.isEmpty()) {
+            Path file = Paths.get(PROMETHEUS_FILE);
+            try {
+                Path tmp = Paths.get(PROMETHEUS_FILE + ".tmp");
+                Files.write(tmp, prometheus().getBytes(StandardCharsets.UTF_8));
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.err.println("Error writing file=" + file);
+            }
+        }
+    }
+
+    /**
+     * Build the embedded metric format lines for the window since the previous
+     * call, and start a new window.
+     *
+     * @return One JSON line per 100 metrics.
+     */
+    static synchronized List<String> emf() {
+        Map<String, Object[]> values = new TreeMap<>();
+        for (Map.Entry<String, Counter> counter : new TreeMap<>(COUNTERS).entrySet()) {
+            long delta = counter.getValue().window();
+            if (delta != 0) {
+                values.put(counter.getKey(), new Object[]{delta, "Count"});
+            }
+        }
+        for (Map.Entry<String, ConcurrentHistogram> entry : new TreeMap<>(HISTOGRAMS).entrySet()) {
+            ConcurrentHistogram histogram = entry.getValue();
+            long[] window = histogram.window();
+            long count = 0;
+            for (long bucket : window) {
+                count += bucket;
+            }
+            if (count == 0) {
+                continue;
+            }
+            String name = entry.getKey();
+            values.put(name + ".count", new Object[]{count, "Count"});
+            values.put(name + ".p50", new Object[]{millis(window, count, histogram.max(), 50), "Milliseconds"});
+            values.put(name + ".p90", new Object[]{millis(window, count, histogram.max(), 90), "Milliseconds"});
+            values.put(name + ".p99", new Object[]{millis(window, count, histogram.max(), 99), "Milliseconds"});
+            values.put(name + ".max", new Object[]{millis(window, count, histogram.max(), 100), "Milliseconds"});
+        }
+
+        String functionName = System.getenv("AWS_LAMBDA_FUNCTION_NAME");
+        List<String> lines = new ArrayList<>();
+        List<Map.Entry<String, Object[]>> entries = new ArrayList<>(values.entrySet());
+        for (int start = 0; start < entries.size(); start += EMF_MAX_METRICS) {
+            List<Map.Entry<String, Object[]>> chunk =
+                    entries.subList(start, Math.min(start + EMF_MAX_METRICS, entries.size()));
+            StringBuilder definitions = new StringBuilder();
+            StringBuilder members = new StringBuilder();
+            for (Map.Entry<String, Object[]> metric : chunk) {
+                if (definitions.length() > 0) {
+                    definitions.append(',');
+                }
+                definitions.append("{\"Name\":").append(quote(metric.getKey()))
+                        .append(",\"Unit\":\"").append(metric.getValue()[1]).append("\"}");
+                members.append(',').append(quote(metric.getKey())).append(':').append(metric.getValue()[0]);
+            }
+            lines.add("{\"_aws\":{\"Timestamp\":" + System.currentTimeMillis()
+                    + ",\"CloudWatchMetrics\":[{\"Namespace\":" + quote(NAMESPACE)
+                    + ",\"Dimensions\":[[\"FunctionName\"]],\"Metrics\":[" + definitions + "]}]}"
+                    + ",\"FunctionName\":" + quote(functionName != null ? functionName : "local")
+                    + members + "}");
+        }
+        return lines;
+    }
+
+    /**
+     * Build the Prometheus text format of the cumulative values. Histograms are
+     * reported in seconds with a bucket per power of two.
+     *
+     * @return The metrics.
+     */
+    public static String prometheus() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Counter> counter : new TreeMap<>(COUNTERS).entrySet()) {
+            String name = "saaf_" + sanitize(counter.getKey()) + "_total";
+            text.append("# TYPE ").append(name).append(" counter\n");
+            text.append(name).append(' ').append(counter.getValue().get()).append('\n');
+        }
+        for (Map.Entry<String, ConcurrentHistogram> entry : new TreeMap<>(HISTOGRAMS).entrySet()) {
+            String name = "saaf_" + sanitize(entry.getKey()) + "_seconds";
+            ConcurrentHistogram histogram = entry.getValue();
+            long[] buckets = histogram.snapshot();
+            text.append("# TYPE ").append(name).append(" histogram\n");
+            long cumulative = 0;
+            long count = 0;
+            for (long bucket : buckets) {
+                count += bucket;
+            }
+            // Every 8 log-linear buckets span one power of two.
+            for (int i = 0; i < buckets.length && cumulative < count; i++) {
+                cumulative += buckets[i];
+                if ((i + 1) % 8 == 0 && i + 1 < buckets.length) {
+                    text.append(name).append("_bucket{le=\"")
+                            .append(Histogram.lowerBound(i + 1) / 1e9).append("\"} ")
+                            .append(cumulative).append('\n');
+                }
+            }
+            text.append(name).append("_bucket{le=\"+Inf\"} ").append(count).append('\n');
+            text.append(name).append("_sum ").append(histogram.total() / 1e9).append('\n');
+            text.append(name).append("_count ").append(count).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static double millis(long[] buckets, long count, long max, double percentile) {
+        return Histogram.millis(Histogram.percentile(buckets, count, max, percentile));
+    }
+
+    private static String sanitize(String name) {
+        return name.replaceAll("[^a-zA-Z0-9_]", "_");
+    }
+
+    private static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
@@ -0,0 +1,196 @@
+package saaf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a /proc counter file into a reusable buffer and parses values out of it
+ * without allocating. The file is opened once and re-read from offset 0 on every
+ * refresh, which makes the kernel regenerate its contents.
+ *
+ * Instances are shared by all Inspectors in the JVM, so every method that reads
+ * the buffer must be called while holding the reader's lock.
+ *
+ * @author Wes Lloyd
+ * @author Robert Cordingly
+ */
+final class ProcReader {
+
+    /** The path of the file. */
+    private final String path;
+
+    /** The open file, null if it could not be opened. */
+    private FileChannel channel;
+
+    /** The contents of the file after the last refresh. */
+    private ByteBuffer buffer;
+
+    /** The number of valid bytes in the buffer. */
+    private int length;
+
+    /**
+     * Open a /proc file.
+     * @param path The path of the file.
+     * @param capacity The initial buffer size, grown if the file is larger.
+     */
+    ProcReader(String path, int capacity) {
+        this.path = path;
+        this.buffer = ByteBuffer.allocate(capacity);
+        try {
+            channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        } catch (IOException | UnsupportedOperationException e) {
+            channel = null;
+        }
+    }
+
+    /**
+     * Encode a key for use with {@link #find(byte[])}.
+     *
+     * @param key The key at the start of a line, including any separator.
+     * @return The encoded key.
+     */
+    static byte[] key(String key) {
+        return key.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Re-read the file.
+     *
+     * @return True if the file could be read.
+     */
+    boolean refresh() {
+        if (channel == null) {
+            return false;
+        }
+        try {
+            length = 0;
+            while (true) {
+                buffer.clear();
+                buffer.position(length);
+                int read = channel.read(buffer, length);
+                if (read <= 0) {
+                    return length > 0;
+                }
+                length += read;
+                if (length == buffer.capacity()) {
+                    ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                    larger.put(buffer.array(), 0, length);
+                    buffer = larger;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading file=" + path);
+            return false;
+        }
+    }
+
+    /**
+     * Find a line starting with the given key.
+     *
+     * @param key The key, from {@link #key(String)}.
+     * @return The offset just after the key, or -1 if no line starts with it.
+     */
+    int find(byte[] key) {
+        byte[] bytes = buffer.array();
+        int lineStart = 0;
+        while (lineStart < length) {
+            if (lineStart + key.length <= length && startsWith(bytes, lineStart, key)) {
+                return lineStart + key.length;
+            }
+            while (lineStart < length && bytes[lineStart] != '\n') {
+                lineStart++;
+            }
+            lineStart++;
+        }
+        return -1;
+    }
+
+    /**
+     * Parse the number starting at or after the given offset, skipping blanks.
+     *
+     * @param offset The offset to start at.
+     * @return The number, or -1 if there is none before the end of the line.
+     */
+    long parseLong(int offset) {
+        byte[] bytes = buffer.array();
+        int i = skipBlanks(bytes, offset);
+        if (i >= length || bytes[i] < '0' || bytes[i] > '9') {
+            return -1;
+        }
+        long value = 0;
+        while (i < length && bytes[i] >= '0' && bytes[i] <= '9') {
+            value = value * 10 + (bytes[i] - '0');
+            i++;
+        }
+        return value;
+    }
+
+    /**
+     * Parse consecutive blank-separated numbers into an array.
+     *
+     * @param offset The offset of the first number.
+     * @param values Receives the numbers; entries without a number are set to -1.
+     */
+    void parseLongs(int offset, long[] values) {
+        byte[] bytes = buffer.array();
+        int i = offset;
+        for (int n = 0; n < values.length; n++) {
+            values[n] = parseLong(i);
+            i = skipBlanks(bytes, i);
+            while (i < length && bytes[i] >= '0' && bytes[i] <= '9') {
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Read the rest of the line starting at the given offset, trimmed. Allocates,
+     * so only use it for values read once per container.
+     *
+     * @param offset The offset to start at.
+     * @return The text up to the end of the line.
+     */
+    String lineFrom(int offset) {
+        byte[] bytes = buffer.array();
+        int end = offset;
+        while (end < length && bytes[end] != '\n') {
+            end++;
+        }
+        return new String(bytes, offset, end - offset, StandardCharsets.US_ASCII).trim();
+    }
+
+    /**
+     * Close the file.
+     */
+    void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing file=" + path);
+            }
+            channel = null;
+        }
+    }
+
+    private int skipBlanks(byte[] bytes, int offset) {
+        int i = offset;
+        while (i < length && (bytes[i] == ' ' || bytes[i] == '\t' || bytes[i] == ':')) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean startsWith(byte[] bytes, int offset, byte[] key) {
+        for (int i = 0; i < key.length; i++) {
+            if (bytes[offset + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
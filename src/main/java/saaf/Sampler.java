@@ -0,0 +1,254 @@
+package saaf;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A sampling profiler for one invocation. A daemon thread takes a stack
+ * snapshot of the handler thread and the worker threads registered with
+ * Inspector.trackWorker at a fixed interval, all threads in one call, and
+ * counts the runnable stacks as folded stacks: the frames from the root to the
+ * leaf joined by ';', the format read by flame graph tools. Threads that are
+ * waiting or blocked are only counted by state.
+ *
+ * Memory is bounded: stacks are cut at 128 frames, and once the distinct
+ * stacks reach saaf.profile.maxStacks further new stacks are counted as
+ * '[other]'.
+ *
+ * Inspector.finish() adds a 'profile' attribute with the sample counts, the
+ * frames with the most samples, and the overhead: the CPU time of the sampling
+ * thread as a percentage of the invocation. The folded stacks are written to
+ * [saaf.profile.dir]/saaf-profile-[startTime].folded.
+ *
+ * Enabled with the system property saaf.profile=true or the environment
+ * variable SAAF_PROFILE=true. Other settings, as system properties:
+ *
+ * saaf.profile.intervalMs:  The sampling interval (default 10).
+ * saaf.profile.maxStacks:   The distinct stacks kept (default 2000).
+ * saaf.profile.top:         The frames reported in the attribute (default 10).
+ * saaf.profile.dir:         The directory of the folded stacks (default /tmp, empty to disable).
+ *
+ * @author Wes Lloyd
+ * @author Robert Cordingly
+ */
+final class Sampler {
+
+    /** Whether profiling is enabled. */
+    static final boolean ENABLED = "true".equalsIgnoreCase(
+            System.getProperty("saaf.profile", System.getenv("SAAF_PROFILE")));
+
+    private static final long INTERVAL_MS = Math.max(1, Long.getLong("saaf.profile.intervalMs", 10));
+    private static final int MAX_STACKS = Integer.getInteger("saaf.profile.maxStacks", 2000);
+    private static final int TOP = Integer.getInteger("saaf.profile.top", 10);
+    private static final String DIR = System.getProperty("saaf.profile.dir", "/tmp");
+
+    /** The deepest stack kept, deeper stacks lose their root frames. */
+    private static final int MAX_DEPTH = 128;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /** The sampled threads and the root frame of their stacks. */
+    private final Map<Thread, String> threads = new ConcurrentHashMap<>();
+
+    /** Only touched by the sampling thread until it has been joined. */
+    private final Map<String, long[]> stacks = new HashMap<>();
+    private final Map<String, long[]> states = new TreeMap<>();
+    private long samples;
+    private long droppedStacks;
+    private long sampleNanos;
+    private long cpuNanos = -1;
+
+    private final long startNanos = System.nanoTime();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    private Sampler(Thread handler) {
+        threads.put(handler, "handler");
+        thread = new Thread(this::run, "saaf-sampler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Start sampling an invocation.
+     *
+     * @param handler The thread running the handler.
+     * @return The sampler, null if profiling is disabled.
+     */
+    static Sampler start(Thread handler) {
+        return ENABLED ? new Sampler(handler) : null;
+    }
+
+    void register(Thread worker) {
+        threads.put(worker, "worker");
+    }
+
+    void unregister(Thread worker) {
+        threads.remove(worker);
+    }
+
+    private void run() {
+        boolean cpuTime = THREADS.isCurrentThreadCpuTimeSupported();
+        long cpuStart = cpuTime ? THREADS.getCurrentThreadCpuTime() : 0;
+        while (running) {
+            try {
+                Thread.sleep(INTERVAL_MS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            long start = System.nanoTime();
+            sample();
+            sampleNanos += System.nanoTime() - start;
+        }
+        if (cpuTime) {
+            cpuNanos = THREADS.getCurrentThreadCpuTime() - cpuStart;
+        }
+    }
+
+    private void sample() {
+        List<Map.Entry<Thread, String>> sampled = new ArrayList<>(threads.entrySet());
+        long[] ids = new long[sampled.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = sampled.get(i).getKey().getId();
+        }
+        ThreadInfo[] infos = THREADS.getThreadInfo(ids, MAX_DEPTH);
+        for (int i = 0; i < infos.length; i++) {
+            ThreadInfo info = infos[i];
+            if (info == null) {
+                continue;
+            }
+            if (info.getThreadState() != Thread.State.RUNNABLE) {
+                increment(states, info.getThreadState().name());
+                continue;
+            }
+            String root = sampled.get(i).getValue();
+            StackTraceElement[] frames = info.getStackTrace();
+            StringBuilder folded = new StringBuilder(root);
+            if (frames.length == MAX_DEPTH) {
+                folded.append(";[truncated]");
+            }
+            for (int f = frames.length - 1; f >= 0; f--) {
+                folded.append(';').append(frames[f].getClassName()).append('.').append(frames[f].getMethodName());
+            }
+            String stack = folded.toString();
+            if (stacks.size() >= MAX_STACKS && !stacks.containsKey(stack)) {
+                droppedStacks++;
+                stack = root + ";[other]";
+            }
+            increment(stacks, stack);
+            samples++;
+        }
+    }
+
+    /**
+     * Stop sampling and summarize the samples.
+     *
+     * @param startTime The start time of the Inspector, used to name the folded stacks file.
+     * @return The summary.
+     */
+    Map<String, Object> finish(long startTime) {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        double elapsedMs = (System.nanoTime() - startNanos) / 1e6;
+        double overheadMs = (cpuNanos >= 0 ? cpuNanos : sampleNanos) / 1e6;
+
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("intervalMs", INTERVAL_MS);
+        summary.put("samples", samples);
+        summary.put("stacks", stacks.size());
+        summary.put("droppedStacks", droppedStacks);
+        summary.put("states", counts(states));
+        summary.put("overheadMs", Math.round(overheadMs * 100) / 100.0);
+        summary.put("overheadPercent", elapsedMs > 0 ? Math.round(overheadMs / elapsedMs * 10000) / 100.0 : 0.0);
+        summary.put("topFrames", topFrames());
+        if (!DIR.isEmpty() && !stacks.isEmpty()) {
+            String file = Paths.get(DIR, "saaf-profile-" + startTime + ".folded").toString();
+            try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, long[]> stack : stacks.entrySet()) {
+                    writer.write(stack.getKey());
+                    writer.write(' ');
+                    writer.write(Long.toString(stack.getValue()[0]));
+                    writer.write('\n');
+                }
+                summary.put("file", file);
+            } catch (IOException e) {
+                System.err.println("Error writing file=" + file);
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * The frames with the most samples at the top of the stack (self), with
+     * the samples they appear anywhere in (total).
+     */
+    private List<Map<String, Object>> topFrames() {
+        Map<String, long[]> frames = new HashMap<>();
+        Set<String> seen = new HashSet<>();
+        for (Map.Entry<String, long[]> stack : stacks.entrySet()) {
+            String[] split = stack.getKey().split(";");
+            long count = stack.getValue()[0];
+            seen.clear();
+            for (int i = 1; i < split.length; i++) {
+                long[] values = frames.computeIfAbsent(split[i], key -> new long[2]);
+                if (seen.add(split[i])) {
+                    values[1] += count;
+                }
+                if (i == split.length - 1) {
+                    values[0] += count;
+                }
+            }
+        }
+        List<Map.Entry<String, long[]>> entries = new ArrayList<>(frames.entrySet());
+        entries.sort((a, b) -> a.getValue()[0] != b.getValue()[0]
+                ? Long.compare(b.getValue()[0], a.getValue()[0])
+                : Long.compare(b.getValue()[1], a.getValue()[1]));
+        List<Map<String, Object>> top = new ArrayList<>();
+        for (int i = 0; i < Math.min(TOP, entries.size()); i++) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("frame", entries.get(i).getKey());
+            entry.put("self", entries.get(i).getValue()[0]);
+            entry.put("total", entries.get(i).getValue()[1]);
+            entry.put("selfPercent", samples > 0 ? Math.round(entries.get(i).getValue()[0] * 1000.0 / samples) / 10.0 : 0.0);
+            top.add(entry);
+        }
+        return top;
+    }
+
+    private static void increment(Map<String, long[]> counts, String key) {
+        long[] count = counts.get(key);
+        if (count == null) {
+            count = new long[1];
+            counts.put(key, count);
+        }
+        count[0]++;
+    }
+
+    private static Map<String, Long> counts(Map<String, long[]> counts) {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Map.Entry<String, long[]> count : counts.entrySet()) {
+            values.put(count.getKey(), count.getValue()[0]);
+        }
+        return values;
+    }
+}
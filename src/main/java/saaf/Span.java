@@ -0,0 +1,285 @@
+package saaf;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A named stage of a function, timed with System.nanoTime. Spans are started
+ * with Inspector.startSpan and nest under the span that is open at the time;
+ * starting a span with the same name under the same parent again adds to the
+ * existing span rather than creating a new one. A span that ran more than once
+ * reports a latency histogram along with its total time.
+ *
+ * Work repeated for every row should not open and close a span per row. Get the
+ * child once with child(name) and add each measured interval with record(nanos),
+ * which does not allocate.
+ *
+ * Every run and counter is also recorded in the container's MetricsRegistry,
+ * as the histogram 'stage.[path]' and the counters '[path].[counter]', where the
+ * path joins the names from the outermost span with dots.
+ *
+ * Spans are not thread safe and belong to the thread that runs the handler.
+ * Work done on other threads records into a fork of a span, made with fork()
+ * on the handler's thread, and adds it back with join(fork) when done.
+ *
+ * @author Wes Lloyd
+ * @author Robert Cordingly
+ */
+public final class Span implements AutoCloseable {
+
+    private final String name;
+    private final Inspector inspector;
+    private final Span parent;
+    private final Map<String, Span> children = new LinkedHashMap<>();
+    private final Map<String, long[]> counters = new LinkedHashMap<>();
+    private final boolean forked;
+
+    private long startNanos = -1;
+    private long count;
+    private long totalNanos;
+    private long firstNanos;
+    private Histogram latency;
+    private Object jfrEvent;
+    private String path;
+    private ConcurrentHistogram metric;
+
+    Span(String name, Inspector inspector, Span parent) {
+        this(name, inspector, parent, false);
+    }
+
+    private Span(String name, Inspector inspector, Span parent, boolean forked) {
+        this.name = name;
+        this.inspector = inspector;
+        this.parent = parent;
+        this.forked = forked;
+    }
+
+    /**
+     * Get a child span by name, creating it if needed. The child is not started.
+     *
+     * @param name The name of the child.
+     * @return The child span.
+     */
+    public Span child(String name) {
+        Span child = children.get(name);
+        if (child == null) {
+            child = new Span(name, inspector, this, forked);
+            children.put(name, child);
+        }
+        return child;
+    }
+
+    /**
+     * Start timing a run of this span, to be stopped with close. Unless the span
+     * is a fork it becomes the innermost open span, so it must be a child of
+     * the span open when it was got, as with Inspector.startSpan.
+     *
+     * @return This span.
+     */
+    public Span start() {
+        open();
+        if (!forked) {
+            inspector.enterSpan(this);
+        }
+        return this;
+    }
+
+    /**
+     * Make an empty copy of this span for another thread to record into. The
+     * fork has the same path, its children are forks as well, and starting or
+     * closing it does not change the open spans of the Inspector. Its runs and
+     * counters are reported once it is joined.
+     *
+     * @return The fork.
+     */
+    public Span fork() {
+        return new Span(name, inspector, parent, true);
+    }
+
+    /**
+     * Add the runs, counters and children of a fork of this span. The fork must
+     * no longer be used. Joins from several threads are serialized, but the
+     * span must not be used otherwise while they may happen.
+     *
+     * @param fork A fork of this span.
+     */
+    public synchronized void join(Span fork) {
+        if (fork.count > 0) {
+            if (count == 0) {
+                firstNanos = fork.firstNanos;
+                latency = fork.latency;
+            } else {
+                if (latency == null) {
+                    latency = new Histogram();
+                    latency.record(firstNanos);
+                }
+                if (fork.latency != null) {
+                    latency.add(fork.latency);
+                } else {
+                    latency.record(fork.firstNanos);
+                }
+            }
+            count += fork.count;
+            totalNanos += fork.totalNanos;
+        }
+        for (Map.Entry<String, long[]> counter : fork.counters.entrySet()) {
+            long[] value = counters.get(counter.getKey());
+            if (value == null) {
+                value = new long[1];
+                counters.put(counter.getKey(), value);
+            }
+            value[0] += counter.getValue()[0];
+        }
+        for (Span child : fork.children.values()) {
+            child(child.name).join(child);
+        }
+    }
+
+    /**
+     * Record one completed run of this span.
+     *
+     * @param nanos The duration of the run in nanoseconds.
+     */
+    public void record(long nanos) {
+        if (metric == null) {
+            metric = MetricsRegistry.histogram("stage." + getPath());
+        }
+        metric.record(nanos);
+        count++;
+        totalNanos += nanos;
+        if (count == 1) {
+            firstNanos = nanos;
+        } else {
+            if (latency == null) {
+                latency = new Histogram();
+                latency.record(firstNanos);
+            }
+            latency.record(nanos);
+        }
+    }
+
+    /**
+     * Add to a counter of this span, such as rows or bytes.
+     *
+     * @param counter The name of the counter.
+     * @param delta The amount to add.
+     */
+    public void add(String counter, long delta) {
+        long[] value = counters.get(counter);
+        if (value == null) {
+            value = new long[1];
+            counters.put(counter, value);
+        }
+        value[0] += delta;
+        MetricsRegistry.counter(getPath() + "." + counter).add(delta);
+    }
+
+    /**
+     * @return The number of recorded runs of this span.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Stop the span and record its duration.
+     */
+    @Override
+    public void close() {
+        if (startNanos < 0) {
+            return;
+        }
+        long end = System.nanoTime();
+        long start = startNanos;
+        startNanos = -1;
+        if (!forked) {
+            inspector.endSpan(this);
+        }
+        record(end - start);
+        if (jfrEvent != null) {
+            Jfr.endStage(jfrEvent);
+            jfrEvent = null;
+        }
+    }
+
+    /**
+     * Start timing a run of this span.
+     */
+    private void open() {
+        if (Jfr.ENABLED) {
+            jfrEvent = Jfr.beginStage(name);
+        }
+        startNanos = System.nanoTime();
+    }
+
+    boolean isOpen() {
+        return startNanos >= 0;
+    }
+
+    Span getParent() {
+        return parent;
+    }
+
+    /**
+     * @return The names of the span and its ancestors, outermost first, joined with dots.
+     */
+    String getPath() {
+        if (path == null) {
+            path = parent == null || parent.getParent() == null ? name : parent.getPath() + "." + name;
+        }
+        return path;
+    }
+
+    /**
+     * Convert the span and its children into the tree reported by Inspector.finish.
+     *
+     * @return The name, count, total time, latency, counters and children of the span.
+     */
+    Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("name", name);
+        map.put("count", count);
+        map.put("totalMs", Histogram.millis(totalNanos));
+        if (latency != null) {
+            map.put("latency", latency.toMap());
+        }
+        if (!counters.isEmpty()) {
+            Map<String, Long> values = new LinkedHashMap<>();
+            for (Map.Entry<String, long[]> counter : counters.entrySet()) {
+                values.put(counter.getKey(), counter.getValue()[0]);
+            }
+            map.put("counters", values);
+        }
+        if (!children.isEmpty()) {
+            map.put("children", childMaps());
+        }
+        return map;
+    }
+
+    List<Map<String, Object>> childMaps() {
+        List<Map<String, Object>> list = new ArrayList<>(children.size());
+        for (Span child : children.values()) {
+            list.add(child.toMap());
+        }
+        return list;
+    }
+
+    boolean hasChildren() {
+        return !children.isEmpty();
+    }
+
+    /**
+     * @param counter The name of a counter.
+     * @return The sum of the counter over this span and its descendants.
+     */
+    long counterTotal(String counter) {
+        long[] value = counters.get(counter);
+        long total = value != null ? value[0] : 0;
+        for (Span child : children.values()) {
+            total += child.counterTotal(counter);
+        }
+        return total;
+    }
+}
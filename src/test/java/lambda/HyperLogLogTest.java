@@ -0,0 +1,85 @@
+package lambda;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * The accuracy HyperLogLog documents: a standard error of about 1.6% with the
+ * default precision, close to exact counts for small cardinalities, and
+ * lossless merges.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+public class HyperLogLogTest {
+
+    /** Three standard errors of the default precision. */
+    private static final double ERROR = 3 * 1.04 / Math.sqrt(1 << HyperLogLog.DEFAULT_PRECISION);
+
+    @Test
+    public void largeCardinalitiesAreWithinError() {
+        for (final int distinct : new int[] {10000, 100000, 1000000}) {
+            final HyperLogLog sketch = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+            for (int i = 0; i < distinct; i++) {
+                sketch.offer("city-" + i);
+            }
+            assertWithinError(distinct, sketch.cardinality(), ERROR);
+        }
+    }
+
+    @Test
+    public void smallCardinalitiesAreNearlyExact() {
+        for (final int distinct : new int[] {1, 10, 100, 1000}) {
+            final HyperLogLog sketch = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+            for (int i = 0; i < distinct; i++) {
+                sketch.offer("city-" + i);
+            }
+            assertWithinError(distinct, sketch.cardinality(), 0.05);
+        }
+    }
+
+    @Test
+    public void repeatedValuesAreCountedOnce() {
+        final HyperLogLog once = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+        final HyperLogLog repeated = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+        for (int i = 0; i < 100000; i++) {
+            if (i < 50) {
+                once.offer("city-" + i);
+            }
+            repeated.offer("city-" + i % 50);
+        }
+        assertArrayEquals(once.toBytes(), repeated.toBytes());
+        assertWithinError(50, repeated.cardinality(), 0.05);
+    }
+
+    @Test
+    public void mergeEqualsSketchOfUnion() {
+        final HyperLogLog union = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+        final HyperLogLog merged = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+        for (int part = 0; part < 10; part++) {
+            final HyperLogLog sketch = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+            for (int i = part * 5000; i < part * 5000 + 8000; i++) {
+                sketch.offer("city-" + i);
+                union.offer("city-" + i);
+            }
+            merged.merge(HyperLogLog.fromBytes(sketch.toBytes()));
+        }
+        assertArrayEquals(union.toBytes(), merged.toBytes());
+        assertWithinError(53000, merged.cardinality(), ERROR);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mergeRejectsOtherPrecision() {
+        new HyperLogLog(HyperLogLog.DEFAULT_PRECISION).merge(new HyperLogLog(HyperLogLog.DEFAULT_PRECISION + 1));
+    }
+
+    private static void assertWithinError(final long expected, final long actual, final double error) {
+        final double relative = Math.abs(actual - expected) / (double) expected;
+        assertTrue("Estimated " + actual + " of " + expected + " distinct values", relative <= error);
+    }
+}
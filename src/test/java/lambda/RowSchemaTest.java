@@ -0,0 +1,102 @@
+package lambda;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.function.Function;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.junit.Test;
+
+/**
+ * The transformer generated for the built-in schema against the hand-written
+ * transformation it replaced, and appendFixed against String.format.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+public class RowSchemaTest {
+
+    /** Values that end on a rounding boundary or leave the fast path. */
+    private static final float[] EDGES = {
+        0f, -0f, 0.005f, 0.015f, 0.125f, 0.375f, 0.995f, 1.005f, 9.995f, 99.995f, 0.33333334f, 2.675f,
+        1e-5f, 1e-3f, 123456.79f, 1e7f, 1e20f, Float.MIN_VALUE, Float.MAX_VALUE,
+        -0.005f, -1.5f, -2.675f, Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY,
+    };
+
+    /** Gives every city a state named after it, in the United States. */
+    private static final Function<String, Transform.CacheLocation> LOCATIONS =
+            city -> new Transform.CacheLocation(city + " State", "United States");
+
+    @Test
+    public void appendFixedMatchesStringFormat() {
+        final Random random = new Random(462);
+        for (int precision = 0; precision <= 4; precision++) {
+            for (final float value : EDGES) {
+                assertFixed(value, precision);
+            }
+            for (int i = 0; i < 20000; i++) {
+                assertFixed(random.nextFloat(), precision);
+                assertFixed(random.nextFloat() * 100, precision);
+                assertFixed(random.nextInt(100000) / 100f, precision);
+                assertFixed(Float.intBitsToFloat(random.nextInt()), precision);
+            }
+        }
+    }
+
+    @Test
+    public void transformMatchesHandWrittenTransformer() throws IOException {
+        final Random random = new Random(462);
+        final StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            csv.append(18 + random.nextInt(60)).append(',')
+                    .append(random.nextBoolean() ? "Male" : "Female").append(',')
+                    .append(1 + random.nextInt(50)).append(',')
+                    .append(usage(random)).append(',')
+                    .append(usage(random)).append(',')
+                    .append(usage(random)).append(',')
+                    .append("City ").append(random.nextInt(100)).append('\n');
+        }
+        csv.append("30,Female,5,0,0,0,Tacoma\n");
+        try (CSVParser parser = CSVParser.parse(csv.toString(), CSVFormat.DEFAULT)) {
+            for (final CSVRecord record : parser) {
+                assertEquals(handWritten(record), RowSchema.transform(record, LOCATIONS));
+            }
+        }
+    }
+
+    private static void assertFixed(final float value, final int precision) {
+        final StringBuilder out = new StringBuilder();
+        RowSchema.appendFixed(out, value, precision);
+        assertEquals("Value " + value + " to " + precision + " digits",
+                String.format("%." + precision + "f", value), out.toString());
+    }
+
+    private static String usage(final Random random) {
+        return random.nextBoolean() ? String.valueOf(random.nextInt(1000) / 100.0) : String.valueOf(random.nextFloat() * 10);
+    }
+
+    /**
+     * The transformation of a raw row as written before the schema.
+     */
+    private static String handWritten(final CSVRecord record) {
+        final int userAge = Integer.parseInt(record.get(0));
+        final String userGender = record.get(1);
+        final int userNumberOfApps = Integer.parseInt(record.get(2));
+        final float userSocialMediaUsage = Float.parseFloat(record.get(3));
+        final float userProductivityAppUsage = Float.parseFloat(record.get(4));
+        final float userGamingAppUsage = Float.parseFloat(record.get(5));
+        final String userCity = record.get(6);
+        final float userTotalAppUsage = userSocialMediaUsage + userProductivityAppUsage + userGamingAppUsage;
+        final Transform.CacheLocation location = LOCATIONS.apply(userCity);
+        return Transform.formatRow(userAge, userGender, userNumberOfApps, userSocialMediaUsage,
+                userSocialMediaUsage / userTotalAppUsage, userProductivityAppUsage, userProductivityAppUsage / userTotalAppUsage,
+                userGamingAppUsage, userGamingAppUsage / userTotalAppUsage, userTotalAppUsage, userCity,
+                location.getState(), location.getCountry());
+    }
+}
@@ -0,0 +1,108 @@
+package lambda;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * The accuracy TDigest documents: quantile estimates within 0.5% in rank of the
+ * true quantile with the default compression, for a single digest, merged
+ * digests and serialized digests.
+ *
+ * @author Brandon Ragghianti
+ * @author Michael
+ * @author Tyler
+ * @author Gabriel Stupart
+ * @version 1.0
+ */
+public class TDigestTest {
+
+    /** Values in each distribution. */
+    private static final int VALUES = 100000;
+
+    /** The quantiles checked. */
+    private static final double[] QUANTILES = {0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99};
+
+    /** The largest rank error allowed. */
+    private static final double RANK_ERROR = 0.005;
+
+    @Test
+    public void uniformQuantilesAreWithinRankError() {
+        final double[] values = new double[VALUES];
+        final Random random = new Random(462);
+        final TDigest digest = new TDigest(TDigest.DEFAULT_COMPRESSION);
+        for (int i = 0; i < VALUES; i++) {
+            values[i] = random.nextDouble() * 100;
+            digest.add(values[i]);
+        }
+        assertRankError(values, digest);
+    }
+
+    @Test
+    public void skewedQuantilesAreWithinRankError() {
+        final double[] values = new double[VALUES];
+        final Random random = new Random(462);
+        final TDigest digest = new TDigest(TDigest.DEFAULT_COMPRESSION);
+        for (int i = 0; i < VALUES; i++) {
+            values[i] = -Math.log(1 - random.nextDouble()) * 10;
+            digest.add(values[i]);
+        }
+        assertRankError(values, digest);
+    }
+
+    @Test
+    public void mergedQuantilesAreWithinRankError() {
+        final double[] values = new double[VALUES];
+        final Random random = new Random(462);
+        final TDigest merged = new TDigest(TDigest.DEFAULT_COMPRESSION);
+        for (int part = 0; part < 20; part++) {
+            final TDigest digest = new TDigest(TDigest.DEFAULT_COMPRESSION);
+            for (int i = part * VALUES / 20; i < (part + 1) * VALUES / 20; i++) {
+                values[i] = random.nextGaussian() * 15 + part;
+                digest.add(values[i]);
+            }
+            merged.merge(TDigest.fromBytes(digest.toBytes()));
+        }
+        assertEquals(VALUES, merged.size());
+        assertRankError(values, merged);
+    }
+
+    @Test
+    public void serializedDigestAnswersTheSame() {
+        final Random random = new Random(462);
+        final TDigest digest = new TDigest(TDigest.DEFAULT_COMPRESSION);
+        for (int i = 0; i < VALUES; i++) {
+            digest.add(random.nextDouble());
+        }
+        final TDigest read = TDigest.fromBytes(digest.toBytes());
+        assertEquals(digest.size(), read.size());
+        for (final double q : QUANTILES) {
+            assertEquals(digest.quantile(q), read.quantile(q), 0);
+        }
+    }
+
+    @Test
+    public void emptyDigestHasNoQuantile() {
+        assertTrue(Double.isNaN(new TDigest(TDigest.DEFAULT_COMPRESSION).quantile(0.5)));
+    }
+
+    /**
+     * Assert the rank of the estimate of every quantile in the sorted values is within RANK_ERROR of it.
+     */
+    private static void assertRankError(final double[] values, final TDigest digest) {
+        final double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        for (final double q : QUANTILES) {
+            final double estimate = digest.quantile(q);
+            int rank = Arrays.binarySearch(sorted, estimate);
+            if (rank < 0) {
+                rank = -rank - 1;
+            }
+            final double error = Math.abs((double) rank / sorted.length - q);
+            assertTrue("Rank error " + error + " at q = " + q, error <= RANK_ERROR);
+        }
+    }
+}